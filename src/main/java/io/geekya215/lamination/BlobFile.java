@@ -0,0 +1,214 @@
+package io.geekya215.lamination;
+
+import io.geekya215.lamination.exception.Crc32MismatchException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U16;
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+
+// Append-only file holding values separated from lsm, lsm only stores BlobIndex of them.
+//
+// +---------------------------------------------------------------------+
+// |                             Blob Record                             |
+// +---------------+-----------+-----------------+---------+------------+
+// | key_len (u16) | user key  | value_len (u32) | value   | crc32(u32) |
+// +---------------+-----------+-----------------+---------+------------+
+//
+// crc32 covers value only, so that value is checked without reading the whole record.
+// a value becomes garbage once compaction drops or relocates every index pointing to it,
+// file is removed when all its values are garbage.
+public final class BlobFile implements Closeable {
+    private final int id;
+    private final @NotNull FileChannel channel;
+    // end of file, next record is appended here
+    private final @NotNull AtomicLong size;
+    // end of file when it was last forced to disk
+    private final @NotNull AtomicLong syncedSize;
+    // sum of value length of all records
+    private final @NotNull AtomicLong valueBytes;
+    // sum of value length no longer referenced by any sst
+    private final @NotNull AtomicLong garbageBytes;
+    // number of storage versions and readers holding this file, file is closed when it drops to zero
+    private final @NotNull AtomicInteger refs;
+    // set once file is removed from storage, deleted after the last holder releases it
+    private volatile @Nullable Path obsoletePath;
+
+    BlobFile(int id, @NotNull FileChannel channel, long size, long valueBytes) {
+        this.id = id;
+        this.channel = channel;
+        this.size = new AtomicLong(size);
+        this.syncedSize = new AtomicLong(size);
+        this.valueBytes = new AtomicLong(valueBytes);
+        this.garbageBytes = new AtomicLong(0);
+        this.refs = new AtomicInteger(0);
+        this.obsoletePath = null;
+    }
+
+    public static @NotNull BlobFile create(int id, @NotNull Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new BlobFile(id, channel, 0, 0);
+    }
+
+    // scan records to restore size, torn record at the end left by crash is truncated
+    public static @NotNull BlobFile open(int id, @NotNull Path path) throws IOException {
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long fileSize = channel.size();
+        long cursor = 0;
+        long valueBytes = 0;
+        try {
+            while (cursor < fileSize) {
+                int keyLength = Short.toUnsignedInt(readFully(channel, cursor, SIZE_OF_U16).getShort());
+                int valueLength = readFully(channel, cursor + SIZE_OF_U16 + keyLength, SIZE_OF_U32).getInt();
+                long valueOffset = cursor + SIZE_OF_U16 + keyLength + SIZE_OF_U32;
+                if (valueLength < 0 || valueOffset + valueLength + SIZE_OF_U32 > fileSize) {
+                    break;
+                }
+                valueBytes += valueLength;
+                cursor = valueOffset + valueLength + SIZE_OF_U32;
+            }
+        } catch (EOFException e) {
+            // torn record
+        }
+        if (cursor < fileSize) {
+            channel.truncate(cursor);
+        }
+        return new BlobFile(id, channel, cursor, valueBytes);
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public long size() {
+        return size.get();
+    }
+
+    public long getValueBytes() {
+        return valueBytes.get();
+    }
+
+    public long getGarbageBytes() {
+        return garbageBytes.get();
+    }
+
+    public void addGarbageBytes(long bytes) {
+        garbageBytes.addAndGet(bytes);
+    }
+
+    public double garbageRatio() {
+        long total = valueBytes.get();
+        return total == 0 ? 0 : (double) garbageBytes.get() / total;
+    }
+
+    // every value is garbage, nothing in lsm points to this file anymore
+    public boolean isDead() {
+        long total = valueBytes.get();
+        return total != 0 && garbageBytes.get() >= total;
+    }
+
+    public synchronized @NotNull BlobIndex append(byte @NotNull [] userKey, byte @NotNull [] value) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(SIZE_OF_U16 + userKey.length + SIZE_OF_U32 + value.length + SIZE_OF_U32);
+        buf.putShort((short) userKey.length);
+        buf.put(userKey);
+        buf.putInt(value.length);
+        buf.put(value);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(value);
+        buf.putInt((int) crc32.getValue());
+        buf.flip();
+
+        long offset = size.get();
+        long cursor = offset;
+        while (buf.hasRemaining()) {
+            cursor += channel.write(buf, cursor);
+        }
+        size.set(cursor);
+        valueBytes.addAndGet(value.length);
+        return new BlobIndex(id, offset + SIZE_OF_U16 + userKey.length + SIZE_OF_U32, value.length);
+    }
+
+    public byte @NotNull [] read(@NotNull BlobIndex index) throws IOException {
+        final ByteBuffer buf = readFully(channel, index.offset(), index.length() + SIZE_OF_U32);
+        final byte[] value = new byte[index.length()];
+        buf.get(value);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(value);
+        int expectedChecksum = (int) crc32.getValue();
+        int actualChecksum = buf.getInt();
+        if (actualChecksum != expectedChecksum) {
+            throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+        }
+        return value;
+    }
+
+    // value of blob index, blob files should come from a version containing the index
+    public static byte @NotNull [] resolve(@NotNull Map<Integer, BlobFile> blobFiles, byte @NotNull [] blobIndex) throws IOException {
+        BlobIndex index = BlobIndex.decode(blobIndex);
+        BlobFile blobFile = blobFiles.get(index.fileId());
+        if (blobFile == null) {
+            throw new IllegalStateException("blob file " + index.fileId() + " is missing");
+        }
+        return blobFile.read(index);
+    }
+
+    // called before wal, sst or manifest referencing values of this file is made durable,
+    // no-op if nothing is appended since last sync
+    public void sync() throws IOException {
+        long end = size.get();
+        if (syncedSize.get() < end) {
+            channel.force(false);
+            syncedSize.accumulateAndGet(end, Math::max);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release() throws IOException {
+        if (refs.decrementAndGet() == 0) {
+            close();
+            Path path = obsoletePath;
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public void markObsolete(@NotNull Path path) {
+        this.obsoletePath = path;
+    }
+
+    private static @NotNull ByteBuffer readFully(@NotNull FileChannel channel, long position, int length) throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new EOFException();
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+}
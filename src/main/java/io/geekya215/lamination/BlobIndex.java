@@ -0,0 +1,59 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
+
+// Value of internal key with kind InternalKey::KIND_BLOB, points to a value in blob file.
+//
+// +--------------------------------------------+
+// |                 Blob Index                 |
+// +--------------+--------------+--------------+
+// | file_id(u32) | offset(u64)  | length(u32)  |
+// +--------------+--------------+--------------+
+//
+// offset is where value starts in blob file, not the record
+public record BlobIndex(int fileId, long offset, int length) implements Encoder {
+    static final int SIZE_OF_BLOB_INDEX = SIZE_OF_U32 + SIZE_OF_U64 + SIZE_OF_U32;
+
+    @Override
+    public byte @NotNull [] encode() {
+        final byte[] buf = new byte[SIZE_OF_BLOB_INDEX];
+        int cursor = 0;
+
+        buf[cursor] = (byte) (fileId >> 24);
+        buf[cursor + 1] = (byte) (fileId >> 16);
+        buf[cursor + 2] = (byte) (fileId >> 8);
+        buf[cursor + 3] = (byte) fileId;
+        cursor += 4;
+
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            buf[cursor + i] = (byte) (offset >> (56 - i * 8));
+        }
+        cursor += SIZE_OF_U64;
+
+        buf[cursor] = (byte) (length >> 24);
+        buf[cursor + 1] = (byte) (length >> 16);
+        buf[cursor + 2] = (byte) (length >> 8);
+        buf[cursor + 3] = (byte) length;
+        return buf;
+    }
+
+    public static @NotNull BlobIndex decode(byte @NotNull [] buf) {
+        int cursor = 0;
+        int fileId = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+        cursor += 4;
+
+        long offset = 0;
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            offset = (offset << 8) | (buf[cursor + i] & 0xFF);
+        }
+        cursor += SIZE_OF_U64;
+
+        int length = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+        return new BlobIndex(fileId, offset, length);
+    }
+}
@@ -0,0 +1,157 @@
+package io.geekya215.lamination;
+
+import io.geekya215.lamination.exception.Crc32MismatchException;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.zip.CRC32;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
+
+//
+// +----------------------------------------------------------------------------------+
+// |                               Blocked Bloom Filter                               |
+// +----------+-----+----------+--------------------+--------------------+------------+
+// | block #1 | ... | block #N | num_of_blocks(u32) | num_of_probes(u32) | crc32(u32) |
+// +----------+-----+----------+--------------------+--------------------+------------+
+//
+// block is 512 bits (8 x u64), the size of a cache line. high 32 bits of hash pick the block,
+// low 32 bits give every probe inside it, so that a lookup touches 64 contiguous bytes instead of
+// up to k scattered cache lines. long[] is not 64-byte aligned, so a block may straddle two
+// adjacent cache lines. false positive rate is a bit higher than BloomFilter of the same size
+// since keys are not spread evenly over blocks, which is made up by a few more bits per key.
+public final class BlockedBloomFilter implements KeyFilter {
+    static final int BITS_PER_BLOCK = 512;
+    static final int WORDS_PER_BLOCK = BITS_PER_BLOCK / Long.SIZE;
+    // extra bits per key to offset uneven load of blocks
+    private static final double EXTRA_BITS_PER_KEY = 1.0;
+    private static final int MAX_PROBES = 16;
+
+    private final long @NotNull [] bits;
+    private final int numOfBlocks;
+    private final int numOfProbes;
+
+    public BlockedBloomFilter(int n, double p) {
+        double bitsPerKey = -Math.log(p) / Math.pow(Math.log(2.0), 2.0);
+        long totalBits = (long) Math.ceil(n * (bitsPerKey + EXTRA_BITS_PER_KEY));
+        int numOfBlocks = (int) Math.max(1, (totalBits + BITS_PER_BLOCK - 1) / BITS_PER_BLOCK);
+        this.bits = new long[numOfBlocks * WORDS_PER_BLOCK];
+        this.numOfBlocks = numOfBlocks;
+        this.numOfProbes = Math.clamp(Math.round(bitsPerKey * Math.log(2.0)), 1, MAX_PROBES);
+    }
+
+    public BlockedBloomFilter(long @NotNull [] bits, int numOfBlocks, int numOfProbes) {
+        this.bits = bits;
+        this.numOfBlocks = numOfBlocks;
+        this.numOfProbes = numOfProbes;
+    }
+
+    @Override
+    public @NotNull Type type() {
+        return Type.BLOCKED_BLOOM;
+    }
+
+    public void mappingHashToBitset(long hash64) {
+        int base = blockOf(hash64);
+        int h = (int) hash64;
+        int delta = Integer.rotateRight(h, 17);
+        for (int i = 0; i < numOfProbes; i++) {
+            // low 9 bits of h address a bit in block
+            bits[base + ((h >>> 6) & (WORDS_PER_BLOCK - 1))] |= 1L << h;
+            h += delta;
+        }
+    }
+
+    public void add(byte @NotNull [] key) {
+        mappingHashToBitset(KeyFilter.hash(key));
+    }
+
+    @Override
+    public boolean mayContain(long hash64) {
+        int base = blockOf(hash64);
+        int h = (int) hash64;
+        int delta = Integer.rotateRight(h, 17);
+        for (int i = 0; i < numOfProbes; i++) {
+            if ((bits[base + ((h >>> 6) & (WORDS_PER_BLOCK - 1))] & (1L << h)) == 0) {
+                return false;
+            }
+            h += delta;
+        }
+        return true;
+    }
+
+    // index of first word of block, multiply and shift instead of modulo
+    private int blockOf(long hash64) {
+        return (int) (((hash64 >>> 32) * numOfBlocks) >>> 32) * WORDS_PER_BLOCK;
+    }
+
+    @Override
+    public byte @NotNull [] encode() {
+        final byte[] buf = new byte[bits.length * SIZE_OF_U64 + SIZE_OF_U32 * 3];
+        int cursor = 0;
+
+        for (long word : bits) {
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (word >> (56 - i * 8));
+            }
+            cursor += SIZE_OF_U64;
+        }
+
+        buf[cursor] = (byte) (numOfBlocks >> 24);
+        buf[cursor + 1] = (byte) (numOfBlocks >> 16);
+        buf[cursor + 2] = (byte) (numOfBlocks >> 8);
+        buf[cursor + 3] = (byte) numOfBlocks;
+        cursor += 4;
+
+        buf[cursor] = (byte) (numOfProbes >> 24);
+        buf[cursor + 1] = (byte) (numOfProbes >> 16);
+        buf[cursor + 2] = (byte) (numOfProbes >> 8);
+        buf[cursor + 3] = (byte) numOfProbes;
+        cursor += 4;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int checksum = (int) crc32.getValue();
+
+        buf[cursor] = (byte) (checksum >> 24);
+        buf[cursor + 1] = (byte) (checksum >> 16);
+        buf[cursor + 2] = (byte) (checksum >> 8);
+        buf[cursor + 3] = (byte) checksum;
+
+        return buf;
+    }
+
+    public static @NotNull BlockedBloomFilter decode(byte @NotNull [] buf) {
+        int cursor = buf.length - SIZE_OF_U32;
+        int actualChecksum = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int expectedChecksum = (int) crc32.getValue();
+
+        if (actualChecksum != expectedChecksum) {
+            throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+        }
+
+        cursor -= SIZE_OF_U32;
+        int numOfProbes = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+
+        cursor -= SIZE_OF_U32;
+        int numOfBlocks = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+
+        final long[] bits = new long[numOfBlocks * WORDS_PER_BLOCK];
+        cursor = 0;
+        for (int i = 0; i < bits.length; i++) {
+            long word = 0;
+            for (int j = 0; j < SIZE_OF_U64; j++) {
+                word = (word << 8) | (buf[cursor + j] & 0xFF);
+            }
+            bits[i] = word;
+            cursor += SIZE_OF_U64;
+        }
+        return new BlockedBloomFilter(bits, numOfBlocks, numOfProbes);
+    }
+}
@@ -16,9 +16,7 @@ import static io.geekya215.lamination.Constants.SIZE_OF_U64;
 // | bitset | false_positive(u64) | num_of_elements(u32) | crc32(u32) |
 // +--------+---------------------+----------------------+------------+
 //
-public final class BloomFilter implements Encoder {
-    private static final double DEFAULT_FALSE_POSITIVE = 0.03;
-
+public final class BloomFilter implements KeyFilter {
     private final @NotNull BitSet bitSet;
     // m: total bits
     // n: expected insertions
@@ -79,13 +77,17 @@ public final class BloomFilter implements Encoder {
     }
 
     public void add(byte @NotNull [] key) {
-        long hash64 = MurmurHash2.hash64(key, key.length);
+        long hash64 = KeyFilter.hash(key);
         mappingHashToBitset(hash64);
     }
 
-    public boolean contain(byte @NotNull [] key) {
-        long hash64 = MurmurHash2.hash64(key, key.length);
+    @Override
+    public @NotNull Type type() {
+        return Type.BLOOM;
+    }
 
+    @Override
+    public boolean mayContain(long hash64) {
         int high = (int) hash64;
         int low = (int) (hash64 >>> 32);
 
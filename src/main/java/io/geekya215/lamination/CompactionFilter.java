@@ -0,0 +1,41 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+// User supplied filter to drop or rewrite values while compaction rewrites them anyway.
+//
+// only the newest put of a user key which no live snapshot can see is filtered, so that
+// snapshots never observe a filtered value. removed value is replaced by a tombstone, which
+// is dropped with the older versions it shadows once it reaches bottom level.
+// NOTICE
+// filter is also called by get and scan when Options::filterOnRead is set, so it must be cheap
+// and must not depend on when it is called other than through time it reads from value.
+@FunctionalInterface
+public interface CompactionFilter {
+    @NotNull Decision filter(byte @NotNull [] userKey, byte @NotNull [] value);
+
+    static @NotNull Decision keep() {
+        return new Keep();
+    }
+
+    static @NotNull Decision remove() {
+        return new Remove();
+    }
+
+    static @NotNull Decision changeValue(byte @NotNull [] value) {
+        return new ChangeValue(value);
+    }
+
+    sealed interface Decision permits Keep, Remove, ChangeValue {
+    }
+
+    record Keep() implements Decision {
+    }
+
+    record Remove() implements Decision {
+    }
+
+    // empty value is not allowed, use Remove instead
+    record ChangeValue(byte @NotNull [] value) implements Decision {
+    }
+}
@@ -1,6 +1,7 @@
 package io.geekya215.lamination;
 
 import io.geekya215.lamination.compact.*;
+import io.geekya215.lamination.exception.TransactionConflictException;
 import io.geekya215.lamination.iterator.*;
 import io.geekya215.lamination.recover.Manifest;
 import io.geekya215.lamination.recover.Track;
@@ -9,15 +10,25 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -28,9 +39,12 @@ import static java.util.FormatProcessor.FMT;
 public final class Engine implements Closeable {
     static final String WAL_FILE_FORMAT = "%05d.wal";
     static final String SST_FILE_FORMAT = "%05d.sst";
+    static final String BLOB_FILE_FORMAT = "%05d.blob";
+    // value length is u16 in wal and block, larger value must go to blob file
+    static final int MAX_INLINE_VALUE_SIZE = 0xFFFF;
     static final String MANIFEST_FILE_NAME = "MANIFEST";
     static final byte[] DELETE_TOMBSTONE = EMPTY_BYTE_ARRAY;
-    private final @NotNull Storage storage;
+    private final @NotNull AtomicReference<Storage> storage;
     private final @NotNull ReentrantReadWriteLock rwLock;
     private final @NotNull ReentrantReadWriteLock.ReadLock readLock;
     private final @NotNull ReentrantReadWriteLock.WriteLock writeLock;
@@ -39,10 +53,32 @@ public final class Engine implements Closeable {
     private final @NotNull Options options;
     private final @NotNull Path path;
     private final @NotNull AtomicInteger sstId;
+    // sequence of the last committed write, reader never sees write with greater sequence
+    private final @NotNull AtomicLong lastSequence;
+    // guard commit queue and publish of last sequence, never held while write is applied, see commit
+    private final @NotNull ReentrantLock commitLock;
+    // writes waiting to be committed, head of queue is leader of the next group
+    private final @NotNull ArrayDeque<Writer> writers;
+    // set once a group fails to apply, see commit. entries it left in memory table carry sequences above
+    // last sequence, so every later write and freeze is rejected to keep them from ever becoming visible
+    private volatile @Nullable Throwable writeError;
+    // sequence of live snapshots to number of handles, compaction keeps versions visible to them
+    private final @NotNull TreeMap<Long, Integer> snapshots;
+    // serialize commits of transactions touching the same keys
+    private final @NotNull LockTable lockTable;
     private final @NotNull Manifest manifest;
     private final @NotNull ExecutorService flushThread;
     private final @NotNull Compactor compactor;
     private final @NotNull ExecutorService compactThread;
+    private final @NotNull RateLimiter rateLimiter;
+    // serialize rotation of blob file written by put
+    private final @NotNull ReentrantLock blobLock;
+    // blob file receiving large values of put, never garbage collected until rotated
+    private volatile @Nullable BlobFile activeBlobFile;
+    // blob files written by running compaction, installed together with its result, see applyCompactionResult
+    private final @NotNull Map<Integer, BlobFile> pendingBlobFiles;
+    // null if Options::rowCacheSize is not positive
+    private final @Nullable RowCache rowCache;
 
     public Engine(
             @NotNull Storage storage,
@@ -52,11 +88,13 @@ public final class Engine implements Closeable {
             @NotNull Options options,
             @NotNull Path path,
             @NotNull AtomicInteger sstId,
+            @NotNull AtomicLong lastSequence,
             @NotNull Manifest manifest,
             @NotNull ExecutorService flushThread,
             @NotNull Compactor compactor,
-            @NotNull ExecutorService compactThread) {
-        this.storage = storage;
+            @NotNull ExecutorService compactThread,
+            @NotNull RateLimiter rateLimiter) {
+        this.storage = new AtomicReference<>(storage);
         this.rwLock = rwLock;
         this.readLock = rwLock.readLock();
         this.writeLock = rwLock.writeLock();
@@ -65,10 +103,21 @@ public final class Engine implements Closeable {
         this.options = options;
         this.path = path;
         this.sstId = sstId;
+        this.lastSequence = lastSequence;
+        this.commitLock = new ReentrantLock();
+        this.writers = new ArrayDeque<>();
+        this.writeError = null;
+        this.snapshots = new TreeMap<>();
+        this.lockTable = LockTable.create();
         this.manifest = manifest;
         this.flushThread = flushThread;
         this.compactor = compactor;
         this.compactThread = compactThread;
+        this.rateLimiter = rateLimiter;
+        this.blobLock = new ReentrantLock();
+        this.activeBlobFile = null;
+        this.pendingBlobFiles = new ConcurrentHashMap<>();
+        this.rowCache = options.rowCacheSize() > 0 ? new RowCache(options.rowCacheSize()) : null;
     }
 
     public static @NotNull Engine open(@NotNull Path path, @NotNull Options options) throws IOException {
@@ -76,14 +125,16 @@ public final class Engine implements Closeable {
         ScheduledExecutorService flushThread = Executors.newSingleThreadScheduledExecutor();
         ScheduledExecutorService compactThread = Executors.newSingleThreadScheduledExecutor();
         int nextSSTId = 1;
+        long lastSequence = 0;
 
         Compactor compactor =  switch (options.strategy()) {
-            case CompactStrategy.Simple simple -> new SimpleCompactor(simple);
+            case CompactStrategy.Simple simple -> new SimpleCompactor(simple, options.sstSize());
             case CompactStrategy.NoCompact noCompact -> new NoCompactCompactor(noCompact);
+            case CompactStrategy.Fifo fifo -> new FifoCompactor(fifo);
             default -> throw new IllegalArgumentException("unsupported compaction strategy: " + options.strategy());
         };
 
-        Storage storage = Storage.create(options);
+        Storage.StorageBuilder storage = Storage.create(options).toBuilder();
         Manifest manifest;
 
         Path manifestPath = path.resolve(MANIFEST_FILE_NAME);
@@ -92,6 +143,7 @@ public final class Engine implements Closeable {
             manifest = recover.t1();
             List<Track> tracks = recover.t2();
             TreeSet<Integer> memoryTables = new TreeSet<>();
+            Map<Integer, Long> blobGarbage = new HashMap<>();
             for (Track track : tracks) {
                 switch (track) {
                     case Track.Flush(int id) -> {
@@ -108,10 +160,24 @@ public final class Engine implements Closeable {
                     }
                     case Track.Compact(CompactionTask task, List<Integer> outputs) -> {
                         compactor.doCompact(storage, task, outputs);
-                        nextSSTId = Math.max(nextSSTId, Collections.max(outputs));
+                        if (!outputs.isEmpty()) {
+                            nextSSTId = Math.max(nextSSTId, Collections.max(outputs));
+                        }
                     }
+                    case Track.BlobGarbage(int id, long bytes) -> blobGarbage.merge(id, bytes, Long::sum);
+                }
+            }
+            // blob file is not tracked by manifest, it is opened once sst and wal referencing it are recovered
+            final Map<Integer, Path> blobPaths = new TreeMap<>();
+            try (DirectoryStream<Path> paths = Files.newDirectoryStream(path, "*.blob")) {
+                for (Path blobPath : paths) {
+                    String fileName = blobPath.getFileName().toString();
+                    int blobId = Integer.parseInt(fileName.substring(0, fileName.length() - ".blob".length()));
+                    nextSSTId = Math.max(nextSSTId, blobId);
+                    blobPaths.put(blobId, blobPath);
                 }
             }
+            final Set<Integer> referencedBlobIds = new HashSet<>();
             int sstCnt = 0;
             for (Integer sstId : storage.getLevel0SortedStringTables()) {
                 SortedStringTable sst = SortedStringTable.open(sstId, blockCache, SortedStringTable.FileObject.open(getPathOfSST(path, sstId)));
@@ -124,6 +190,15 @@ public final class Engine implements Closeable {
                     storage.getSortedStringTables().put(sstId, sst);
                     sstCnt += 1;
                 }
+                // outputs of compaction are appended to lower level
+                sortByFirstKey(level.t2(), storage.getSortedStringTables());
+            }
+            storage.computeLevelSizes();
+            for (SortedStringTable sst : storage.getSortedStringTables().values()) {
+                lastSequence = Math.max(lastSequence, sst.getMaxSequence());
+                if (!blobPaths.isEmpty()) {
+                    referencedBlobIds.addAll(blobReferencesOf(sst).keySet());
+                }
             }
 
             nextSSTId += 1;
@@ -135,8 +210,18 @@ public final class Engine implements Closeable {
                 for (int memoryTableId : memoryTables) {
                     MemoryTable memoryTable = MemoryTable.recoverFromWAL(memoryTableId, getPathOfWAL(path, memoryTableId));
                     if (!memoryTable.isEmpty()) {
+                        memoryTable.freeze();
                         storage.getImmutableMemoryTables().add(memoryTable);
                         walCnt += 1;
+                        for (MemoryTable.MemoryTableIterator iter = memoryTable.scan(Bound.unbound(), Bound.unbound()); iter.isValid(); iter.next()) {
+                            lastSequence = Math.max(lastSequence, InternalKey.sequence(iter.key()));
+                            if (InternalKey.isBlob(iter.key())) {
+                                referencedBlobIds.add(BlobIndex.decode(iter.value()).fileId());
+                            }
+                        }
+                        for (RangeTombstone rangeTombstone : memoryTable.getRangeTombstones()) {
+                            lastSequence = Math.max(lastSequence, rangeTombstone.sequence());
+                        }
                     } else {
                         // Fixme
                         // empty wal id in manifest create track also remove
@@ -145,24 +230,39 @@ public final class Engine implements Closeable {
                     }
                 }
                 System.out.println(walCnt + " WALs recovered");
-                storage.setMemoryTable(MemoryTable.createWithWAL(nextSSTId, getPathOfWAL(path, nextSSTId)));
-            } else {
-                storage.setMemoryTable(MemoryTable.create(nextSSTId));
             }
 
+            // every blob file in directory is alive until all its values are garbage, blob file referenced by
+            // neither sst nor wal is left by a failed compaction or by put whose wal is lost, it is reclaimed
+            for (Map.Entry<Integer, Path> blobPath : blobPaths.entrySet()) {
+                int blobId = blobPath.getKey();
+                if (!referencedBlobIds.contains(blobId)) {
+                    Files.deleteIfExists(blobPath.getValue());
+                    continue;
+                }
+                BlobFile blobFile = BlobFile.open(blobId, blobPath.getValue());
+                blobFile.addGarbageBytes(blobGarbage.getOrDefault(blobId, 0L));
+                if (blobFile.isDead()) {
+                    blobFile.close();
+                    Files.deleteIfExists(blobPath.getValue());
+                } else {
+                    storage.getBlobFiles().put(blobId, blobFile);
+                }
+            }
+            storage.setMemoryTable(newMemoryTable(nextSSTId, path, options));
+
             nextSSTId += 1;
 
         } else {
-            if (options.enableWAL()) {
-                storage.setMemoryTable(MemoryTable.createWithWAL(storage.getMemoryTable().getId(), getPathOfWAL(path, storage.getMemoryTable().getId())));
-            }
+            storage.setMemoryTable(newMemoryTable(storage.getMemoryTable().getId(), path, options));
             manifest = Manifest.create(manifestPath);
             manifest.addTrack(new Track.Create(storage.getMemoryTable().getId()));
         }
 
         Engine engine = new Engine(
-                storage, new ReentrantReadWriteLock(), new ReentrantLock(), blockCache,
-                options, path, new AtomicInteger(nextSSTId), manifest, flushThread, compactor, compactThread);
+                storage.build(), new ReentrantReadWriteLock(), new ReentrantLock(), blockCache,
+                options, path, new AtomicInteger(nextSSTId), new AtomicLong(lastSequence), manifest, flushThread, compactor, compactThread,
+                new RateLimiter(options.rateLimitBytesPerSecond(), options.autoTuneRateLimit()));
 
         flushThread.scheduleWithFixedDelay(() -> {
             try {
@@ -208,16 +308,29 @@ public final class Engine implements Closeable {
         // persist in memory data
 
         // release resource
-        readLock.lock();
+        discardPendingBlobFiles();
+        lock.lock();
         try {
-            storage.getMemoryTable().close();
+            Storage current = storage.get();
+            syncBlobFiles(current);
+            current.getMemoryTable().close();
 
-            for (SortedStringTable sst : storage.getSortedStringTables().values()) {
-                sst.close();
-            }
+            // sst still pinned by unclosed iterator is closed when the iterator is closed
+            current.release();
         } finally {
-            readLock.unlock();
+            lock.unlock();
+        }
+    }
+
+    private static @NotNull MemoryTable newMemoryTable(int id, @NotNull Path path, @NotNull Options options) throws FileNotFoundException {
+        if (options.offHeapMemoryTable()) {
+            return options.enableWAL() ? MemoryTable.createOffHeapWithWAL(id, getPathOfWAL(path, id)) : MemoryTable.createOffHeap(id);
         }
+        return options.enableWAL() ? MemoryTable.createWithWAL(id, getPathOfWAL(path, id)) : MemoryTable.create(id);
+    }
+
+    static void sortByFirstKey(@NotNull List<Integer> sstIds, @NotNull Map<Integer, SortedStringTable> ssts) {
+        sstIds.sort((a, b) -> Arrays.compare(ssts.get(a).getFirstKey(), ssts.get(b).getFirstKey()));
     }
 
     public static @NotNull Path getPathOfWAL(@NotNull Path path, int id) {
@@ -228,99 +341,787 @@ public final class Engine implements Closeable {
         return path.resolve(SST_FILE_FORMAT.formatted(id));
     }
 
+    public static @NotNull Path getPathOfBlob(@NotNull Path path, int id) {
+        return path.resolve(BLOB_FILE_FORMAT.formatted(id));
+    }
+
     public @NotNull Storage getStorage() {
-        return storage;
+        return storage.get();
+    }
+
+    // retry when current version is released by a concurrent writer between get and retain
+    @NotNull Storage acquireStorage() {
+        while (true) {
+            Storage current = storage.get();
+            if (current.tryRetain()) {
+                return current;
+            }
+        }
+    }
+
+    // caller should hold state lock, old version is released after new one is visible
+    private void installStorage(@NotNull Storage newStorage) throws IOException {
+        storage.getAndSet(newStorage).release();
     }
 
     public int getNextSSTId() {
         return sstId.addAndGet(1);
     }
 
+    public @Nullable RowCache getRowCache() {
+        return rowCache;
+    }
+
+    public @NotNull RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    // adjust flush and compaction I/O limit at runtime
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setBytesPerSecond(bytesPerSecond);
+    }
+
     public void put(byte @NotNull [] key, byte @NotNull [] value) throws IOException {
         if (key.length == 0) {
             throw new IllegalArgumentException("key must not be empty");
         }
+        write(List.of(Map.entry(key, value)), false);
+    }
+
+    // append operand of merge operator, folded lazily by get, scan and compaction
+    public void merge(byte @NotNull [] key, byte @NotNull [] operand) throws IOException {
+        if (key.length == 0) {
+            throw new IllegalArgumentException("key must not be empty");
+        }
+        if (options.mergeOperator() == null) {
+            throw new IllegalStateException("merge operator is not configured");
+        }
+        write(List.of(Map.entry(key, operand)), true);
+    }
 
-        int approximateSize;
+    // apply writes with consecutive sequences into the same memory table,
+    // reader sees either all of them or none since last sequence is published at the end
+    private void write(@NotNull Collection<Map.Entry<byte[], byte[]>> entries, boolean merge) throws IOException {
+        // large value is written to blob file before sequence is assigned, only its index goes to wal and memory table
+        final List<Map.Entry<byte[], byte[]>> values = new ArrayList<>(entries.size());
+        final byte[] kinds = new byte[entries.size()];
+        for (Map.Entry<byte[], byte[]> entry : entries) {
+            byte[] value = entry.getValue();
+            byte kind = merge ? InternalKey.KIND_MERGE : value.length == 0 ? InternalKey.KIND_DELETE : InternalKey.KIND_PUT;
+            if (kind == InternalKey.KIND_PUT && options.minBlobSize() > 0 && value.length >= options.minBlobSize()) {
+                value = blobFileForWrite().append(entry.getKey(), value).encode();
+                kind = InternalKey.KIND_BLOB;
+            } else if (value.length > MAX_INLINE_VALUE_SIZE) {
+                throw new IllegalArgumentException("value larger than " + MAX_INLINE_VALUE_SIZE + " bytes requires blob files");
+            }
+            kinds[values.size()] = kind;
+            values.add(Map.entry(entry.getKey(), value));
+        }
+
+        int approximateSize = commit(new Writer(values, kinds, commitLock.newCondition()));
+        // after sequence is published, see RowCache
+        if (rowCache != null) {
+            for (Map.Entry<byte[], byte[]> value : values) {
+                rowCache.invalidate(value.getKey());
+            }
+        }
+        tryFreeze(approximateSize);
+    }
+
+    // write waiting in commit queue, value of range tombstone is its exclusive end user key
+    private static final class Writer {
+        private final @NotNull List<Map.Entry<byte[], byte[]>> entries;
+        private final byte @NotNull [] kinds;
+        private final @NotNull Condition committed;
+        private boolean done;
+        private @Nullable Throwable error;
+
+        private Writer(@NotNull List<Map.Entry<byte[], byte[]>> entries, byte @NotNull [] kinds, @NotNull Condition committed) {
+            this.entries = entries;
+            this.kinds = kinds;
+            this.committed = committed;
+            this.done = false;
+            this.error = null;
+        }
+    }
+
+    //
+    //  writer ---> [ leader | follower | follower ] <--- writer
+    //                  |
+    //                  | commitLock: take group, assign sequences
+    //                  v
+    //              wal and memory table, without commitLock
+    //                  |
+    //                  | commitLock: publish last sequence, wake group and the next leader
+    //                  v
+    //
+    // group commit, writer at head of queue commits every queued write as a group, the others wait for it,
+    // only one group is applied at a time so that last sequence is published in order and reader sees
+    // either all writes of a group or none, return approximate size of memory table written.
+    // group failing half way is not published, its wal records are truncated and engine turns read only,
+    // since the next group would reuse its sequences and publish what it left in memory table
+    private int commit(@NotNull Writer writer) throws IOException {
         readLock.lock();
         try {
-            MemoryTable memoryTable = storage.getMemoryTable();
-            memoryTable.put(key, value);
-            approximateSize = memoryTable.getApproximateSize();
+            // memory table does not change while any writer holds read lock
+            final MemoryTable memoryTable = storage.get().getMemoryTable();
+            final List<Writer> group = new ArrayList<>();
+            long sequence;
+            commitLock.lock();
+            try {
+                writers.addLast(writer);
+                while (!writer.done && writers.peekFirst() != writer) {
+                    writer.committed.awaitUninterruptibly();
+                }
+                if (writer.done) {
+                    rethrow(writer.error);
+                    return memoryTable.getApproximateSize();
+                }
+                group.addAll(writers);
+                sequence = lastSequence.get();
+            } finally {
+                commitLock.unlock();
+            }
+
+            Throwable error = writeError == null ? null : readOnlyError();
+            if (error == null) {
+                final long walSize = memoryTable.getWALSize();
+                try {
+                    for (Writer member : group) {
+                        for (int i = 0; i < member.entries.size(); i++) {
+                            sequence += 1;
+                            final Map.Entry<byte[], byte[]> entry = member.entries.get(i);
+                            final byte[] internalKey = InternalKey.encode(entry.getKey(), sequence, member.kinds[i]);
+                            if (member.kinds[i] == InternalKey.KIND_RANGE_DELETE) {
+                                memoryTable.deleteRange(internalKey, entry.getValue());
+                            } else {
+                                memoryTable.put(internalKey, entry.getValue());
+                            }
+                        }
+                    }
+                } catch (IOException | RuntimeException e) {
+                    error = e;
+                    writeError = e;
+                    try {
+                        memoryTable.truncateWAL(walSize);
+                    } catch (IOException | RuntimeException suppressed) {
+                        e.addSuppressed(suppressed);
+                    }
+                }
+            }
+
+            commitLock.lock();
+            try {
+                // publish sequence after write is applied, so that reader never misses a write it can see
+                if (error == null) {
+                    lastSequence.set(sequence);
+                }
+                for (Writer member : group) {
+                    writers.pollFirst();
+                    member.error = error;
+                    member.done = true;
+                    member.committed.signal();
+                }
+                if (!writers.isEmpty()) {
+                    writers.peekFirst().committed.signal();
+                }
+            } finally {
+                commitLock.unlock();
+            }
+            rethrow(error);
+            return memoryTable.getApproximateSize();
         } finally {
             readLock.unlock();
         }
+    }
+
+    private @NotNull IllegalStateException readOnlyError() {
+        return new IllegalStateException("engine is read only after a failed write", writeError);
+    }
+
+    private static void rethrow(@Nullable Throwable error) throws IOException {
+        switch (error) {
+            case null -> {}
+            case IOException e -> throw e;
+            case RuntimeException e -> throw e;
+            default -> throw new IllegalStateException(error);
+        }
+    }
+
+    // rotate active blob file once it reaches sst size, new file is visible to readers before any index to it
+    private @NotNull BlobFile blobFileForWrite() throws IOException {
+        BlobFile blobFile = activeBlobFile;
+        if (blobFile != null && blobFile.size() < options.sstSize()) {
+            return blobFile;
+        }
+        blobLock.lock();
+        try {
+            blobFile = activeBlobFile;
+            if (blobFile == null || blobFile.size() >= options.sstSize()) {
+                blobFile = createBlobFile();
+                activeBlobFile = blobFile;
+            }
+            return blobFile;
+        } finally {
+            blobLock.unlock();
+        }
+    }
+
+    // blob file of put is installed at once, readers resolve its values from memory table before any flush
+    private @NotNull BlobFile createBlobFile() throws IOException {
+        int blobId = getNextSSTId();
+        BlobFile blobFile = BlobFile.create(blobId, getPathOfBlob(path, blobId));
+        lock.lock();
+        try {
+            final Storage.StorageBuilder newStorage = storage.get().toBuilder();
+            newStorage.getBlobFiles().put(blobId, blobFile);
+            installStorage(newStorage.build());
+        } finally {
+            lock.unlock();
+        }
+        return blobFile;
+    }
+
+    // blob file of compaction is invisible until the result referencing it is installed,
+    // so that a failed compaction leaves nothing in storage, see discardPendingBlobFiles
+    private @NotNull BlobFile createPendingBlobFile() throws IOException {
+        int blobId = getNextSSTId();
+        BlobFile blobFile = BlobFile.create(blobId, getPathOfBlob(path, blobId));
+        pendingBlobFiles.put(blobId, blobFile);
+        return blobFile;
+    }
+
+    // remove blob files of a compaction that never installed its result
+    private void discardPendingBlobFiles() throws IOException {
+        for (Map.Entry<Integer, BlobFile> pending : pendingBlobFiles.entrySet()) {
+            pending.getValue().close();
+            Files.deleteIfExists(getPathOfBlob(path, pending.getKey()));
+        }
+        pendingBlobFiles.clear();
+    }
+
+    // values of blob files must be durable before wal, sst or manifest referencing them
+    private static void syncBlobFiles(@NotNull Storage current) throws IOException {
+        for (BlobFile blobFile : current.getBlobFiles().values()) {
+            blobFile.sync();
+        }
+    }
+
+    // delete all keys in [start, end) with a single range tombstone
+    public void deleteRange(byte @NotNull [] start, byte @NotNull [] end) throws IOException {
+        if (Arrays.compare(start, end) >= 0) {
+            throw new IllegalArgumentException("start must be less than end");
+        }
+
+        // rows of the range filled before the tombstone is published are dropped by the second invalidation,
+        // in between a cache hit is checked against range tombstones of memory tables, see innerGetCached
+        if (rowCache != null) {
+            rowCache.invalidateRange(start, end);
+        }
+        int approximateSize = commit(new Writer(List.of(Map.entry(start, end)),
+                new byte[]{InternalKey.KIND_RANGE_DELETE}, commitLock.newCondition()));
+        if (rowCache != null) {
+            rowCache.invalidateRange(start, end);
+        }
         tryFreeze(approximateSize);
     }
 
-    public byte @Nullable [] get(byte @NotNull [] key) throws IOException {
-        readLock.lock();
+    public @NotNull Transaction beginTransaction() {
+        return new Transaction(this, getSnapshot());
+    }
+
+    // NOTICE
+    // plain put racing with commit on the same key is not detected once validation passed,
+    // use transaction for every read-modify-write on a key
+    void commit(@NotNull Transaction transaction) throws IOException {
+        if (transaction.getWriteSet().isEmpty()) {
+            return;
+        }
+
+        final List<byte[]> keys = new ArrayList<>(transaction.getReadSet());
+        keys.addAll(transaction.getWriteSet().keySet());
+        final int[] locked = lockTable.lock(keys);
         try {
-            // find in memory table
-            byte[] resInMemoryTable = storage.getMemoryTable().get(key);
-            if (resInMemoryTable != null) {
-                if (resInMemoryTable != DELETE_TOMBSTONE) {
-                    return resInMemoryTable;
-                } else {
-                    return null;
+            // commit of other transaction on read set is blocked by stripe lock from now on
+            final Storage current = acquireStorage();
+            try {
+                for (byte[] key : transaction.getReadSet()) {
+                    Map.Entry<byte[], byte[]> latest = innerSeek(current, key, InternalKey.MAX_SEQUENCE);
+                    long modifiedAt = latest == null ? 0 : InternalKey.sequence(latest.getKey());
+                    modifiedAt = Math.max(modifiedAt, RangeTombstone.maxCoveringSequence(
+                            collectRangeTombstones(current, Bound.included(InternalKey.first(key)), Bound.included(InternalKey.last(key))),
+                            key, InternalKey.MAX_SEQUENCE));
+                    if (modifiedAt > transaction.getStartSequence()) {
+                        throw new TransactionConflictException(modifiedAt, transaction.getStartSequence());
+                    }
                 }
+            } finally {
+                current.release();
+            }
+            write(transaction.getWriteSet().entrySet(), false);
+        } finally {
+            lockTable.unlock(locked);
+        }
+    }
+
+    public long getLastSequence() {
+        return lastSequence.get();
+    }
+
+    public @NotNull Snapshot getSnapshot() {
+        synchronized (snapshots) {
+            long sequence = lastSequence.get();
+            snapshots.merge(sequence, 1, Integer::sum);
+            return new Snapshot(this, sequence);
+        }
+    }
+
+    void releaseSnapshot(@NotNull Snapshot snapshot) {
+        synchronized (snapshots) {
+            snapshots.computeIfPresent(snapshot.getSequence(), (_, cnt) -> cnt == 1 ? null : cnt - 1);
+        }
+    }
+
+    long @NotNull [] getLiveSnapshots() {
+        synchronized (snapshots) {
+            return snapshots.keySet().stream().mapToLong(Long::longValue).toArray();
+        }
+    }
+
+    public byte @Nullable [] get(byte @NotNull [] key) throws IOException {
+        return get(key, null);
+    }
+
+    public byte @Nullable [] get(byte @NotNull [] key, @Nullable Snapshot snapshot) throws IOException {
+        // foreground latency is only measured for auto-tuned rate limiter
+        final boolean measure = rateLimiter.isAutoTuning();
+        long start = measure ? System.nanoTime() : 0;
+        // row cache only holds the newest version, stamp is taken before read sequence, see RowCache
+        final RowCache cache = snapshot == null ? rowCache : null;
+        long stamp = cache == null ? 0 : cache.stamp(key);
+        // read sequence before pinning version, so that pinned version contains every write it can see
+        long readSequence = snapshot == null ? lastSequence.get() : snapshot.getSequence();
+        // pin current version without lock, flush and compaction publish a new version instead of changing it
+        final Storage current = acquireStorage();
+        try {
+            if (cache != null) {
+                return filterOnRead(key, innerGetCached(current, key, readSequence, cache, stamp));
+            }
+            return innerGet(current, key, readSequence);
+        } finally {
+            current.release();
+            if (measure) {
+                rateLimiter.recordForegroundLatency(System.nanoTime() - start);
             }
+        }
+    }
 
-            // find in immutable memory table
-            // imm_memtable1 -> imm_memtable2 -> imm_memtable3 -> ...
-            //    oldest                              least
-            List<MemoryTable> immutableMemoryTables = storage.getImmutableMemoryTables();
-            for (int i = immutableMemoryTables.size() - 1; i >= 0; i--) {
-                MemoryTable immMemoryTable = immutableMemoryTables.get(i);
-                byte[] resInImmutableTables = immMemoryTable.get(key);
+    private byte @Nullable [] innerGet(@NotNull Storage current, byte @NotNull [] key, long readSequence) throws IOException {
+        return filterOnRead(key, innerGetUnfiltered(current, key, readSequence));
+    }
 
-                if (resInImmutableTables != null) {
-                    if (resInImmutableTables != DELETE_TOMBSTONE) {
-                        return resInImmutableTables;
-                    } else {
-                        return null;
+    private byte @Nullable [] filterOnRead(byte @NotNull [] key, byte @Nullable [] value) {
+        final CompactionFilter readFilter = readFilter();
+        if (value == null || readFilter == null) {
+            return value;
+        }
+        final byte[] filtered = LsmIterator.filter(readFilter, key, value);
+        return filtered.length == 0 ? null : filtered;
+    }
+
+    private byte @Nullable [] innerGetUnfiltered(@NotNull Storage current, byte @NotNull [] key, long readSequence) throws IOException {
+        return resolveEntry(current, key, innerSeek(current, key, readSequence), readSequence);
+    }
+
+    private byte @Nullable [] resolveEntry(
+            @NotNull Storage current,
+            byte @NotNull [] key,
+            Map.@Nullable Entry<byte[], byte[]> entry,
+            long readSequence) throws IOException {
+        if (entry == null) {
+            return null;
+        }
+
+        final Bound<byte[]> lower = Bound.included(InternalKey.encode(key, readSequence, InternalKey.KIND_SEEK));
+        final Bound<byte[]> upper = Bound.included(InternalKey.last(key));
+        return resolveEntry(current, key, entry, readSequence, collectRangeTombstones(current, lower, upper));
+    }
+
+    // row cache is consulted when memory tables miss, row holds value before read filter
+    // which may depend on time, see Options::withCompactionFilter
+    private byte @Nullable [] innerGetCached(
+            @NotNull Storage current,
+            byte @NotNull [] key,
+            long readSequence,
+            @NotNull RowCache cache,
+            long stamp) throws IOException {
+        final byte[] lookupKey = InternalKey.encode(key, readSequence, InternalKey.KIND_SEEK);
+        final Map.Entry<byte[], byte[]> resInMemoryTables = seekMemoryTables(current, lookupKey);
+        if (resInMemoryTables != null) {
+            return resolveEntry(current, key, resInMemoryTables, readSequence);
+        }
+        final RowCache.Row row = cache.get(key);
+        if (row != null) {
+            return deletedInMemoryTables(current, key, readSequence) ? null : row.value();
+        }
+        final byte[] value = resolveEntry(current, key, seekSortedStringTables(current, key, lookupKey), readSequence);
+        cache.put(key, value, stamp);
+        return value;
+    }
+
+    // value of the newest version of key found by innerSeek, range tombstones must cover key if any covers it
+    private byte @Nullable [] resolveEntry(
+            @NotNull Storage current,
+            byte @NotNull [] key,
+            Map.@NotNull Entry<byte[], byte[]> entry,
+            long readSequence,
+            @NotNull List<RangeTombstone> rangeTombstones) throws IOException {
+        final byte[] lookupKey = InternalKey.encode(key, readSequence, InternalKey.KIND_SEEK);
+        final Bound<byte[]> upper = Bound.included(InternalKey.last(key));
+        if (InternalKey.sequence(entry.getKey()) < RangeTombstone.maxCoveringSequence(rangeTombstones, key, readSequence)) {
+            return null;
+        }
+
+        if (InternalKey.isMerge(entry.getKey())) {
+            // operands are spread over sources, merge versions of key from all of them and fold
+            try (LsmIterator iter = LsmIterator.create(createMergedIterator(current, Bound.included(lookupKey), upper, null),
+                    upper, readSequence, options.mergeOperator(), rangeTombstones, current.getBlobFiles(), null, null)) {
+                return iter.isValid() ? iter.value() : null;
+            }
+        }
+        if (InternalKey.isBlob(entry.getKey())) {
+            return BlobFile.resolve(current.getBlobFiles(), entry.getValue());
+        }
+        return entry.getValue().length == 0 ? null : entry.getValue();
+    }
+
+    // newest version of key visible at read sequence as (internal key, value), tombstone included
+    private Map.@Nullable Entry<byte[], byte[]> innerSeek(@NotNull Storage current, byte @NotNull [] key, long readSequence) throws IOException {
+        // the first entry not less than lookup key is the newest version visible at read sequence
+        final byte[] lookupKey = InternalKey.encode(key, readSequence, InternalKey.KIND_SEEK);
+
+        final Map.Entry<byte[], byte[]> resInMemoryTables = seekMemoryTables(current, lookupKey);
+        if (resInMemoryTables != null) {
+            return resInMemoryTables;
+        }
+        return seekSortedStringTables(current, key, lookupKey);
+    }
+
+    private Map.@Nullable Entry<byte[], byte[]> seekSortedStringTables(
+            @NotNull Storage current,
+            byte @NotNull [] key,
+            byte @NotNull [] lookupKey) throws IOException {
+        final byte[] lastKeyOfUserKey = InternalKey.last(key);
+
+        // hash key once and probe filter of every sst with it
+        final long keyHash = KeyFilter.hash(key);
+        Map<Integer, SortedStringTable> ssts = current.getSortedStringTables();
+        // sst in level 0 are flushed in order, newer one is at the end
+        List<Integer> level0SSTIds = current.getLevel0SortedStringTables();
+        for (int i = level0SSTIds.size() - 1; i >= 0; i--) {
+            SortedStringTable sst = ssts.get(level0SSTIds.get(i));
+            if (Arrays.compare(sst.getFirstKey(), lastKeyOfUserKey) <= 0 && Arrays.compare(lookupKey, sst.getLastKey()) <= 0 && sst.getFilter().mayContain(keyHash)) {
+                SortedStringTable.SortedStringTableIterator iter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, lookupKey);
+                if (iter.isValid() && InternalKey.sameUserKey(iter.key(), lookupKey)) {
+                    return Map.entry(iter.key(), iter.value());
+                }
+            }
+        }
+
+        // upper level holds newer version, user key never spans sst in the same level
+        for (Tuple2<Integer, List<Integer>> level : current.getLevels()) {
+            for (Integer sstId : level.t2()) {
+                SortedStringTable sst = ssts.get(sstId);
+                if (Arrays.compare(sst.getFirstKey(), lastKeyOfUserKey) <= 0 && Arrays.compare(lookupKey, sst.getLastKey()) <= 0 && sst.getFilter().mayContain(keyHash)) {
+                    SortedStringTable.SortedStringTableIterator iter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, lookupKey);
+                    if (iter.isValid() && InternalKey.sameUserKey(iter.key(), lookupKey)) {
+                        return Map.entry(iter.key(), iter.value());
                     }
                 }
             }
+        }
+
+        // not find
+        return null;
+    }
+
+    private static Map.@Nullable Entry<byte[], byte[]> seekMemoryTables(@NotNull Storage current, byte @NotNull [] lookupKey) {
+        // find in memory table
+        Map.Entry<byte[], byte[]> resInMemoryTable = current.getMemoryTable().seek(lookupKey);
+        if (resInMemoryTable != null && InternalKey.sameUserKey(resInMemoryTable.getKey(), lookupKey)) {
+            return resInMemoryTable;
+        }
+
+        // find in immutable memory table
+        // imm_memtable1 -> imm_memtable2 -> imm_memtable3 -> ...
+        //    oldest                              least
+        List<MemoryTable> immutableMemoryTables = current.getImmutableMemoryTables();
+        for (int i = immutableMemoryTables.size() - 1; i >= 0; i--) {
+            MemoryTable immMemoryTable = immutableMemoryTables.get(i);
+            Map.Entry<byte[], byte[]> resInImmutableTables = immMemoryTable.seek(lookupKey);
+
+            if (resInImmutableTables != null && InternalKey.sameUserKey(resInImmutableTables.getKey(), lookupKey)) {
+                return resInImmutableTables;
+            }
+        }
+        return null;
+    }
+
+    public @NotNull List<byte[]> multiGet(@NotNull List<byte[]> keys) throws IOException {
+        return multiGet(keys, null, false);
+    }
+
+    public @NotNull List<byte[]> multiGet(@NotNull List<byte[]> keys, @Nullable Snapshot snapshot) throws IOException {
+        return multiGet(keys, snapshot, false);
+    }
+
+    // value of every key in the same order as keys, null if key is not found, all keys are read from one
+    // version at one sequence like get with snapshot. keys probe every sst as a batch grouped by block, so that
+    // each block is read once however many keys fall in it, parallel reads blocks of a level on virtual threads.
+    // row cache is consulted and filled the same way as get
+    public @NotNull List<byte[]> multiGet(@NotNull List<byte[]> keys, @Nullable Snapshot snapshot, boolean parallel) throws IOException {
+        // foreground latency is only measured for auto-tuned rate limiter, recorded per key like get
+        final boolean measure = rateLimiter.isAutoTuning();
+        long start = measure ? System.nanoTime() : 0;
+        final int n = keys.size();
+        final RowCache cache = snapshot == null ? rowCache : null;
+        final long[] stamps = new long[n];
+        if (cache != null) {
+            for (int i = 0; i < n; i++) {
+                stamps[i] = cache.stamp(keys.get(i));
+            }
+        }
+        long readSequence = snapshot == null ? lastSequence.get() : snapshot.getSequence();
+        final Storage current = acquireStorage();
+        try {
+            final RowCache.Row[] rows = new RowCache.Row[n];
+            final boolean[] probed = new boolean[n];
+            final List<Map.Entry<byte[], byte[]>> entries = innerMultiSeek(current, keys, readSequence, parallel, cache, rows, probed);
+
+            // range tombstones of all keys are collected at once
+            byte[] min = null;
+            byte[] max = null;
+            for (int i = 0; i < keys.size(); i++) {
+                if (entries.get(i) != null) {
+                    min = min == null || Arrays.compare(keys.get(i), min) < 0 ? keys.get(i) : min;
+                    max = max == null || Arrays.compare(keys.get(i), max) > 0 ? keys.get(i) : max;
+                }
+            }
+            final List<RangeTombstone> rangeTombstones = min == null ? List.of()
+                    : collectRangeTombstones(current, Bound.included(InternalKey.first(min)), Bound.included(InternalKey.last(max)));
+
+            final List<byte[]> values = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (rows[i] != null) {
+                    values.add(filterOnRead(keys.get(i), rows[i].value()));
+                    continue;
+                }
+                final Map.Entry<byte[], byte[]> entry = entries.get(i);
+                final byte[] value = entry == null ? null : resolveEntry(current, keys.get(i), entry, readSequence, rangeTombstones);
+                if (cache != null && probed[i]) {
+                    cache.put(keys.get(i), value, stamps[i]);
+                }
+                values.add(filterOnRead(keys.get(i), value));
+            }
+            return values;
+        } finally {
+            current.release();
+            if (measure && n > 0) {
+                rateLimiter.recordForegroundLatency((System.nanoTime() - start) / n);
+            }
+        }
+    }
 
-            Map<Integer, SortedStringTable> ssts = storage.getSortedStringTables();
-            // search in l0 or other level sst in the future
-            List<StorageIterator> level0SSTIterator = new ArrayList<>(storage.getLevel0SortedStringTables().size());
+    // keys of one block of sst, sorted by key
+    private record BlockProbe(@NotNull SortedStringTable sst, int blockIndex, @NotNull List<Integer> keys) {
+    }
 
-            for (Integer level0SSTId : storage.getLevel0SortedStringTables()) {
-                SortedStringTable sst = ssts.get(level0SSTId);
-                if (Arrays.compare(sst.getFirstKey(), key) <= 0 && Arrays.compare(key, sst.getLastKey()) <= 0 && sst.getBloomFilter().contain(key)) {
-                    level0SSTIterator.add(SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key));
+    // innerSeek of every key, null if not found. duplicated keys are sought once, distinct keys are visited
+    // in order so that level and block of each key are found by one pass, and only keys not found in newer
+    // sources probe an older one, filter of each sst is probed by hash computed once per key.
+    // key missing in memory tables takes its row from cache if any, otherwise it is marked probed and
+    // searched in sst, like innerGetCached
+    private @NotNull List<Map.Entry<byte[], byte[]>> innerMultiSeek(
+            @NotNull Storage current,
+            @NotNull List<byte[]> keys,
+            long readSequence,
+            boolean parallel,
+            @Nullable RowCache cache,
+            RowCache.@Nullable Row @NotNull [] rows,
+            boolean @NotNull [] probed) throws IOException {
+        final int n = keys.size();
+        final List<Map.Entry<byte[], byte[]>> entries = new ArrayList<>(Collections.nCopies(n, null));
+        final List<Integer> sorted = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            sorted.add(i);
+        }
+        sorted.sort((a, b) -> Arrays.compare(keys.get(a), keys.get(b)));
+
+        // index of the first one of duplicated keys
+        final int[] sameAs = new int[n];
+        final List<Integer> pending = new ArrayList<>(n);
+        final byte[][] lookupKeys = new byte[n][];
+        final byte[][] lastKeys = new byte[n][];
+        final long[] keyHashes = new long[n];
+        for (int i : sorted) {
+            if (!pending.isEmpty() && Arrays.equals(keys.get(pending.getLast()), keys.get(i))) {
+                sameAs[i] = pending.getLast();
+                continue;
+            }
+            sameAs[i] = i;
+            lookupKeys[i] = InternalKey.encode(keys.get(i), readSequence, InternalKey.KIND_SEEK);
+            final Map.Entry<byte[], byte[]> entry = seekMemoryTables(current, lookupKeys[i]);
+            if (entry != null) {
+                entries.set(i, entry);
+                continue;
+            }
+            if (cache != null) {
+                rows[i] = cache.get(keys.get(i));
+                if (rows[i] != null) {
+                    if (deletedInMemoryTables(current, keys.get(i), readSequence)) {
+                        rows[i] = new RowCache.Row(null);
+                    }
+                    continue;
                 }
             }
+            probed[i] = true;
+            lastKeys[i] = InternalKey.last(keys.get(i));
+            keyHashes[i] = KeyFilter.hash(keys.get(i));
+            pending.add(i);
+        }
 
-            MergeIterator l0Iterator = MergeIterator.create(level0SSTIterator);
+        final Map<Integer, SortedStringTable> ssts = current.getSortedStringTables();
+        // sst in level 0 overlap each other, probe them one by one from the newest
+        final List<Integer> level0SSTIds = current.getLevel0SortedStringTables();
+        for (int j = level0SSTIds.size() - 1; j >= 0 && !pending.isEmpty(); j--) {
+            final SortedStringTable sst = ssts.get(level0SSTIds.get(j));
+            final List<Integer> candidates = new ArrayList<>();
+            for (int i : pending) {
+                if (Arrays.compare(sst.getFirstKey(), lastKeys[i]) <= 0 && Arrays.compare(lookupKeys[i], sst.getLastKey()) <= 0
+                        && sst.getFilter().mayContain(keyHashes[i])) {
+                    candidates.add(i);
+                }
+            }
+            probeBlocks(groupByBlock(sst, candidates, lookupKeys), lookupKeys, entries, parallel);
+            pending.removeIf(i -> entries.get(i) != null);
+        }
 
-            List<StorageIterator> levelIters = new ArrayList<>(storage.getLevels().size());
-            for (Tuple2<Integer, List<Integer>> level : storage.getLevels()) {
-                List<SortedStringTable> levelSSTs = new ArrayList<>(level.t2().size());
-                for (Integer sstId : level.t2()) {
-                    SortedStringTable sst = storage.getSortedStringTables().get(sstId);
-                    if (Arrays.compare(sst.getFirstKey(), key) <= 0 && Arrays.compare(key, sst.getLastKey()) <= 0 && sst.getBloomFilter().contain(key)) {
-                        levelSSTs.add(sst);
+        // sst of a level are sorted and disjoint, every key is in at most one of them
+        for (Tuple2<Integer, List<Integer>> level : current.getLevels()) {
+            if (pending.isEmpty()) {
+                break;
+            }
+            final List<Integer> sstIds = level.t2();
+            final List<BlockProbe> probes = new ArrayList<>();
+            int cursor = 0;
+            List<Integer> candidates = new ArrayList<>();
+            for (int i : pending) {
+                while (cursor < sstIds.size() && Arrays.compare(ssts.get(sstIds.get(cursor)).getLastKey(), lookupKeys[i]) < 0) {
+                    if (!candidates.isEmpty()) {
+                        probes.addAll(groupByBlock(ssts.get(sstIds.get(cursor)), candidates, lookupKeys));
+                        candidates = new ArrayList<>();
                     }
+                    cursor += 1;
+                }
+                if (cursor == sstIds.size()) {
+                    break;
+                }
+                final SortedStringTable sst = ssts.get(sstIds.get(cursor));
+                if (Arrays.compare(sst.getFirstKey(), lastKeys[i]) <= 0 && sst.getFilter().mayContain(keyHashes[i])) {
+                    candidates.add(i);
                 }
-                levelIters.add(ConcatIterator.createAndSeekToKey(levelSSTs, key));
             }
+            if (!candidates.isEmpty()) {
+                probes.addAll(groupByBlock(ssts.get(sstIds.get(cursor)), candidates, lookupKeys));
+            }
+            probeBlocks(probes, lookupKeys, entries, parallel);
+            pending.removeIf(i -> entries.get(i) != null);
+        }
 
-            TwoMergeIterator<MergeIterator, MergeIterator> iter = TwoMergeIterator.create(l0Iterator, MergeIterator.create(levelIters));
+        for (int i = 0; i < n; i++) {
+            entries.set(i, entries.get(sameAs[i]));
+            rows[i] = rows[sameAs[i]];
+            probed[i] = probed[sameAs[i]];
+        }
+        return entries;
+    }
 
-            if (iter.isValid() && Arrays.compare(iter.key(), key) == 0 && Arrays.compare(iter.value(), DELETE_TOMBSTONE) != 0) {
-                return iter.value();
+    // split sorted keys of sst by block they fall in, see SortedStringTable::findBlockIndex
+    private static @NotNull List<BlockProbe> groupByBlock(
+            @NotNull SortedStringTable sst,
+            @NotNull List<Integer> keys,
+            byte @NotNull [][] lookupKeys) {
+        final List<BlockProbe> probes = new ArrayList<>();
+        final List<SortedStringTable.MetaBlock> metaBlocks = sst.getMetaBlocks();
+        int blockIndex = 0;
+        for (int i : keys) {
+            while (blockIndex + 1 < metaBlocks.size() && Arrays.compare(metaBlocks.get(blockIndex + 1).firstKey(), lookupKeys[i]) <= 0) {
+                blockIndex += 1;
             }
+            if (probes.isEmpty() || probes.getLast().blockIndex() != blockIndex) {
+                probes.add(new BlockProbe(sst, blockIndex, new ArrayList<>()));
+            }
+            probes.getLast().keys().add(i);
+        }
+        return probes;
+    }
 
-            // not find
-            return null;
-        } finally {
-            readLock.unlock();
+    private static void probeBlocks(
+            @NotNull List<BlockProbe> probes,
+            byte @NotNull [][] lookupKeys,
+            @NotNull List<Map.Entry<byte[], byte[]>> entries,
+            boolean parallel) throws IOException {
+        if (!parallel || probes.size() < 2) {
+            for (BlockProbe probe : probes) {
+                probeBlock(probe, lookupKeys, entries);
+            }
+            return;
+        }
+
+        // each probe sets entries of its own keys only
+        final List<Future<?>> futures = new ArrayList<>(probes.size());
+        try (ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (BlockProbe probe : probes) {
+                futures.add(readers.submit(() -> {
+                    probeBlock(probe, lookupKeys, entries);
+                    return null;
+                }));
+            }
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for block reader");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
         }
     }
 
+    private static void probeBlock(
+            @NotNull BlockProbe probe,
+            byte @NotNull [][] lookupKeys,
+            @NotNull List<Map.Entry<byte[], byte[]>> entries) throws IOException {
+        final Block block = probe.sst().readBlockCache(probe.blockIndex());
+        for (int i : probe.keys()) {
+            Block.BlockIterator iter = Block.BlockIterator.createAndSeekToKey(block, lookupKeys[i]);
+            if (!iter.isValid() && probe.blockIndex() + 1 < probe.sst().numberOfBlock()) {
+                // every entry of block is less than lookup key, the next block may start with the version
+                iter = Block.BlockIterator.createAndSeekToFirst(probe.sst().readBlockCache(probe.blockIndex() + 1));
+            }
+            if (iter.isValid() && InternalKey.sameUserKey(iter.key(), lookupKeys[i])) {
+                entries.set(i, Map.entry(iter.key(), iter.value()));
+            }
+        }
+    }
+
+
     public void delete(byte @NotNull [] key) throws IOException {
         put(key, DELETE_TOMBSTONE);
     }
@@ -354,81 +1155,236 @@ public final class Engine implements Closeable {
     }
 
     public @NotNull StorageIterator scan(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) throws IOException {
-        readLock.lock();
+        return scan(lower, upper, null);
+    }
+
+    // NOTICE
+    // caller should close returned iterator with try-with-resources, otherwise version it reads, including sst removed
+    // by compaction, memory tables and their arenas, stays pinned until cleaner of LsmIterator runs after a GC
+    public @NotNull StorageIterator scan(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper, @Nullable Snapshot snapshot) throws IOException {
+        long readSequence = snapshot == null ? lastSequence.get() : snapshot.getSequence();
+        final Storage current = acquireStorage();
+        try {
+            return innerScan(current, toInternalLower(lower), toInternalUpper(upper), readSequence);
+        } catch (IOException | RuntimeException e) {
+            current.release();
+            throw e;
+        }
+    }
+
+    public @NotNull StorageIterator scanPrefix(byte @NotNull [] prefix) throws IOException {
+        return scanPrefix(prefix, null);
+    }
+
+    // scan every user key starting with prefix, sst whose filter holds no key of prefix is skipped
+    // when prefix is in domain of Options::prefixExtractor, otherwise same as scan
+    // NOTICE
+    // caller should close returned iterator, see scan
+    public @NotNull StorageIterator scanPrefix(byte @NotNull [] prefix, @Nullable Snapshot snapshot) throws IOException {
+        long readSequence = snapshot == null ? lastSequence.get() : snapshot.getSequence();
+        final PrefixExtractor prefixExtractor = options.prefixExtractor();
+        final byte[] extracted = prefixExtractor == null ? null : prefixExtractor.prefixOf(prefix);
+        final Bound<byte[]> lower = toInternalLower(Bound.included(prefix));
+        final Bound<byte[]> upper = toInternalUpper(prefixUpper(prefix));
+        final Storage current = acquireStorage();
         try {
-            List<MemoryTable> immutableMemoryTables = storage.getImmutableMemoryTables();
-            List<StorageIterator> memoryTablesIters = new ArrayList<>(immutableMemoryTables.size() + 1);
-            for (int i = immutableMemoryTables.size() - 1; i >= 0; i--) {
-                MemoryTable immutableMemoryTable = immutableMemoryTables.get(i);
-                memoryTablesIters.add(immutableMemoryTable.scan(lower, upper));
+            return LsmIterator.create(createMergedIterator(current, lower, upper, extracted), upper, readSequence, options.mergeOperator(),
+                    collectRangeTombstones(current, lower, upper), current.getBlobFiles(), readFilter(), current::release);
+        } catch (IOException | RuntimeException e) {
+            current.release();
+            throw e;
+        }
+    }
+
+    // smallest user key greater than every key starting with prefix, bytes compare signed
+    static @NotNull Bound<byte[]> prefixUpper(byte @NotNull [] prefix) {
+        for (int i = prefix.length - 1; i >= 0; i--) {
+            if (prefix[i] != Byte.MAX_VALUE) {
+                final byte[] end = Arrays.copyOf(prefix, i + 1);
+                end[i] += 1;
+                return Bound.excluded(end);
             }
-            memoryTablesIters.add(storage.getMemoryTable().scan(lower, upper));
-            StorageIterator memoryTableIter = MergeIterator.create(memoryTablesIters);
+        }
+        return Bound.unbound();
+    }
 
-            List<StorageIterator> level0SSTIters = new ArrayList<>(storage.getLevel0SortedStringTables().size());
+    static @NotNull Bound<byte[]> toInternalLower(@NotNull Bound<byte[]> lower) {
+        return switch (lower) {
+            case Bound.Included<byte[]>(byte[] key) -> Bound.included(InternalKey.first(key));
+            case Bound.Excluded<byte[]>(byte[] key) -> Bound.excluded(InternalKey.last(key));
+            case Bound.Unbounded<byte[]> _ -> lower;
+        };
+    }
 
-            for (Integer sstId : storage.getLevel0SortedStringTables()) {
-                SortedStringTable sst = storage.getSortedStringTables().get(sstId);
-                if (rangeOverlap(lower, upper, sst.getFirstKey(), sst.getLastKey())) {
-                    StorageIterator iter = switch (lower) {
-                        case Bound.Included<byte[]>(byte[] key) -> SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key);
-                        case Bound.Excluded<byte[]>(byte[] key) -> {
-                            SortedStringTable.SortedStringTableIterator tmpIter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key);
-                            if (tmpIter.isValid() && Arrays.compare(tmpIter.key(), key) == 0) {
-                                tmpIter.next();
-                            }
-                            yield tmpIter;
-                        }
-                        default -> SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst);
-                    };
-                    level0SSTIters.add(iter);
-                }
+    static @NotNull Bound<byte[]> toInternalUpper(@NotNull Bound<byte[]> upper) {
+        return switch (upper) {
+            case Bound.Included<byte[]>(byte[] key) -> Bound.included(InternalKey.last(key));
+            case Bound.Excluded<byte[]>(byte[] key) -> Bound.excluded(InternalKey.first(key));
+            case Bound.Unbounded<byte[]> _ -> upper;
+        };
+    }
+
+    // user key bound covering every version in internal key bound, see toInternalLower
+    static @NotNull Bound<byte[]> toUserLower(@NotNull Bound<byte[]> lower) {
+        return switch (lower) {
+            case Bound.Included<byte[]>(byte[] key) -> Bound.included(InternalKey.userKey(key));
+            case Bound.Excluded<byte[]>(byte[] key) -> {
+                byte[] userKey = InternalKey.userKey(key);
+                yield Arrays.equals(key, InternalKey.last(userKey)) ? Bound.excluded(userKey) : Bound.included(userKey);
+            }
+            case Bound.Unbounded<byte[]> _ -> lower;
+        };
+    }
+
+    static @NotNull Bound<byte[]> toUserUpper(@NotNull Bound<byte[]> upper) {
+        return switch (upper) {
+            case Bound.Included<byte[]>(byte[] key) -> Bound.included(InternalKey.userKey(key));
+            case Bound.Excluded<byte[]>(byte[] key) -> {
+                byte[] userKey = InternalKey.userKey(key);
+                yield Arrays.equals(key, InternalKey.first(userKey)) ? Bound.excluded(userKey) : Bound.included(userKey);
             }
+            case Bound.Unbounded<byte[]> _ -> upper;
+        };
+    }
 
-            StorageIterator level0Iter = MergeIterator.create(level0SSTIters);
+    // bounds are internal keys
+    private @NotNull StorageIterator innerScan(
+            @NotNull Storage current,
+            @NotNull Bound<byte[]> lower,
+            @NotNull Bound<byte[]> upper,
+            long readSequence) throws IOException {
+        return LsmIterator.create(createMergedIterator(current, lower, upper, null), upper, readSequence, options.mergeOperator(),
+                collectRangeTombstones(current, lower, upper), current.getBlobFiles(), readFilter(), current::release);
+    }
 
-            List<StorageIterator> levelIters = new ArrayList<>(storage.getLevels().size());
-            for (Tuple2<Integer, List<Integer>> level : storage.getLevels()) {
-                List<SortedStringTable> levelSSTs = new ArrayList<>(level.t2().size());
-                for (Integer sstId : level.t2()) {
-                    SortedStringTable sst = storage.getSortedStringTables().get(sstId);
-                    if (rangeOverlap(lower, upper, sst.getFirstKey(), sst.getLastKey())) {
-                        levelSSTs.add(sst);
-                    }
-                }
-                StorageIterator levelIter =  switch (lower) {
-                    case Bound.Included<byte[]>(byte[] key) -> ConcatIterator.createAndSeekToKey(levelSSTs, key);
+    private @Nullable CompactionFilter readFilter() {
+        return options.filterOnRead() ? options.compactionFilter() : null;
+    }
+
+    // range tombstones of memory tables and sst overlapping range, bounds are internal keys
+    // row of cache is resolved from sst, so range tombstone of memory tables visible at read sequence is newer
+    // than it. deleteRange publishes its tombstone before it invalidates the range, see deleteRange
+    private static boolean deletedInMemoryTables(@NotNull Storage current, byte @NotNull [] key, long readSequence) {
+        final Bound<byte[]> lower = Bound.included(InternalKey.first(key));
+        final Bound<byte[]> upper = Bound.included(InternalKey.last(key));
+        final MemoryTable memoryTable = current.getMemoryTable();
+        if (memoryTable.hasRangeTombstones()
+                && RangeTombstone.maxCoveringSequence(memoryTable.getRangeTombstones(lower, upper), key, readSequence) > 0) {
+            return true;
+        }
+        for (MemoryTable immutableMemoryTable : current.getImmutableMemoryTables()) {
+            if (immutableMemoryTable.hasRangeTombstones()
+                    && RangeTombstone.maxCoveringSequence(immutableMemoryTable.getRangeTombstones(lower, upper), key, readSequence) > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private @NotNull List<RangeTombstone> collectRangeTombstones(
+            @NotNull Storage current,
+            @NotNull Bound<byte[]> lower,
+            @NotNull Bound<byte[]> upper) {
+        final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+        if (current.getMemoryTable().hasRangeTombstones()) {
+            rangeTombstones.addAll(current.getMemoryTable().getRangeTombstones(lower, upper));
+        }
+        for (MemoryTable immutableMemoryTable : current.getImmutableMemoryTables()) {
+            if (immutableMemoryTable.hasRangeTombstones()) {
+                rangeTombstones.addAll(immutableMemoryTable.getRangeTombstones(lower, upper));
+            }
+        }
+        // first key and last key of sst cover its range tombstones
+        for (SortedStringTable sst : current.getSortedStringTables().values()) {
+            if (!sst.getRangeTombstones().isEmpty() && rangeOverlap(lower, upper, sst.getFirstKey(), sst.getLastKey())) {
+                rangeTombstones.addAll(sst.getRangeTombstones());
+            }
+        }
+        return rangeTombstones;
+    }
+
+    // all versions of internal keys in range from memory tables and sst, sst whose range filter says
+    // no key is in range is skipped, so is sst whose filter says prefix extracted by
+    // Options::prefixExtractor is absent if prefix is not null
+    private @NotNull TwoMergeIterator<StorageIterator, StorageIterator> createMergedIterator(
+            @NotNull Storage current,
+            @NotNull Bound<byte[]> lower,
+            @NotNull Bound<byte[]> upper,
+            byte @Nullable [] prefix) throws IOException {
+        List<MemoryTable> immutableMemoryTables = current.getImmutableMemoryTables();
+        List<StorageIterator> memoryTablesIters = new ArrayList<>(immutableMemoryTables.size() + 1);
+        for (int i = immutableMemoryTables.size() - 1; i >= 0; i--) {
+            MemoryTable immutableMemoryTable = immutableMemoryTables.get(i);
+            memoryTablesIters.add(immutableMemoryTable.scan(lower, upper));
+        }
+        memoryTablesIters.add(current.getMemoryTable().scan(lower, upper));
+        StorageIterator memoryTableIter = MergeIterator.create(memoryTablesIters);
+
+        final String extractorName = prefix == null ? "" : options.prefixExtractor().name();
+        final long prefixHash = prefix == null ? 0 : KeyFilter.hash(prefix);
+        final Bound<byte[]> userLower = toUserLower(lower);
+        final Bound<byte[]> userUpper = toUserUpper(upper);
+
+        List<StorageIterator> level0SSTIters = new ArrayList<>(current.getLevel0SortedStringTables().size());
+
+        for (Integer sstId : current.getLevel0SortedStringTables()) {
+            SortedStringTable sst = current.getSortedStringTables().get(sstId);
+            if (rangeOverlap(lower, upper, sst.getFirstKey(), sst.getLastKey())
+                    && (prefix == null || sst.mayContainPrefix(extractorName, prefixHash))
+                    && sst.mayOverlap(userLower, userUpper)) {
+                StorageIterator iter = switch (lower) {
+                    case Bound.Included<byte[]>(byte[] key) -> SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key);
                     case Bound.Excluded<byte[]>(byte[] key) -> {
-                        ConcatIterator tmpIter = ConcatIterator.createAndSeekToKey(levelSSTs, key);
+                        SortedStringTable.SortedStringTableIterator tmpIter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key);
                         if (tmpIter.isValid() && Arrays.compare(tmpIter.key(), key) == 0) {
                             tmpIter.next();
                         }
                         yield tmpIter;
                     }
-                    default -> ConcatIterator.createAndSeekToFirst(levelSSTs);
+                    default -> SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst);
                 };
-                levelIters.add(levelIter);
+                level0SSTIters.add(iter);
             }
+        }
 
-            TwoMergeIterator<StorageIterator, StorageIterator> memoryToLevel0Iter = TwoMergeIterator.create(memoryTableIter, level0Iter);
-            // Todo
-            // cast to StorageIterator or use raw generic ?
-            TwoMergeIterator<StorageIterator, StorageIterator> iter = TwoMergeIterator.create(memoryToLevel0Iter, MergeIterator.create(levelIters));
-
-            return LsmIterator.create(iter, upper);
-        } finally {
-            readLock.unlock();
+        StorageIterator level0Iter = MergeIterator.create(level0SSTIters);
+
+        List<StorageIterator> levelIters = new ArrayList<>(current.getLevels().size());
+        for (Tuple2<Integer, List<Integer>> level : current.getLevels()) {
+            List<SortedStringTable> levelSSTs = new ArrayList<>(level.t2().size());
+            for (Integer sstId : level.t2()) {
+                SortedStringTable sst = current.getSortedStringTables().get(sstId);
+                if (rangeOverlap(lower, upper, sst.getFirstKey(), sst.getLastKey())
+                        && (prefix == null || sst.mayContainPrefix(extractorName, prefixHash))
+                        && sst.mayOverlap(userLower, userUpper)) {
+                    levelSSTs.add(sst);
+                }
+            }
+            StorageIterator levelIter =  switch (lower) {
+                case Bound.Included<byte[]>(byte[] key) -> ConcatIterator.createAndSeekToKey(levelSSTs, key);
+                case Bound.Excluded<byte[]>(byte[] key) -> {
+                    ConcatIterator tmpIter = ConcatIterator.createAndSeekToKey(levelSSTs, key);
+                    if (tmpIter.isValid() && Arrays.compare(tmpIter.key(), key) == 0) {
+                        tmpIter.next();
+                    }
+                    yield tmpIter;
+                }
+                default -> ConcatIterator.createAndSeekToFirst(levelSSTs);
+            };
+            levelIters.add(levelIter);
         }
+
+        TwoMergeIterator<StorageIterator, StorageIterator> memoryToLevel0Iter = TwoMergeIterator.create(memoryTableIter, level0Iter);
+        // Todo
+        // cast to StorageIterator or use raw generic ?
+        return TwoMergeIterator.create(memoryToLevel0Iter, MergeIterator.create(levelIters));
     }
 
     void tryFreeze(int estimateSize) throws IOException {
         if (estimateSize >= options.sstSize()) {
             lock.lock();
             try {
-                ReentrantReadWriteLock.ReadLock readLock = rwLock.readLock();
-                readLock.lock();
-                if (storage.getMemoryTable().getApproximateSize() >= options.sstSize()) {
-                    readLock.unlock();
+                if (storage.get().getMemoryTable().getApproximateSize() >= options.sstSize()) {
                     forceFreezeMemoryTable();
                 }
             } finally {
@@ -439,34 +1395,44 @@ public final class Engine implements Closeable {
 
     public void forceFreezeMemoryTable() throws IOException {
         int memoryTableId = getNextSSTId();
-        MemoryTable newMemoryTable =
-                options.enableWAL()
-                        ? MemoryTable.createWithWAL(memoryTableId, getPathOfWAL(path, memoryTableId))
-                        : MemoryTable.create(memoryTableId);
+        MemoryTable newMemoryTable = newMemoryTable(memoryTableId, path, options);
 
-        MemoryTable oldMemoryTable = storage.getMemoryTable();
+        MemoryTable oldMemoryTable;
 
+        // write lock waits for in-flight put to the old memory table
+        lock.lock();
         writeLock.lock();
         try {
-            storage.setMemoryTable(newMemoryTable);
-            storage.getImmutableMemoryTables().add(oldMemoryTable);
+            // memory table holding entries of a failed write is never flushed, see commit
+            if (writeError != null) {
+                newMemoryTable.close();
+                Files.deleteIfExists(getPathOfWAL(path, memoryTableId));
+                throw readOnlyError();
+            }
+            final Storage.StorageBuilder builder = storage.get().toBuilder();
+            oldMemoryTable = builder.getMemoryTable();
+            builder.setMemoryTable(newMemoryTable);
+            builder.getImmutableMemoryTables().add(oldMemoryTable);
+            installStorage(builder.build());
         } finally {
             writeLock.unlock();
+            lock.unlock();
         }
+        syncBlobFiles(storage.get());
         oldMemoryTable.syncWAL();
+        // old memory table is never written again, convert it to flat layout off the write path,
+        // readers keep using skip list until conversion is done
+        try {
+            flushThread.execute(oldMemoryTable::freeze);
+        } catch (RejectedExecutionException e) {
+            // engine is closing, memory table stays a skip list
+        }
 
         manifest.addTrack(new Track.Create(memoryTableId));
     }
 
     void triggerFlush() throws IOException {
-        boolean shouldFlush;
-
-        readLock.lock();
-        try {
-            shouldFlush = storage.getImmutableMemoryTables().size() >= options.memoryTableLimit();
-        } finally {
-            readLock.unlock();
-        }
+        boolean shouldFlush = storage.get().getImmutableMemoryTables().size() >= options.memoryTableLimit();
 
         if (shouldFlush) {
             forceFlushImmutableMemoryTable();
@@ -476,29 +1442,20 @@ public final class Engine implements Closeable {
     public void forceFlushImmutableMemoryTable() throws IOException {
         lock.lock();
         try {
-            MemoryTable oldestImmutableMemoryTable;
-            readLock.lock();
-            try {
-                oldestImmutableMemoryTable = storage.getImmutableMemoryTables().getFirst();
-            } finally {
-                readLock.unlock();
-            }
-
-            SortedStringTable.SortedStringTableBuilder builder = new SortedStringTable.SortedStringTableBuilder(options.blockSize());
-            oldestImmutableMemoryTable.flush(builder);
+            MemoryTable oldestImmutableMemoryTable = storage.get().getImmutableMemoryTables().getFirst();
 
             int sstId = oldestImmutableMemoryTable.getId();
-            SortedStringTable table = builder.build(sstId, blockCache, getPathOfSST(path, sstId));
+            SortedStringTable.SortedStringTableBuilder builder = newSSTBuilder(0, false, sstId, RateLimiter.Priority.HIGH);
+            oldestImmutableMemoryTable.flush(builder);
+            SortedStringTable table = builder.build(sstId, blockCache);
 
-            // remove oldest immutable memory table from list
-            writeLock.lock();
-            try {
-                MemoryTable memoryTable = storage.getImmutableMemoryTables().removeFirst();
-                storage.getLevel0SortedStringTables().add(memoryTable.getId());
-                storage.getSortedStringTables().put(sstId, table);
-            } finally {
-                writeLock.unlock();
-            }
+            // remove oldest immutable memory table from list and publish new version
+            final Storage.StorageBuilder newStorage = storage.get().toBuilder();
+            MemoryTable memoryTable = newStorage.getImmutableMemoryTables().removeFirst();
+            newStorage.getLevel0SortedStringTables().add(memoryTable.getId());
+            newStorage.getSortedStringTables().put(sstId, table);
+            newStorage.addToLevelSize(0, List.of(sstId));
+            installStorage(newStorage.build());
 
             if (options.enableWAL()) {
                 oldestImmutableMemoryTable.close();
@@ -511,162 +1468,678 @@ public final class Engine implements Closeable {
         }
     }
 
-    private @NotNull List<SortedStringTable> buildCompactedSSTFromIterator(@NotNull StorageIterator iter, boolean compactToBottomLevel) throws IOException {
+    // key filter is built on user key, so that point lookup probes it without knowing sequence,
+    // type and false positive of key filter depend on level the sst is written to. whether the level is
+    // bottom is decided by compaction task of the strategy, level 0 never is since it only grows by flush
+    private @NotNull SortedStringTable.SortedStringTableBuilder newSSTBuilder(
+            int level,
+            boolean bottomLevel,
+            int sstId,
+            RateLimiter.@NotNull Priority priority) {
+        SortedStringTable.SortedStringTableBuilder builder = new SortedStringTable.SortedStringTableBuilder(
+                options.blockSize(), getPathOfSST(path, sstId), rateLimiter, priority, InternalKey::userKey, InternalKey::sequence);
+        final Storage current = storage.get();
+        final FilterPolicy filterPolicy = options.filterPolicy();
+        final long[] levelSizes = expectedLevelSizes(current);
+        final int[] levelRuns = expectedLevelRuns(current);
+        builder.setFilterType(filterPolicy.typeOf(level, bottomLevel && level > 0, levelSizes, levelRuns));
+        builder.setFalsePositive(Math.min(filterPolicy.falsePositiveOf(level, levelSizes, levelRuns), KeyFilter.MAX_FALSE_POSITIVE));
+        builder.setPrefixExtractor(options.prefixExtractor());
+        builder.setRangeFilter(options.rangeFilterSuffixLength());
+        builder.setBlobIndexExtractor((key, value) -> InternalKey.isBlob(key) ? BlobIndex.decode(value) : null);
+        // empty value of put or merge operand is not a tombstone
+        builder.setTombstonePredicate((key, _) -> InternalKey.kind(key) == InternalKey.KIND_DELETE);
+        return builder;
+    }
+
+    // level being filled holds at least one sst, so that its filter is not tuned as if it were empty
+    private long @NotNull [] expectedLevelSizes(@NotNull Storage current) {
+        final long[] levelSizes = new long[current.getLevels().size() + 1];
+        for (int i = 0; i < levelSizes.length; i++) {
+            levelSizes[i] = Math.max(current.getLevelSize(i), options.sstSize());
+        }
+        return levelSizes;
+    }
+
+    // lookup probes every sst of level 0 and one sst of each deeper level
+    private static int @NotNull [] expectedLevelRuns(@NotNull Storage current) {
+        final int[] levelRuns = new int[current.getLevels().size() + 1];
+        Arrays.fill(levelRuns, 1);
+        levelRuns[0] = Math.max(1, current.getLevel0SortedStringTables().size());
+        return levelRuns;
+    }
+
+    static @NotNull List<RangeTombstone> rangeTombstonesOf(@NotNull Collection<SortedStringTable> ssts) {
+        final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+        for (SortedStringTable sst : ssts) {
+            rangeTombstones.addAll(sst.getRangeTombstones());
+        }
+        return rangeTombstones;
+    }
+
+    // sst whose data are all older than a range tombstone covering its whole key range is dropped
+    // without reading, as long as no snapshot can see the data under range tombstone
+    static @NotNull List<SortedStringTable> dropCoveredSSTs(
+            @NotNull List<SortedStringTable> ssts,
+            @NotNull List<RangeTombstone> rangeTombstones,
+            long @NotNull [] snapshots) {
+        if (rangeTombstones.isEmpty()) {
+            return ssts;
+        }
+        final List<SortedStringTable> res = new ArrayList<>(ssts.size());
+        for (SortedStringTable sst : ssts) {
+            byte[] firstUserKey = InternalKey.userKey(sst.getFirstKey());
+            byte[] lastUserKey = InternalKey.userKey(sst.getLastKey());
+            boolean covered = false;
+            for (RangeTombstone rangeTombstone : rangeTombstones) {
+                if (rangeTombstone.sequence() > sst.getMaxSequence()
+                        && (snapshots.length == 0 || snapshots[0] >= rangeTombstone.sequence())
+                        && rangeTombstone.covers(firstUserKey) && rangeTombstone.covers(lastUserKey)) {
+                    covered = true;
+                    break;
+                }
+            }
+            if (!covered) {
+                res.add(sst);
+            }
+        }
+        return res;
+    }
+
+    private @NotNull List<SortedStringTable> buildCompactedSSTFromIterator(
+            @NotNull StorageIterator mergedIter,
+            int outputLevel,
+            boolean compactToBottomLevel,
+            @NotNull List<RangeTombstone> rangeTombstones) throws IOException {
+        final long[] snapshots = getLiveSnapshots();
+        // at bottom level range tombstone is dropped with data it covers once no snapshot is older than it
+        final List<RangeTombstone> keptRangeTombstones = compactToBottomLevel
+                ? rangeTombstones.stream().filter(rt -> snapshots.length != 0 && snapshots[0] < rt.sequence()).toList()
+                : rangeTombstones;
+        // drop versions invisible to every live snapshot, fold merge operands and apply compaction filter,
+        // tombstone only dropped at bottom level
+        final Map<Integer, BlobFile> blobFiles = storage.get().getBlobFiles();
+        final StorageIterator compactionIter = CompactionIterator.create(mergedIter, snapshots, compactToBottomLevel,
+                options.mergeOperator(), rangeTombstones, options.compactionFilter(), blobFiles);
+        final StorageIterator iter = rateLimiter.isEnabled()
+                ? new RateLimitedIterator(compactionIter, rateLimiter, RateLimiter.Priority.LOW)
+                : compactionIter;
+        final Set<Integer> blobFilesToCollect = selectBlobFilesToCollect(blobFiles);
+        BlobFile outputBlobFile = null;
         SortedStringTable.SortedStringTableBuilder builder = null;
+        int sstId = 0;
         final List<SortedStringTable> ssts = new ArrayList<>();
+        byte[] cutLowerKey = null;
 
-        while (iter.isValid()) {
-            if (builder == null) {
-                builder = new SortedStringTable.SortedStringTableBuilder(options.blockSize());
-            }
+        try {
+            while (iter.isValid()) {
+                if (builder == null) {
+                    sstId = getNextSSTId();
+                    builder = newSSTBuilder(outputLevel, compactToBottomLevel, sstId, RateLimiter.Priority.LOW);
+                }
 
-            if (compactToBottomLevel) {
-                // only put not deleted value
-                if (iter.value().length != 0) {
-                    builder.put(iter.key(), iter.value());
+                byte[] key = iter.key();
+                byte[] value = iter.value();
+                // relocate live value out of blob file under garbage collection, and separate large value
+                // made by merge operator or compaction filter, sequence of key is unchanged
+                if (shouldWriteToBlobFile(key, value, blobFilesToCollect)) {
+                    final byte[] userKey = InternalKey.userKey(key);
+                    final byte[] realValue = InternalKey.isBlob(key) ? BlobFile.resolve(blobFiles, value) : value;
+                    if (outputBlobFile == null || outputBlobFile.size() >= options.sstSize()) {
+                        if (outputBlobFile != null) {
+                            outputBlobFile.sync();
+                        }
+                        outputBlobFile = createPendingBlobFile();
+                    }
+                    value = outputBlobFile.append(userKey, realValue).encode();
+                    key = InternalKey.encode(userKey, InternalKey.sequence(key), InternalKey.KIND_BLOB);
+                }
+                builder.put(key, value);
+                iter.next();
+
+                // never split versions of a user key into different sst,
+                // point lookup stops at the first sst in a level containing the user key
+                if (iter.isValid() && builder.estimateSize() >= options.sstSize() && !InternalKey.sameUserKey(key, iter.key())) {
+                    // range tombstones are cut at the first key of next sst, so that sst in a level never overlap
+                    byte[] cutKey = InternalKey.userKey(iter.key());
+                    builder.addRangeTombstones(clipRangeTombstones(keptRangeTombstones, cutLowerKey, cutKey));
+                    cutLowerKey = cutKey;
+                    SortedStringTable sst = builder.build(sstId, blockCache);
+                    ssts.add(sst);
+                    builder = null;
                 }
-            } else {
-                builder.put(iter.key(), iter.value());
             }
 
-            iter.next();
-
-            if (builder.estimateSize() >= options.sstSize()) {
-                int sstId = getNextSSTId();
-                SortedStringTable sst = builder.build(sstId, blockCache, getPathOfSST(path, sstId));
+            final List<RangeTombstone> remaining = clipRangeTombstones(keptRangeTombstones, cutLowerKey, null);
+            if (builder == null && !remaining.isEmpty()) {
+                sstId = getNextSSTId();
+                builder = newSSTBuilder(outputLevel, compactToBottomLevel, sstId, RateLimiter.Priority.LOW);
+            }
+            if (builder != null) {
+                builder.addRangeTombstones(remaining);
+                SortedStringTable sst = builder.build(sstId, blockCache);
                 ssts.add(sst);
                 builder = null;
             }
+            if (outputBlobFile != null) {
+                outputBlobFile.sync();
+            }
+        } catch (IOException | RuntimeException e) {
+            // outputs never become visible, pending blob file is discarded by caller
+            try {
+                if (builder != null) {
+                    builder.abort();
+                }
+                discardCompactedSSTs(ssts);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
         }
 
-        if (builder != null) {
-            int sstId = getNextSSTId();
-            SortedStringTable sst = builder.build(sstId, blockCache, getPathOfSST(path, sstId));
-            ssts.add(sst);
+        return ssts;
+    }
+
+    // close and delete sst built by a failed compaction, they are not referenced by any version
+    private void discardCompactedSSTs(@NotNull List<SortedStringTable> ssts) throws IOException {
+        for (SortedStringTable sst : ssts) {
+            sst.close();
+            Files.deleteIfExists(getPathOfSST(path, sst.getId()));
         }
+    }
 
-        return ssts;
+    // sealed blob file with enough garbage, its live values are moved to a new blob file by compaction
+    private @NotNull Set<Integer> selectBlobFilesToCollect(@NotNull Map<Integer, BlobFile> blobFiles) {
+        final Set<Integer> res = new HashSet<>();
+        if (options.blobGarbageRatio() <= 0) {
+            return res;
+        }
+        final BlobFile active = activeBlobFile;
+        for (BlobFile blobFile : blobFiles.values()) {
+            if (blobFile != active && blobFile.garbageRatio() >= options.blobGarbageRatio()) {
+                res.add(blobFile.getId());
+            }
+        }
+        return res;
     }
 
-    public @NotNull List<SortedStringTable> compact(@NotNull CompactionTask task) throws IOException {
-        readLock.lock();
-        try {
-            final Map<Integer, SortedStringTable> ssts = storage.getSortedStringTables();
-            switch (task) {
-                case CompactionTask.SimpleTask simple -> {
-                    if (simple.upperLevel() == 0) {
-                        final List<StorageIterator> upperIters = new ArrayList<>(simple.upperLevelSSTIds().size());
-                        for (Integer upperSSTId : simple.upperLevelSSTIds()) {
-                            upperIters.add(SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(ssts.get(upperSSTId)));
-                        }
-                        final StorageIterator upperIter = MergeIterator.create(upperIters);
+    // garbage of blob file only grows when compaction drops values referencing it, so without other writes
+    // a file may keep too much garbage forever. when strategy has nothing to compact, sst referencing the
+    // blob file with the largest share of garbage are compacted into the bottom level, which relocates its
+    // live values and leaves the file dead. sst overlapping them are selected too, see generateFullCompactionTask
+    @Nullable CompactionTask.FullTask generateBlobGarbageCollectionTask() throws IOException {
+        final Storage current = storage.get();
+        final Map<Integer, BlobFile> blobFiles = current.getBlobFiles();
+        final List<Integer> blobIds = new ArrayList<>(selectBlobFilesToCollect(blobFiles));
+        if (blobIds.isEmpty()) {
+            return null;
+        }
+        blobIds.sort(Comparator.comparingDouble((Integer id) -> blobFiles.get(id).garbageRatio()).reversed());
+
+        final List<Integer> sstIds = new ArrayList<>(current.getLevel0SortedStringTables());
+        current.getLevels().forEach(level -> sstIds.addAll(level.t2()));
+        for (Integer blobId : blobIds) {
+            byte[] first = null;
+            byte[] last = null;
+            for (Integer sstId : sstIds) {
+                SortedStringTable sst = current.getSortedStringTables().get(sstId);
+                if (!blobReferencesOf(sst).containsKey(blobId)) {
+                    continue;
+                }
+                final byte[] sstFirst = InternalKey.userKey(sst.getFirstKey());
+                final byte[] sstLast = InternalKey.userKey(sst.getLastKey());
+                first = first == null || Arrays.compare(sstFirst, first) < 0 ? sstFirst : first;
+                last = last == null || Arrays.compare(sstLast, last) > 0 ? sstLast : last;
+            }
+            // values still only referenced by memory table are collected after flush
+            if (first != null) {
+                return generateFullCompactionTask(Bound.included(first), Bound.included(last));
+            }
+        }
+        return null;
+    }
 
-                        final List<SortedStringTable> lowerSSTs = new ArrayList<>(simple.lowerLevelSSTIds().size());
-                        for (Integer lowerSSTId : simple.lowerLevelSSTIds()) {
-                            lowerSSTs.add(ssts.get(lowerSSTId));
-                        }
+    private boolean shouldWriteToBlobFile(byte @NotNull [] key, byte @NotNull [] value, @NotNull Set<Integer> blobFilesToCollect) {
+        if (InternalKey.isBlob(key)) {
+            return !blobFilesToCollect.isEmpty() && blobFilesToCollect.contains(BlobIndex.decode(value).fileId());
+        }
+        return InternalKey.kind(key) == InternalKey.KIND_PUT && options.minBlobSize() > 0 && value.length >= options.minBlobSize();
+    }
 
-                        final ConcatIterator lowerIter = ConcatIterator.createAndSeekToFirst(lowerSSTs);
-                        return buildCompactedSSTFromIterator(TwoMergeIterator.create(upperIter, lowerIter), simple.isLowerLevelBottomLevel());
-                    } else {
-                        final List<SortedStringTable> upperSSTs = new ArrayList<>(simple.upperLevelSSTIds().size());
-                        for (Integer upperSSTId : simple.upperLevelSSTIds()) {
-                            upperSSTs.add(ssts.get(upperSSTId));
-                        }
+    // bytes of values referenced by input sst but not by output, they are garbage once result is installed.
+    private @NotNull Map<Integer, Long> collectBlobGarbage(
+            @NotNull CompactionTask task,
+            @NotNull List<SortedStringTable> compactedSSTs) throws IOException {
+        final Map<Integer, Long> garbage = new HashMap<>();
+        final Storage current = storage.get();
+        if (current.getBlobFiles().isEmpty()) {
+            return garbage;
+        }
+        final List<Integer> inputs = switch (task) {
+            case CompactionTask.SimpleTask simple -> {
+                final List<Integer> res = new ArrayList<>(simple.upperLevelSSTIds());
+                res.addAll(simple.lowerLevelSSTIds());
+                yield res;
+            }
+            case CompactionTask.FullTask full -> {
+                final List<Integer> res = new ArrayList<>(full.level0SSTIds());
+                full.levelSSTIds().forEach(res::addAll);
+                yield res;
+            }
+            case CompactionTask.FifoTask fifo -> fifo.level0SSTIds();
+            default -> List.of();
+        };
+        for (Integer sstId : inputs) {
+            blobReferencesOf(current.getSortedStringTables().get(sstId)).forEach((id, bytes) -> garbage.merge(id, bytes, Long::sum));
+        }
+        for (SortedStringTable sst : compactedSSTs) {
+            blobReferencesOf(sst).forEach((id, bytes) -> garbage.merge(id, -bytes, Long::sum));
+        }
+        // blob file written by this compaction is referenced by output only
+        garbage.values().removeIf(bytes -> bytes <= 0);
+        return garbage;
+    }
+
+    // bytes of values sst references in each blob file, recorded in properties since sst format version 6,
+    // older sst is read through once
+    static @NotNull Map<Integer, Long> blobReferencesOf(@NotNull SortedStringTable sst) throws IOException {
+        if (sst.getFormatVersion() >= SortedStringTable.FORMAT_VERSION_6) {
+            return sst.getBlobReferences();
+        }
+        final Map<Integer, Long> res = new HashMap<>();
+        for (StorageIterator iter = SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst); iter.isValid(); iter.next()) {
+            if (InternalKey.isBlob(iter.key())) {
+                BlobIndex index = BlobIndex.decode(iter.value());
+                res.merge(index.fileId(), (long) index.length(), Long::sum);
+            }
+        }
+        return res;
+    }
 
-                        final ConcatIterator upperIter = ConcatIterator.createAndSeekToFirst(upperSSTs);
+    static @NotNull List<RangeTombstone> clipRangeTombstones(
+            @NotNull List<RangeTombstone> rangeTombstones,
+            byte @Nullable [] lower,
+            byte @Nullable [] upper) {
+        final List<RangeTombstone> res = new ArrayList<>();
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            RangeTombstone clipped = rangeTombstone.clip(lower, upper);
+            if (clipped != null) {
+                res.add(clipped);
+            }
+        }
+        return res;
+    }
 
-                        final List<SortedStringTable> lowerSSTs = new ArrayList<>(simple.lowerLevelSSTIds().size());
-                        for (Integer lowerSSTId : simple.lowerLevelSSTIds()) {
-                            lowerSSTs.add(ssts.get(lowerSSTId));
-                        }
+    public @NotNull List<SortedStringTable> compact(@NotNull CompactionTask task) throws IOException {
+        final Map<Integer, SortedStringTable> ssts = storage.get().getSortedStringTables();
+        switch (task) {
+            case CompactionTask.SimpleTask simple -> {
+                final List<SortedStringTable> upperSSTs = new ArrayList<>(simple.upperLevelSSTIds().size());
+                for (Integer upperSSTId : simple.upperLevelSSTIds()) {
+                    upperSSTs.add(ssts.get(upperSSTId));
+                }
+                final List<SortedStringTable> lowerSSTs = new ArrayList<>(simple.lowerLevelSSTIds().size());
+                for (Integer lowerSSTId : simple.lowerLevelSSTIds()) {
+                    lowerSSTs.add(ssts.get(lowerSSTId));
+                }
 
-                        final ConcatIterator lowerIter = ConcatIterator.createAndSeekToFirst(lowerSSTs);
-                        return buildCompactedSSTFromIterator(TwoMergeIterator.create(upperIter, lowerIter), simple.isLowerLevelBottomLevel());
+                final List<RangeTombstone> rangeTombstones = rangeTombstonesOf(upperSSTs);
+                rangeTombstones.addAll(rangeTombstonesOf(lowerSSTs));
+                final long[] snapshots = getLiveSnapshots();
+                final List<SortedStringTable> liveUpperSSTs = dropCoveredSSTs(upperSSTs, rangeTombstones, snapshots);
+                final List<SortedStringTable> liveLowerSSTs = dropCoveredSSTs(lowerSSTs, rangeTombstones, snapshots);
+
+                final StorageIterator upperIter;
+                if (simple.upperLevel() == 0) {
+                    final List<StorageIterator> upperIters = new ArrayList<>(liveUpperSSTs.size());
+                    for (SortedStringTable upperSST : liveUpperSSTs) {
+                        upperIters.add(SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(upperSST));
                     }
+                    upperIter = MergeIterator.create(upperIters);
+                } else {
+                    upperIter = ConcatIterator.createAndSeekToFirst(liveUpperSSTs);
                 }
-                default -> throw new UnsupportedOperationException();
+
+                final ConcatIterator lowerIter = ConcatIterator.createAndSeekToFirst(liveLowerSSTs);
+                return buildCompactedSSTFromIterator(TwoMergeIterator.create(upperIter, lowerIter), simple.lowerLevel(), simple.isLowerLevelBottomLevel(), rangeTombstones);
             }
-        } finally {
-            readLock.unlock();
+            case CompactionTask.FifoTask fifo -> {
+                // expired or oversize sst is dropped as a whole, nothing to write
+                if (!fifo.merge()) {
+                    return new ArrayList<>();
+                }
+
+                final List<StorageIterator> iters = new ArrayList<>(fifo.level0SSTIds().size());
+                final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+                long createdAt = 0;
+                for (Integer sstId : fifo.level0SSTIds()) {
+                    SortedStringTable sst = ssts.get(sstId);
+                    iters.add(SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst));
+                    rangeTombstones.addAll(sst.getRangeTombstones());
+                    createdAt = Math.max(createdAt, sst.getCreatedAt());
+                }
+
+                // keep tombstone since older sst may still contain deleted key,
+                // output inherit the newest creation time so that no key expires earlier than before
+                final List<SortedStringTable> compactedSSTs = buildCompactedSSTFromIterator(MergeIterator.create(iters), 0, false, rangeTombstones);
+                for (SortedStringTable sst : compactedSSTs) {
+                    sst.getFile().setCreatedAt(getPathOfSST(path, sst.getId()), createdAt);
+                }
+                return compactedSSTs;
+            }
+            case CompactionTask.FullTask full -> {
+                return compactFull(full);
+            }
+            default -> throw new UnsupportedOperationException();
         }
     }
 
-    public void forceFullCompaction() {
-        readLock.lock();
+    public void forceFullCompaction() throws IOException {
+        forceCompactRange(Bound.unbound(), Bound.unbound());
+    }
+
+    // compact all data overlapping [lower, upper] down to the bottom level,
+    // run on compact thread so that manual compaction never races with background compaction.
+    // only strategy with levels has a bottom level, others are rejected
+    public void forceCompactRange(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) throws IOException {
+        if (!(options.strategy() instanceof CompactStrategy.Simple || options.strategy() instanceof CompactStrategy.NoCompact)) {
+            throw new UnsupportedOperationException("manual compaction is not supported by " + options.strategy());
+        }
+        Future<?> future = compactThread.submit(() -> {
+            final CompactionTask.FullTask task = generateFullCompactionTask(lower, upper);
+            if (task != null) {
+                try {
+                    applyCompactionResult(task, compactFull(task));
+                } finally {
+                    discardPendingBlobFiles();
+                }
+            }
+            return null;
+        });
+
         try {
+            future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for full compaction");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
 
-        } finally {
-            readLock.unlock();
+    @Nullable CompactionTask.FullTask generateFullCompactionTask(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        final Storage current = storage.get();
+        final Map<Integer, SortedStringTable> ssts = current.getSortedStringTables();
+        final List<Tuple2<Integer, List<Integer>>> levels = current.getLevels();
+        if (levels.isEmpty()) {
+            return null;
         }
 
-        List<SortedStringTable> newSSTs;
+        final List<Integer> candidates = new ArrayList<>(current.getLevel0SortedStringTables());
+        for (Tuple2<Integer, List<Integer>> level : levels) {
+            candidates.addAll(level.t2());
+        }
 
-        lock.lock();
-        try {
-            writeLock.lock();
+        // outputs cover the key range of all selected sst, so widen range and select again
+        // until no more sst in any level overlaps, otherwise unselected older data may
+        // shadow the newer data moved to bottom level
+        final Set<Integer> selected = new HashSet<>();
+        Bound<byte[]> rangeLower = toInternalLower(lower);
+        Bound<byte[]> rangeUpper = toInternalUpper(upper);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (Integer sstId : candidates) {
+                SortedStringTable sst = ssts.get(sstId);
+                if (!selected.contains(sstId) && rangeOverlap(rangeLower, rangeUpper, sst.getFirstKey(), sst.getLastKey())) {
+                    selected.add(sstId);
+                    // widen by whole user key, other versions of it may live in another sst
+                    rangeLower = widenLower(rangeLower, InternalKey.first(InternalKey.userKey(sst.getFirstKey())));
+                    rangeUpper = widenUpper(rangeUpper, InternalKey.last(InternalKey.userKey(sst.getLastKey())));
+                    changed = true;
+                }
+            }
+        }
+
+        if (selected.isEmpty()) {
+            return null;
+        }
+
+        final List<Integer> level0SSTIds = current.getLevel0SortedStringTables().stream().filter(selected::contains).toList();
+        final List<List<Integer>> levelSSTIds = new ArrayList<>(levels.size());
+        for (Tuple2<Integer, List<Integer>> level : levels) {
+            levelSSTIds.add(level.t2().stream().filter(selected::contains).toList());
+        }
+        return new CompactionTask.FullTask(level0SSTIds, levelSSTIds);
+    }
+
+    static @NotNull Bound<byte[]> widenLower(@NotNull Bound<byte[]> lower, byte @NotNull [] key) {
+        return switch (lower) {
+            case Bound.Included<byte[]>(byte[] bound) when Arrays.compare(key, bound) < 0 -> Bound.included(key);
+            case Bound.Excluded<byte[]>(byte[] bound) when Arrays.compare(key, bound) <= 0 -> Bound.included(key);
+            default -> lower;
+        };
+    }
+
+    static @NotNull Bound<byte[]> widenUpper(@NotNull Bound<byte[]> upper, byte @NotNull [] key) {
+        return switch (upper) {
+            case Bound.Included<byte[]>(byte[] bound) when Arrays.compare(key, bound) > 0 -> Bound.included(key);
+            case Bound.Excluded<byte[]>(byte[] bound) when Arrays.compare(key, bound) >= 0 -> Bound.included(key);
+            default -> upper;
+        };
+    }
+
+    // split key space of full compaction by first key of input sst,
+    // each partition is merged and written by its own worker
+    @NotNull List<SortedStringTable> compactFull(CompactionTask.@NotNull FullTask task) throws IOException {
+        final List<SortedStringTable> level0SSTs = new ArrayList<>(task.level0SSTIds().size());
+        final List<List<SortedStringTable>> levelSSTs = new ArrayList<>(task.levelSSTIds().size());
+        final Map<Integer, SortedStringTable> ssts = storage.get().getSortedStringTables();
+        final List<RangeTombstone> rangeTombstones = new ArrayList<>();
+        for (Integer sstId : task.level0SSTIds()) {
+            level0SSTs.add(ssts.get(sstId));
+            rangeTombstones.addAll(ssts.get(sstId).getRangeTombstones());
+        }
+        for (List<Integer> sstIds : task.levelSSTIds()) {
+            final List<SortedStringTable> level = sstIds.stream().map(ssts::get).toList();
+            levelSSTs.add(level);
+            rangeTombstones.addAll(rangeTombstonesOf(level));
+        }
+
+        // sst covered by range tombstone is removed without reading
+        final long[] snapshots = getLiveSnapshots();
+        level0SSTs.retainAll(dropCoveredSSTs(level0SSTs, rangeTombstones, snapshots));
+        levelSSTs.replaceAll(level -> dropCoveredSSTs(level, rangeTombstones, snapshots));
+
+        final TreeSet<byte[]> firstKeys = new TreeSet<>(Arrays::compare);
+        // split at the smallest internal key of user key, so that all versions of a user key fall in one partition
+        level0SSTs.forEach(sst -> firstKeys.add(InternalKey.first(InternalKey.userKey(sst.getFirstKey()))));
+        levelSSTs.forEach(level -> level.forEach(sst -> firstKeys.add(InternalKey.first(InternalKey.userKey(sst.getFirstKey())))));
+
+        final List<byte[]> candidates = new ArrayList<>(firstKeys);
+        final int numOfWorkers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), candidates.size()));
+        final List<byte[]> splitKeys = new ArrayList<>(numOfWorkers - 1);
+        for (int i = 1; i < numOfWorkers; i++) {
+            splitKeys.add(candidates.get(i * candidates.size() / numOfWorkers));
+        }
+
+        final List<Future<List<SortedStringTable>>> partitions = new ArrayList<>(numOfWorkers);
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i <= splitKeys.size(); i++) {
+                final Bound<byte[]> lower = i == 0 ? Bound.unbound() : Bound.included(splitKeys.get(i - 1));
+                final Bound<byte[]> upper = i == splitKeys.size() ? Bound.unbound() : Bound.excluded(splitKeys.get(i));
+                // each partition owns the part of range tombstones in its key range
+                final List<RangeTombstone> partitionRangeTombstones = clipRangeTombstones(rangeTombstones,
+                        i == 0 ? null : InternalKey.userKey(splitKeys.get(i - 1)),
+                        i == splitKeys.size() ? null : InternalKey.userKey(splitKeys.get(i)));
+                partitions.add(workers.submit(() -> buildCompactedSSTFromIterator(
+                        createRangeIterator(level0SSTs, levelSSTs, lower, upper), levelSSTs.size(), true, partitionRangeTombstones)));
+            }
+        }
+
+        // every worker has finished once executor is closed, collect outputs of all partitions so that
+        // sst built by successful partitions are deleted when another one fails
+        final List<SortedStringTable> outputs = new ArrayList<>();
+        Throwable failure = null;
+        for (Future<List<SortedStringTable>> partition : partitions) {
             try {
+                outputs.addAll(partition.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = failure == null ? new InterruptedIOException("interrupted while waiting for compaction worker") : failure;
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause();
+                } else {
+                    failure.addSuppressed(e.getCause());
+                }
+            }
+        }
 
-            } finally {
-                writeLock.unlock();
+        if (failure != null) {
+            try {
+                discardCompactedSSTs(outputs);
+            } catch (IOException suppressed) {
+                failure.addSuppressed(suppressed);
+            }
+            switch (failure) {
+                case IOException ioException -> throw ioException;
+                case RuntimeException runtimeException -> throw runtimeException;
+                default -> throw new RuntimeException(failure);
             }
-        } finally {
-            lock.unlock();
         }
+        return outputs;
+    }
+
+    // lower must be included or unbounded
+    static @NotNull StorageIterator createRangeIterator(
+            @NotNull List<SortedStringTable> level0SSTs,
+            @NotNull List<List<SortedStringTable>> levelSSTs,
+            @NotNull Bound<byte[]> lower,
+            @NotNull Bound<byte[]> upper) throws IOException {
+        final List<StorageIterator> level0Iters = new ArrayList<>(level0SSTs.size());
+        for (SortedStringTable sst : level0SSTs) {
+            StorageIterator iter = switch (lower) {
+                case Bound.Included<byte[]>(byte[] key) -> SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, key);
+                default -> SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst);
+            };
+            level0Iters.add(new BoundedIterator(iter, upper));
+        }
+
+        // upper level is newer than lower level, merge from bottom so that upper level wins
+        StorageIterator levelIter = null;
+        for (int i = levelSSTs.size() - 1; i >= 0; i--) {
+            StorageIterator iter = switch (lower) {
+                case Bound.Included<byte[]>(byte[] key) -> ConcatIterator.createAndSeekToKey(levelSSTs.get(i), key);
+                default -> ConcatIterator.createAndSeekToFirst(levelSSTs.get(i));
+            };
+            StorageIterator bounded = new BoundedIterator(iter, upper);
+            levelIter = levelIter == null ? bounded : TwoMergeIterator.create(bounded, levelIter);
+        }
+
+        StorageIterator level0Iter = MergeIterator.create(level0Iters);
+        return levelIter == null ? level0Iter : TwoMergeIterator.create(level0Iter, levelIter);
     }
 
     void triggerCompact() throws IOException {
-        readLock.lock();
-        try {
-            final CompactionTask task = compactor.generateCompactionTask(storage);
-            if (task == null) {
-                return ;
-            } else {
-                final List<SortedStringTable> compactedSSTs = compact(task);
-                final List<Integer> outputs = compactedSSTs.stream().map(SortedStringTable::getId).toList();
-                List<SortedStringTable> removedSSTs;
-                lock.lock();
-                try {
-                    // Todo
-                    // should we use double check here?
-                    readLock.lock();
-                    final List<Integer> newSSTIds = new ArrayList<>();
-                    try {
-                        for (SortedStringTable compactedSST : compactedSSTs) {
-                            newSSTIds.add(compactedSST.getId());
-                            storage.getSortedStringTables().put(compactedSST.getId(), compactedSST);
-                        }
+        final long[] snapshots = getLiveSnapshots();
+        final long oldestSnapshot = snapshots.length == 0 ? InternalKey.MAX_SEQUENCE : snapshots[0];
+        CompactionTask task = compactor.generateCompactionTask(storage.get(), oldestSnapshot);
+        if (task == null && options.strategy() instanceof CompactStrategy.Simple) {
+            task = generateBlobGarbageCollectionTask();
+        }
+        if (task != null) {
+            try {
+                applyCompactionResult(task, compact(task));
+            } finally {
+                // blob files of failed compaction are never referenced
+                discardPendingBlobFiles();
+            }
+        }
+    }
 
-                        final List<Integer> filesToRemove = compactor.doCompact(storage, task, outputs);
-                        removedSSTs = new ArrayList<>(filesToRemove.size());
-                        for (Integer file : filesToRemove) {
-                            SortedStringTable removedSST = storage.getSortedStringTables().remove(file);
-                            removedSSTs.add(removedSST);
-                        }
-                    } finally {
-                        readLock.unlock();
+    private void applyCompactionResult(@NotNull CompactionTask task, @NotNull List<SortedStringTable> compactedSSTs) throws IOException {
+        final List<Integer> outputs = compactedSSTs.stream().map(SortedStringTable::getId).toList();
+        final Map<Integer, Long> blobGarbage = collectBlobGarbage(task, compactedSSTs);
+        Storage oldStorage;
+        lock.lock();
+        try {
+            // Todo
+            // should we use double check here?
+            final Storage.StorageBuilder newStorage = storage.get().toBuilder();
+            final List<Integer> newSSTIds = new ArrayList<>();
+            for (SortedStringTable compactedSST : compactedSSTs) {
+                newSSTIds.add(compactedSST.getId());
+                newStorage.getSortedStringTables().put(compactedSST.getId(), compactedSST);
+                // blob file written by this compaction becomes visible with the sst referencing it
+                for (Integer blobId : compactedSST.getBlobReferences().keySet()) {
+                    BlobFile pending = pendingBlobFiles.remove(blobId);
+                    if (pending != null) {
+                        newStorage.getBlobFiles().put(blobId, pending);
                     }
-                    manifest.addTrack(new Track.Compact(task, newSSTIds));
-                } finally {
-                    lock.unlock();
                 }
+            }
+
+            final List<Integer> filesToRemove = compactor.doCompact(newStorage, task, outputs);
+            // user key range of removed sst, values in it may change without write, see below
+            byte[] removedFirst = null;
+            byte[] removedLast = null;
+            for (Integer file : filesToRemove) {
+                SortedStringTable removedSST = newStorage.getSortedStringTables().remove(file);
+                removedSST.markObsolete(getPathOfSST(path, file));
+                final byte[] first = InternalKey.userKey(removedSST.getFirstKey());
+                final byte[] last = InternalKey.userKey(removedSST.getLastKey());
+                removedFirst = removedFirst == null || Arrays.compare(first, removedFirst) < 0 ? first : removedFirst;
+                removedLast = removedLast == null || Arrays.compare(last, removedLast) > 0 ? last : removedLast;
+            }
+
+            for (Tuple2<Integer, List<Integer>> level : newStorage.getLevels()) {
+                sortByFirstKey(level.t2(), newStorage.getSortedStringTables());
+            }
 
-                // delete removed sst
-                for (SortedStringTable removedSST : removedSSTs) {
-                    removedSST.close();
-                    Files.deleteIfExists(getPathOfSST(path, removedSST.getId()));
+            // blob file without live value is removed like sst, active one may still receive values
+            final BlobFile active = activeBlobFile;
+            for (Map.Entry<Integer, Long> garbage : blobGarbage.entrySet()) {
+                BlobFile blobFile = newStorage.getBlobFiles().get(garbage.getKey());
+                if (blobFile == null) {
+                    continue;
                 }
+                blobFile.addGarbageBytes(garbage.getValue());
+                if (blobFile.isDead() && blobFile != active) {
+                    newStorage.getBlobFiles().remove(garbage.getKey());
+                    blobFile.markObsolete(getPathOfBlob(path, garbage.getKey()));
+                }
+            }
+
+            oldStorage = storage.getAndSet(newStorage.build());
+            // values change without write when fifo drops sst or compaction filter rewrites them,
+            // only keys of removed sst are affected
+            if (rowCache != null && removedFirst != null
+                    && (task instanceof CompactionTask.FifoTask || options.compactionFilter() != null)) {
+                rowCache.invalidateRange(removedFirst, removedLast);
+            }
+            manifest.addTrack(new Track.Compact(task, newSSTIds));
+            for (Map.Entry<Integer, Long> garbage : blobGarbage.entrySet()) {
+                manifest.addTrack(new Track.BlobGarbage(garbage.getKey(), garbage.getValue()));
             }
         } finally {
-            readLock.unlock();
+            lock.unlock();
         }
+
+        // removed sst is closed and deleted once no reader holds a version containing it,
+        // release old version after manifest is written so that recovery never sees a missing file
+        oldStorage.release();
     }
 
     public void dump() {
-        System.out.println(FMT."MEM -> \{storage.getMemoryTable().getId()}");
-        System.out.println(FMT."IMM -> \{storage.getImmutableMemoryTables().stream().map(MemoryTable::getId).toList()}");
-        System.out.println(FMT."L 0 -> \{storage.getLevel0SortedStringTables()}");
-        for (Tuple2<Integer, List<Integer>> level : storage.getLevels()) {
+        final Storage current = storage.get();
+        System.out.println(FMT."MEM -> \{current.getMemoryTable().getId()}");
+        System.out.println(FMT."IMM -> \{current.getImmutableMemoryTables().stream().map(MemoryTable::getId).toList()}");
+        System.out.println(FMT."L 0 -> \{current.getLevel0SortedStringTables()}");
+        for (Tuple2<Integer, List<Integer>> level : current.getLevels()) {
             System.out.println(FMT."L%2d\{level.t1()} -> \{level.t2()}");
         }
     }
@@ -0,0 +1,138 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+// key filter of sst built for each level, types.get(i) and falsePositives.get(i) are used by level i
+// and the last one by every deeper level, e.g. blocked bloom filter for upper levels probed by most
+// lookups and ribbon filter for bottom levels holding most keys.
+//
+// with autoTune the memory that configured false positives would take is spread over levels Monkey style,
+// a lookup probing every level costs the sum of false positives, which is minimal under fixed memory
+// when false positive of each level is proportional to its size. so smaller upper levels get more bits
+// per key and the bottom level fewer, level whose false positive reaches 1 gets no filter.
+//
+// skipBottomLevel builds no filter for sst of bottom level, which holds most keys and is probed last,
+// for workloads where most lookups find their key.
+public record FilterPolicy(
+        @NotNull List<KeyFilter.Type> types,
+        @NotNull List<Double> falsePositives,
+        boolean autoTune,
+        boolean skipBottomLevel) {
+    // bound of auto tuned false positive, keep bits per key of tiny upper levels reasonable
+    static final double MIN_FALSE_POSITIVE = 0.0001;
+
+    public FilterPolicy {
+        if (types.isEmpty() || falsePositives.isEmpty()) {
+            throw new IllegalArgumentException("filter policy needs at least one filter type and false positive");
+        }
+        for (double p : falsePositives) {
+            if (p <= 0 || p >= 1) {
+                throw new IllegalArgumentException("false positive must be in (0, 1), got " + p);
+            }
+        }
+        types = List.copyOf(types);
+        falsePositives = List.copyOf(falsePositives);
+    }
+
+    public static @NotNull FilterPolicy of(KeyFilter.@NotNull Type... types) {
+        return new FilterPolicy(List.of(types), List.of(KeyFilter.DEFAULT_FALSE_POSITIVE), false, false);
+    }
+
+    public @NotNull FilterPolicy withFalsePositives(@NotNull Double... falsePositives) {
+        return new FilterPolicy(types, List.of(falsePositives), autoTune, skipBottomLevel);
+    }
+
+    public @NotNull FilterPolicy withAutoTune(boolean autoTune) {
+        return new FilterPolicy(types, falsePositives, autoTune, skipBottomLevel);
+    }
+
+    public @NotNull FilterPolicy withSkipBottomLevel(boolean skipBottomLevel) {
+        return new FilterPolicy(types, falsePositives, autoTune, skipBottomLevel);
+    }
+
+    public KeyFilter.@NotNull Type typeOf(int level) {
+        return types.get(Math.min(level, types.size() - 1));
+    }
+
+    // filter of sst written to level, NONE for skipped bottom level or false positive of 1
+    public KeyFilter.@NotNull Type typeOf(int level, boolean bottomLevel, long @NotNull [] levelSizes) {
+        return typeOf(level, bottomLevel, levelSizes, singleRuns(levelSizes.length));
+    }
+
+    public KeyFilter.@NotNull Type typeOf(int level, boolean bottomLevel, long @NotNull [] levelSizes, int @NotNull [] levelRuns) {
+        if (bottomLevel && skipBottomLevel) {
+            return KeyFilter.Type.NONE;
+        }
+        return falsePositiveOf(level, levelSizes, levelRuns) >= 1 ? KeyFilter.Type.NONE : typeOf(level);
+    }
+
+    public double falsePositiveOf(int level) {
+        return falsePositives.get(Math.min(level, falsePositives.size() - 1));
+    }
+
+    public double falsePositiveOf(int level, long @NotNull [] levelSizes) {
+        return falsePositiveOf(level, levelSizes, singleRuns(levelSizes.length));
+    }
+
+    // levelSizes[i] is expected size of level i, e.g. bytes of sst in it, and levelRuns[i] is number of
+    // sorted runs a lookup probes in it, e.g. every sst of level 0 and one sst of a deeper level.
+    //
+    // minimize sum of R(i) * p(i) under fixed sum of N(i) * ln(1 / p(i)), lagrange multiplier gives
+    // p(i) = lambda * n(i) where n(i) = N(i) / R(i) is size of a run, and
+    // ln(lambda) = (sum of N(i) * ln(p'(i)) - sum of N(i) * ln(n(i))) / sum of N(i), p' is configured false positive.
+    // level whose p(i) reaches 1 has no filter and leaves its memory to the other levels
+    public double falsePositiveOf(int level, long @NotNull [] levelSizes, int @NotNull [] levelRuns) {
+        if (!autoTune) {
+            return falsePositiveOf(level);
+        }
+
+        final double[] runSizes = new double[levelSizes.length];
+        for (int i = 0; i < levelSizes.length; i++) {
+            runSizes[i] = Math.max(1, (double) levelSizes[i] / Math.max(1, levelRuns[i]));
+        }
+
+        double budget = 0;
+        for (int i = 0; i < levelSizes.length; i++) {
+            budget += Math.max(1, levelSizes[i]) * Math.log(falsePositiveOf(i));
+        }
+
+        final boolean[] unfiltered = new boolean[levelSizes.length];
+        double logLambda;
+        boolean changed;
+        do {
+            double total = 0;
+            double weightedLogN = 0;
+            for (int i = 0; i < levelSizes.length; i++) {
+                if (!unfiltered[i]) {
+                    double n = Math.max(1, levelSizes[i]);
+                    total += n;
+                    weightedLogN += n * Math.log(runSizes[i]);
+                }
+            }
+            logLambda = (budget - weightedLogN) / total;
+
+            changed = false;
+            for (int i = 0; i < levelSizes.length; i++) {
+                if (!unfiltered[i] && logLambda + Math.log(runSizes[i]) >= 0) {
+                    unfiltered[i] = true;
+                    changed = true;
+                }
+            }
+        } while (changed);
+
+        int index = Math.min(level, levelSizes.length - 1);
+        if (unfiltered[index]) {
+            return 1;
+        }
+        return Math.max(MIN_FALSE_POSITIVE, Math.exp(logLambda + Math.log(runSizes[index])));
+    }
+
+    private static int @NotNull [] singleRuns(int numOfLevels) {
+        final int[] runs = new int[numOfLevels];
+        Arrays.fill(runs, 1);
+        return runs;
+    }
+}
@@ -0,0 +1,137 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+
+//
+// +-------------------------------------------------------------+
+// |                        Frozen Table                         |
+// +-------+---------+-------+---------+-----+-------+-----------+
+// | key#1 | value#1 | key#2 | value#2 | ... | key#N | value#N   |
+// +-------+---------+-------+---------+-----+-------+-----------+
+//
+// point entries of an immutable memory table copied into one sorted arena, key i is
+// [offsets[2i], offsets[2i + 1]) and value i is [offsets[2i + 1], offsets[2i + 2]) of arena.
+// two arrays in place of a skip list node, entry and two byte arrays per entry, lookup is a
+// binary search over the offsets and iteration walks the arena in order.
+public final class FrozenTable {
+    private final byte @NotNull [] arena;
+    private final int @NotNull [] offsets;
+
+    public FrozenTable(byte @NotNull [] arena, int @NotNull [] offsets) {
+        this.arena = arena;
+        this.offsets = offsets;
+    }
+
+    // null if entries do not fit in one arena, entries must not change while being copied
+    public static @Nullable FrozenTable of(@NotNull SortedMap<byte[], byte[]> entries) {
+        long arenaLength = 0;
+        int n = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            arenaLength += entry.getKey().length + entry.getValue().length;
+            n += 1;
+        }
+        if (arenaLength > Integer.MAX_VALUE - 8 || n > (Integer.MAX_VALUE - 8) / 2) {
+            return null;
+        }
+
+        final byte[] arena = new byte[(int) arenaLength];
+        final int[] offsets = new int[2 * n + 1];
+        int i = 0;
+        for (Map.Entry<byte[], byte[]> entry : entries.entrySet()) {
+            final byte[] key = entry.getKey();
+            final byte[] value = entry.getValue();
+            System.arraycopy(key, 0, arena, offsets[i], key.length);
+            offsets[i + 1] = offsets[i] + key.length;
+            System.arraycopy(value, 0, arena, offsets[i + 1], value.length);
+            offsets[i + 2] = offsets[i + 1] + value.length;
+            i += 2;
+        }
+        return new FrozenTable(arena, offsets);
+    }
+
+    public int size() {
+        return offsets.length / 2;
+    }
+
+    public byte @NotNull [] key(int index) {
+        return Arrays.copyOfRange(arena, offsets[2 * index], offsets[2 * index + 1]);
+    }
+
+    public byte @NotNull [] value(int index) {
+        return Arrays.copyOfRange(arena, offsets[2 * index + 1], offsets[2 * index + 2]);
+    }
+
+    public byte @Nullable [] get(byte @NotNull [] key) {
+        int index = ceiling(key);
+        return index < size() && compareKey(index, key) == 0 ? value(index) : null;
+    }
+
+    // least entry whose key is greater than or equal to given key
+    public @Nullable Map.Entry<byte[], byte[]> seek(byte @NotNull [] key) {
+        int index = ceiling(key);
+        return index < size() ? Map.entry(key(index), value(index)) : null;
+    }
+
+    // index of the first key greater than or equal to given key, size if none
+    public int ceiling(byte @NotNull [] key) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key) < 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // index of the first key greater than given key, size if none
+    public int higher(byte @NotNull [] key) {
+        int low = 0;
+        int high = size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (compareKey(mid, key) <= 0) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    // entries in [from, to)
+    public @NotNull Iterator<Map.Entry<byte[], byte[]>> iterator(int from, int to) {
+        return new Iterator<>() {
+            private int index = from;
+
+            @Override
+            public boolean hasNext() {
+                return index < to;
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (index >= to) {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry<byte[], byte[]> entry = Map.entry(key(index), value(index));
+                index += 1;
+                return entry;
+            }
+        };
+    }
+
+    private int compareKey(int index, byte @NotNull [] key) {
+        return Arrays.compare(arena, offsets[2 * index], offsets[2 * index + 1], key, 0, key.length);
+    }
+}
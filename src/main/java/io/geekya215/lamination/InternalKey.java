@@ -0,0 +1,140 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
+
+// Internal key format
+//
+// +----------------------------------------------------+
+// | escaped user key | terminator(u16) | trailer(u64)  |
+// +----------------------------------------------------+
+//
+// every 0x80 byte in user key is escaped to 0x80 0xFF and user key ends with terminator 0x80 0x80,
+// trailer is ~(sequence << 8 | kind) in big-endian with sign bit of each byte flipped.
+// so that Arrays::compare (signed byte) on internal keys orders by user key ascending
+// then sequence descending, memory table, block and sst need not know anything about versions.
+public final class InternalKey {
+    public static final byte KIND_DELETE = 0;
+    public static final byte KIND_PUT = 1;
+    // value is an operand of merge operator, folded onto older versions when read
+    public static final byte KIND_MERGE = 2;
+    // start of range tombstone, never stored with data, see RangeTombstone
+    public static final byte KIND_RANGE_DELETE = 3;
+    // value is a BlobIndex pointing to the real value in blob file
+    public static final byte KIND_BLOB = 4;
+    // largest kind, seek key with it sorts before every entry of the same sequence
+    public static final byte KIND_SEEK = (byte) 0xFF;
+    public static final long MAX_SEQUENCE = (1L << 56) - 1;
+    static final byte ESCAPE = (byte) 0x80;
+    static final byte ESCAPED = (byte) 0xFF;
+    static final byte TERMINATOR = (byte) 0x80;
+    static final int SIZE_OF_TERMINATOR = 2;
+    static final int SIZE_OF_TRAILER = SIZE_OF_U64;
+
+    private InternalKey() {
+    }
+
+    public static byte @NotNull [] encode(byte @NotNull [] userKey, long sequence, byte kind) {
+        int numOfEscape = 0;
+        for (byte b : userKey) {
+            if (b == ESCAPE) {
+                numOfEscape += 1;
+            }
+        }
+
+        final byte[] buf = new byte[userKey.length + numOfEscape + SIZE_OF_TERMINATOR + SIZE_OF_TRAILER];
+        int cursor = 0;
+        for (byte b : userKey) {
+            buf[cursor++] = b;
+            if (b == ESCAPE) {
+                buf[cursor++] = ESCAPED;
+            }
+        }
+        buf[cursor++] = TERMINATOR;
+        buf[cursor++] = TERMINATOR;
+
+        long trailer = ~(sequence << 8 | (kind & 0xFF));
+        for (int i = 0; i < SIZE_OF_TRAILER; i++) {
+            buf[cursor++] = (byte) ((trailer >>> (56 - i * 8)) ^ 0x80);
+        }
+        return buf;
+    }
+
+    // smallest internal key of user key
+    public static byte @NotNull [] first(byte @NotNull [] userKey) {
+        return encode(userKey, MAX_SEQUENCE, KIND_SEEK);
+    }
+
+    // largest internal key of user key
+    public static byte @NotNull [] last(byte @NotNull [] userKey) {
+        return encode(userKey, 0, KIND_DELETE);
+    }
+
+    // smallest key of sst holding range tombstone starting at user key, greater than first(userKey)
+    // but less than any real version of it, so that sst cut at userKey never overlaps the previous one
+    public static byte @NotNull [] rangeTombstoneFirst(byte @NotNull [] start) {
+        return encode(start, MAX_SEQUENCE, (byte) (KIND_SEEK - 1));
+    }
+
+    // largest key of sst holding range tombstone ending at user key, end is exclusive
+    public static byte @NotNull [] rangeTombstoneLast(byte @NotNull [] end) {
+        return first(end);
+    }
+
+    public static byte @NotNull [] userKey(byte @NotNull [] internalKey) {
+        int end = internalKey.length - SIZE_OF_TRAILER - SIZE_OF_TERMINATOR;
+        int numOfEscape = 0;
+        for (int i = 0; i < end; i++) {
+            if (internalKey[i] == ESCAPE) {
+                numOfEscape += 1;
+                i += 1;
+            }
+        }
+
+        if (numOfEscape == 0) {
+            return Arrays.copyOf(internalKey, end);
+        }
+
+        final byte[] userKey = new byte[end - numOfEscape];
+        int cursor = 0;
+        for (int i = 0; i < end; i++) {
+            userKey[cursor++] = internalKey[i];
+            if (internalKey[i] == ESCAPE) {
+                i += 1;
+            }
+        }
+        return userKey;
+    }
+
+    public static long sequence(byte @NotNull [] internalKey) {
+        return trailer(internalKey) >>> 8;
+    }
+
+    public static byte kind(byte @NotNull [] internalKey) {
+        return (byte) trailer(internalKey);
+    }
+
+    public static boolean isMerge(byte @NotNull [] internalKey) {
+        return kind(internalKey) == KIND_MERGE;
+    }
+
+    public static boolean isBlob(byte @NotNull [] internalKey) {
+        return kind(internalKey) == KIND_BLOB;
+    }
+
+    // compare escaped part only, avoid decoding user key
+    public static boolean sameUserKey(byte @NotNull [] a, byte @NotNull [] b) {
+        return Arrays.equals(a, 0, a.length - SIZE_OF_TRAILER, b, 0, b.length - SIZE_OF_TRAILER);
+    }
+
+    private static long trailer(byte @NotNull [] internalKey) {
+        long trailer = 0;
+        for (int i = internalKey.length - SIZE_OF_TRAILER; i < internalKey.length; i++) {
+            trailer = (trailer << 8) | ((internalKey[i] ^ 0x80) & 0xFF);
+        }
+        return ~trailer;
+    }
+}
@@ -0,0 +1,124 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static io.geekya215.lamination.Constants.EMPTY_BYTE_ARRAY;
+
+// Filter of keys in sst, false means key is definitely absent.
+//
+// +----------------------------+
+// |     Typed Key Filter       |
+// +-----------+----------------+
+// | type(u8)  |     filter     |
+// +-----------+----------------+
+//
+// sst of format version 3 stores filter with its type, so that every sst picks its own filter,
+// older sst stores BloomFilter without type.
+public sealed interface KeyFilter extends Encoder permits BloomFilter, BlockedBloomFilter, RibbonFilter, KeyFilter.NoFilter {
+    double DEFAULT_FALSE_POSITIVE = 0.03;
+    // false positive of a real filter, filter of larger false positive is not worth probing
+    double MAX_FALSE_POSITIVE = 0.5;
+
+    @NotNull Type type();
+
+    // hash64 must be computed by KeyFilter::hash, caller probing many filters with the same key hashes it once
+    boolean mayContain(long hash64);
+
+    default boolean contain(byte @NotNull [] key) {
+        return mayContain(hash(key));
+    }
+
+    static long hash(byte @NotNull [] key) {
+        return MurmurHash2.hash64(key, key.length);
+    }
+
+    static byte @NotNull [] encodeWithType(@NotNull KeyFilter filter) {
+        final byte[] filterBuf = filter.encode();
+        final byte[] buf = new byte[1 + filterBuf.length];
+        buf[0] = filter.type().tag;
+        System.arraycopy(filterBuf, 0, buf, 1, filterBuf.length);
+        return buf;
+    }
+
+    static @NotNull KeyFilter decodeWithType(byte @NotNull [] buf) {
+        final byte[] filterBuf = Arrays.copyOfRange(buf, 1, buf.length);
+        return switch (Type.of(buf[0])) {
+            case BLOOM -> BloomFilter.decode(filterBuf);
+            case BLOCKED_BLOOM -> BlockedBloomFilter.decode(filterBuf);
+            case RIBBON -> RibbonFilter.decode(filterBuf);
+            case NONE -> new NoFilter();
+        };
+    }
+
+    // sst without filter, every key may be in it
+    record NoFilter() implements KeyFilter {
+        @Override
+        public @NotNull Type type() {
+            return Type.NONE;
+        }
+
+        @Override
+        public boolean mayContain(long hash64) {
+            return true;
+        }
+
+        @Override
+        public byte @NotNull [] encode() {
+            return EMPTY_BYTE_ARRAY;
+        }
+    }
+
+    enum Type {
+        // k probes scattered over the whole bitset
+        BLOOM((byte) 0),
+        // k probes in one cache line picked by hash, see BlockedBloomFilter
+        BLOCKED_BLOOM((byte) 1),
+        // solution of a linear system over fingerprints, fewer bits per key than bloom filters, see RibbonFilter
+        RIBBON((byte) 2),
+        // no filter, see FilterPolicy
+        NONE((byte) 3);
+
+        private final byte tag;
+
+        Type(byte tag) {
+            this.tag = tag;
+        }
+
+        public static @NotNull Type of(byte tag) {
+            for (Type type : values()) {
+                if (type.tag == tag) {
+                    return type;
+                }
+            }
+            throw new IllegalArgumentException("unknown key filter type " + tag);
+        }
+
+        // filter of all key hashes with expected false positive probability p
+        public @NotNull KeyFilter build(@NotNull List<Long> hashes, double p) {
+            return switch (this) {
+                case BLOOM -> {
+                    BloomFilter bloomFilter = new BloomFilter(hashes.size(), p);
+                    for (Long hash : hashes) {
+                        bloomFilter.mappingHashToBitset(hash);
+                    }
+                    yield bloomFilter;
+                }
+                case BLOCKED_BLOOM -> {
+                    BlockedBloomFilter blockedBloomFilter = new BlockedBloomFilter(hashes.size(), p);
+                    for (Long hash : hashes) {
+                        blockedBloomFilter.mappingHashToBitset(hash);
+                    }
+                    yield blockedBloomFilter;
+                }
+                case RIBBON -> {
+                    RibbonFilter ribbonFilter = RibbonFilter.build(hashes, p);
+                    yield ribbonFilter != null ? ribbonFilter : BLOOM.build(hashes, p);
+                }
+                case NONE -> new NoFilter();
+            };
+        }
+    }
+}
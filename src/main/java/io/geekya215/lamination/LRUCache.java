@@ -6,6 +6,7 @@ import org.jetbrains.annotations.Nullable;
 import java.util.HashMap;
 import java.util.Map;
 
+// shared by concurrent readers, e.g. Engine::multiGet reading blocks on many threads
 public final class LRUCache<K, V extends Measurable> implements Cache<K, V> {
     private final @NotNull Map<K, Node<K, V>> cache;
     private final @NotNull Node<K, V> dummy;
@@ -20,7 +21,7 @@ public final class LRUCache<K, V extends Measurable> implements Cache<K, V> {
     }
 
     @Override
-    public void put(@NotNull K key, @NotNull V value) {
+    public synchronized void put(@NotNull K key, @NotNull V value) {
         if (cache.containsKey(key)) {
             Node<K, V> existNode = cache.get(key);
             removeNode(existNode);
@@ -40,7 +41,7 @@ public final class LRUCache<K, V extends Measurable> implements Cache<K, V> {
     }
 
     @Override
-    public @Nullable V get(@NotNull K key) {
+    public synchronized @Nullable V get(@NotNull K key) {
         if (cache.containsKey(key)) {
             Node<K, V> node = cache.get(key);
             removeNode(node);
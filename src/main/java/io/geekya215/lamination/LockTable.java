@@ -0,0 +1,56 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collection;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Striped lock table for transaction commit.
+//
+// each key is hashed to one of a fixed number of stripes, committing transactions
+// lock stripes of all keys they touch, so commits on disjoint keys run in parallel and
+// never wait on engine-wide lock. stripes are always locked in ascending index order,
+// so that two transactions locking overlapping stripes can not deadlock.
+public final class LockTable {
+    static final int DEFAULT_NUM_OF_STRIPES = 256;
+
+    private final @NotNull ReentrantLock @NotNull [] stripes;
+
+    public LockTable(int numOfStripes) {
+        this.stripes = new ReentrantLock[numOfStripes];
+        for (int i = 0; i < numOfStripes; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    public static @NotNull LockTable create() {
+        return new LockTable(DEFAULT_NUM_OF_STRIPES);
+    }
+
+    int stripeOf(byte @NotNull [] key) {
+        return Math.floorMod(MurmurHash2.hash32(key, key.length), stripes.length);
+    }
+
+    // return locked stripes, caller should pass them to unlock
+    public int @NotNull [] lock(@NotNull Collection<byte[]> keys) {
+        final TreeSet<Integer> indexes = new TreeSet<>();
+        for (byte[] key : keys) {
+            indexes.add(stripeOf(key));
+        }
+
+        final int[] locked = new int[indexes.size()];
+        int cursor = 0;
+        for (Integer index : indexes) {
+            stripes[index].lock();
+            locked[cursor++] = index;
+        }
+        return locked;
+    }
+
+    public void unlock(int @NotNull [] locked) {
+        for (int i = locked.length - 1; i >= 0; i--) {
+            stripes[locked[i]].unlock();
+        }
+    }
+}
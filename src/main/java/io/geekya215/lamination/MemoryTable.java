@@ -12,9 +12,11 @@ import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentNavigableMap;
 import java.util.concurrent.ConcurrentSkipListMap;
@@ -23,52 +25,187 @@ import java.util.concurrent.atomic.AtomicInteger;
 public final class MemoryTable implements Closeable {
     static final Comparator<byte[]> DEFAULT_COMPARATOR = Arrays::compare;
     private final int id;
-    private final @NotNull ConcurrentSkipListMap<byte[], byte[]> skipList;
+    // point entries, null once memory table is frozen, see freeze, or when they are kept off heap
+    private volatile @Nullable ConcurrentSkipListMap<byte[], byte[]> skipList;
+    // point entries of memory table created off heap, never frozen, freed once the last version holding it is released
+    private final @Nullable OffHeapSkipList offHeap;
+    // flat copy of point entries, set before skip list is dropped so that reader seeing no skip list sees it
+    private volatile @Nullable FrozenTable frozen;
+    // internal key of range tombstone start to exclusive end user key, kept apart from point entries
+    // so that scan and flush of point entries never see them
+    private final @NotNull ConcurrentSkipListMap<byte[], byte[]> rangeTombstones;
     private final @Nullable WriteAheadLog wal;
+    // size of heap point entries and range tombstones, off heap entries are counted by OffHeapSkipList
     private final @NotNull AtomicInteger approximateSize;
+    // number of versions holding this memory table, see Storage
+    private final @NotNull AtomicInteger refs;
 
     public MemoryTable(
             int id,
             @NotNull ConcurrentSkipListMap<byte[], byte[]> skipList,
+            @NotNull ConcurrentSkipListMap<byte[], byte[]> rangeTombstones,
+            @Nullable WriteAheadLog wal,
+            @NotNull AtomicInteger approximateSize) {
+        this(id, skipList, null, rangeTombstones, wal, approximateSize);
+    }
+
+    private MemoryTable(
+            int id,
+            @Nullable ConcurrentSkipListMap<byte[], byte[]> skipList,
+            @Nullable OffHeapSkipList offHeap,
+            @NotNull ConcurrentSkipListMap<byte[], byte[]> rangeTombstones,
             @Nullable WriteAheadLog wal,
             @NotNull AtomicInteger approximateSize) {
         this.id = id;
         this.skipList = skipList;
+        this.offHeap = offHeap;
+        this.frozen = null;
+        this.rangeTombstones = rangeTombstones;
         this.wal = wal;
         this.approximateSize = approximateSize;
+        this.refs = new AtomicInteger(0);
     }
 
     public static @NotNull MemoryTable create(int id) {
-        return new MemoryTable(id, new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), null, new AtomicInteger());
+        return new MemoryTable(id, new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), null, new AtomicInteger());
     }
 
     public static @NotNull MemoryTable createWithWAL(int id, @NotNull Path path) throws FileNotFoundException {
-        return new MemoryTable(id, new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), WriteAheadLog.create(path), new AtomicInteger());
+        return new MemoryTable(id, new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), WriteAheadLog.create(path), new AtomicInteger());
+    }
+
+    public static @NotNull MemoryTable createOffHeap(int id) {
+        return new MemoryTable(id, null, new OffHeapSkipList(), new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), null, new AtomicInteger());
+    }
+
+    public static @NotNull MemoryTable createOffHeapWithWAL(int id, @NotNull Path path) throws FileNotFoundException {
+        return new MemoryTable(id, null, new OffHeapSkipList(), new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR), WriteAheadLog.create(path), new AtomicInteger());
     }
 
+    // recovered memory table is immutable, it is kept on heap and frozen
     public static @NotNull MemoryTable recoverFromWAL(int id, @NotNull Path path) throws IOException {
         ConcurrentSkipListMap<byte[], byte[]> skipList = new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR);
+        ConcurrentSkipListMap<byte[], byte[]> rangeTombstones = new ConcurrentSkipListMap<>(DEFAULT_COMPARATOR);
         AtomicInteger approximateSize = new AtomicInteger();
-        return new MemoryTable(id, skipList, WriteAheadLog.recover(path, skipList, approximateSize), approximateSize);
+        return new MemoryTable(id, skipList, rangeTombstones, WriteAheadLog.recover(path, skipList, rangeTombstones, approximateSize), approximateSize);
     }
 
     public void put(byte @NotNull [] key, byte @NotNull [] value) throws IOException {
-        skipList.put(key, value);
-
-        approximateSize.getAndAdd(key.length + value.length);
+        final ConcurrentSkipListMap<byte[], byte[]> points = skipList;
+        if (offHeap != null) {
+            offHeap.put(key, value);
+        } else if (points != null) {
+            points.put(key, value);
+            approximateSize.getAndAdd(key.length + value.length);
+        } else {
+            throw new IllegalStateException("memory table " + id + " is frozen");
+        }
 
         if (wal != null) {
             wal.put(key, value);
         }
     }
 
+    // key is internal key of range tombstone start, end is exclusive user key
+    public void deleteRange(byte @NotNull [] key, byte @NotNull [] end) throws IOException {
+        rangeTombstones.put(key, end);
+
+        approximateSize.getAndAdd(key.length + end.length);
+
+        if (wal != null) {
+            wal.deleteRange(key, end);
+        }
+    }
+
+    public @NotNull List<RangeTombstone> getRangeTombstones() {
+        final List<RangeTombstone> res = new ArrayList<>(rangeTombstones.size());
+        for (Map.Entry<byte[], byte[]> entry : rangeTombstones.entrySet()) {
+            res.add(new RangeTombstone(InternalKey.userKey(entry.getKey()), entry.getValue(), InternalKey.sequence(entry.getKey())));
+        }
+        return res;
+    }
+
+    // range tombstones starting at or before upper and ending after user key of lower, bounds are internal keys,
+    // tombstones are ordered by start so that those starting after upper are never visited
+    public @NotNull List<RangeTombstone> getRangeTombstones(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        final ConcurrentNavigableMap<byte[], byte[]> candidates = switch (upper) {
+            case Included<byte[]>(byte[] key) -> rangeTombstones.headMap(key, true);
+            case Excluded<byte[]>(byte[] key) -> rangeTombstones.headMap(key, false);
+            case Unbounded<byte[]> _ -> rangeTombstones;
+        };
+        final byte[] lowerUserKey = switch (lower) {
+            case Included<byte[]>(byte[] key) -> InternalKey.userKey(key);
+            case Excluded<byte[]>(byte[] key) -> InternalKey.userKey(key);
+            case Unbounded<byte[]> _ -> null;
+        };
+
+        final List<RangeTombstone> res = new ArrayList<>();
+        for (Map.Entry<byte[], byte[]> entry : candidates.entrySet()) {
+            // end is exclusive
+            if (lowerUserKey == null || Arrays.compare(entry.getValue(), lowerUserKey) > 0) {
+                res.add(new RangeTombstone(InternalKey.userKey(entry.getKey()), entry.getValue(), InternalKey.sequence(entry.getKey())));
+            }
+        }
+        return res;
+    }
+
+    public boolean hasRangeTombstones() {
+        return !rangeTombstones.isEmpty();
+    }
+
     public byte @Nullable [] get(byte @NotNull [] key) {
-        return skipList.get(key);
+        if (offHeap != null) {
+            return offHeap.get(key);
+        }
+        final ConcurrentSkipListMap<byte[], byte[]> points = skipList;
+        return points != null ? points.get(key) : frozen.get(key);
+    }
+
+    // least entry whose key is greater than or equal to given key
+    public @Nullable Map.Entry<byte[], byte[]> seek(byte @NotNull [] key) {
+        if (offHeap != null) {
+            return offHeap.seek(key);
+        }
+        final ConcurrentSkipListMap<byte[], byte[]> points = skipList;
+        return points != null ? points.ceilingEntry(key) : frozen.seek(key);
+    }
+
+    // copy point entries into a flat sorted arena and drop the skip list, memory table must be
+    // immutable by then, readers switch over at any time in between.
+    // entries stay in skip list if they do not fit in one arena, off heap entries are already compact
+    public synchronized void freeze() {
+        final ConcurrentSkipListMap<byte[], byte[]> points = skipList;
+        if (points == null) {
+            return;
+        }
+        final FrozenTable table = FrozenTable.of(points);
+        if (table != null) {
+            frozen = table;
+            skipList = null;
+        }
+    }
+
+    public boolean isFrozen() {
+        return frozen != null;
+    }
+
+    public boolean isOffHeap() {
+        return offHeap != null;
     }
 
     // NOTICE
     // if upper < lower this method will throw IllegalArgumentException
     public @NotNull MemoryTableIterator scan(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        final ConcurrentSkipListMap<byte[], byte[]> skipList = this.skipList;
+        if (skipList == null) {
+            // same as sub map of skip list
+            if (!(lower instanceof Unbounded<byte[]>) && !(upper instanceof Unbounded<byte[]>)
+                    && DEFAULT_COMPARATOR.compare(boundKey(lower), boundKey(upper)) > 0) {
+                throw new IllegalArgumentException("fromKey > toKey");
+            }
+            return offHeap != null ? new MemoryTableIterator(offHeap.iterator(lower, upper)) : scanFrozen(frozen, lower, upper);
+        }
+
         Tuple2<Bound<byte[]>, Bound<byte[]>> range = Tuple2.of(lower, upper);
 
         ConcurrentNavigableMap<byte[], byte[]> result = switch (range) {
@@ -83,12 +220,38 @@ public final class MemoryTable implements Closeable {
             case Tuple2(Unbounded<byte[]> _, Unbounded<byte[]> _) -> skipList;
         };
 
-        return new MemoryTableIterator(result);
+        return new MemoryTableIterator(result.entrySet().iterator());
+    }
+
+    private static @NotNull MemoryTableIterator scanFrozen(@NotNull FrozenTable frozen, @NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        int from = switch (lower) {
+            case Included<byte[]>(byte[] key) -> frozen.ceiling(key);
+            case Excluded<byte[]>(byte[] key) -> frozen.higher(key);
+            case Unbounded<byte[]> _ -> 0;
+        };
+        int to = switch (upper) {
+            case Included<byte[]>(byte[] key) -> frozen.higher(key);
+            case Excluded<byte[]>(byte[] key) -> frozen.ceiling(key);
+            case Unbounded<byte[]> _ -> frozen.size();
+        };
+
+        return new MemoryTableIterator(frozen.iterator(from, Math.max(from, to)));
     }
 
-    public void flush(@NotNull SortedStringTable.SortedStringTableBuilder builder) {
-        for (Map.Entry<byte[], byte[]> entry : skipList.entrySet()) {
-            builder.put(entry.getKey(), entry.getValue());
+    private static byte @NotNull [] boundKey(@NotNull Bound<byte[]> bound) {
+        return switch (bound) {
+            case Included<byte[]>(byte[] key) -> key;
+            case Excluded<byte[]>(byte[] key) -> key;
+            case Unbounded<byte[]> _ -> throw new IllegalArgumentException("unbounded bound has no key");
+        };
+    }
+
+    public void flush(@NotNull SortedStringTable.SortedStringTableBuilder builder) throws IOException {
+        for (MemoryTableIterator iter = scan(Bound.unbound(), Bound.unbound()); iter.isValid(); iter.next()) {
+            builder.put(iter.key(), iter.value());
+        }
+        if (!rangeTombstones.isEmpty()) {
+            builder.addRangeTombstones(getRangeTombstones());
         }
     }
 
@@ -98,16 +261,42 @@ public final class MemoryTable implements Closeable {
         }
     }
 
+    // 0 without wal
+    public long getWALSize() {
+        return wal == null ? 0 : wal.size();
+    }
+
+    public void truncateWAL(long size) throws IOException {
+        if (wal != null) {
+            wal.truncate(size);
+        }
+    }
+
     public int getId() {
         return id;
     }
 
+    // off heap memory table counts every byte taken from its arena
     public int getApproximateSize() {
-        return approximateSize.get();
+        return (int) Math.min(Integer.MAX_VALUE, approximateSize.get() + (offHeap != null ? offHeap.usedBytes() : 0));
     }
 
     public boolean isEmpty() {
-        return skipList.isEmpty();
+        final ConcurrentSkipListMap<byte[], byte[]> points = skipList;
+        final boolean noPoints = offHeap != null ? offHeap.isEmpty() : points != null ? points.isEmpty() : frozen.size() == 0;
+        return noPoints && rangeTombstones.isEmpty();
+    }
+
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    // off heap entries are freed in one shot once no version holds memory table, i.e. after it is flushed
+    // and every reader of older versions is done
+    public void release() {
+        if (refs.decrementAndGet() == 0 && offHeap != null) {
+            offHeap.close();
+        }
     }
 
     @Override
@@ -119,13 +308,12 @@ public final class MemoryTable implements Closeable {
     }
 
     public static final class MemoryTableIterator implements StorageIterator {
-        private final @NotNull ConcurrentNavigableMap<byte[], byte[]> skipList;
         private final @NotNull Iterator<Map.Entry<byte[], byte[]>> iter;
         private @NotNull Map.Entry<byte[], byte[]> current;
 
-        public MemoryTableIterator(@NotNull ConcurrentNavigableMap<byte[], byte[]> skipList) {
-            this.skipList = skipList;
-            this.iter = skipList.entrySet().iterator();
+        // entries in key order, from skip list or frozen table
+        public MemoryTableIterator(@NotNull Iterator<Map.Entry<byte[], byte[]>> iter) {
+            this.iter = iter;
             this.current = iter.hasNext() ? iter.next() : EMPTY_ENTRY;
         }
 
@@ -0,0 +1,18 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+
+// User supplied merge operator for read-modify-write without read-before-write.
+//
+// Engine::merge only appends an operand, operands are folded onto the older value lazily
+// by get, scan and compaction, so operator must be deterministic and never depend on
+// how operands are grouped.
+@FunctionalInterface
+public interface MergeOperator {
+    // existing is null when key has no value or is deleted, operands are ordered oldest first,
+    // empty result deletes the key
+    byte @NotNull [] fullMerge(byte @Nullable [] existing, @NotNull List<byte[]> operands);
+}
@@ -0,0 +1,323 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.VarHandle;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+//
+// +----------------------------------------------------------------------------------------+
+// |                                          Node                                          |
+// +------------------+---------------+-------------+----------+-----+----------+-----------+
+// | value_ref(i64)   | key_len(u32)  | height(u32) | next #1  | ... | next #H  | key       |
+// +------------------+---------------+-------------+----------+-----+----------+-----------+
+//
+// +-----------------------------------------+
+// |                  Value                  |
+// +----------------+-----------+------------+
+// | value_len(u32) | pad(u32)  | value      |
+// +----------------+-----------+------------+
+//
+// Skip list of byte array keys and values laid out in off heap chunks of one shared arena,
+// so that a memory table holds a handful of chunks instead of millions of heap objects.
+// reference to node or value is chunk index in high 32 bits and offset in low 32 bits, head
+// node takes reference 0 which doubles as the end of every level since no node points to head.
+//
+// insert links a node bottom up with compare and set on next references, put of an existing key
+// swaps its value reference, so that writers never lock and readers see a node once it is linked
+// at level 0, like ConcurrentSkipListMap without removal.
+//
+// NOTICE
+// nothing is freed before close, overwritten value and node lost to a racing insert of the same
+// key stay in arena and are counted by usedBytes. close frees every chunk at once, access after
+// close throws IllegalStateException.
+public final class OffHeapSkipList implements Closeable {
+    static final int MAX_HEIGHT = 12;
+    static final int CHUNK_SIZE = 1 << 20;
+    // allocation larger than this gets a chunk of its own, so that little of shared chunk is wasted
+    private static final int MAX_SHARED_ALLOCATION = CHUNK_SIZE / 4;
+    private static final long NIL = 0;
+    private static final int NODE_HEADER_SIZE = 16;
+    private static final int VALUE_HEADER_SIZE = 8;
+    // index of 8 bytes word in segment
+    private static final VarHandle WORD = ValueLayout.JAVA_LONG.arrayElementVarHandle();
+
+    private final @NotNull Arena arena;
+    // replaced by a longer copy when a chunk is added, published before any reference into new chunk
+    private volatile @NotNull MemorySegment @NotNull [] chunks;
+    // reference of the next free byte in the shared chunk
+    private final @NotNull AtomicLong cursor;
+    private final @NotNull AtomicLong usedBytes;
+    private final long head;
+
+    public OffHeapSkipList() {
+        this.arena = Arena.ofShared();
+        this.chunks = new MemorySegment[]{arena.allocate(CHUNK_SIZE, Long.BYTES)};
+        this.cursor = new AtomicLong(0);
+        this.usedBytes = new AtomicLong(0);
+        // memory of arena is zeroed, every level of head ends at once
+        this.head = allocate(nodeSize(0, MAX_HEIGHT));
+    }
+
+    public void put(byte @NotNull [] key, byte @NotNull [] value) {
+        final MemorySegment keySegment = MemorySegment.ofArray(key);
+        final long[] preds = new long[MAX_HEIGHT];
+        final long[] succs = new long[MAX_HEIGHT];
+        final long valueRef = allocateValue(value);
+        final int height = randomHeight();
+        long node = NIL;
+
+        while (true) {
+            findSplice(keySegment, preds, succs);
+            final long succ = succs[0];
+            if (succ != NIL && compareKey(succ, keySegment) == 0) {
+                WORD.setVolatile(segmentOf(succ), offsetOf(succ) / Long.BYTES, valueRef);
+                return;
+            }
+            if (node == NIL) {
+                node = allocateNode(key, height, valueRef);
+            }
+            setNext(node, 0, succ);
+            if (casNext(preds[0], 0, succ, node)) {
+                break;
+            }
+        }
+
+        // node is visible once linked at level 0, upper levels only speed up search
+        for (int level = 1; level < height; level++) {
+            while (true) {
+                setNext(node, level, succs[level]);
+                if (casNext(preds[level], level, succs[level], node)) {
+                    break;
+                }
+                findSplice(keySegment, preds, succs);
+            }
+        }
+    }
+
+    public byte @Nullable [] get(byte @NotNull [] key) {
+        final MemorySegment keySegment = MemorySegment.ofArray(key);
+        final long node = findFirst(keySegment, true);
+        return node != NIL && compareKey(node, keySegment) == 0 ? valueOf(node) : null;
+    }
+
+    // least entry whose key is greater than or equal to given key
+    public @Nullable Map.Entry<byte[], byte[]> seek(byte @NotNull [] key) {
+        final long node = findFirst(MemorySegment.ofArray(key), true);
+        return node != NIL ? Map.entry(keyOf(node), valueOf(node)) : null;
+    }
+
+    public boolean isEmpty() {
+        return next(head, 0) == NIL;
+    }
+
+    // bytes taken by nodes and values, including headers, padding and overwritten values
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    // entries in bounds in key order, entry inserted during iteration may or may not be seen
+    public @NotNull Iterator<Map.Entry<byte[], byte[]>> iterator(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        final long first = switch (lower) {
+            case Bound.Included<byte[]>(byte[] key) -> findFirst(MemorySegment.ofArray(key), true);
+            case Bound.Excluded<byte[]>(byte[] key) -> findFirst(MemorySegment.ofArray(key), false);
+            case Bound.Unbounded<byte[]> _ -> next(head, 0);
+        };
+
+        return new Iterator<>() {
+            private long node = first;
+
+            @Override
+            public boolean hasNext() {
+                if (node == NIL) {
+                    return false;
+                }
+                return switch (upper) {
+                    case Bound.Included<byte[]>(byte[] key) -> compareKey(node, MemorySegment.ofArray(key)) <= 0;
+                    case Bound.Excluded<byte[]>(byte[] key) -> compareKey(node, MemorySegment.ofArray(key)) < 0;
+                    case Bound.Unbounded<byte[]> _ -> true;
+                };
+            }
+
+            @Override
+            public Map.Entry<byte[], byte[]> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                final Map.Entry<byte[], byte[]> entry = Map.entry(keyOf(node), valueOf(node));
+                node = OffHeapSkipList.this.next(node, 0);
+                return entry;
+            }
+        };
+    }
+
+    // free every chunk at once
+    @Override
+    public synchronized void close() {
+        if (arena.scope().isAlive()) {
+            arena.close();
+        }
+    }
+
+    // predecessor and successor of key at every level, successor key is greater than or equal to key
+    private void findSplice(@NotNull MemorySegment key, long @NotNull [] preds, long @NotNull [] succs) {
+        long node = head;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            long next = next(node, level);
+            while (next != NIL && compareKey(next, key) < 0) {
+                node = next;
+                next = next(node, level);
+            }
+            preds[level] = node;
+            succs[level] = next;
+        }
+    }
+
+    // first node whose key is greater than or equal to key when inclusive, greater than key otherwise
+    private long findFirst(@NotNull MemorySegment key, boolean inclusive) {
+        long node = head;
+        long next = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != NIL && (inclusive ? compareKey(next, key) < 0 : compareKey(next, key) <= 0)) {
+                node = next;
+                next = next(node, level);
+            }
+        }
+        return next;
+    }
+
+    // same order as Arrays::compare
+    private int compareKey(long node, @NotNull MemorySegment key) {
+        final MemorySegment segment = segmentOf(node);
+        final long offset = offsetOf(node);
+        final int keyLength = segment.get(ValueLayout.JAVA_INT, offset + 8);
+        final long keyOffset = offset + NODE_HEADER_SIZE + (long) Long.BYTES * segment.get(ValueLayout.JAVA_INT, offset + 12);
+        final long mismatch = MemorySegment.mismatch(segment, keyOffset, keyOffset + keyLength, key, 0, key.byteSize());
+        if (mismatch < 0) {
+            return 0;
+        }
+        if (mismatch == keyLength || mismatch == key.byteSize()) {
+            return Long.compare(keyLength, key.byteSize());
+        }
+        return Byte.compare(segment.get(ValueLayout.JAVA_BYTE, keyOffset + mismatch), key.get(ValueLayout.JAVA_BYTE, mismatch));
+    }
+
+    private byte @NotNull [] keyOf(long node) {
+        final MemorySegment segment = segmentOf(node);
+        final long offset = offsetOf(node);
+        final int keyLength = segment.get(ValueLayout.JAVA_INT, offset + 8);
+        final long keyOffset = offset + NODE_HEADER_SIZE + (long) Long.BYTES * segment.get(ValueLayout.JAVA_INT, offset + 12);
+        final byte[] key = new byte[keyLength];
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, keyOffset, key, 0, keyLength);
+        return key;
+    }
+
+    private byte @NotNull [] valueOf(long node) {
+        final long valueRef = (long) WORD.getVolatile(segmentOf(node), offsetOf(node) / Long.BYTES);
+        final MemorySegment segment = segmentOf(valueRef);
+        final long offset = offsetOf(valueRef);
+        final byte[] value = new byte[segment.get(ValueLayout.JAVA_INT, offset)];
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + VALUE_HEADER_SIZE, value, 0, value.length);
+        return value;
+    }
+
+    private long next(long node, int level) {
+        return (long) WORD.getVolatile(segmentOf(node), (offsetOf(node) + NODE_HEADER_SIZE) / Long.BYTES + level);
+    }
+
+    private void setNext(long node, int level, long next) {
+        WORD.setVolatile(segmentOf(node), (offsetOf(node) + NODE_HEADER_SIZE) / Long.BYTES + level, next);
+    }
+
+    private boolean casNext(long node, int level, long expected, long next) {
+        return WORD.compareAndSet(segmentOf(node), (offsetOf(node) + NODE_HEADER_SIZE) / Long.BYTES + level, expected, next);
+    }
+
+    // fields are written before node is linked, compare and set of link publishes them
+    private long allocateNode(byte @NotNull [] key, int height, long valueRef) {
+        final long node = allocate(nodeSize(key.length, height));
+        final MemorySegment segment = segmentOf(node);
+        final long offset = offsetOf(node);
+        segment.set(ValueLayout.JAVA_LONG, offset, valueRef);
+        segment.set(ValueLayout.JAVA_INT, offset + 8, key.length);
+        segment.set(ValueLayout.JAVA_INT, offset + 12, height);
+        MemorySegment.copy(key, 0, segment, ValueLayout.JAVA_BYTE, offset + NODE_HEADER_SIZE + (long) Long.BYTES * height, key.length);
+        return node;
+    }
+
+    private long allocateValue(byte @NotNull [] value) {
+        final long valueRef = allocate(align(VALUE_HEADER_SIZE + (long) value.length));
+        final MemorySegment segment = segmentOf(valueRef);
+        final long offset = offsetOf(valueRef);
+        segment.set(ValueLayout.JAVA_INT, offset, value.length);
+        MemorySegment.copy(value, 0, segment, ValueLayout.JAVA_BYTE, offset + VALUE_HEADER_SIZE, value.length);
+        return valueRef;
+    }
+
+    private long allocate(long size) {
+        usedBytes.getAndAdd(size);
+        if (size > MAX_SHARED_ALLOCATION) {
+            return addChunk(size);
+        }
+        while (true) {
+            final long current = cursor.get();
+            if (offsetOf(current) + size <= CHUNK_SIZE) {
+                if (cursor.compareAndSet(current, current + size)) {
+                    return current;
+                }
+                continue;
+            }
+            // shared chunk is full, the first writer seeing it adds the next one
+            synchronized (this) {
+                if (cursor.get() == current) {
+                    cursor.set(addChunk(CHUNK_SIZE));
+                }
+            }
+        }
+    }
+
+    // reference of the first byte of a new chunk
+    private synchronized long addChunk(long size) {
+        final MemorySegment[] current = chunks;
+        final MemorySegment[] grown = Arrays.copyOf(current, current.length + 1);
+        grown[current.length] = arena.allocate(size, Long.BYTES);
+        chunks = grown;
+        return (long) current.length << 32;
+    }
+
+    private @NotNull MemorySegment segmentOf(long ref) {
+        return chunks[(int) (ref >>> 32)];
+    }
+
+    private static long offsetOf(long ref) {
+        return ref & 0xFFFFFFFFL;
+    }
+
+    private static long nodeSize(int keyLength, int height) {
+        return align(NODE_HEADER_SIZE + (long) Long.BYTES * height + keyLength);
+    }
+
+    private static long align(long size) {
+        return (size + Long.BYTES - 1) & -Long.BYTES;
+    }
+
+    // level i + 1 holds a quarter of nodes of level i
+    private static int randomHeight() {
+        int height = 1;
+        while (height < MAX_HEIGHT && ThreadLocalRandom.current().nextInt(4) == 0) {
+            height += 1;
+        }
+        return height;
+    }
+}
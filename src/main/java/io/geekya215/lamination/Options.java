@@ -1,6 +1,83 @@
 package io.geekya215.lamination;
 
 import io.geekya215.lamination.compact.CompactStrategy;
+import org.jetbrains.annotations.Nullable;
 
-public record Options(int blockSize, int memoryTableLimit, int sstSize, boolean enableWAL, CompactStrategy strategy) {
-}
\ No newline at end of file
+public record Options(
+        int blockSize,
+        int memoryTableLimit,
+        int sstSize,
+        boolean enableWAL,
+        CompactStrategy strategy,
+        long rateLimitBytesPerSecond,
+        boolean autoTuneRateLimit,
+        @Nullable MergeOperator mergeOperator,
+        @Nullable CompactionFilter compactionFilter,
+        boolean filterOnRead,
+        int minBlobSize,
+        double blobGarbageRatio,
+        FilterPolicy filterPolicy,
+        @Nullable PrefixExtractor prefixExtractor,
+        int rangeFilterSuffixLength,
+        long rowCacheSize,
+        boolean offHeapMemoryTable) {
+    public Options(int blockSize, int memoryTableLimit, int sstSize, boolean enableWAL, CompactStrategy strategy) {
+        this(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, 0, false, null, null, false, 0, 0, FilterPolicy.of(KeyFilter.Type.BLOOM), null, -1, 0, false);
+    }
+
+    // non-positive bytesPerSecond means flush and compaction I/O are not limited
+    public Options withRateLimit(long bytesPerSecond, boolean autoTune) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, bytesPerSecond, autoTune, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // Engine::merge is rejected without merge operator
+    public Options withMergeOperator(@Nullable MergeOperator mergeOperator) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // filterOnRead makes get and scan hide or rewrite values as if compaction had filtered them,
+    // otherwise filtered values are visible until compaction reaches them
+    public Options withCompactionFilter(@Nullable CompactionFilter compactionFilter, boolean filterOnRead) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // value not less than minBlobSize is written to blob file, non-positive minBlobSize disables it.
+    // compaction relocates values out of blob file whose share of garbage reaches garbageRatio, simple
+    // strategy compacts sst referencing such file when it has nothing else to compact.
+    // non-positive garbageRatio only removes blob file without any live value
+    public Options withBlobFiles(int minBlobSize, double garbageRatio) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, garbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // filter of newly built sst in every level, sst keeps the filter it is built with
+    public Options withFilterType(KeyFilter.Type filterType) {
+        return withFilterPolicy(FilterPolicy.of(filterType));
+    }
+
+    public Options withFilterPolicy(FilterPolicy filterPolicy) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // prefix of every key is added to filter of newly built sst too, so that Engine::scanPrefix skips sst
+    // without the prefix, sst built with another extractor or none is always scanned
+    public Options withPrefixExtractor(@Nullable PrefixExtractor prefixExtractor) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // newly built sst keeps a range filter of user keys cut after suffixLength bytes past the shortest
+    // distinguishing prefix, scan skips sst without any key in range, negative suffixLength disables it
+    public Options withRangeFilter(int suffixLength) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, suffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+
+    // get without snapshot caches values resolved from sst in up to capacity bytes, non-positive capacity disables it
+    public Options withRowCache(long capacity) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, capacity, offHeapMemoryTable);
+    }
+
+    // active memory table keeps entries in off heap arena freed once it is flushed, size of memory table
+    // counts node overhead too, so it is frozen with fewer entries than a heap one of the same sst size
+    public Options withOffHeapMemoryTable(boolean offHeapMemoryTable) {
+        return new Options(blockSize, memoryTableLimit, sstSize, enableWAL, strategy, rateLimitBytesPerSecond, autoTuneRateLimit, mergeOperator, compactionFilter, filterOnRead, minBlobSize, blobGarbageRatio, filterPolicy, prefixExtractor, rangeFilterSuffixLength, rowCacheSize, offHeapMemoryTable);
+    }
+}
@@ -0,0 +1,41 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.Arrays;
+
+// User supplied extractor of key prefix, prefix of every key is added to sst filter
+// so that Engine::scanPrefix skips sst which does not hold any key of the prefix.
+//
+// NOTICE
+// extractor must be consistent with key order, every key starting with a prefix p where
+// prefixOf(p) is not null must have the same prefix as p, e.g. fixed length prefix.
+// name is stored in sst, change name whenever the extracted prefix changes, sst built with
+// a different name is never skipped.
+public interface PrefixExtractor {
+    // null when key is out of domain of extractor, such key adds nothing to filter
+    byte @Nullable [] prefixOf(byte @NotNull [] key);
+
+    @NotNull String name();
+
+    // first length bytes of key, key shorter than length is out of domain
+    static @NotNull PrefixExtractor fixed(int length) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("prefix length must be positive, got " + length);
+        }
+        return new Fixed(length);
+    }
+
+    record Fixed(int length) implements PrefixExtractor {
+        @Override
+        public byte @Nullable [] prefixOf(byte @NotNull [] key) {
+            return key.length < length ? null : Arrays.copyOf(key, length);
+        }
+
+        @Override
+        public @NotNull String name() {
+            return "fixed:" + length;
+        }
+    }
+}
@@ -0,0 +1,272 @@
+package io.geekya215.lamination;
+
+import io.geekya215.lamination.exception.Crc32MismatchException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U16;
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+
+//
+// +-----------------------------------------------------------------------------+
+// |                                 Range Filter                                |
+// +------------------+----------+-----+----------+-----------------+------------+
+// | num_of_keys(u32) | entry #1 | ... | entry #N | complete bitmap | crc32(u32) |
+// +------------------+----------+-----+----------+-----------------+------------+
+//
+// +-------------------------------------------------+
+// |                      Entry                      |
+// +-------------+---------------+-------------------+
+// | shared(u16) | unshared(u16) | prefix (unshared) |
+// +-------------+---------------+-------------------+
+//
+// answers whether any key may be in a range, in the spirit of SuRF. every distinct key is cut to
+// the shortest prefix telling it apart from its neighbours plus suffixLength more bytes, i.e. the
+// leaves of a trie truncated below the last branch, stored in key order with front coding.
+// bit i of complete bitmap is set when prefix i is the whole key.
+//
+// a cut prefix p stands for every key starting with p, a complete one for itself only. prefix which
+// is not complete is never a prefix of another one, so that ranges they stand for are disjoint and
+// in order, range query only checks the last prefix not greater than upper bound.
+// no false negative, false positive only when range falls in the tail of a cut prefix,
+// more suffix bytes cut it down at the cost of size.
+public final class RangeFilter implements Encoder {
+    // prefixes one after another, prefix i is [offsets[i], offsets[i + 1])
+    private final byte @NotNull [] prefixes;
+    private final int @NotNull [] offsets;
+    private final long @NotNull [] complete;
+
+    public RangeFilter(byte @NotNull [] prefixes, int @NotNull [] offsets, long @NotNull [] complete) {
+        this.prefixes = prefixes;
+        this.offsets = offsets;
+        this.complete = complete;
+    }
+
+    public int numOfKeys() {
+        return offsets.length - 1;
+    }
+
+    // false only if no key is in range, bounds are keys the filter is built on
+    public boolean mayOverlap(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        int index = lastStartNotAfter(upper);
+        if (index < 0) {
+            return false;
+        }
+
+        int from = offsets[index];
+        int to = offsets[index + 1];
+        boolean isComplete = (complete[index >>> 6] & (1L << index)) != 0;
+        return switch (lower) {
+            case Bound.Included<byte[]>(byte[] key) -> isComplete
+                    ? Arrays.compare(prefixes, from, to, key, 0, key.length) >= 0
+                    : Arrays.compare(key, 0, key.length, prefixes, from, to) < 0 || startsWith(key, from, to);
+            case Bound.Excluded<byte[]>(byte[] key) -> isComplete
+                    ? Arrays.compare(prefixes, from, to, key, 0, key.length) > 0
+                    : Arrays.compare(key, 0, key.length, prefixes, from, to) < 0 || startsWith(key, from, to);
+            case Bound.Unbounded<byte[]> _ -> true;
+        };
+    }
+
+    // index of the last prefix whose smallest key, the prefix itself, is in upper bound, -1 if none
+    private int lastStartNotAfter(@NotNull Bound<byte[]> upper) {
+        int low = 0;
+        int high = numOfKeys() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            boolean inBound = switch (upper) {
+                case Bound.Included<byte[]>(byte[] key) -> Arrays.compare(prefixes, offsets[mid], offsets[mid + 1], key, 0, key.length) <= 0;
+                case Bound.Excluded<byte[]>(byte[] key) -> Arrays.compare(prefixes, offsets[mid], offsets[mid + 1], key, 0, key.length) < 0;
+                case Bound.Unbounded<byte[]> _ -> true;
+            };
+            if (inBound) {
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return high;
+    }
+
+    private boolean startsWith(byte @NotNull [] key, int from, int to) {
+        return key.length >= to - from && Arrays.equals(key, 0, to - from, prefixes, from, to);
+    }
+
+    @Override
+    public byte @NotNull [] encode() {
+        int n = numOfKeys();
+        int bitmapLength = (n + 7) / 8;
+        int bufLength = SIZE_OF_U32 + bitmapLength + SIZE_OF_U32;
+        for (int i = 0; i < n; i++) {
+            bufLength += SIZE_OF_U16 * 2 + offsets[i + 1] - offsets[i] - sharedOf(i);
+        }
+
+        final byte[] buf = new byte[bufLength];
+        int cursor = 0;
+
+        buf[cursor] = (byte) (n >> 24);
+        buf[cursor + 1] = (byte) (n >> 16);
+        buf[cursor + 2] = (byte) (n >> 8);
+        buf[cursor + 3] = (byte) n;
+        cursor += 4;
+
+        for (int i = 0; i < n; i++) {
+            int shared = sharedOf(i);
+            int unshared = offsets[i + 1] - offsets[i] - shared;
+
+            buf[cursor] = (byte) (shared >> 8);
+            buf[cursor + 1] = (byte) shared;
+            cursor += 2;
+
+            buf[cursor] = (byte) (unshared >> 8);
+            buf[cursor + 1] = (byte) unshared;
+            cursor += 2;
+
+            System.arraycopy(prefixes, offsets[i] + shared, buf, cursor, unshared);
+            cursor += unshared;
+        }
+
+        for (int i = 0; i < bitmapLength; i++) {
+            buf[cursor + i] = (byte) (complete[i >>> 3] >>> ((i & 7) * 8));
+        }
+        cursor += bitmapLength;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int checksum = (int) crc32.getValue();
+
+        buf[cursor] = (byte) (checksum >> 24);
+        buf[cursor + 1] = (byte) (checksum >> 16);
+        buf[cursor + 2] = (byte) (checksum >> 8);
+        buf[cursor + 3] = (byte) checksum;
+
+        return buf;
+    }
+
+    // bytes shared with the previous prefix
+    private int sharedOf(int index) {
+        if (index == 0) {
+            return 0;
+        }
+        int mismatch = Arrays.mismatch(prefixes, offsets[index - 1], offsets[index], prefixes, offsets[index], offsets[index + 1]);
+        return mismatch < 0 ? offsets[index] - offsets[index - 1] : mismatch;
+    }
+
+    public static @NotNull RangeFilter decode(byte @NotNull [] buf) {
+        int checksumOffset = buf.length - SIZE_OF_U32;
+        int actualChecksum = (buf[checksumOffset] & 0xFF) << 24 | (buf[checksumOffset + 1] & 0xFF) << 16 |
+                (buf[checksumOffset + 2] & 0xFF) << 8 | buf[checksumOffset + 3] & 0xFF;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, checksumOffset);
+        int expectedChecksum = (int) crc32.getValue();
+
+        if (actualChecksum != expectedChecksum) {
+            throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+        }
+
+        int cursor = 0;
+        int n = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+        cursor += 4;
+
+        // first pass sums up length of prefixes
+        int totalLength = 0;
+        int scan = cursor;
+        for (int i = 0; i < n; i++) {
+            int shared = (buf[scan] & 0xFF) << 8 | buf[scan + 1] & 0xFF;
+            int unshared = (buf[scan + 2] & 0xFF) << 8 | buf[scan + 3] & 0xFF;
+            totalLength += shared + unshared;
+            scan += SIZE_OF_U16 * 2 + unshared;
+        }
+
+        final byte[] prefixes = new byte[totalLength];
+        final int[] offsets = new int[n + 1];
+        for (int i = 0; i < n; i++) {
+            int shared = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
+            cursor += 2;
+
+            int unshared = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
+            cursor += 2;
+
+            int start = offsets[i];
+            if (shared > 0) {
+                System.arraycopy(prefixes, offsets[i - 1], prefixes, start, shared);
+            }
+            System.arraycopy(buf, cursor, prefixes, start + shared, unshared);
+            cursor += unshared;
+            offsets[i + 1] = start + shared + unshared;
+        }
+
+        final long[] complete = new long[(n + 63) / 64];
+        for (int i = 0; i < (n + 7) / 8; i++) {
+            complete[i >>> 3] |= (buf[cursor + i] & 0xFFL) << ((i & 7) * 8);
+        }
+        return new RangeFilter(prefixes, offsets, complete);
+    }
+
+    // keys must be added in order, adjacent duplicates are skipped
+    public static final class RangeFilterBuilder {
+        private final int suffixLength;
+        private final @NotNull List<byte[]> prefixes;
+        private final @NotNull List<Boolean> complete;
+        private int totalLength;
+        // last key added, cut once the next key is known
+        private byte @Nullable [] pending;
+        // common prefix length of pending key and the key before it
+        private int pendingShared;
+
+        public RangeFilterBuilder(int suffixLength) {
+            this.suffixLength = suffixLength;
+            this.prefixes = new ArrayList<>();
+            this.complete = new ArrayList<>();
+            this.totalLength = 0;
+            this.pending = null;
+            this.pendingShared = 0;
+        }
+
+        public void add(byte @NotNull [] key) {
+            if (pending != null) {
+                if (Arrays.equals(pending, key)) {
+                    return;
+                }
+                int mismatch = Arrays.mismatch(pending, key);
+                int shared = mismatch < 0 ? pending.length : mismatch;
+                cut(pending, Math.max(pendingShared, shared));
+                pendingShared = shared;
+            }
+            pending = key;
+        }
+
+        private void cut(byte @NotNull [] key, int shared) {
+            int length = (int) Math.min(key.length, (long) shared + 1 + suffixLength);
+            prefixes.add(Arrays.copyOf(key, length));
+            complete.add(length == key.length);
+            totalLength += length;
+        }
+
+        public @NotNull RangeFilter build() {
+            if (pending != null) {
+                cut(pending, pendingShared);
+                pending = null;
+            }
+
+            final byte[] buf = new byte[totalLength];
+            final int[] offsets = new int[prefixes.size() + 1];
+            final long[] bitmap = new long[(prefixes.size() + 63) / 64];
+            for (int i = 0; i < prefixes.size(); i++) {
+                byte[] prefix = prefixes.get(i);
+                System.arraycopy(prefix, 0, buf, offsets[i], prefix.length);
+                offsets[i + 1] = offsets[i] + prefix.length;
+                if (complete.get(i)) {
+                    bitmap[i >>> 6] |= 1L << i;
+                }
+            }
+            return new RangeFilter(buf, offsets, bitmap);
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package io.geekya215.lamination;
+
+import io.geekya215.lamination.exception.Crc32MismatchException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.zip.CRC32;
+
+import static io.geekya215.lamination.Constants.*;
+
+// Deletes every version of user keys in [start, end) whose sequence is less than sequence.
+//
+// +------------------------------------------------------------------------------------------------------+
+// |                                       Range Tombstone Section                                        |
+// +-----------------+-----------------+-------+---------------+-----+----------------+-----+------------+
+// | num_of_rt (u32) | start_len (u16) | start | end_len (u16) | end | sequence (u64) | ... | crc32(u32) |
+// +-----------------+-----------------+-------+---------------+-----+----------------+-----+------------+
+//
+public record RangeTombstone(byte @NotNull [] start, byte @NotNull [] end, long sequence) {
+    public boolean covers(byte @NotNull [] userKey) {
+        return Arrays.compare(start, userKey) <= 0 && Arrays.compare(userKey, end) < 0;
+    }
+
+    // part of range tombstone in [lower, upper), null if nothing left
+    public @Nullable RangeTombstone clip(byte @Nullable [] lower, byte @Nullable [] upper) {
+        byte[] newStart = lower != null && Arrays.compare(lower, start) > 0 ? lower : start;
+        byte[] newEnd = upper != null && Arrays.compare(upper, end) < 0 ? upper : end;
+        return Arrays.compare(newStart, newEnd) < 0 ? new RangeTombstone(newStart, newEnd, sequence) : null;
+    }
+
+    // the greatest sequence of range tombstones covering user key and visible at read sequence, 0 if none
+    public static long maxCoveringSequence(@NotNull List<RangeTombstone> rangeTombstones, byte @NotNull [] userKey, long readSequence) {
+        long res = 0;
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            if (rangeTombstone.sequence <= readSequence && rangeTombstone.sequence > res && rangeTombstone.covers(userKey)) {
+                res = rangeTombstone.sequence;
+            }
+        }
+        return res;
+    }
+
+    public static byte @NotNull [] encode(@NotNull List<RangeTombstone> rangeTombstones) {
+        int bufLength = SIZE_OF_U32;
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            bufLength += SIZE_OF_U16 + rangeTombstone.start.length + SIZE_OF_U16 + rangeTombstone.end.length + SIZE_OF_U64;
+        }
+        // crc32
+        bufLength += SIZE_OF_U32;
+
+        final byte[] buf = new byte[bufLength];
+        int cursor = 0;
+
+        int numOfRangeTombstones = rangeTombstones.size();
+        buf[cursor] = (byte) (numOfRangeTombstones >> 24);
+        buf[cursor + 1] = (byte) (numOfRangeTombstones >> 16);
+        buf[cursor + 2] = (byte) (numOfRangeTombstones >> 8);
+        buf[cursor + 3] = (byte) numOfRangeTombstones;
+        cursor += 4;
+
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            int startLength = rangeTombstone.start.length;
+            buf[cursor] = (byte) (startLength >> 8);
+            buf[cursor + 1] = (byte) startLength;
+            cursor += 2;
+
+            System.arraycopy(rangeTombstone.start, 0, buf, cursor, startLength);
+            cursor += startLength;
+
+            int endLength = rangeTombstone.end.length;
+            buf[cursor] = (byte) (endLength >> 8);
+            buf[cursor + 1] = (byte) endLength;
+            cursor += 2;
+
+            System.arraycopy(rangeTombstone.end, 0, buf, cursor, endLength);
+            cursor += endLength;
+
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (rangeTombstone.sequence >> (56 - i * 8));
+            }
+            cursor += SIZE_OF_U64;
+        }
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int checksum = (int) crc32.getValue();
+
+        buf[cursor] = (byte) (checksum >> 24);
+        buf[cursor + 1] = (byte) (checksum >> 16);
+        buf[cursor + 2] = (byte) (checksum >> 8);
+        buf[cursor + 3] = (byte) checksum;
+
+        return buf;
+    }
+
+    public static @NotNull List<RangeTombstone> decode(byte @NotNull [] buf) {
+        int checksumOffset = buf.length - SIZE_OF_U32;
+        int actualChecksum = (buf[checksumOffset] & 0xFF) << 24 | (buf[checksumOffset + 1] & 0xFF) << 16 |
+                (buf[checksumOffset + 2] & 0xFF) << 8 | buf[checksumOffset + 3] & 0xFF;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, checksumOffset);
+        int expectedChecksum = (int) crc32.getValue();
+
+        if (actualChecksum != expectedChecksum) {
+            throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+        }
+
+        int cursor = 0;
+        int numOfRangeTombstones = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+        cursor += 4;
+
+        final List<RangeTombstone> rangeTombstones = new ArrayList<>(numOfRangeTombstones);
+        for (int i = 0; i < numOfRangeTombstones; i++) {
+            int startLength = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
+            cursor += 2;
+
+            final byte[] start = Arrays.copyOfRange(buf, cursor, cursor + startLength);
+            cursor += startLength;
+
+            int endLength = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
+            cursor += 2;
+
+            final byte[] end = Arrays.copyOfRange(buf, cursor, cursor + endLength);
+            cursor += endLength;
+
+            long sequence = 0;
+            for (int j = 0; j < SIZE_OF_U64; j++) {
+                sequence = (sequence << 8) | (buf[cursor + j] & 0xFF);
+            }
+            cursor += SIZE_OF_U64;
+
+            rangeTombstones.add(new RangeTombstone(start, end, sequence));
+        }
+        return rangeTombstones;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RangeTombstone that = (RangeTombstone) o;
+        return sequence == that.sequence && Arrays.equals(start, that.start) && Arrays.equals(end, that.end);
+    }
+
+    @Override
+    public int hashCode() {
+        int result = Objects.hash(sequence);
+        result = 31 * result + Arrays.hashCode(start);
+        result = 31 * result + Arrays.hashCode(end);
+        return result;
+    }
+}
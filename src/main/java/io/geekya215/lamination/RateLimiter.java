@@ -0,0 +1,216 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Token bucket shared by flush and compaction I/O.
+//
+// tokens are refilled continuously at bytesPerSecond and the bucket holds at most
+// REFILL_PERIOD worth of tokens, so a long idle period never turns into a burst.
+// HIGH priority requests (flush) are always served before LOW priority requests
+// (compaction): a LOW request does not take any token while a HIGH request is waiting.
+//
+// In auto-tune mode the limiter watches foreground latency reported by the engine and
+// halves the compaction budget whenever the short-term average rises well above the
+// long-term average, then slowly grows back to the configured limit. LOW requests take
+// tokens from a second bucket refilled at the compaction budget as well, flush always
+// runs at the configured limit.
+// latency averages are kept in atomics, so that reporting latency never takes the lock
+// except for the one reporter per tune period that adjusts the budget.
+public final class RateLimiter {
+    static final long REFILL_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final long TUNE_PERIOD_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+    static final int MIN_RATE_DIVISOR = 16;
+    static final double FAST_EWMA_ALPHA = 0.2;
+    static final double SLOW_EWMA_ALPHA = 0.01;
+    static final double BACK_OFF_THRESHOLD = 2.0;
+
+    public enum Priority {
+        HIGH, LOW
+    }
+
+    private final @NotNull ReentrantLock lock;
+    private final @NotNull Condition refilled;
+    private final boolean autoTune;
+    private volatile long maxBytesPerSecond;
+    private volatile long bytesPerSecond;
+    // compaction budget, equal to bytesPerSecond unless auto-tune backs off
+    private volatile long lowBytesPerSecond;
+    private double available;
+    private double lowAvailable;
+    private long lastRefillNanos;
+    private int highPriorityWaiters;
+
+    // foreground latency statistics in bits of double, only touched in auto-tune mode
+    private final @NotNull AtomicLong fastLatency;
+    private final @NotNull AtomicLong slowLatency;
+    private final @NotNull AtomicLong lastTuneNanos;
+
+    public RateLimiter(long bytesPerSecond, boolean autoTune) {
+        this.lock = new ReentrantLock();
+        this.refilled = lock.newCondition();
+        this.autoTune = autoTune;
+        this.maxBytesPerSecond = bytesPerSecond;
+        this.bytesPerSecond = bytesPerSecond;
+        this.lowBytesPerSecond = bytesPerSecond;
+        this.available = 0;
+        this.lowAvailable = 0;
+        this.lastRefillNanos = System.nanoTime();
+        this.highPriorityWaiters = 0;
+        this.fastLatency = new AtomicLong(Double.doubleToRawLongBits(0.0));
+        this.slowLatency = new AtomicLong(Double.doubleToRawLongBits(0.0));
+        this.lastTuneNanos = new AtomicLong(lastRefillNanos);
+    }
+
+    public static @NotNull RateLimiter unlimited() {
+        return new RateLimiter(0, false);
+    }
+
+    public boolean isEnabled() {
+        return maxBytesPerSecond > 0;
+    }
+
+    // engine only measures foreground latency when it is used
+    public boolean isAutoTuning() {
+        return autoTune && isEnabled();
+    }
+
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    public long getLowPriorityBytesPerSecond() {
+        return lowBytesPerSecond;
+    }
+
+    // adjust limit at runtime, non-positive value disable rate limit
+    public void setBytesPerSecond(long bytesPerSecond) {
+        lock.lock();
+        try {
+            refill(System.nanoTime());
+            this.maxBytesPerSecond = bytesPerSecond;
+            this.bytesPerSecond = bytesPerSecond;
+            this.lowBytesPerSecond = bytesPerSecond;
+            refilled.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void request(long bytes, @NotNull Priority priority) throws InterruptedIOException {
+        if (bytes <= 0 || !isEnabled()) {
+            return;
+        }
+
+        lock.lock();
+        try {
+            if (priority == Priority.HIGH) {
+                highPriorityWaiters += 1;
+            }
+            try {
+                long remaining = bytes;
+                while (remaining > 0 && isEnabled()) {
+                    refill(System.nanoTime());
+
+                    boolean low = priority == Priority.LOW;
+                    boolean yieldToHigh = low && highPriorityWaiters > 0;
+                    double tokens = low ? Math.min(available, lowAvailable) : available;
+                    if (!yieldToHigh && tokens >= 1) {
+                        long granted = (long) Math.min(tokens, remaining);
+                        available -= granted;
+                        if (low) {
+                            lowAvailable -= granted;
+                        }
+                        remaining -= granted;
+                        continue;
+                    }
+
+                    long deficit = yieldToHigh ? remaining : remaining - (long) tokens;
+                    long rate = low ? Math.min(bytesPerSecond, lowBytesPerSecond) : bytesPerSecond;
+                    long waitNanos = Math.min(REFILL_PERIOD_NANOS, deficit * TimeUnit.SECONDS.toNanos(1) / rate);
+                    refilled.awaitNanos(Math.max(waitNanos, 1));
+                }
+            } finally {
+                if (priority == Priority.HIGH) {
+                    highPriorityWaiters -= 1;
+                    if (highPriorityWaiters == 0) {
+                        refilled.signalAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for rate limiter");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void recordForegroundLatency(long nanos) {
+        if (!isAutoTuning()) {
+            return;
+        }
+
+        update(fastLatency, FAST_EWMA_ALPHA, nanos);
+        double slow = update(slowLatency, SLOW_EWMA_ALPHA, nanos);
+
+        long now = System.nanoTime();
+        long last = lastTuneNanos.get();
+        // only one reporter of each period adjusts the budget
+        if (now - last < TUNE_PERIOD_NANOS || !lastTuneNanos.compareAndSet(last, now)) {
+            return;
+        }
+        double fast = Double.longBitsToDouble(fastLatency.get());
+
+        lock.lock();
+        try {
+            refill(now);
+
+            long max = maxBytesPerSecond;
+            long min = Math.max(1, max / MIN_RATE_DIVISOR);
+            if (fast > slow * BACK_OFF_THRESHOLD) {
+                lowBytesPerSecond = Math.max(min, lowBytesPerSecond / 2);
+            } else {
+                // additive increase, reach the limit from minimum in about 3 seconds
+                lowBytesPerSecond = Math.min(max, lowBytesPerSecond + max / MIN_RATE_DIVISOR);
+                refilled.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // exponentially weighted moving average, the first sample initializes it
+    private static double update(@NotNull AtomicLong average, double alpha, long sample) {
+        long prev;
+        double next;
+        do {
+            prev = average.get();
+            double current = Double.longBitsToDouble(prev);
+            next = current == 0.0 ? sample : current + alpha * (sample - current);
+        } while (!average.compareAndSet(prev, Double.doubleToRawLongBits(next)));
+        return next;
+    }
+
+    private void refill(long now) {
+        long elapsed = now - lastRefillNanos;
+        if (elapsed <= 0) {
+            return;
+        }
+        lastRefillNanos = now;
+        long rate = bytesPerSecond;
+        double burst = Math.max(1.0, (double) rate * REFILL_PERIOD_NANOS / TimeUnit.SECONDS.toNanos(1));
+        double tokens = (double) elapsed * rate / TimeUnit.SECONDS.toNanos(1);
+        available = Math.min(burst, available + tokens);
+
+        long lowRate = lowBytesPerSecond;
+        double lowBurst = Math.max(1.0, (double) lowRate * REFILL_PERIOD_NANOS / TimeUnit.SECONDS.toNanos(1));
+        double lowTokens = (double) elapsed * lowRate / TimeUnit.SECONDS.toNanos(1);
+        lowAvailable = Math.min(lowBurst, lowAvailable + lowTokens);
+    }
+}
@@ -0,0 +1,287 @@
+package io.geekya215.lamination;
+
+import io.geekya215.lamination.exception.Crc32MismatchException;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
+
+//
+// +-------------------------------------------------------------------------------+
+// |                                 Ribbon Filter                                 |
+// +----------+-----------+-------------------+-----------------------+------------+
+// | solution | seed(u64) | num_of_slots(u32) | fingerprint_bits(u32) | crc32(u32) |
+// +----------+-----------+-------------------+-----------------------+------------+
+//
+// standard Ribbon filter (Dillinger and Walzer) of width 64. every key has a start slot s, a 64-bit
+// coefficient c with lowest bit set and an r-bit fingerprint f, filter is a solution Z of r bits per slot
+// such that xor of Z[s + j] for every set bit j of c equals f. absent key matches with probability 2^-r.
+//
+// solution is stored column by column in blocks of 64 slots, a block holds one word per column, bit b of
+// 64 slots, so that a lookup reads r pairs of adjacent words and takes parity of c and each of them.
+// the last blocks have r + 1 columns and key starting in them has r + 1 bits of fingerprint, share of
+// such blocks makes fractional bits per key (interleaved solution of RocksDB). space is about
+// (1 + overhead) * log2(1 / p) bits per key, e.g. 5.5 against 7.3 bits per key of BloomFilter at 3%,
+// width 64 needs the overhead for large key sets, so it stays about 25% rather than 30% smaller.
+// number of blocks with r + 1 columns is not stored, it is the number of words beyond r per block.
+// NOTICE
+// the linear system may have no solution, building retries with new seed and more slots,
+// and Type::build falls back to BloomFilter if it still fails
+public final class RibbonFilter implements KeyFilter {
+    private static final int WIDTH = Long.SIZE;
+    // extra slots against number of keys, system of up to 100k keys is almost always solvable with it
+    private static final double DEFAULT_OVERHEAD = 0.08;
+    private static final int MAX_ATTEMPTS = 16;
+    private static final int MAX_FINGERPRINT_BITS = 32;
+
+    private final long @NotNull [] solution;
+    private final long seed;
+    private final int numOfSlots;
+    // columns of the lower blocks, blocks from upperStartBlock have one more
+    private final int fingerprintBits;
+    private final int upperStartBlock;
+
+    public RibbonFilter(long @NotNull [] solution, long seed, int numOfSlots, int fingerprintBits) {
+        this.solution = solution;
+        this.seed = seed;
+        this.numOfSlots = numOfSlots;
+        this.fingerprintBits = fingerprintBits;
+        final int numOfBlocks = numOfBlocksOf(numOfSlots);
+        this.upperStartBlock = numOfBlocks - (solution.length - numOfBlocks * fingerprintBits);
+    }
+
+    // bits of fingerprint per key so that false positive probability is p. key matches with 2^-r in
+    // block of r columns and 2^-(r + 1) in block of r + 1 columns, share f of the latter gives
+    // (1 - f / 2) * 2^-r = p, e.g. 5.08 bits at 3%
+    public static double fingerprintBitsOf(double p) {
+        final int r = Math.clamp((long) Math.floor(-Math.log(p) / Math.log(2.0)), 1, MAX_FINGERPRINT_BITS - 1);
+        final double f = Math.clamp(2 * (1 - p * (1L << r)), 0.0, 1.0);
+        return r + f;
+    }
+
+    private static int numOfBlocksOf(int numOfSlots) {
+        return (numOfSlots + WIDTH - 1) / WIDTH;
+    }
+
+    // null if no solution is found with every seed
+    public static @Nullable RibbonFilter build(@NotNull List<Long> hashes, double p) {
+        // versions of a user key share the same hash
+        final long[] keys = hashes.stream().mapToLong(Long::longValue).sorted().distinct().toArray();
+        final double bits = fingerprintBitsOf(p);
+        final int fingerprintBits = (int) bits;
+
+        double overhead = DEFAULT_OVERHEAD;
+        long seed = 0x9E3779B97F4A7C15L;
+        for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+            seed = mix(seed);
+            int numOfSlots = (int) Math.max(WIDTH, Math.ceil(keys.length * (1 + overhead)));
+            // round number of upper blocks up, so that false positive probability is not above p
+            int numOfBlocks = numOfBlocksOf(numOfSlots);
+            int numOfUpperBlocks = (int) Math.ceil(numOfBlocks * (bits - fingerprintBits));
+            RibbonFilter res = new RibbonFilter(new long[numOfBlocks * fingerprintBits + numOfUpperBlocks], seed, numOfSlots, fingerprintBits);
+            RibbonFilter solved = res.solve(keys);
+            if (solved != null) {
+                return solved;
+            }
+            // every second failure adds slots, the more slots the more likely solvable
+            if (attempt % 2 == 1) {
+                overhead *= 1.5;
+            }
+        }
+        return null;
+    }
+
+    // band rows by on-the-fly gaussian elimination, row i keeps its leading bit at column i,
+    // then solve from the last row by back substitution. result keeps r + 1 bits, bit r of row in
+    // lower block is not stored since key starting in lower block only reads r columns, and row
+    // starting in upper block never reaches lower block
+    private @Nullable RibbonFilter solve(long @NotNull [] keys) {
+        final long[] coefficients = new long[numOfSlots];
+        final int[] results = new int[numOfSlots];
+        for (long key : keys) {
+            long hash = mix(key + seed);
+            int i = startOf(hash);
+            long c = coefficientOf(hash);
+            int f = fingerprintOf(hash, fingerprintBits + 1);
+            while (true) {
+                if (coefficients[i] == 0) {
+                    coefficients[i] = c;
+                    results[i] = f;
+                    break;
+                }
+                c ^= coefficients[i];
+                f ^= results[i];
+                if (c == 0) {
+                    if (f != 0) {
+                        return null;
+                    }
+                    // implied by keys already added
+                    break;
+                }
+                int shift = Long.numberOfTrailingZeros(c);
+                i += shift;
+                c >>>= shift;
+            }
+        }
+
+        for (int i = numOfSlots - 1; i >= 0; i--) {
+            // slot without row is free, zero is as good as any value
+            if (coefficients[i] == 0) {
+                continue;
+            }
+            int z = results[i] ^ product(i, coefficients[i] & ~1L);
+            int block = i / WIDTH;
+            int offset = i % WIDTH;
+            for (int b = 0; b < columnsOf(block); b++) {
+                solution[wordOf(block) + b] |= ((long) ((z >>> b) & 1)) << offset;
+            }
+        }
+        return this;
+    }
+
+    @Override
+    public @NotNull Type type() {
+        return Type.RIBBON;
+    }
+
+    @Override
+    public boolean mayContain(long hash64) {
+        long hash = mix(hash64 + seed);
+        int start = startOf(hash);
+        return product(start, coefficientOf(hash)) == fingerprintOf(hash, columnsOf(start / WIDTH));
+    }
+
+    // xor of Z[start + j] for every set bit j of c, bit b of result is parity of c and column b,
+    // as many columns as block of start has, next block never has fewer
+    private int product(int start, long c) {
+        int block = start / WIDTH;
+        int offset = start % WIDTH;
+        int res = 0;
+        for (int b = 0; b < columnsOf(block); b++) {
+            long column = solution[wordOf(block) + b] >>> offset;
+            if (offset != 0 && wordOf(block + 1) < solution.length) {
+                column |= solution[wordOf(block + 1) + b] << (WIDTH - offset);
+            }
+            res |= (Long.bitCount(column & c) & 1) << b;
+        }
+        return res;
+    }
+
+    private int columnsOf(int block) {
+        return block < upperStartBlock ? fingerprintBits : fingerprintBits + 1;
+    }
+
+    // index of the first word of block
+    private int wordOf(int block) {
+        return block * fingerprintBits + Math.max(0, block - upperStartBlock);
+    }
+
+    // start is in [0, numOfSlots - WIDTH], so that all 64 slots of a row are in filter
+    private int startOf(long hash) {
+        return (int) Math.unsignedMultiplyHigh(hash, numOfSlots - WIDTH + 1);
+    }
+
+    private static long coefficientOf(long hash) {
+        return mix(hash ^ 0xD6E8FEB86659FD93L) | 1L;
+    }
+
+    private static int fingerprintOf(long hash, int bits) {
+        return (int) (hash & ((1L << bits) - 1));
+    }
+
+    // murmur3 finalizer
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    @Override
+    public byte @NotNull [] encode() {
+        final byte[] buf = new byte[solution.length * SIZE_OF_U64 + SIZE_OF_U64 + SIZE_OF_U32 * 3];
+        int cursor = 0;
+
+        for (long word : solution) {
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (word >> (56 - i * 8));
+            }
+            cursor += SIZE_OF_U64;
+        }
+
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            buf[cursor + i] = (byte) (seed >> (56 - i * 8));
+        }
+        cursor += SIZE_OF_U64;
+
+        buf[cursor] = (byte) (numOfSlots >> 24);
+        buf[cursor + 1] = (byte) (numOfSlots >> 16);
+        buf[cursor + 2] = (byte) (numOfSlots >> 8);
+        buf[cursor + 3] = (byte) numOfSlots;
+        cursor += 4;
+
+        buf[cursor] = (byte) (fingerprintBits >> 24);
+        buf[cursor + 1] = (byte) (fingerprintBits >> 16);
+        buf[cursor + 2] = (byte) (fingerprintBits >> 8);
+        buf[cursor + 3] = (byte) fingerprintBits;
+        cursor += 4;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int checksum = (int) crc32.getValue();
+
+        buf[cursor] = (byte) (checksum >> 24);
+        buf[cursor + 1] = (byte) (checksum >> 16);
+        buf[cursor + 2] = (byte) (checksum >> 8);
+        buf[cursor + 3] = (byte) checksum;
+
+        return buf;
+    }
+
+    public static @NotNull RibbonFilter decode(byte @NotNull [] buf) {
+        int cursor = buf.length - SIZE_OF_U32;
+        int actualChecksum = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(buf, 0, cursor);
+        int expectedChecksum = (int) crc32.getValue();
+
+        if (actualChecksum != expectedChecksum) {
+            throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+        }
+
+        final int numOfWords = (buf.length - SIZE_OF_U64 - SIZE_OF_U32 * 3) / SIZE_OF_U64;
+        final long[] solution = new long[numOfWords];
+        cursor = 0;
+        for (int i = 0; i < numOfWords; i++) {
+            long word = 0;
+            for (int j = 0; j < SIZE_OF_U64; j++) {
+                word = (word << 8) | (buf[cursor + j] & 0xFF);
+            }
+            solution[i] = word;
+            cursor += SIZE_OF_U64;
+        }
+
+        long seed = 0;
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            seed = (seed << 8) | (buf[cursor + i] & 0xFF);
+        }
+        cursor += SIZE_OF_U64;
+
+        int numOfSlots = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+        cursor += 4;
+
+        int fingerprintBits = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+
+        return new RibbonFilter(solution, seed, numOfSlots, fingerprintBits);
+    }
+}
@@ -0,0 +1,160 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Cache of point lookup results below memory tables, keyed by user key.
+//
+// row is the value Engine::get resolves from sst for the newest version of key, null value if key is
+// not found, so that a hot key skips filter probes and block search of every sst on the way.
+// a write invalidates its key once it is visible in memory table, and a lookup fills the cache only if
+// no key of the same shard is invalidated since the lookup started, see stamp, so that a row read from
+// an older version is never cached over a newer write.
+// keys are spread over shards by hash, each shard evicts its least recently used rows once its share of
+// capacity in bytes is exceeded, independent of the block cache.
+public final class RowCache {
+    private static final int NUM_OF_SHARDS = 16;
+    // estimated bytes of map node, buffer and row of each entry
+    static final int ENTRY_OVERHEAD = 96;
+
+    private final @NotNull Shard @NotNull [] shards;
+
+    public RowCache(long capacity) {
+        this.shards = new Shard[NUM_OF_SHARDS];
+        for (int i = 0; i < NUM_OF_SHARDS; i++) {
+            shards[i] = new Shard(Math.max(1, capacity / NUM_OF_SHARDS));
+        }
+    }
+
+    // value is null if key is not found
+    public record Row(byte @Nullable [] value) {
+    }
+
+    // take stamp before reading the version a row is resolved from
+    public long stamp(byte @NotNull [] key) {
+        final Shard shard = shardOf(key);
+        synchronized (shard) {
+            return shard.invalidations;
+        }
+    }
+
+    // value is copied, caller may modify it
+    public @Nullable Row get(byte @NotNull [] key) {
+        final Shard shard = shardOf(key);
+        synchronized (shard) {
+            final Row row = shard.rows.get(ByteBuffer.wrap(key));
+            return row == null || row.value() == null ? row : new Row(row.value().clone());
+        }
+    }
+
+    // false if a key of the shard is invalidated since stamp, row may be older than that write.
+    // key and value are copied, caller may reuse its arrays
+    public boolean put(byte @NotNull [] key, byte @Nullable [] value, long stamp) {
+        final Shard shard = shardOf(key);
+        synchronized (shard) {
+            if (shard.invalidations != stamp) {
+                return false;
+            }
+            final byte[] ownedKey = key.clone();
+            final Row row = new Row(value == null ? null : value.clone());
+            final Row old = shard.rows.put(ByteBuffer.wrap(ownedKey), row);
+            if (old != null) {
+                shard.size -= sizeOf(ownedKey, old);
+            }
+            shard.size += sizeOf(ownedKey, row);
+            shard.evict();
+            return true;
+        }
+    }
+
+    public void invalidate(byte @NotNull [] key) {
+        final Shard shard = shardOf(key);
+        synchronized (shard) {
+            shard.invalidations += 1;
+            final Row old = shard.rows.remove(ByteBuffer.wrap(key));
+            if (old != null) {
+                shard.size -= sizeOf(key, old);
+            }
+        }
+    }
+
+    // invalidate every key in [first, last], e.g. range deletion or compaction dropping or rewriting values.
+    // keys of the range may be in any shard, so every shard refuses rows stamped before it.
+    // NOTICE
+    // shards are keyed by hash, so this visits every row of the cache, O(cache size) for each call
+    public void invalidateRange(byte @NotNull [] first, byte @NotNull [] last) {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.invalidations += 1;
+                final Iterator<Map.Entry<ByteBuffer, Row>> iter = shard.rows.entrySet().iterator();
+                while (iter.hasNext()) {
+                    final Map.Entry<ByteBuffer, Row> entry = iter.next();
+                    final byte[] key = entry.getKey().array();
+                    if (Arrays.compare(key, first) >= 0 && Arrays.compare(key, last) <= 0) {
+                        shard.size -= sizeOf(key, entry.getValue());
+                        iter.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    // invalidate every key
+    public void invalidateAll() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.invalidations += 1;
+                shard.rows.clear();
+                shard.size = 0;
+            }
+        }
+    }
+
+    public long size() {
+        long size = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                size += shard.size;
+            }
+        }
+        return size;
+    }
+
+    private @NotNull Shard shardOf(byte @NotNull [] key) {
+        return shards[(int) (KeyFilter.hash(key) >>> 32) & (NUM_OF_SHARDS - 1)];
+    }
+
+    static long sizeOf(byte @NotNull [] key, @NotNull Row row) {
+        return ENTRY_OVERHEAD + key.length + (row.value() == null ? 0 : row.value().length);
+    }
+
+    private static final class Shard {
+        private final long capacity;
+        // access order, eldest is the least recently used
+        private final @NotNull LinkedHashMap<ByteBuffer, Row> rows;
+        private long size;
+        private long invalidations;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+            this.rows = new LinkedHashMap<>(16, 0.75f, true);
+            this.size = 0;
+            this.invalidations = 0;
+        }
+
+        void evict() {
+            final Iterator<Map.Entry<ByteBuffer, Row>> iter = rows.entrySet().iterator();
+            while (size > capacity && iter.hasNext()) {
+                Map.Entry<ByteBuffer, Row> eldest = iter.next();
+                size -= sizeOf(eldest.getKey().array(), eldest.getValue());
+                iter.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// consistent read view of engine, get and scan with snapshot only see writes whose
+// sequence is not greater than snapshot sequence.
+// NOTICE
+// close snapshot when done, otherwise compaction keeps all versions it can see
+public final class Snapshot implements Closeable {
+    private final @NotNull Engine engine;
+    private final long sequence;
+    private final @NotNull AtomicBoolean released;
+
+    Snapshot(@NotNull Engine engine, long sequence) {
+        this.engine = engine;
+        this.sequence = sequence;
+        this.released = new AtomicBoolean(false);
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    @Override
+    public void close() {
+        if (released.compareAndSet(false, true)) {
+            engine.releaseSnapshot(this);
+        }
+    }
+}
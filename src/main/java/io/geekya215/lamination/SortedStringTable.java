@@ -1,18 +1,33 @@
 package io.geekya215.lamination;
 
 import io.geekya215.lamination.exception.Crc32MismatchException;
+import io.geekya215.lamination.exception.SortedStringTableFormatException;
 import io.geekya215.lamination.iterator.StorageIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.Closeable;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
 import java.util.zip.CRC32;
 
 import static io.geekya215.lamination.Constants.*;
@@ -36,61 +51,180 @@ import static io.geekya215.lamination.Constants.*;
 // | meta_block #1 | ... | meta_block #N | crc32(u32) |
 // +---------------+-----+---------------+------------+
 //
-// +------------------------------------------------------------------+
-// |                        Extra Section                             |
-// +------------------------+--------------+--------------------------+
-// | meta_block_offset(u32) | bloom_filter | bloom_filter_offset(u32) |
-// +------------------------+--------------+--------------------------+
+// +----------------------------------------------------------------+
+// |                         Extra Section                          |
+// +------------+------------------+--------+--------------+--------+
+// | properties | range_tombstones | filter | range_filter | footer |
+// +------------+------------------+--------+--------------+--------+
+//
+// +--------------------------------------------------------------------------------------------------------------------+
+// |                                                     Properties                                                     |
+// +------------------+------------------------+-------------------+--------------------+------------------+------------+
+// | num_of_keys(u32) | num_of_tombstones(u32) | max_sequence(u64) | extractor_len(u16) | prefix_extractor | ...        |
+// +------------------+------------------------+-------------------+--------------------+------------------+------------+
+//
+// +----------------------------------------------------------------------------------+
+// |                              Properties (continued)                              |
+// +------------------------+-------------------+------------------+-----+------------+
+// | num_of_blob_files(u32) | blob_file_id(u32) | value_bytes(u64) | ... | crc32(u32) |
+// +------------------------+-------------------+------------------+-----+------------+
+//
+// +-----------------------------------------------------------------------------------------+
+// |                               Footer (version 2, 3 and 4)                               |
+// +-------------+------------+------------------+--------+---------------------+------------+
+// | meta_blocks | properties | range_tombstones | filter | format_version(u32) | magic(u64) |
+// +-------------+------------+------------------+--------+---------------------+------------+
+//
+// +--------------------------------------------------------------------------------------------------------+
+// |                                         Footer (version 5 and 6)                                       |
+// +-------------+------------+------------------+--------+--------------+---------------------+------------+
+// | meta_blocks | properties | range_tombstones | filter | range_filter | format_version(u32) | magic(u64) |
+// +-------------+------------+------------------+--------+--------------+---------------------+------------+
+//
+// +-------------------------------+
+// |         Block Handle          |
+// +-------------+-----------------+
+// | offset(u64) | length(u32)     |
+// +-------------+-----------------+
+//
+// footer has fixed size per version and always ends with format version and Constants::MAGIC, so that open
+// checks them first and then locates every section by its handle, offsets are u64 so that sst is not limited to 2GB.
+// a new field is appended to properties and a new section gets a new handle in a new format version,
+// reader of newer version still opens files of every older version, see Footer.
+//
+// version 1 footer holds offsets of meta_blocks, range_tombstones and filter (u64 each) only,
+// properties of it has no crc32 and ends right before range_tombstones.
+// filter of version 3 starts with its type, see KeyFilter, filter of older version is BloomFilter.
+// properties of version 4 appends name of prefix extractor, empty if none, filter of it also holds
+// hash of extracted prefix of every key, see PrefixExtractor.
+// footer of version 5 adds handle of range filter, which is empty if sst is built without it, see RangeFilter.
+// properties of version 6 append value bytes referenced in each blob file, so that compaction finds blob garbage
+// without reading input sst, see Engine::collectBlobGarbage, footer of it is the same as version 5.
+// version 0 is the layout written before footer existed, it has no magic and is read only:
+//
+// +---------------------------------------------------------------------------------------------------------------+
+// |                                         Sorted String Table (version 0)                                       |
+// +---------------+----------------------------------+------------------------+--------------+--------------------------+
+// | Block Section | Meta Section (u32 block offsets) | meta_block_offset(u32) | bloom_filter | bloom_filter_offset(u32) |
+// +---------------+----------------------------------+------------------------+--------------+--------------------------+
+//
+// keys of version 0 are user keys, reader turns them into internal keys at sequence 0, see SortedStringTable::upgradeBlock.
+// it has no properties, so num_of_keys and num_of_tombstones are 0 and tombstone ratio never triggers compaction of it,
+// statistics only exist in properties of versioned footer.
+// first key and last key of sst cover range tombstones too, see InternalKey::rangeTombstoneFirst
 //
 
 public final class SortedStringTable implements Closeable {
+    static final int FORMAT_VERSION_0 = 0;
+    static final int FORMAT_VERSION_1 = 1;
+    static final int FORMAT_VERSION_2 = 2;
+    static final int FORMAT_VERSION_3 = 3;
+    static final int FORMAT_VERSION_4 = 4;
+    static final int FORMAT_VERSION_5 = 5;
+    static final int FORMAT_VERSION_6 = 6;
+    // version written by default
+    static final int FORMAT_VERSION = FORMAT_VERSION_6;
     private final @NotNull FileObject file;
     private final @NotNull List<MetaBlock> metaBlocks;
     private final @NotNull Cache<Long, Block> blockCache;
-    private final @NotNull BloomFilter bloomFilter;
+    private final int formatVersion;
+    private final @NotNull KeyFilter filter;
+    // null if sst is built without range filter
+    private final @Nullable RangeFilter rangeFilter;
+    private final @NotNull List<RangeTombstone> rangeTombstones;
     private final byte @NotNull [] firstKey;
     private final byte @NotNull [] lastKey;
     private final int id;
-    private final int metaBlockOffset;
+    private final long metaBlockOffset;
+    private final int numOfKeys;
+    private final int numOfTombstones;
+    private final long maxSequence;
+    // name of prefix extractor whose prefixes are in filter, empty if none
+    private final @NotNull String prefixExtractor;
+    // blob file id to bytes of values referenced by this sst, empty before version 6
+    private final @NotNull Map<Integer, Long> blobReferences;
+    // number of storage versions and readers holding this sst, file is closed when it drops to zero
+    private final @NotNull AtomicInteger refs;
+    // set once compaction removes this sst, file is deleted after the last holder releases it
+    private volatile @Nullable Path obsoletePath;
 
     public SortedStringTable(
             @NotNull FileObject file,
             @NotNull List<MetaBlock> metaBlocks,
             @NotNull Cache<Long, Block> blockCache,
-            @NotNull BloomFilter bloomFilter,
+            int formatVersion,
+            @NotNull KeyFilter filter,
+            @Nullable RangeFilter rangeFilter,
+            @NotNull List<RangeTombstone> rangeTombstones,
             byte @NotNull [] firstKey,
             byte @NotNull [] lastKey,
             int id,
-            int metaBlockOffset) {
+            long metaBlockOffset,
+            int numOfKeys,
+            int numOfTombstones,
+            long maxSequence,
+            @NotNull String prefixExtractor,
+            @NotNull Map<Integer, Long> blobReferences) {
         this.file = file;
         this.metaBlocks = metaBlocks;
         this.blockCache = blockCache;
-        this.bloomFilter = bloomFilter;
+        this.formatVersion = formatVersion;
+        this.filter = filter;
+        this.rangeFilter = rangeFilter;
+        this.rangeTombstones = rangeTombstones;
         this.firstKey = firstKey;
         this.lastKey = lastKey;
         this.id = id;
         this.metaBlockOffset = metaBlockOffset;
+        this.numOfKeys = numOfKeys;
+        this.numOfTombstones = numOfTombstones;
+        this.maxSequence = maxSequence;
+        this.prefixExtractor = prefixExtractor;
+        this.blobReferences = blobReferences;
+        this.refs = new AtomicInteger(0);
+        this.obsoletePath = null;
     }
 
     public static @NotNull SortedStringTable open(int id, @NotNull Cache<Long, Block> blockCache, @NotNull FileObject file) throws IOException {
-        int size = (int) file.size;
-
-        int bloomFilterOffset = file.readInt(size - SIZE_OF_U32);
-
-        int bloomFilterBufLength = size - SIZE_OF_U32 - bloomFilterOffset;
-        final byte[] bloomFilterBuf = file.read(bloomFilterOffset, bloomFilterBufLength);
-        BloomFilter bloomFilter = BloomFilter.decode(bloomFilterBuf);
-
-        int metaBlockOffset = file.readInt(bloomFilterOffset - SIZE_OF_U32);
-
-        int metaBlockBufLength = bloomFilterOffset - SIZE_OF_U32 - metaBlockOffset;
-        final byte[] metaBlocksBuf = file.read(metaBlockOffset, metaBlockBufLength);
-        List<MetaBlock> metaBlocks = MetaBlock.decode(metaBlocksBuf);
+        final Footer footer = Footer.read(file);
+
+        final byte[] filterBuf = footer.filter().read(file);
+        KeyFilter filter = footer.formatVersion() >= FORMAT_VERSION_3 ? KeyFilter.decodeWithType(filterBuf) : BloomFilter.decode(filterBuf);
+        RangeFilter rangeFilter = footer.rangeFilter().length() == 0 ? null : RangeFilter.decode(footer.rangeFilter().read(file));
+        // version 0 has neither range tombstones nor properties
+        boolean legacy = footer.formatVersion() == FORMAT_VERSION_0;
+        List<RangeTombstone> rangeTombstones = legacy ? List.of() : RangeTombstone.decode(footer.rangeTombstones().read(file));
+        Properties properties = legacy ? new Properties(0, 0, 0, "", Map.of()) : Properties.decode(footer.properties().read(file), footer.formatVersion());
+        List<MetaBlock> metaBlocks = MetaBlock.decode(footer.metaBlocks().read(file), footer.formatVersion());
+
+        final byte[] firstKey = firstKeyOf(metaBlocks, rangeTombstones);
+        final byte[] lastKey = lastKeyOf(metaBlocks, rangeTombstones);
+
+        return new SortedStringTable(file, metaBlocks, blockCache, footer.formatVersion(), filter, rangeFilter, rangeTombstones, firstKey, lastKey, id,
+                footer.metaBlocks().offset(), properties.numOfKeys(), properties.numOfTombstones(), properties.maxSequence(),
+                properties.prefixExtractor(), properties.blobReferences());
+    }
 
-        final byte[] firstKey = metaBlocks.getFirst().firstKey();
-        final byte[] lastKey = metaBlocks.getLast().lastKey();
+    static byte @NotNull [] firstKeyOf(@NotNull List<MetaBlock> metaBlocks, @NotNull List<RangeTombstone> rangeTombstones) {
+        byte[] firstKey = metaBlocks.getFirst().firstKey();
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            byte[] key = InternalKey.rangeTombstoneFirst(rangeTombstone.start());
+            if (Arrays.compare(key, firstKey) < 0) {
+                firstKey = key;
+            }
+        }
+        return firstKey;
+    }
 
-        return new SortedStringTable(file, metaBlocks, blockCache, bloomFilter, firstKey, lastKey, id, metaBlockOffset);
+    static byte @NotNull [] lastKeyOf(@NotNull List<MetaBlock> metaBlocks, @NotNull List<RangeTombstone> rangeTombstones) {
+        byte[] lastKey = metaBlocks.getLast().lastKey();
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            byte[] key = InternalKey.rangeTombstoneLast(rangeTombstone.end());
+            if (Arrays.compare(key, lastKey) > 0) {
+                lastKey = key;
+            }
+        }
+        return lastKey;
     }
 
     public @NotNull Block readBlockCache(int blockIndex) throws IOException {
@@ -107,9 +241,9 @@ public final class SortedStringTable implements Closeable {
     public @NotNull Block readBlock(int blockIndex) throws IOException {
         // Todo
         // check index?
-        int offset = metaBlocks.get(blockIndex).offset;
-        int offsetEnd = (blockIndex + 1 >= metaBlocks.size()) ? metaBlockOffset : metaBlocks.get(blockIndex + 1).offset;
-        int blockLength = offsetEnd - SIZE_OF_U32 - offset;
+        long offset = metaBlocks.get(blockIndex).offset;
+        long offsetEnd = (blockIndex + 1 >= metaBlocks.size()) ? metaBlockOffset : metaBlocks.get(blockIndex + 1).offset;
+        int blockLength = (int) (offsetEnd - SIZE_OF_U32 - offset);
 
         final byte[] buf = file.read(offset, blockLength);
 
@@ -123,7 +257,21 @@ public final class SortedStringTable implements Closeable {
             throw new Crc32MismatchException(expectedChecksum, actualChecksum);
         }
 
-        return Block.decode(buf);
+        final Block block = Block.decode(buf);
+        return formatVersion == FORMAT_VERSION_0 ? upgradeBlock(block) : block;
+    }
+
+    // rewrite user keys of version 0 block as internal keys at sequence 0, empty value is a tombstone
+    static @NotNull Block upgradeBlock(@NotNull Block block) {
+        final Block.BlockBuilder blockBuilder = new Block.BlockBuilder(Integer.MAX_VALUE);
+        Block.BlockIterator iter = Block.BlockIterator.createAndSeekToFirst(block);
+        while (iter.isValid()) {
+            final byte[] value = iter.value();
+            byte kind = value.length == 0 ? InternalKey.KIND_DELETE : InternalKey.KIND_PUT;
+            blockBuilder.put(InternalKey.encode(iter.key(), 0, kind), value);
+            iter.next();
+        }
+        return blockBuilder.build();
     }
 
     public int findBlockIndex(byte @NotNull [] key) {
@@ -145,8 +293,21 @@ public final class SortedStringTable implements Closeable {
         return metaBlocks;
     }
 
-    public @NotNull BloomFilter getBloomFilter() {
-        return bloomFilter;
+    public @NotNull KeyFilter getFilter() {
+        return filter;
+    }
+
+    public @Nullable RangeFilter getRangeFilter() {
+        return rangeFilter;
+    }
+
+    // false only if range filter says no user key is in range, bounds are user keys
+    public boolean mayOverlap(@NotNull Bound<byte[]> lower, @NotNull Bound<byte[]> upper) {
+        return rangeFilter == null || rangeFilter.mayOverlap(lower, upper);
+    }
+
+    public @NotNull List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
     }
 
     public byte @NotNull [] getFirstKey() {
@@ -161,10 +322,47 @@ public final class SortedStringTable implements Closeable {
         return id;
     }
 
+    public long getCreatedAt() {
+        return file.getCreatedAt();
+    }
+
     public long size() {
         return file.size;
     }
 
+    public long getMaxSequence() {
+        return maxSequence;
+    }
+
+    public @NotNull String getPrefixExtractor() {
+        return prefixExtractor;
+    }
+
+    // false only if filter is built with the same extractor and prefix is absent
+    public boolean mayContainPrefix(@NotNull String extractorName, long prefixHash) {
+        return !prefixExtractor.equals(extractorName) || filter.mayContain(prefixHash);
+    }
+
+    public int getFormatVersion() {
+        return formatVersion;
+    }
+
+    public @NotNull Map<Integer, Long> getBlobReferences() {
+        return blobReferences;
+    }
+
+    public int getNumOfKeys() {
+        return numOfKeys;
+    }
+
+    public int getNumOfTombstones() {
+        return numOfTombstones;
+    }
+
+    public double tombstoneRatio() {
+        return numOfKeys == 0 ? 0.0 : (double) numOfTombstones / numOfKeys;
+    }
+
     public int numberOfBlock() {
         return metaBlocks.size();
     }
@@ -174,31 +372,167 @@ public final class SortedStringTable implements Closeable {
         file.close();
     }
 
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    public void release() throws IOException {
+        if (refs.decrementAndGet() == 0) {
+            close();
+            Path path = obsoletePath;
+            if (path != null) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    public void markObsolete(@NotNull Path path) {
+        this.obsoletePath = path;
+    }
+
     public static final class SortedStringTableBuilder implements Measurable {
         private @NotNull Block.BlockBuilder blockBuilder;
-        private final @NotNull List<Byte> dataBlockBytes;
+        // data block is written to file once finished, only meta blocks and filter stay in memory until build
+        private final @NotNull Path path;
+        private final @NotNull RateLimiter rateLimiter;
+        private final RateLimiter.@NotNull Priority priority;
+        private @Nullable OutputStream output;
+        private long dataBlockSize;
         private final @NotNull List<Long> keysHash;
         private final @NotNull List<MetaBlock> metaBlocks;
+        private final @NotNull List<RangeTombstone> rangeTombstones;
         private byte @NotNull [] firstKey;
         private byte @NotNull [] lastKey;
         private final int blockSize;
+        private int numOfKeys;
+        private int numOfTombstones;
+        // bloom filter is built on extracted key, e.g. user key of internal key
+        private final @NotNull Function<byte[], byte[]> filterKeyExtractor;
+        private final @NotNull ToLongFunction<byte[]> sequenceExtractor;
+        private long maxSequence;
+        private int formatVersion;
+        private KeyFilter.@NotNull Type filterType;
+        private double falsePositive;
+        private @Nullable PrefixExtractor prefixExtractor;
+        // last prefix added to filter, adjacent keys mostly share it
+        private byte @Nullable [] lastPrefix;
+        private RangeFilter.@Nullable RangeFilterBuilder rangeFilterBuilder;
+        // blob index of entry, null if value is inline
+        private @Nullable BiFunction<byte[], byte[], BlobIndex> blobIndexExtractor;
+        // point tombstone by kind of key, plain key has no kind so empty value is taken as tombstone
+        private @NotNull BiPredicate<byte[], byte[]> tombstonePredicate;
+        private final @NotNull Map<Integer, Long> blobReferences;
+
+        public SortedStringTableBuilder(int blockSize, @NotNull Path path) {
+            this(blockSize, path, RateLimiter.unlimited(), RateLimiter.Priority.HIGH, Function.identity(), _ -> 0);
+        }
 
-        public SortedStringTableBuilder(int blockSize) {
+        public SortedStringTableBuilder(
+                int blockSize,
+                @NotNull Path path,
+                @NotNull RateLimiter rateLimiter,
+                RateLimiter.@NotNull Priority priority,
+                @NotNull Function<byte[], byte[]> filterKeyExtractor,
+                @NotNull ToLongFunction<byte[]> sequenceExtractor) {
             this.blockBuilder = new Block.BlockBuilder(blockSize);
-            this.dataBlockBytes = new ArrayList<>();
+            this.path = path;
+            this.rateLimiter = rateLimiter;
+            this.priority = priority;
+            this.output = null;
+            this.dataBlockSize = 0;
             this.keysHash = new ArrayList<>();
             this.metaBlocks = new ArrayList<>();
+            this.rangeTombstones = new ArrayList<>();
             this.firstKey = EMPTY_BYTE_ARRAY;
             this.lastKey = EMPTY_BYTE_ARRAY;
             this.blockSize = blockSize;
+            this.numOfKeys = 0;
+            this.numOfTombstones = 0;
+            this.filterKeyExtractor = filterKeyExtractor;
+            this.sequenceExtractor = sequenceExtractor;
+            this.maxSequence = 0;
+            this.formatVersion = FORMAT_VERSION;
+            this.filterType = KeyFilter.Type.BLOOM;
+            this.falsePositive = KeyFilter.DEFAULT_FALSE_POSITIVE;
+            this.prefixExtractor = null;
+            this.lastPrefix = null;
+            this.rangeFilterBuilder = null;
+            this.blobIndexExtractor = null;
+            this.tombstonePredicate = (_, value) -> value.length == 0;
+            this.blobReferences = new HashMap<>();
+        }
+
+        // write an older format so that files stay readable by an older reader, e.g. before rolling upgrade
+        public void setFormatVersion(int formatVersion) {
+            if (formatVersion < FORMAT_VERSION_1 || formatVersion > FORMAT_VERSION) {
+                throw new SortedStringTableFormatException(formatVersion);
+            }
+            this.formatVersion = formatVersion;
+        }
+
+        public void setFilterType(KeyFilter.@NotNull Type filterType) {
+            this.filterType = filterType;
+        }
+
+        public void setFalsePositive(double falsePositive) {
+            if (falsePositive <= 0 || falsePositive > KeyFilter.MAX_FALSE_POSITIVE) {
+                throw new IllegalArgumentException("false positive must be in (0, %f], got %f".formatted(KeyFilter.MAX_FALSE_POSITIVE, falsePositive));
+            }
+            this.falsePositive = falsePositive;
+        }
+
+        // sst older than version 4 ignores prefix extractor
+        public void setPrefixExtractor(@Nullable PrefixExtractor prefixExtractor) {
+            this.prefixExtractor = prefixExtractor;
         }
 
-        public void put(byte @NotNull [] key, byte @NotNull [] value) {
+        // range filter is built on extracted key too, negative suffixLength builds none,
+        // sst older than version 5 has no range filter
+        public void setRangeFilter(int suffixLength) {
+            this.rangeFilterBuilder = suffixLength < 0 ? null : new RangeFilter.RangeFilterBuilder(suffixLength);
+        }
+
+        // count bytes of values referenced in each blob file, sst older than version 6 ignores them
+        public void setBlobIndexExtractor(@Nullable BiFunction<byte[], byte[], BlobIndex> blobIndexExtractor) {
+            this.blobIndexExtractor = blobIndexExtractor;
+        }
+
+        // entries counted as tombstones, range tombstones always are
+        public void setTombstonePredicate(@NotNull BiPredicate<byte[], byte[]> tombstonePredicate) {
+            this.tombstonePredicate = tombstonePredicate;
+        }
+
+        public void put(byte @NotNull [] key, byte @NotNull [] value) throws IOException {
             if (firstKey.length == 0) {
                 firstKey = key;
             }
 
-            keysHash.add(MurmurHash2.hash64(key, key.length));
+            if (blobIndexExtractor != null) {
+                final BlobIndex blobIndex = blobIndexExtractor.apply(key, value);
+                if (blobIndex != null) {
+                    blobReferences.merge(blobIndex.fileId(), (long) blobIndex.length(), Long::sum);
+                }
+            }
+
+            numOfKeys += 1;
+            if (tombstonePredicate.test(key, value)) {
+                numOfTombstones += 1;
+            }
+
+            maxSequence = Math.max(maxSequence, sequenceExtractor.applyAsLong(key));
+
+            final byte[] filterKey = filterKeyExtractor.apply(key);
+            keysHash.add(KeyFilter.hash(filterKey));
+            if (prefixExtractor != null && formatVersion >= FORMAT_VERSION_4) {
+                final byte[] prefix = prefixExtractor.prefixOf(filterKey);
+                if (prefix != null && !Arrays.equals(prefix, lastPrefix)) {
+                    keysHash.add(KeyFilter.hash(prefix));
+                    lastPrefix = prefix;
+                }
+            }
+            if (rangeFilterBuilder != null) {
+                rangeFilterBuilder.add(filterKey);
+            }
 
             if (blockBuilder.put(key, value)) {
                 lastKey = key;
@@ -212,77 +546,119 @@ public final class SortedStringTable implements Closeable {
             lastKey = key;
         }
 
-        public void generateBlock() {
+        // range tombstone is stored in its own section instead of data block
+        public void addRangeTombstones(@NotNull List<RangeTombstone> rangeTombstones) {
+            for (RangeTombstone rangeTombstone : rangeTombstones) {
+                this.rangeTombstones.add(rangeTombstone);
+                numOfTombstones += 1;
+                maxSequence = Math.max(maxSequence, rangeTombstone.sequence());
+            }
+        }
+
+        public boolean isEmpty() {
+            return numOfKeys == 0 && rangeTombstones.isEmpty();
+        }
+
+        public void generateBlock() throws IOException {
             final byte[] buf = blockBuilder.build().encode();
             blockBuilder = new Block.BlockBuilder(blockSize);
 
-            metaBlocks.add(new MetaBlock(dataBlockBytes.size(), firstKey, lastKey));
+            metaBlocks.add(new MetaBlock(dataBlockSize, firstKey, lastKey));
 
             CRC32 crc32 = new CRC32();
             crc32.update(buf);
 
             int checksum = (int) crc32.getValue();
-            for (byte b : buf) {
-                dataBlockBytes.add(b);
+            final byte[] blockBuf = Arrays.copyOf(buf, buf.length + SIZE_OF_U32);
+            int cursor = buf.length;
+
+            blockBuf[cursor] = (byte) (checksum >> 24);
+            blockBuf[cursor + 1] = (byte) (checksum >> 16);
+            blockBuf[cursor + 2] = (byte) (checksum >> 8);
+            blockBuf[cursor + 3] = (byte) checksum;
+
+            write(blockBuf);
+            dataBlockSize += blockBuf.length;
+        }
+
+        // file is created by the first finished block, write chunk by chunk, so that
+        // flush and compaction can not saturate the device when rate limiter is enabled
+        private void write(byte @NotNull [] buf) throws IOException {
+            if (output == null) {
+                output = new BufferedOutputStream(Files.newOutputStream(path), FileObject.WRITE_CHUNK_SIZE);
             }
+            for (int offset = 0; offset < buf.length; offset += FileObject.WRITE_CHUNK_SIZE) {
+                int length = Math.min(FileObject.WRITE_CHUNK_SIZE, buf.length - offset);
+                if (rateLimiter.isEnabled()) {
+                    rateLimiter.request(length, priority);
+                }
+                output.write(buf, offset, length);
+            }
+        }
 
-            dataBlockBytes.add((byte) (checksum >> 24));
-            dataBlockBytes.add((byte) (checksum >> 16));
-            dataBlockBytes.add((byte) (checksum >> 8));
-            dataBlockBytes.add((byte) checksum);
+        // drop the partially written file, e.g. when compaction fails before the sst is built
+        public void abort() throws IOException {
+            try (OutputStream _ = output) {
+                output = null;
+            }
+            Files.deleteIfExists(path);
         }
 
-        public @NotNull SortedStringTable build(int id, @NotNull Cache<Long, Block> blockCache, @NotNull Path path) throws IOException {
+        public @NotNull SortedStringTable build(int id, @NotNull Cache<Long, Block> blockCache) throws IOException {
+            // sst always holds at least one block, put a point tombstone at the start of range tombstone if
+            // there is no other data, it deletes nothing more than range tombstone itself
+            if (numOfKeys == 0 && !rangeTombstones.isEmpty()) {
+                RangeTombstone first = rangeTombstones.stream().min((a, b) -> Arrays.compare(a.start(), b.start())).get();
+                put(InternalKey.encode(first.start(), first.sequence(), InternalKey.KIND_DELETE), EMPTY_BYTE_ARRAY);
+            }
+
             // flush remaining data to block
             generateBlock();
 
             final byte[] metaBlockBuf = MetaBlock.encode(metaBlocks);
-            int metaBlockBufLength = metaBlockBuf.length;
-
-            int metaBlockOffset = dataBlockBytes.size();
-
-            BloomFilter bloomFilter = new BloomFilter(keysHash.size());
-            for (Long hash : keysHash) {
-                bloomFilter.mappingHashToBitset(hash);
+            final String extractorName = prefixExtractor != null && formatVersion >= FORMAT_VERSION_4 ? prefixExtractor.name() : "";
+            final Map<Integer, Long> builtBlobReferences = formatVersion >= FORMAT_VERSION_6 ? Map.copyOf(blobReferences) : Map.of();
+            final byte[] propertiesBuf = new Properties(numOfKeys, numOfTombstones, maxSequence, extractorName, builtBlobReferences).encode(formatVersion);
+            final byte[] rangeTombstoneBuf = RangeTombstone.encode(rangeTombstones);
+
+            // sst older than version 3 only has BloomFilter
+            KeyFilter.Type type = formatVersion >= FORMAT_VERSION_3 ? filterType : KeyFilter.Type.BLOOM;
+            final KeyFilter filter = type.build(keysHash, falsePositive);
+            final byte[] filterBuf = formatVersion >= FORMAT_VERSION_3 ? KeyFilter.encodeWithType(filter) : filter.encode();
+
+            final RangeFilter rangeFilter = rangeFilterBuilder != null && formatVersion >= FORMAT_VERSION_5 ? rangeFilterBuilder.build() : null;
+            final byte[] rangeFilterBuf = rangeFilter == null ? EMPTY_BYTE_ARRAY : rangeFilter.encode();
+
+            long metaBlockOffset = dataBlockSize;
+            BlockHandle metaBlockHandle = new BlockHandle(metaBlockOffset, metaBlockBuf.length);
+            BlockHandle propertiesHandle = new BlockHandle(metaBlockHandle.end(), propertiesBuf.length);
+            BlockHandle rangeTombstoneHandle = new BlockHandle(propertiesHandle.end(), rangeTombstoneBuf.length);
+            BlockHandle filterHandle = new BlockHandle(rangeTombstoneHandle.end(), filterBuf.length);
+            BlockHandle rangeFilterHandle = new BlockHandle(filterHandle.end(), rangeFilterBuf.length);
+            final byte[] footerBuf = new Footer(formatVersion, metaBlockHandle, propertiesHandle, rangeTombstoneHandle, filterHandle, rangeFilterHandle).encode();
+
+            // everything after data blocks is small enough to fit in one buffer
+            final byte[] buf = new byte[(int) (rangeFilterHandle.end() - metaBlockOffset) + footerBuf.length];
+            int cursor = 0;
+            for (byte[] section : new byte[][]{metaBlockBuf, propertiesBuf, rangeTombstoneBuf, filterBuf, rangeFilterBuf, footerBuf}) {
+                System.arraycopy(section, 0, buf, cursor, section.length);
+                cursor += section.length;
             }
 
-            byte[] bloomFilterBuf = bloomFilter.encode();
-            int bloomFilterBufLength = bloomFilterBuf.length;
-
-            final byte[] buf = new byte[metaBlockOffset + metaBlockBufLength + SIZE_OF_U32 + bloomFilterBufLength + SIZE_OF_U32];
-
-            for (int i = 0; i < dataBlockBytes.size(); i++) {
-                buf[i] = dataBlockBytes.get(i);
+            try (OutputStream _ = output) {
+                write(buf);
             }
+            FileObject file = new FileObject(new RandomAccessFile(path.toFile(), FileObject.READ_ONLY_MODE), rangeFilterHandle.end() + footerBuf.length);
 
-            System.arraycopy(metaBlockBuf, 0, buf, metaBlockOffset, metaBlockBufLength);
-
-            int cursor = metaBlockOffset + metaBlockBuf.length;
-
-            buf[cursor] = (byte) (metaBlockOffset >> 24);
-            buf[cursor + 1] = (byte) (metaBlockOffset >> 16);
-            buf[cursor + 2] = (byte) (metaBlockOffset >> 8);
-            buf[cursor + 3] = (byte) metaBlockOffset;
-            cursor += 4;
-
-            int bloomFilterOffset = cursor;
-
-            System.arraycopy(bloomFilterBuf, 0, buf, cursor, bloomFilterBufLength);
-            cursor += bloomFilterBufLength;
-
-            buf[cursor] = (byte) (bloomFilterOffset >> 24);
-            buf[cursor + 1] = (byte) (bloomFilterOffset >> 16);
-            buf[cursor + 2] = (byte) (bloomFilterOffset >> 8);
-            buf[cursor + 3] = (byte) bloomFilterOffset;
-
-            FileObject file = FileObject.create(path, buf);
-
-            return new SortedStringTable(file, metaBlocks, blockCache, bloomFilter, metaBlocks.getFirst().firstKey(), metaBlocks.getLast().lastKey(), id, metaBlockOffset);
+            final List<RangeTombstone> builtRangeTombstones = List.copyOf(rangeTombstones);
+            return new SortedStringTable(file, metaBlocks, blockCache, formatVersion, filter, rangeFilter, builtRangeTombstones,
+                    firstKeyOf(metaBlocks, builtRangeTombstones), lastKeyOf(metaBlocks, builtRangeTombstones),
+                    id, metaBlockOffset, numOfKeys, numOfTombstones, maxSequence, extractorName, builtBlobReferences);
         }
 
         @Override
         public int estimateSize() {
-            return dataBlockBytes.size();
+            return (int) Math.min(Integer.MAX_VALUE, dataBlockSize);
         }
     }
 
@@ -366,66 +742,392 @@ public final class SortedStringTable implements Closeable {
 
     public static final class FileObject implements Closeable {
         static final String READ_ONLY_MODE = "r";
+        static final int WRITE_CHUNK_SIZE = 64 * KB;
         private final @NotNull RandomAccessFile file;
         private final long size;
+        // creation time in millis, restored from last modified time of file on recovery
+        private long createdAt;
 
         public FileObject(@NotNull RandomAccessFile file, long size) {
-            this.file = file;
-            this.size = size;
+            this(file, size, System.currentTimeMillis());
         }
 
-        public static @NotNull FileObject create(@NotNull Path path, byte @NotNull [] buf) throws IOException {
-            // Todo
-            // Files.write or BufferedOutputStream which one is more efficient?
-            Files.write(path, buf);
-            RandomAccessFile raf = new RandomAccessFile(path.toFile(), READ_ONLY_MODE);
-            return new FileObject(raf, buf.length);
+        public FileObject(@NotNull RandomAccessFile file, long size, long createdAt) {
+            this.file = file;
+            this.size = size;
+            this.createdAt = createdAt;
         }
 
         public static @NotNull FileObject open(@NotNull Path path) throws IOException {
             RandomAccessFile file = new RandomAccessFile(path.toFile(), READ_ONLY_MODE);
-            return new FileObject(file, file.length());
+            return new FileObject(file, file.length(), Files.getLastModifiedTime(path).toMillis());
         }
 
-        public byte @NotNull [] read(int offset, int length) throws IOException {
-            final byte[] buf = new byte[length];
-            file.seek(offset);
-            file.readFully(buf);
-            return buf;
+        // positional read never moves file pointer, so that concurrent readers need no lock
+        public byte @NotNull [] read(long offset, int length) throws IOException {
+            final ByteBuffer buf = ByteBuffer.allocate(length);
+            while (buf.hasRemaining()) {
+                if (file.getChannel().read(buf, offset + buf.position()) < 0) {
+                    throw new EOFException();
+                }
+            }
+            return buf.array();
+        }
+
+        public long readLong(long pos) throws IOException {
+            return ByteBuffer.wrap(read(pos, SIZE_OF_U64)).getLong();
         }
 
-        public int readInt(int pos) throws IOException {
-            // Todo
-            // reset file-pointer after read
-            file.seek(pos);
-            return file.readInt();
+        public int readInt(long pos) throws IOException {
+            return ByteBuffer.wrap(read(pos, SIZE_OF_U32)).getInt();
         }
 
         public long getSize() {
             return size;
         }
 
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        // keep creation time across restart, used by compaction output inherit time of its inputs
+        void setCreatedAt(@NotNull Path path, long createdAt) throws IOException {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(createdAt));
+            this.createdAt = createdAt;
+        }
+
         @Override
         public void close() throws IOException {
             file.close();
         }
     }
 
+    // location of a section in sst
+    public record BlockHandle(long offset, int length) {
+        static final int SIZE_OF_BLOCK_HANDLE = SIZE_OF_U64 + SIZE_OF_U32;
+
+        public long end() {
+            return offset + length;
+        }
+
+        byte @NotNull [] read(@NotNull FileObject file) throws IOException {
+            return file.read(offset, length);
+        }
+
+        int encode(byte @NotNull [] buf, int cursor) {
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (offset >> (56 - i * 8));
+            }
+            cursor += SIZE_OF_U64;
+
+            buf[cursor] = (byte) (length >> 24);
+            buf[cursor + 1] = (byte) (length >> 16);
+            buf[cursor + 2] = (byte) (length >> 8);
+            buf[cursor + 3] = (byte) length;
+            return cursor + SIZE_OF_U32;
+        }
+
+        static @NotNull BlockHandle decode(byte @NotNull [] buf, int cursor) {
+            long offset = 0;
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                offset = (offset << 8) | (buf[cursor + i] & 0xFF);
+            }
+            cursor += SIZE_OF_U64;
+
+            int length = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                    (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+            return new BlockHandle(offset, length);
+        }
+    }
+
+    public record Footer(
+            int formatVersion,
+            @NotNull BlockHandle metaBlocks,
+            @NotNull BlockHandle properties,
+            @NotNull BlockHandle rangeTombstones,
+            @NotNull BlockHandle filter,
+            @NotNull BlockHandle rangeFilter) implements Encoder {
+        // format version and magic, the same for every version
+        static final int SIZE_OF_TRAILER = SIZE_OF_U32 + MAGIC.length;
+        static final int SIZE_OF_FOOTER_V1 = SIZE_OF_U64 * 3 + SIZE_OF_TRAILER;
+        static final int SIZE_OF_FOOTER_V2 = BlockHandle.SIZE_OF_BLOCK_HANDLE * 4 + SIZE_OF_TRAILER;
+        static final int SIZE_OF_FOOTER_V5 = BlockHandle.SIZE_OF_BLOCK_HANDLE * 5 + SIZE_OF_TRAILER;
+        // num_of_keys, num_of_tombstones and max_sequence
+        static final int SIZE_OF_PROPERTIES_V1 = SIZE_OF_U32 * 2 + SIZE_OF_U64;
+
+        static int sizeOf(int formatVersion) {
+            return switch (formatVersion) {
+                case FORMAT_VERSION_1 -> SIZE_OF_FOOTER_V1;
+                case FORMAT_VERSION_2, FORMAT_VERSION_3, FORMAT_VERSION_4 -> SIZE_OF_FOOTER_V2;
+                case FORMAT_VERSION_5, FORMAT_VERSION_6 -> SIZE_OF_FOOTER_V5;
+                default -> throw new SortedStringTableFormatException(formatVersion);
+            };
+        }
+
+        @Override
+        public byte @NotNull [] encode() {
+            final byte[] buf = new byte[sizeOf(formatVersion)];
+            int cursor = 0;
+            if (formatVersion == FORMAT_VERSION_1) {
+                for (long offset : new long[]{metaBlocks.offset, rangeTombstones.offset, filter.offset}) {
+                    for (int i = 0; i < SIZE_OF_U64; i++) {
+                        buf[cursor + i] = (byte) (offset >> (56 - i * 8));
+                    }
+                    cursor += SIZE_OF_U64;
+                }
+            } else {
+                cursor = metaBlocks.encode(buf, cursor);
+                cursor = properties.encode(buf, cursor);
+                cursor = rangeTombstones.encode(buf, cursor);
+                cursor = filter.encode(buf, cursor);
+                if (formatVersion >= FORMAT_VERSION_5) {
+                    cursor = rangeFilter.encode(buf, cursor);
+                }
+            }
+
+            buf[cursor] = (byte) (formatVersion >> 24);
+            buf[cursor + 1] = (byte) (formatVersion >> 16);
+            buf[cursor + 2] = (byte) (formatVersion >> 8);
+            buf[cursor + 3] = (byte) formatVersion;
+            cursor += 4;
+
+            System.arraycopy(MAGIC, 0, buf, cursor, MAGIC.length);
+            return buf;
+        }
+
+        // check magic and version, then decode footer of that version
+        public static @NotNull Footer read(@NotNull FileObject file) throws IOException {
+            long size = file.getSize();
+            if (size < SIZE_OF_TRAILER) {
+                throw new SortedStringTableFormatException("sst is smaller than footer");
+            }
+
+            final byte[] trailer = file.read(size - SIZE_OF_TRAILER, SIZE_OF_TRAILER);
+            if (!Arrays.equals(MAGIC, 0, MAGIC.length, trailer, SIZE_OF_U32, SIZE_OF_TRAILER)) {
+                return readLegacy(file);
+            }
+            int formatVersion = (trailer[0] & 0xFF) << 24 | (trailer[1] & 0xFF) << 16 |
+                    (trailer[2] & 0xFF) << 8 | trailer[3] & 0xFF;
+
+            int footerSize = sizeOf(formatVersion);
+            long footerOffset = size - footerSize;
+            if (footerOffset < 0) {
+                throw new SortedStringTableFormatException("sst is smaller than footer");
+            }
+            final byte[] buf = file.read(footerOffset, footerSize);
+
+            final Footer footer;
+            if (formatVersion == FORMAT_VERSION_1) {
+                long metaBlockOffset = BlockHandle.decode(buf, 0).offset;
+                long rangeTombstoneOffset = BlockHandle.decode(buf, SIZE_OF_U64).offset;
+                long filterOffset = BlockHandle.decode(buf, SIZE_OF_U64 * 2).offset;
+                long propertiesOffset = rangeTombstoneOffset - SIZE_OF_PROPERTIES_V1;
+                footer = new Footer(formatVersion,
+                        new BlockHandle(metaBlockOffset, (int) (propertiesOffset - metaBlockOffset)),
+                        new BlockHandle(propertiesOffset, SIZE_OF_PROPERTIES_V1),
+                        new BlockHandle(rangeTombstoneOffset, (int) (filterOffset - rangeTombstoneOffset)),
+                        new BlockHandle(filterOffset, (int) (footerOffset - filterOffset)),
+                        new BlockHandle(footerOffset, 0));
+            } else {
+                int cursor = 0;
+                BlockHandle metaBlocks = BlockHandle.decode(buf, cursor);
+                cursor += BlockHandle.SIZE_OF_BLOCK_HANDLE;
+                BlockHandle properties = BlockHandle.decode(buf, cursor);
+                cursor += BlockHandle.SIZE_OF_BLOCK_HANDLE;
+                BlockHandle rangeTombstones = BlockHandle.decode(buf, cursor);
+                cursor += BlockHandle.SIZE_OF_BLOCK_HANDLE;
+                BlockHandle filter = BlockHandle.decode(buf, cursor);
+                cursor += BlockHandle.SIZE_OF_BLOCK_HANDLE;
+                // empty range filter before version 5
+                BlockHandle rangeFilter = formatVersion >= FORMAT_VERSION_5 ? BlockHandle.decode(buf, cursor) : new BlockHandle(filter.end(), 0);
+                footer = new Footer(formatVersion, metaBlocks, properties, rangeTombstones, filter, rangeFilter);
+            }
+
+            for (BlockHandle handle : List.of(footer.metaBlocks, footer.properties, footer.rangeTombstones, footer.filter, footer.rangeFilter)) {
+                if (handle.offset < 0 || handle.length < 0 || handle.end() > footerOffset) {
+                    throw new SortedStringTableFormatException("section of sst is out of range");
+                }
+            }
+            return footer;
+        }
+
+        // locate sections of version 0 through the trailing u32 offsets, properties, range tombstones
+        // and range filter are empty, any offset out of range means the file is neither version
+        static @NotNull Footer readLegacy(@NotNull FileObject file) throws IOException {
+            long size = file.getSize();
+            long filterOffset = file.readInt(size - SIZE_OF_U32) & 0xFFFFFFFFL;
+            if (filterOffset < SIZE_OF_U32 || filterOffset > size - SIZE_OF_U32) {
+                throw new SortedStringTableFormatException("bad magic number of sst");
+            }
+            long metaBlockOffset = file.readInt(filterOffset - SIZE_OF_U32) & 0xFFFFFFFFL;
+            if (metaBlockOffset > filterOffset - SIZE_OF_U32) {
+                throw new SortedStringTableFormatException("bad magic number of sst");
+            }
+            return new Footer(FORMAT_VERSION_0,
+                    new BlockHandle(metaBlockOffset, (int) (filterOffset - SIZE_OF_U32 - metaBlockOffset)),
+                    new BlockHandle(filterOffset, 0),
+                    new BlockHandle(filterOffset, 0),
+                    new BlockHandle(filterOffset, (int) (size - SIZE_OF_U32 - filterOffset)),
+                    new BlockHandle(size - SIZE_OF_U32, 0));
+        }
+    }
+
+    // statistics of sst, newer version may append fields which older reader skips
+    public record Properties(
+            int numOfKeys,
+            int numOfTombstones,
+            long maxSequence,
+            @NotNull String prefixExtractor,
+            @NotNull Map<Integer, Long> blobReferences) {
+        public byte @NotNull [] encode(int formatVersion) {
+            boolean checksum = formatVersion >= FORMAT_VERSION_2;
+            final byte[] extractorBuf = prefixExtractor.getBytes(StandardCharsets.UTF_8);
+            int extractorSize = formatVersion >= FORMAT_VERSION_4 ? SIZE_OF_U16 + extractorBuf.length : 0;
+            int blobReferencesSize = formatVersion >= FORMAT_VERSION_6 ? SIZE_OF_U32 + blobReferences.size() * (SIZE_OF_U32 + SIZE_OF_U64) : 0;
+            final byte[] buf = new byte[Footer.SIZE_OF_PROPERTIES_V1 + extractorSize + blobReferencesSize + (checksum ? SIZE_OF_U32 : 0)];
+            int cursor = 0;
+
+            buf[cursor] = (byte) (numOfKeys >> 24);
+            buf[cursor + 1] = (byte) (numOfKeys >> 16);
+            buf[cursor + 2] = (byte) (numOfKeys >> 8);
+            buf[cursor + 3] = (byte) numOfKeys;
+            cursor += 4;
+
+            buf[cursor] = (byte) (numOfTombstones >> 24);
+            buf[cursor + 1] = (byte) (numOfTombstones >> 16);
+            buf[cursor + 2] = (byte) (numOfTombstones >> 8);
+            buf[cursor + 3] = (byte) numOfTombstones;
+            cursor += 4;
+
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (maxSequence >> (56 - i * 8));
+            }
+            cursor += SIZE_OF_U64;
+
+            if (formatVersion >= FORMAT_VERSION_4) {
+                buf[cursor] = (byte) (extractorBuf.length >> 8);
+                buf[cursor + 1] = (byte) extractorBuf.length;
+                cursor += 2;
+
+                System.arraycopy(extractorBuf, 0, buf, cursor, extractorBuf.length);
+                cursor += extractorBuf.length;
+            }
+
+            if (formatVersion >= FORMAT_VERSION_6) {
+                int numOfBlobFiles = blobReferences.size();
+                buf[cursor] = (byte) (numOfBlobFiles >> 24);
+                buf[cursor + 1] = (byte) (numOfBlobFiles >> 16);
+                buf[cursor + 2] = (byte) (numOfBlobFiles >> 8);
+                buf[cursor + 3] = (byte) numOfBlobFiles;
+                cursor += 4;
+
+                for (Map.Entry<Integer, Long> reference : blobReferences.entrySet()) {
+                    int blobFileId = reference.getKey();
+                    buf[cursor] = (byte) (blobFileId >> 24);
+                    buf[cursor + 1] = (byte) (blobFileId >> 16);
+                    buf[cursor + 2] = (byte) (blobFileId >> 8);
+                    buf[cursor + 3] = (byte) blobFileId;
+                    cursor += 4;
+
+                    long valueBytes = reference.getValue();
+                    for (int i = 0; i < SIZE_OF_U64; i++) {
+                        buf[cursor + i] = (byte) (valueBytes >> (56 - i * 8));
+                    }
+                    cursor += SIZE_OF_U64;
+                }
+            }
+
+            if (checksum) {
+                CRC32 crc32 = new CRC32();
+                crc32.update(buf, 0, cursor);
+                int value = (int) crc32.getValue();
+
+                buf[cursor] = (byte) (value >> 24);
+                buf[cursor + 1] = (byte) (value >> 16);
+                buf[cursor + 2] = (byte) (value >> 8);
+                buf[cursor + 3] = (byte) value;
+            }
+            return buf;
+        }
+
+        public static @NotNull Properties decode(byte @NotNull [] buf, int formatVersion) {
+            if (formatVersion >= FORMAT_VERSION_2) {
+                int checksumOffset = buf.length - SIZE_OF_U32;
+                int actualChecksum = (buf[checksumOffset] & 0xFF) << 24 | (buf[checksumOffset + 1] & 0xFF) << 16 |
+                        (buf[checksumOffset + 2] & 0xFF) << 8 | buf[checksumOffset + 3] & 0xFF;
+
+                CRC32 crc32 = new CRC32();
+                crc32.update(buf, 0, checksumOffset);
+                int expectedChecksum = (int) crc32.getValue();
+
+                if (actualChecksum != expectedChecksum) {
+                    throw new Crc32MismatchException(expectedChecksum, actualChecksum);
+                }
+            }
+
+            int cursor = 0;
+            int numOfKeys = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                    (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+            cursor += 4;
+
+            int numOfTombstones = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                    (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+            cursor += 4;
+
+            long maxSequence = 0;
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                maxSequence = (maxSequence << 8) | (buf[cursor + i] & 0xFF);
+            }
+            cursor += SIZE_OF_U64;
+
+            String prefixExtractor = "";
+            if (formatVersion >= FORMAT_VERSION_4) {
+                int extractorLength = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
+                cursor += 2;
+
+                prefixExtractor = new String(buf, cursor, extractorLength, StandardCharsets.UTF_8);
+                cursor += extractorLength;
+            }
+
+            final Map<Integer, Long> blobReferences = new HashMap<>();
+            if (formatVersion >= FORMAT_VERSION_6) {
+                int numOfBlobFiles = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                        (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+                cursor += 4;
+
+                for (int i = 0; i < numOfBlobFiles; i++) {
+                    int blobFileId = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                            (buf[cursor + 2] & 0xFF) << 8 | buf[cursor + 3] & 0xFF;
+                    cursor += 4;
+
+                    long valueBytes = 0;
+                    for (int j = 0; j < SIZE_OF_U64; j++) {
+                        valueBytes = (valueBytes << 8) | (buf[cursor + j] & 0xFF);
+                    }
+                    cursor += SIZE_OF_U64;
+                    blobReferences.put(blobFileId, valueBytes);
+                }
+            }
+            return new Properties(numOfKeys, numOfTombstones, maxSequence, prefixExtractor, Map.copyOf(blobReferences));
+        }
+    }
+
     //
     // +-----------------------------------------------------------------------------+-----+
     // |                                  Meta Block #1                              |     |
     // |             +-------------------------------+-------------------------------+ ... |
     // |             |          First Key            |           Last Key            |     |
     // +-------------+---------------+---------------+---------------+---------------+-----+
-    // | offset(u32) | key_len (u16) | key (key_len) | key_len (u16) | key (key_len) | ... |
+    // | offset(u64) | key_len (u16) | key (key_len) | key_len (u16) | key (key_len) | ... |
     // +-------------+---------------+---------------+---------------+---------------+-----+
     //
-    public record MetaBlock(int offset, byte @NotNull [] firstKey, byte @NotNull [] lastKey) {
+    // offset of version 0 is u32 and keys of it are user keys
+    public record MetaBlock(long offset, byte @NotNull [] firstKey, byte @NotNull [] lastKey) {
         public static byte @NotNull [] encode(List<MetaBlock> metaBlocks) {
             int bufLength = 0;
             for (MetaBlock metaBlock : metaBlocks) {
                 // offset
-                bufLength += SIZE_OF_U32;
+                bufLength += SIZE_OF_U64;
 
                 // first key length
                 bufLength += SIZE_OF_U16;
@@ -448,12 +1150,11 @@ public final class SortedStringTable implements Closeable {
             int cursor = 0;
 
             for (MetaBlock metaBlock : metaBlocks) {
-                int offset = metaBlock.offset;
-                buf[cursor] = (byte) (offset >> 24);
-                buf[cursor + 1] = (byte) (offset >> 16);
-                buf[cursor + 2] = (byte) (offset >> 8);
-                buf[cursor + 3] = (byte) offset;
-                cursor += 4;
+                long offset = metaBlock.offset;
+                for (int i = 0; i < SIZE_OF_U64; i++) {
+                    buf[cursor + i] = (byte) (offset >> (56 - i * 8));
+                }
+                cursor += SIZE_OF_U64;
 
                 int firstKeyLength = metaBlock.firstKey.length;
                 buf[cursor] = (byte) (firstKeyLength >> 8);
@@ -492,6 +1193,12 @@ public final class SortedStringTable implements Closeable {
         }
 
         public static @NotNull List<MetaBlock> decode(byte @NotNull [] buf) {
+            return decode(buf, FORMAT_VERSION);
+        }
+
+        public static @NotNull List<MetaBlock> decode(byte @NotNull [] buf, int formatVersion) {
+            boolean legacy = formatVersion == FORMAT_VERSION_0;
+            int sizeOfOffset = legacy ? SIZE_OF_U32 : SIZE_OF_U64;
             int cursor = buf.length;
 
             cursor -= SIZE_OF_U32;
@@ -515,25 +1222,32 @@ public final class SortedStringTable implements Closeable {
             // seek cursor to position 0
             cursor = 0;
             for (int i = 0; i < numOfMetaBlock; i++) {
-                int offset = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
-                        (buf[cursor + 2] & 0xFF) << 8 | (buf[cursor + 3]) & 0xFF;
-                cursor += 4;
+                long offset = 0;
+                for (int j = 0; j < sizeOfOffset; j++) {
+                    offset = (offset << 8) | (buf[cursor + j] & 0xFF);
+                }
+                cursor += sizeOfOffset;
 
-                int firstKeyLength = buf[cursor] & 0xFF << 8 | buf[cursor + 1] & 0xFF;
+                int firstKeyLength = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
                 cursor += 2;
 
                 final byte[] firstKey = new byte[firstKeyLength];
                 System.arraycopy(buf, cursor, firstKey, 0, firstKeyLength);
                 cursor += firstKeyLength;
 
-                int lastKeyLength = buf[cursor] & 0xFF << 8 | buf[cursor + 1] & 0xFF;
+                int lastKeyLength = (buf[cursor] & 0xFF) << 8 | buf[cursor + 1] & 0xFF;
                 cursor += 2;
 
                 final byte[] lastKey = new byte[lastKeyLength];
                 System.arraycopy(buf, cursor, lastKey, 0, lastKeyLength);
                 cursor += lastKeyLength;
 
-                metaBlocks.add(new MetaBlock(offset, firstKey, lastKey));
+                if (legacy) {
+                    // kind of first and last entry is unknown, bound them by every version of user key
+                    metaBlocks.add(new MetaBlock(offset, InternalKey.first(firstKey), InternalKey.last(lastKey)));
+                } else {
+                    metaBlocks.add(new MetaBlock(offset, firstKey, lastKey));
+                }
             }
 
             return metaBlocks;
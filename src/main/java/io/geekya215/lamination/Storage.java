@@ -4,53 +4,78 @@ import io.geekya215.lamination.compact.CompactStrategy;
 import io.geekya215.lamination.tuple.Tuple2;
 import org.jetbrains.annotations.NotNull;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+// Immutable version of engine state.
+//
+// readers grab the current version and never lock, writers copy it into a builder,
+// apply their change and publish the new version, so every reader sees a consistent view
+// of memory tables and sst even if flush or compaction happens concurrently.
+//
+// engine holds one reference of the current version and every reader holds one while
+// using it, each version holds one reference of its memory tables, sst and blob file, so file
+// removed by compaction or memory table removed by flush stays readable until the last version
+// containing it is released.
 public final class Storage {
+    private final @NotNull MemoryTable memoryTable;
     private final @NotNull List<MemoryTable> immutableMemoryTables;
     private final @NotNull List<Integer> level0SortedStringTables;
     private final @NotNull List<Tuple2<Integer, List<Integer>>> levels;
     private final @NotNull Map<Integer, SortedStringTable> sortedStringTables;
-    private @NotNull MemoryTable memoryTable;
+    private final @NotNull Map<Integer, BlobFile> blobFiles;
+    // byte size of each level, index 0 is level 0, maintained incrementally on flush and compaction
+    private final long @NotNull [] levelSizes;
+    private final @NotNull AtomicInteger refs;
 
-    public Storage(
+    private Storage(
             @NotNull MemoryTable memoryTable,
-            @NotNull List<MemoryTable> immutableMemoryTable,
+            @NotNull List<MemoryTable> immutableMemoryTables,
             @NotNull List<Integer> level0SST,
             @NotNull List<Tuple2<Integer, List<Integer>>> levels,
-            @NotNull Map<Integer, SortedStringTable> sortedStringTables) {
+            @NotNull Map<Integer, SortedStringTable> sortedStringTables,
+            @NotNull Map<Integer, BlobFile> blobFiles,
+            long @NotNull [] levelSizes) {
         this.memoryTable = memoryTable;
-        this.immutableMemoryTables = immutableMemoryTable;
+        this.immutableMemoryTables = immutableMemoryTables;
         this.level0SortedStringTables = level0SST;
         this.levels = levels;
         this.sortedStringTables = sortedStringTables;
+        this.blobFiles = blobFiles;
+        this.levelSizes = levelSizes;
+        this.refs = new AtomicInteger(1);
     }
 
     public static @NotNull Storage create(@NotNull Options options) {
         List<Tuple2<Integer, List<Integer>>> levels = switch (options.strategy()) {
-            case CompactStrategy.Simple(_, _, int maxLevel) -> {
+            case CompactStrategy.Simple(_, _, int maxLevel, _) -> {
                 List<Tuple2<Integer, List<Integer>>> res = new ArrayList<>(maxLevel);
                 for (int level = 1; level <= maxLevel; level++) {
                     res.add(Tuple2.of(level, new ArrayList<>()));
                 }
                 yield res;
             }
+            // single level only used by manual full compaction
+            case CompactStrategy.NoCompact _ -> {
+                List<Tuple2<Integer, List<Integer>>> res = new ArrayList<>(1);
+                res.add(Tuple2.of(1, new ArrayList<>()));
+                yield res;
+            }
             default -> new ArrayList<>();
         };
-        return new Storage(MemoryTable.create(0), new ArrayList<>(), new ArrayList<>(), levels, new HashMap<>());
+        return new StorageBuilder(MemoryTable.create(0), new ArrayList<>(), new ArrayList<>(), levels, new HashMap<>(), new HashMap<>(), new long[levels.size() + 1]).build();
     }
 
     public @NotNull MemoryTable getMemoryTable() {
         return memoryTable;
     }
 
-    public void setMemoryTable(@NotNull MemoryTable memoryTable) {
-        this.memoryTable = memoryTable;
-    }
-
     public @NotNull List<MemoryTable> getImmutableMemoryTables() {
         return immutableMemoryTables;
     }
@@ -66,4 +91,155 @@ public final class Storage {
     public @NotNull Map<Integer, SortedStringTable> getSortedStringTables() {
         return sortedStringTables;
     }
-}
\ No newline at end of file
+
+    public @NotNull Map<Integer, BlobFile> getBlobFiles() {
+        return blobFiles;
+    }
+
+    public long getLevelSize(int level) {
+        return levelSizes[level];
+    }
+
+    // fail when version is already released, caller should retry with the latest version
+    public boolean tryRetain() {
+        int current;
+        do {
+            current = refs.get();
+            if (current == 0) {
+                return false;
+            }
+        } while (!refs.compareAndSet(current, current + 1));
+        return true;
+    }
+
+    public void release() throws IOException {
+        if (refs.decrementAndGet() == 0) {
+            for (SortedStringTable sst : sortedStringTables.values()) {
+                sst.release();
+            }
+            for (BlobFile blobFile : blobFiles.values()) {
+                blobFile.release();
+            }
+            memoryTable.release();
+            for (MemoryTable immutableMemoryTable : immutableMemoryTables) {
+                immutableMemoryTable.release();
+            }
+        }
+    }
+
+    public @NotNull StorageBuilder toBuilder() {
+        final List<Tuple2<Integer, List<Integer>>> newLevels = new ArrayList<>(levels.size());
+        for (Tuple2<Integer, List<Integer>> level : levels) {
+            newLevels.add(Tuple2.of(level.t1(), new ArrayList<>(level.t2())));
+        }
+        return new StorageBuilder(memoryTable, new ArrayList<>(immutableMemoryTables), new ArrayList<>(level0SortedStringTables),
+                newLevels, new HashMap<>(sortedStringTables), new HashMap<>(blobFiles), levelSizes.clone());
+    }
+
+    // mutable copy of a version, only touched by the writer who owns it
+    public static final class StorageBuilder {
+        private final @NotNull List<MemoryTable> immutableMemoryTables;
+        private final @NotNull List<Integer> level0SortedStringTables;
+        private final @NotNull List<Tuple2<Integer, List<Integer>>> levels;
+        private final @NotNull Map<Integer, SortedStringTable> sortedStringTables;
+        private final @NotNull Map<Integer, BlobFile> blobFiles;
+        private final long @NotNull [] levelSizes;
+        private @NotNull MemoryTable memoryTable;
+
+        StorageBuilder(
+                @NotNull MemoryTable memoryTable,
+                @NotNull List<MemoryTable> immutableMemoryTables,
+                @NotNull List<Integer> level0SST,
+                @NotNull List<Tuple2<Integer, List<Integer>>> levels,
+                @NotNull Map<Integer, SortedStringTable> sortedStringTables,
+                @NotNull Map<Integer, BlobFile> blobFiles,
+                long @NotNull [] levelSizes) {
+            this.memoryTable = memoryTable;
+            this.immutableMemoryTables = immutableMemoryTables;
+            this.level0SortedStringTables = level0SST;
+            this.levels = levels;
+            this.sortedStringTables = sortedStringTables;
+            this.blobFiles = blobFiles;
+            this.levelSizes = levelSizes;
+        }
+
+        public @NotNull MemoryTable getMemoryTable() {
+            return memoryTable;
+        }
+
+        public void setMemoryTable(@NotNull MemoryTable memoryTable) {
+            this.memoryTable = memoryTable;
+        }
+
+        public @NotNull List<MemoryTable> getImmutableMemoryTables() {
+            return immutableMemoryTables;
+        }
+
+        public @NotNull List<Integer> getLevel0SortedStringTables() {
+            return level0SortedStringTables;
+        }
+
+        public @NotNull List<Tuple2<Integer, List<Integer>>> getLevels() {
+            return levels;
+        }
+
+        public @NotNull Map<Integer, SortedStringTable> getSortedStringTables() {
+            return sortedStringTables;
+        }
+
+        public @NotNull Map<Integer, BlobFile> getBlobFiles() {
+            return blobFiles;
+        }
+
+        public long getLevelSize(int level) {
+            return levelSizes[level];
+        }
+
+        // sst not opened yet is skipped, e.g. replay compaction track on recovery,
+        // caller should compute level sizes again after all sst opened
+        public void addToLevelSize(int level, @NotNull Collection<Integer> sstIds) {
+            for (Integer sstId : sstIds) {
+                SortedStringTable sst = sortedStringTables.get(sstId);
+                if (sst != null) {
+                    levelSizes[level] += sst.size();
+                }
+            }
+        }
+
+        public void removeFromLevelSize(int level, @NotNull Collection<Integer> sstIds) {
+            for (Integer sstId : sstIds) {
+                SortedStringTable sst = sortedStringTables.get(sstId);
+                if (sst != null) {
+                    levelSizes[level] -= sst.size();
+                }
+            }
+        }
+
+        public void computeLevelSizes() {
+            Arrays.fill(levelSizes, 0);
+            addToLevelSize(0, level0SortedStringTables);
+            for (int i = 0; i < levels.size(); i++) {
+                addToLevelSize(i + 1, levels.get(i).t2());
+            }
+        }
+
+        public @NotNull Storage build() {
+            for (SortedStringTable sst : sortedStringTables.values()) {
+                sst.retain();
+            }
+            for (BlobFile blobFile : blobFiles.values()) {
+                blobFile.retain();
+            }
+            memoryTable.retain();
+            for (MemoryTable immutableMemoryTable : immutableMemoryTables) {
+                immutableMemoryTable.retain();
+            }
+            final List<Tuple2<Integer, List<Integer>>> newLevels = new ArrayList<>(levels.size());
+            for (Tuple2<Integer, List<Integer>> level : levels) {
+                newLevels.add(Tuple2.of(level.t1(), List.copyOf(level.t2())));
+            }
+            return new Storage(memoryTable, List.copyOf(immutableMemoryTables), List.copyOf(level0SortedStringTables),
+                    List.copyOf(newLevels), Map.copyOf(sortedStringTables), Map.copyOf(blobFiles), levelSizes.clone());
+        }
+    }
+}
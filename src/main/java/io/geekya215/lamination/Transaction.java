@@ -0,0 +1,98 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static io.geekya215.lamination.Constants.EMPTY_BYTE_ARRAY;
+
+// Optimistic transaction.
+//
+// writes are buffered in a private sorted map and reads go through it first, then read
+// the engine at start sequence. nothing is locked until commit, which validates that
+// no key in read set was modified after start sequence and applies buffered writes
+// atomically, otherwise commit fails with TransactionConflictException and caller retries.
+//
+// NOTICE
+// transaction is not thread safe, and close it when done, it pins a snapshot
+public final class Transaction implements Closeable {
+    private final @NotNull Engine engine;
+    private final @NotNull Snapshot snapshot;
+    private final @NotNull NavigableMap<byte[], byte[]> writeSet;
+    private final @NotNull NavigableSet<byte[]> readSet;
+    private boolean finished;
+
+    Transaction(@NotNull Engine engine, @NotNull Snapshot snapshot) {
+        this.engine = engine;
+        this.snapshot = snapshot;
+        this.writeSet = new TreeMap<>(Arrays::compare);
+        this.readSet = new TreeSet<>(Arrays::compare);
+        this.finished = false;
+    }
+
+    public long getStartSequence() {
+        return snapshot.getSequence();
+    }
+
+    @NotNull NavigableMap<byte[], byte[]> getWriteSet() {
+        return writeSet;
+    }
+
+    @NotNull NavigableSet<byte[]> getReadSet() {
+        return readSet;
+    }
+
+    public byte @Nullable [] get(byte @NotNull [] key) throws IOException {
+        ensureActive();
+        byte[] buffered = writeSet.get(key);
+        if (buffered != null) {
+            return buffered.length == 0 ? null : buffered;
+        }
+        readSet.add(key);
+        return engine.get(key, snapshot);
+    }
+
+    public void put(byte @NotNull [] key, byte @NotNull [] value) {
+        ensureActive();
+        if (key.length == 0) {
+            throw new IllegalArgumentException("key must not be empty");
+        }
+        writeSet.put(key, value);
+    }
+
+    public void delete(byte @NotNull [] key) {
+        put(key, EMPTY_BYTE_ARRAY);
+    }
+
+    public void commit() throws IOException {
+        ensureActive();
+        try {
+            engine.commit(this);
+        } finally {
+            close();
+        }
+    }
+
+    public void rollback() {
+        close();
+    }
+
+    @Override
+    public void close() {
+        finished = true;
+        snapshot.close();
+    }
+
+    private void ensureActive() {
+        if (finished) {
+            throw new IllegalStateException("transaction is already finished");
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package io.geekya215.lamination;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.function.LongSupplier;
+
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
+
+// Built-in compaction filter removing values whose expiry time has passed.
+//
+// +------------------------------------+
+// |      expire_at (u64)     |  value  |
+// +------------------------------------+
+//
+// expire_at is milliseconds since epoch, value shorter than expire_at is never expired.
+public final class TtlCompactionFilter implements CompactionFilter {
+    private final @NotNull LongSupplier currentTimeMillis;
+
+    public TtlCompactionFilter() {
+        this(System::currentTimeMillis);
+    }
+
+    public TtlCompactionFilter(@NotNull LongSupplier currentTimeMillis) {
+        this.currentTimeMillis = currentTimeMillis;
+    }
+
+    @Override
+    public @NotNull Decision filter(byte @NotNull [] userKey, byte @NotNull [] value) {
+        if (value.length < SIZE_OF_U64) {
+            return CompactionFilter.keep();
+        }
+        return currentTimeMillis.getAsLong() >= expireAt(value) ? CompactionFilter.remove() : CompactionFilter.keep();
+    }
+
+    public static byte @NotNull [] encode(byte @NotNull [] value, long expireAt) {
+        final byte[] buf = new byte[SIZE_OF_U64 + value.length];
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            buf[i] = (byte) (expireAt >> (56 - i * 8));
+        }
+        System.arraycopy(value, 0, buf, SIZE_OF_U64, value.length);
+        return buf;
+    }
+
+    public static long expireAt(byte @NotNull [] buf) {
+        long expireAt = 0;
+        for (int i = 0; i < SIZE_OF_U64; i++) {
+            expireAt = (expireAt << 8) | (buf[i] & 0xFF);
+        }
+        return expireAt;
+    }
+
+    public static byte @NotNull [] value(byte @NotNull [] buf) {
+        return Arrays.copyOfRange(buf, SIZE_OF_U64, buf.length);
+    }
+}
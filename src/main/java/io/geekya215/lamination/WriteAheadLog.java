@@ -10,13 +10,36 @@ import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.zip.CRC32;
 
+import static io.geekya215.lamination.Constants.SIZE_OF_U16;
+import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+
+// +-----------------------------------------------------------------------+
+// |                               Put Record                              |
+// +---------------+-----------+-----------------+-------------+------------+
+// | key_len (u16) | key       | value_len (u16) | value       | crc32(u32) |
+// +---------------+-----------+-----------------+-------------+------------+
+//
+// +-----------------------------------------------------------------------------------------------+
+// |                                    Range Tombstone Record                                     |
+// +---------------+-----------------+-----------------+-----------------+---------+------------+
+// | marker(u16=0) | key_len (u16)   | key             | end_len (u16)   | end     | crc32(u32) |
+// +---------------+-----------------+-----------------+-----------------+---------+------------+
+//
+// key is never empty, so a zero key length marks a range tombstone record
 public final class WriteAheadLog implements Closeable {
+    static final int RANGE_TOMBSTONE_MARKER = 0;
+    static final int MAX_LENGTH = 0xFFFF;
+    private final @NotNull FileOutputStream fos;
     private final @NotNull DataOutputStream dos;
     private final @NotNull ReentrantLock lock;
+    // bytes of complete records, see truncate
+    private long size;
 
     public WriteAheadLog(@NotNull File file, boolean append) throws FileNotFoundException {
-        this.dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, append)));
+        this.fos = new FileOutputStream(file, append);
+        this.dos = new DataOutputStream(new BufferedOutputStream(fos));
         this.lock = new ReentrantLock();
+        this.size = append ? file.length() : 0;
     }
 
     public static @NotNull WriteAheadLog create(@NotNull Path path) throws FileNotFoundException {
@@ -26,6 +49,7 @@ public final class WriteAheadLog implements Closeable {
     public static @NotNull WriteAheadLog recover(
             @NotNull Path path,
             @NotNull ConcurrentSkipListMap<byte[], byte[]> skipList,
+            @NotNull ConcurrentSkipListMap<byte[], byte[]> rangeTombstones,
             @NotNull AtomicInteger approximateSize
     ) throws IOException {
         File file = path.toFile();
@@ -40,6 +64,12 @@ public final class WriteAheadLog implements Closeable {
                 int keyLen = dis.readUnsignedShort();
                 crc32.update(keyLen);
 
+                boolean isRangeTombstone = keyLen == RANGE_TOMBSTONE_MARKER;
+                if (isRangeTombstone) {
+                    keyLen = dis.readUnsignedShort();
+                    crc32.update(keyLen);
+                }
+
                 byte[] key = dis.readNBytes(keyLen);
                 crc32.update(key);
 
@@ -54,7 +84,11 @@ public final class WriteAheadLog implements Closeable {
                 if (actualChecksum != expectedChecksum) {
                     throw new Crc32MismatchException(expectedChecksum, actualChecksum);
                 }
-                skipList.put(key, value);
+                if (isRangeTombstone) {
+                    rangeTombstones.put(key, value);
+                } else {
+                    skipList.put(key, value);
+                }
                 currentSize += keyLen + valueLen;
             }
             approximateSize.getAndAdd(currentSize);
@@ -63,6 +97,8 @@ public final class WriteAheadLog implements Closeable {
     }
 
     public void put(byte @NotNull [] key, byte @NotNull [] value) throws IOException {
+        checkLength(key);
+        checkLength(value);
         lock.lock();
         try {
             CRC32 crc32 = new CRC32();
@@ -80,6 +116,36 @@ public final class WriteAheadLog implements Closeable {
             crc32.update(value);
 
             dos.writeInt((int) crc32.getValue());
+            size += SIZE_OF_U16 + key.length + SIZE_OF_U16 + value.length + SIZE_OF_U32;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void deleteRange(byte @NotNull [] key, byte @NotNull [] end) throws IOException {
+        checkLength(key);
+        checkLength(end);
+        lock.lock();
+        try {
+            CRC32 crc32 = new CRC32();
+
+            dos.writeShort(RANGE_TOMBSTONE_MARKER);
+            crc32.update(RANGE_TOMBSTONE_MARKER);
+
+            dos.writeShort(key.length);
+            crc32.update(key.length);
+
+            dos.write(key);
+            crc32.update(key);
+
+            dos.writeShort(end.length);
+            crc32.update(end.length);
+
+            dos.write(end);
+            crc32.update(end);
+
+            dos.writeInt((int) crc32.getValue());
+            size += SIZE_OF_U16 + SIZE_OF_U16 + key.length + SIZE_OF_U16 + end.length + SIZE_OF_U32;
         } finally {
             lock.unlock();
         }
@@ -94,6 +160,34 @@ public final class WriteAheadLog implements Closeable {
         }
     }
 
+    // length is stored in u16, longer one would make the record unreadable
+    private static void checkLength(byte @NotNull [] buf) {
+        if (buf.length > MAX_LENGTH) {
+            throw new IllegalArgumentException("wal record field longer than " + MAX_LENGTH + " bytes");
+        }
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // drop every record written after size, e.g. records of a failed write
+    public void truncate(long size) throws IOException {
+        lock.lock();
+        try {
+            dos.flush();
+            fos.getChannel().truncate(size);
+            this.size = size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     @Override
     public void close() throws IOException {
         dos.close();
@@ -1,11 +1,19 @@
 package io.geekya215.lamination.compact;
 
 public sealed interface CompactStrategy
-        permits CompactStrategy.NoCompact, CompactStrategy.Simple, CompactStrategy.Leveled, CompactStrategy.Tiered {
+        permits CompactStrategy.NoCompact, CompactStrategy.Simple, CompactStrategy.Leveled, CompactStrategy.Tiered,
+        CompactStrategy.Fifo {
     record NoCompact() implements CompactStrategy {
     }
 
-    record Simple(int sizeRatioPercent, int maxNumOfLevel0Files, int maxLevels) implements CompactStrategy {
+    // sst whose tombstone ratio exceeds tombstoneRatioPercent is compacted into the next level,
+    // non-positive value disables tombstone triggered compaction, which is the default
+    record Simple(int sizeRatioPercent, int maxNumOfLevel0Files, int maxLevels, int tombstoneRatioPercent) implements CompactStrategy {
+        public static final int DEFAULT_TOMBSTONE_RATIO_PERCENT = 0;
+
+        public Simple(int sizeRatioPercent, int maxNumOfLevel0Files, int maxLevels) {
+            this(sizeRatioPercent, maxNumOfLevel0Files, maxLevels, DEFAULT_TOMBSTONE_RATIO_PERCENT);
+        }
     }
 
     record Leveled() implements CompactStrategy {
@@ -13,4 +21,13 @@ public sealed interface CompactStrategy
 
     record Tiered() implements CompactStrategy {
     }
+
+    // treat flushed sst as a time ordered queue and drop the oldest whole sst when total size
+    // exceeds maxTotalSize or sst is older than ttlMillis, non-positive value disables the limit.
+    // at least minNumOfFilesToMerge consecutive sst smaller than mergeFileSize are merged into one
+    record Fifo(long maxTotalSize, long ttlMillis, long mergeFileSize, int minNumOfFilesToMerge) implements CompactStrategy {
+        public Fifo(long maxTotalSize, long ttlMillis) {
+            this(maxTotalSize, ttlMillis, 0, Integer.MAX_VALUE);
+        }
+    }
 }
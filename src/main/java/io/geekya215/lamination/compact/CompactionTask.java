@@ -10,7 +10,8 @@ import java.util.List;
 import static io.geekya215.lamination.Constants.*;
 
 public sealed interface CompactionTask extends Encoder
-        permits CompactionTask.SimpleTask, CompactionTask.LeveledTask, CompactionTask.TieredTask, CompactionTask.FullTask {
+        permits CompactionTask.SimpleTask, CompactionTask.LeveledTask, CompactionTask.TieredTask, CompactionTask.FullTask,
+        CompactionTask.FifoTask {
     record SimpleTask(
             int upperLevel,
             @NotNull List<Integer> upperLevelSSTIds,
@@ -120,10 +121,102 @@ public sealed interface CompactionTask extends Encoder
         }
     }
 
-    record FullTask() implements CompactionTask {
+    // compact selected sst of level 0 and every level into the bottom level,
+    // levelSSTIds.get(i) are selected sst ids of level (i + 1)
+    record FullTask(
+            @NotNull List<Integer> level0SSTIds,
+            @NotNull List<List<Integer>> levelSSTIds) implements CompactionTask {
         @Override
         public byte @NotNull [] encode() {
-            return new byte[0];
+            int bufLength = SIZE_OF_U32 + level0SSTIds.size() * SIZE_OF_U32 + SIZE_OF_U16;
+            for (List<Integer> sstIds : levelSSTIds) {
+                bufLength += SIZE_OF_U32 + sstIds.size() * SIZE_OF_U32;
+            }
+            final byte[] buf = new byte[bufLength];
+            int cursor = encodeSSTIds(level0SSTIds, buf, 0);
+
+            // we assume max level <= 256
+            int numOfLevels = levelSSTIds.size();
+            buf[cursor] = (byte) (numOfLevels >> 8);
+            buf[cursor + 1] = (byte) numOfLevels;
+            cursor += 2;
+
+            for (List<Integer> sstIds : levelSSTIds) {
+                cursor = encodeSSTIds(sstIds, buf, cursor);
+            }
+
+            return buf;
         }
+
+        public static @NotNull FullTask decode(byte @NotNull [] buf) {
+            final List<Integer> level0SSTIds = new ArrayList<>();
+            int cursor = decodeSSTIds(buf, 0, level0SSTIds);
+
+            int numOfLevels = (buf[cursor] & 0xFF) << 8 | (buf[cursor + 1] & 0xFF);
+            cursor += 2;
+
+            final List<List<Integer>> levelSSTIds = new ArrayList<>(numOfLevels);
+            for (int i = 0; i < numOfLevels; i++) {
+                final List<Integer> sstIds = new ArrayList<>();
+                cursor = decodeSSTIds(buf, cursor, sstIds);
+                levelSSTIds.add(sstIds);
+            }
+
+            return new FullTask(level0SSTIds, levelSSTIds);
+        }
+    }
+
+    // delete or merge sst of level 0 in fifo compaction, merged outputs take the place of inputs
+    record FifoTask(@NotNull List<Integer> level0SSTIds, boolean merge) implements CompactionTask {
+        @Override
+        public byte @NotNull [] encode() {
+            final byte[] buf = new byte[SIZE_OF_U8 + SIZE_OF_U32 + level0SSTIds.size() * SIZE_OF_U32];
+            if (merge) {
+                buf[0] = 1;
+            }
+            encodeSSTIds(level0SSTIds, buf, SIZE_OF_U8);
+            return buf;
+        }
+
+        public static @NotNull FifoTask decode(byte @NotNull [] buf) {
+            boolean merge = (buf[0] & 1) == 1;
+            final List<Integer> level0SSTIds = new ArrayList<>();
+            decodeSSTIds(buf, SIZE_OF_U8, level0SSTIds);
+            return new FifoTask(level0SSTIds, merge);
+        }
+    }
+
+    private static int encodeSSTIds(@NotNull List<Integer> sstIds, byte @NotNull [] buf, int cursor) {
+        int size = sstIds.size();
+        buf[cursor] = (byte) (size >> 24);
+        buf[cursor + 1] = (byte) (size >> 16);
+        buf[cursor + 2] = (byte) (size >> 8);
+        buf[cursor + 3] = (byte) size;
+        cursor += 4;
+
+        for (int sstId : sstIds) {
+            buf[cursor] = (byte) (sstId >> 24);
+            buf[cursor + 1] = (byte) (sstId >> 16);
+            buf[cursor + 2] = (byte) (sstId >> 8);
+            buf[cursor + 3] = (byte) sstId;
+            cursor += 4;
+        }
+
+        return cursor;
+    }
+
+    private static int decodeSSTIds(byte @NotNull [] buf, int cursor, @NotNull List<Integer> sstIds) {
+        int size = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                (buf[cursor + 2] & 0xFF) << 8 | (buf[cursor + 3] & 0xFF);
+        cursor += 4;
+
+        for (int i = 0; i < size; i++) {
+            int sstId = (buf[cursor] & 0xFF) << 24 | (buf[cursor + 1] & 0xFF) << 16 |
+                    (buf[cursor + 2] & 0xFF) << 8 | (buf[cursor + 3] & 0xFF);
+            sstIds.add(sstId);
+            cursor += 4;
+        }
+
+        return cursor;
     }
 }
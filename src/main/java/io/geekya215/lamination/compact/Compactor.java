@@ -1,12 +1,15 @@
 package io.geekya215.lamination.compact;
 
 import io.geekya215.lamination.Storage;
+import io.geekya215.lamination.tuple.Tuple2;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 
-public sealed abstract class Compactor permits SimpleCompactor, LeveledCompactor, TieredCompactor, NoCompactCompactor {
+public sealed abstract class Compactor permits SimpleCompactor, LeveledCompactor, TieredCompactor, NoCompactCompactor, FifoCompactor {
     protected CompactStrategy strategy;
 
     public Compactor(CompactStrategy strategy) {
@@ -15,12 +18,42 @@ public sealed abstract class Compactor permits SimpleCompactor, LeveledCompactor
 
     public boolean flushToLevel0() {
         return switch (this) {
-            case SimpleCompactor _, LeveledCompactor _, NoCompactCompactor _ -> true;
+            case SimpleCompactor _, LeveledCompactor _, NoCompactCompactor _, FifoCompactor _ -> true;
             default -> false;
         };
     }
 
     public abstract @Nullable CompactionTask generateCompactionTask(@NotNull Storage storage);
 
-    public abstract @NotNull List<Integer> doCompact(@NotNull Storage storage, @NotNull CompactionTask task, @NotNull List<Integer> output);
+    // oldestSnapshot is the sequence the oldest live snapshot reads at, tombstones newer than it are kept
+    public @Nullable CompactionTask generateCompactionTask(@NotNull Storage storage, long oldestSnapshot) {
+        return generateCompactionTask(storage);
+    }
+
+    public abstract @NotNull List<Integer> doCompact(@NotNull Storage.StorageBuilder storage, @NotNull CompactionTask task, @NotNull List<Integer> output);
+
+    // full compaction is shared by all strategies, outputs are appended to the bottom level
+    // and caller should keep bottom level ordered by first key after apply
+    protected @NotNull List<Integer> doFullCompact(@NotNull Storage.StorageBuilder storage, CompactionTask.@NotNull FullTask task, @NotNull List<Integer> output) {
+        final List<Integer> fileToRemove = new ArrayList<>(task.level0SSTIds());
+        storage.removeFromLevelSize(0, task.level0SSTIds());
+
+        final HashSet<Integer> level0SSTCompacted = new HashSet<>(task.level0SSTIds());
+        final List<Integer> newLevel0SST = storage.getLevel0SortedStringTables().stream().filter(x -> !level0SSTCompacted.contains(x)).toList();
+        storage.getLevel0SortedStringTables().clear();
+        storage.getLevel0SortedStringTables().addAll(newLevel0SST);
+
+        final List<Tuple2<Integer, List<Integer>>> levels = storage.getLevels();
+        for (int i = 0; i < task.levelSSTIds().size(); i++) {
+            final List<Integer> levelSSTCompacted = task.levelSSTIds().get(i);
+            fileToRemove.addAll(levelSSTCompacted);
+            storage.removeFromLevelSize(i + 1, levelSSTCompacted);
+            levels.get(i).t2().removeAll(new HashSet<>(levelSSTCompacted));
+        }
+
+        levels.getLast().t2().addAll(output);
+        storage.addToLevelSize(levels.size(), output);
+
+        return fileToRemove;
+    }
 }
@@ -0,0 +1,113 @@
+package io.geekya215.lamination.compact;
+
+import io.geekya215.lamination.SortedStringTable;
+import io.geekya215.lamination.Storage;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// all sst stay in level 0, ordered from oldest to newest
+public final class FifoCompactor extends Compactor {
+    public FifoCompactor(CompactStrategy strategy) {
+        super(strategy);
+    }
+
+    @Override
+    public @Nullable CompactionTask generateCompactionTask(@NotNull Storage storage) {
+        final CompactStrategy.Fifo option = (CompactStrategy.Fifo) strategy;
+        final List<Integer> level0SSTIds = storage.getLevel0SortedStringTables();
+        final Map<Integer, SortedStringTable> ssts = storage.getSortedStringTables();
+
+        // keep time order of sst to delete
+        final Set<Integer> sstToDelete = new LinkedHashSet<>();
+
+        if (option.ttlMillis() > 0) {
+            long expiredBefore = System.currentTimeMillis() - option.ttlMillis();
+            for (Integer sstId : level0SSTIds) {
+                if (ssts.get(sstId).getCreatedAt() < expiredBefore) {
+                    sstToDelete.add(sstId);
+                }
+            }
+        }
+
+        if (option.maxTotalSize() > 0) {
+            long totalSize = 0;
+            for (Integer sstId : level0SSTIds) {
+                if (!sstToDelete.contains(sstId)) {
+                    totalSize += ssts.get(sstId).size();
+                }
+            }
+            for (Integer sstId : level0SSTIds) {
+                if (totalSize <= option.maxTotalSize()) {
+                    break;
+                }
+                if (sstToDelete.add(sstId)) {
+                    totalSize -= ssts.get(sstId).size();
+                }
+            }
+        }
+
+        if (!sstToDelete.isEmpty()) {
+            return new CompactionTask.FifoTask(new ArrayList<>(sstToDelete), false);
+        }
+
+        if (option.mergeFileSize() > 0) {
+            // find the first run of consecutive small sst, keep merged size under merge file size
+            final List<Integer> sstToMerge = new ArrayList<>();
+            long mergedSize = 0;
+            for (Integer sstId : level0SSTIds) {
+                long size = ssts.get(sstId).size();
+                if (size < option.mergeFileSize() && mergedSize + size <= option.mergeFileSize()) {
+                    sstToMerge.add(sstId);
+                    mergedSize += size;
+                } else if (sstToMerge.size() >= option.minNumOfFilesToMerge()) {
+                    break;
+                } else {
+                    sstToMerge.clear();
+                    mergedSize = 0;
+                    if (size < option.mergeFileSize()) {
+                        sstToMerge.add(sstId);
+                        mergedSize = size;
+                    }
+                }
+            }
+            if (sstToMerge.size() >= Math.max(2, option.minNumOfFilesToMerge())) {
+                return new CompactionTask.FifoTask(sstToMerge, true);
+            }
+        }
+
+        return null;
+    }
+
+    @Override
+    public @NotNull List<Integer> doCompact(@NotNull Storage.StorageBuilder storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+        CompactionTask.FifoTask fifoTask = (CompactionTask.FifoTask) task;
+        final List<Integer> level0SSTIds = storage.getLevel0SortedStringTables();
+        final HashSet<Integer> level0SSTCompacted = new HashSet<>(fifoTask.level0SSTIds());
+
+        final List<Integer> newLevel0SST = new ArrayList<>(level0SSTIds.size());
+        boolean outputAdded = false;
+        for (Integer sstId : level0SSTIds) {
+            if (!level0SSTCompacted.contains(sstId)) {
+                newLevel0SST.add(sstId);
+            } else if (!outputAdded) {
+                // merged sst keep the position of inputs in time order
+                newLevel0SST.addAll(output);
+                outputAdded = true;
+            }
+        }
+
+        level0SSTIds.clear();
+        level0SSTIds.addAll(newLevel0SST);
+        storage.removeFromLevelSize(0, fifoTask.level0SSTIds());
+        storage.addToLevelSize(0, output);
+
+        return new ArrayList<>(fifoTask.level0SSTIds());
+    }
+}
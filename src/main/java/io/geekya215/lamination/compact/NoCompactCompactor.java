@@ -17,7 +17,10 @@ public final class NoCompactCompactor extends Compactor {
     }
 
     @Override
-    public @NotNull List<Integer> doCompact(@NotNull Storage storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+    public @NotNull List<Integer> doCompact(@NotNull Storage.StorageBuilder storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+        if (task instanceof CompactionTask.FullTask fullTask) {
+            return doFullCompact(storage, fullTask, output);
+        }
         throw new UnsupportedOperationException();
     }
 }
@@ -1,37 +1,54 @@
 package io.geekya215.lamination.compact;
 
+import io.geekya215.lamination.InternalKey;
+import io.geekya215.lamination.SortedStringTable;
 import io.geekya215.lamination.Storage;
 import io.geekya215.lamination.tuple.Tuple2;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 
 public final class SimpleCompactor extends Compactor {
+    // level 0 is always compacted once it holds this many times of max number of files,
+    // bound read amplification when many tiny sst are flushed
+    static final int LEVEL0_FILE_HARD_LIMIT_FACTOR = 4;
+
+    // expected byte size of a flushed sst, non-positive value means trigger level 0 by number of files
+    private final long level0FileSize;
+
     public SimpleCompactor(CompactStrategy strategy) {
+        this(strategy, 0);
+    }
+
+    public SimpleCompactor(CompactStrategy strategy, long level0FileSize) {
         super(strategy);
+        this.level0FileSize = level0FileSize;
     }
 
     @Override
     public @Nullable CompactionTask generateCompactionTask(@NotNull Storage storage) {
+        return generateCompactionTask(storage, InternalKey.MAX_SEQUENCE);
+    }
+
+    @Override
+    public @Nullable CompactionTask generateCompactionTask(@NotNull Storage storage, long oldestSnapshot) {
         final CompactStrategy.Simple option = (CompactStrategy.Simple) strategy;
         final List<Tuple2<Integer, List<Integer>>> levels = storage.getLevels();
-        final List<Integer> levelSizes = new ArrayList<>();
-
-        levelSizes.add(storage.getLevel0SortedStringTables().size());
-
-        for (Tuple2<Integer, List<Integer>> level : levels) {
-            levelSizes.add(level.t2().size());
-        }
 
         for (int i = 0; i < option.maxLevels(); i++) {
-            if (i == 0 && storage.getLevel0SortedStringTables().size() < option.maxNumOfLevel0Files()) {
+            if (i == 0 && !shouldCompactLevel0(storage, option)) {
+                continue;
+            }
+            if (storage.getLevelSize(i) == 0) {
                 continue;
             }
             int lowerLevel = i + 1;
-            double sizeRatio = (double) levelSizes.get(lowerLevel) / (double) levelSizes.get(i);
+            double sizeRatio = (double) storage.getLevelSize(lowerLevel) / (double) storage.getLevelSize(i);
             if (sizeRatio < option.sizeRatioPercent() / 100.0) {
                 int upperLevel = i;
                 // Todo
@@ -46,12 +63,93 @@ public final class SimpleCompactor extends Compactor {
             }
         }
 
-        return null;
+        return generateTombstoneCompactionTask(storage, option, oldestSnapshot);
+    }
+
+    // level 0 is full when its byte size reaches max number of full sized sst
+    boolean shouldCompactLevel0(@NotNull Storage storage, CompactStrategy.@NotNull Simple option) {
+        int numOfLevel0Files = storage.getLevel0SortedStringTables().size();
+        if (level0FileSize <= 0) {
+            return numOfLevel0Files >= option.maxNumOfLevel0Files();
+        }
+        return storage.getLevelSize(0) >= level0FileSize * option.maxNumOfLevel0Files()
+                || numOfLevel0Files >= (long) option.maxNumOfLevel0Files() * LEVEL0_FILE_HARD_LIMIT_FACTOR;
+    }
+
+    // sst of bottom level whose tombstones may be seen by a live snapshot is skipped, rewriting it keeps them
+    // and it would be picked again and again
+    @Nullable CompactionTask generateTombstoneCompactionTask(
+            @NotNull Storage storage,
+            CompactStrategy.@NotNull Simple option,
+            long oldestSnapshot) {
+        if (option.tombstoneRatioPercent() <= 0 || option.maxLevels() == 0) {
+            return null;
+        }
+
+        final double threshold = option.tombstoneRatioPercent() / 100.0;
+        final Map<Integer, SortedStringTable> ssts = storage.getSortedStringTables();
+        final List<Tuple2<Integer, List<Integer>>> levels = storage.getLevels();
+
+        // sst in level 0 overlap with each other, compact whole level 0 as size trigger does
+        for (Integer sstId : storage.getLevel0SortedStringTables()) {
+            if (ssts.get(sstId).tombstoneRatio() > threshold) {
+                return new CompactionTask.SimpleTask(0, new ArrayList<>(storage.getLevel0SortedStringTables()), 1,
+                        new ArrayList<>(levels.getFirst().t2()), option.maxLevels() == 1);
+            }
+        }
+
+        // pick the most tombstone dense sst in other levels
+        int upperLevel = 0;
+        SortedStringTable candidate = null;
+        double maxRatio = threshold;
+        for (Tuple2<Integer, List<Integer>> level : levels) {
+            for (Integer sstId : level.t2()) {
+                SortedStringTable sst = ssts.get(sstId);
+                if (level.t1() == option.maxLevels() && sst.getMaxSequence() >= oldestSnapshot) {
+                    continue;
+                }
+                if (sst.tombstoneRatio() > maxRatio) {
+                    upperLevel = level.t1();
+                    candidate = sst;
+                    maxRatio = sst.tombstoneRatio();
+                }
+            }
+        }
+
+        if (candidate == null) {
+            return null;
+        }
+
+        final List<Integer> upperLevelSSTIds = new ArrayList<>(List.of(candidate.getId()));
+
+        // sst in bottom level is rewritten alone for dropping tombstones
+        if (upperLevel == option.maxLevels()) {
+            return new CompactionTask.SimpleTask(upperLevel, upperLevelSSTIds, upperLevel, new ArrayList<>(), true);
+        }
+
+        // compare by whole user key, versions of boundary user key may live in neighbour sst
+        final byte[] firstKey = InternalKey.first(InternalKey.userKey(candidate.getFirstKey()));
+        final byte[] lastKey = InternalKey.last(InternalKey.userKey(candidate.getLastKey()));
+        final int lowerLevel = upperLevel + 1;
+        final List<Integer> lowerLevelSSTIds = new ArrayList<>();
+        for (Integer sstId : levels.get(lowerLevel - 1).t2()) {
+            SortedStringTable sst = ssts.get(sstId);
+            if (Arrays.compare(sst.getFirstKey(), lastKey) <= 0 && Arrays.compare(firstKey, sst.getLastKey()) <= 0) {
+                lowerLevelSSTIds.add(sstId);
+            }
+        }
+
+        return new CompactionTask.SimpleTask(upperLevel, upperLevelSSTIds, lowerLevel,
+                lowerLevelSSTIds, lowerLevel == option.maxLevels());
     }
 
 
     @Override
-    public @NotNull List<Integer> doCompact(@NotNull Storage storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+    public @NotNull List<Integer> doCompact(@NotNull Storage.StorageBuilder storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+        if (task instanceof CompactionTask.FullTask fullTask) {
+            return doFullCompact(storage, fullTask, output);
+        }
+
         CompactionTask.SimpleTask simpleTask = (CompactionTask.SimpleTask) task;
         final List<Integer> fileToRemove = new ArrayList<>();
         final List<Tuple2<Integer, List<Integer>>> levels = storage.getLevels();
@@ -61,6 +159,7 @@ public final class SimpleCompactor extends Compactor {
 
             // add upper level files to remove list
             fileToRemove.addAll(simpleTask.upperLevelSSTIds());
+            storage.removeFromLevelSize(0, simpleTask.upperLevelSSTIds());
 
             // remove level0 sst which in upper level
             final HashSet<Integer> level0SSTCompacted = new HashSet<>(simpleTask.upperLevelSSTIds());
@@ -72,15 +171,19 @@ public final class SimpleCompactor extends Compactor {
         } else {
             // level N compaction
 
-            // add upper level to remove list and clear
-            fileToRemove.addAll(levels.get(simpleTask.upperLevel() - 1).t2());
-            levels.get(simpleTask.upperLevel() - 1).t2().clear();
+            // add upper level files to remove list and remove them from upper level
+            fileToRemove.addAll(simpleTask.upperLevelSSTIds());
+            storage.removeFromLevelSize(simpleTask.upperLevel(), simpleTask.upperLevelSSTIds());
+            levels.get(simpleTask.upperLevel() - 1).t2().removeAll(new HashSet<>(simpleTask.upperLevelSSTIds()));
         }
 
-        // add lower level to remove list and set to outputs
-        fileToRemove.addAll(levels.get(simpleTask.lowerLevel() - 1).t2());
-        levels.get(simpleTask.lowerLevel() - 1).t2().clear();
+        // add lower level files to remove list and append outputs,
+        // caller should keep lower level ordered by first key after apply
+        fileToRemove.addAll(simpleTask.lowerLevelSSTIds());
+        storage.removeFromLevelSize(simpleTask.lowerLevel(), simpleTask.lowerLevelSSTIds());
+        levels.get(simpleTask.lowerLevel() - 1).t2().removeAll(new HashSet<>(simpleTask.lowerLevelSSTIds()));
         levels.get(simpleTask.lowerLevel() - 1).t2().addAll(output);
+        storage.addToLevelSize(simpleTask.lowerLevel(), output);
 
         return fileToRemove;
     }
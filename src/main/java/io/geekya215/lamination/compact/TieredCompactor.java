@@ -18,7 +18,7 @@ public final class TieredCompactor extends Compactor {
     }
 
     @Override
-    public @NotNull List<Integer> doCompact(@NotNull Storage storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
+    public @NotNull List<Integer> doCompact(@NotNull Storage.StorageBuilder storage, @NotNull CompactionTask task, @NotNull List<Integer> output) {
         throw new UnsupportedOperationException();
     }
 }
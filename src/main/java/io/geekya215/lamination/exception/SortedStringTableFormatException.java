@@ -0,0 +1,13 @@
+package io.geekya215.lamination.exception;
+
+public class SortedStringTableFormatException extends RuntimeException {
+    private static final String TEMPLATE = "Unsupported sst format version %d";
+
+    public SortedStringTableFormatException(int version) {
+        this(String.format(TEMPLATE, version));
+    }
+
+    public SortedStringTableFormatException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,13 @@
+package io.geekya215.lamination.exception;
+
+public class TransactionConflictException extends RuntimeException {
+    private static final String TEMPLATE = "Key read by transaction was modified at sequence %d after transaction started at sequence %d";
+
+    public TransactionConflictException(long modifiedAt, long startedAt) {
+        this(String.format(TEMPLATE, modifiedAt, startedAt));
+    }
+
+    public TransactionConflictException(String message) {
+        super(message);
+    }
+}
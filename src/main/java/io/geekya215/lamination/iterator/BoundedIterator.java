@@ -0,0 +1,52 @@
+package io.geekya215.lamination.iterator;
+
+import io.geekya215.lamination.Bound;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+// stop inner iterator at end bound, deleted value is kept
+public final class BoundedIterator implements StorageIterator {
+    private final @NotNull StorageIterator iter;
+    private final @NotNull Bound<byte[]> end;
+    private boolean valid;
+
+    public BoundedIterator(@NotNull StorageIterator iter, @NotNull Bound<byte[]> end) {
+        this.iter = iter;
+        this.end = end;
+        this.valid = checkBound();
+    }
+
+    private boolean checkBound() {
+        if (!iter.isValid()) {
+            return false;
+        }
+        return switch (end) {
+            case Bound.Included<byte[]>(byte[] key) -> Arrays.compare(iter.key(), key) <= 0;
+            case Bound.Excluded<byte[]>(byte[] key) -> Arrays.compare(iter.key(), key) < 0;
+            case Bound.Unbounded<byte[]> _ -> true;
+        };
+    }
+
+    @Override
+    public byte @NotNull [] key() {
+        return iter.key();
+    }
+
+    @Override
+    public byte @NotNull [] value() {
+        return iter.value();
+    }
+
+    @Override
+    public boolean isValid() {
+        return valid;
+    }
+
+    @Override
+    public void next() throws IOException {
+        iter.next();
+        valid = checkBound();
+    }
+}
@@ -0,0 +1,217 @@
+package io.geekya215.lamination.iterator;
+
+import io.geekya215.lamination.BlobFile;
+import io.geekya215.lamination.CompactionFilter;
+import io.geekya215.lamination.InternalKey;
+import io.geekya215.lamination.MergeOperator;
+import io.geekya215.lamination.RangeTombstone;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static io.geekya215.lamination.Constants.EMPTY_BYTE_ARRAY;
+
+// drop versions of internal keys that no reader can see.
+//
+// live snapshots split sequences into stripes, a reader only sees the newest version
+// in its stripe, so only the newest version of each user key in each stripe is kept.
+// merge operands on top of a stripe are folded onto the put or delete below them in the
+// same stripe, at bottom level onto nothing, otherwise they are kept for later compaction.
+// when compacting to bottom level a tombstone without any older kept version is dropped too.
+// a version covered by a newer range tombstone of input in the same stripe is dropped as well.
+// the newest put invisible to every live snapshot is passed to compaction filter, removed value
+// becomes a tombstone of the same sequence to keep shadowing older versions in lower levels.
+public final class CompactionIterator implements StorageIterator {
+    private final @NotNull StorageIterator iter;
+    // sequence of live snapshots in ascending order
+    private final long @NotNull [] snapshots;
+    private final boolean bottomLevel;
+    private final @Nullable MergeOperator mergeOperator;
+    private final @NotNull List<RangeTombstone> rangeTombstones;
+    private final @Nullable CompactionFilter compactionFilter;
+    // resolve blob index for merge operator and compaction filter, index itself is kept as is
+    private final @NotNull Map<Integer, BlobFile> blobFiles;
+    private final @NotNull ArrayDeque<Map.Entry<byte[], byte[]>> output;
+    // all versions of one user key, newest first
+    private final @NotNull List<Map.Entry<byte[], byte[]>> versions;
+    private @NotNull Map.Entry<byte[], byte[]> current;
+
+    public CompactionIterator(
+            @NotNull StorageIterator iter,
+            long @NotNull [] snapshots,
+            boolean bottomLevel,
+            @Nullable MergeOperator mergeOperator,
+            @NotNull List<RangeTombstone> rangeTombstones,
+            @Nullable CompactionFilter compactionFilter,
+            @NotNull Map<Integer, BlobFile> blobFiles) {
+        this.iter = iter;
+        this.snapshots = snapshots;
+        this.bottomLevel = bottomLevel;
+        this.mergeOperator = mergeOperator;
+        this.rangeTombstones = rangeTombstones;
+        this.compactionFilter = compactionFilter;
+        this.blobFiles = blobFiles;
+        this.output = new ArrayDeque<>();
+        this.versions = new ArrayList<>();
+        this.current = EMPTY_ENTRY;
+    }
+
+    public static @NotNull CompactionIterator create(
+            @NotNull StorageIterator iter,
+            long @NotNull [] snapshots,
+            boolean bottomLevel,
+            @Nullable MergeOperator mergeOperator,
+            @NotNull List<RangeTombstone> rangeTombstones,
+            @Nullable CompactionFilter compactionFilter,
+            @NotNull Map<Integer, BlobFile> blobFiles) throws IOException {
+        CompactionIterator compactionIterator = new CompactionIterator(iter, snapshots, bottomLevel, mergeOperator, rangeTombstones, compactionFilter, blobFiles);
+        compactionIterator.next();
+        return compactionIterator;
+    }
+
+    @Override
+    public byte @NotNull [] key() {
+        return current.getKey();
+    }
+
+    @Override
+    public byte @NotNull [] value() {
+        return current.getValue();
+    }
+
+    @Override
+    public boolean isValid() {
+        return current.getKey().length != 0;
+    }
+
+    @Override
+    public void next() throws IOException {
+        while (output.isEmpty() && iter.isValid()) {
+            versions.clear();
+            final byte[] firstKey = iter.key();
+            final byte[] userKey = rangeTombstones.isEmpty() ? null : InternalKey.userKey(firstKey);
+            while (iter.isValid() && InternalKey.sameUserKey(firstKey, iter.key())) {
+                if (userKey == null || !coveredByRangeTombstone(userKey, InternalKey.sequence(iter.key()))) {
+                    versions.add(Map.entry(iter.key(), iter.value()));
+                }
+                iter.next();
+            }
+            compactVersions();
+        }
+
+        current = output.isEmpty() ? EMPTY_ENTRY : output.poll();
+    }
+
+    @Override
+    public void close() throws IOException {
+        iter.close();
+    }
+
+    private void compactVersions() throws IOException {
+        final List<Map.Entry<byte[], byte[]>> kept = new ArrayList<>();
+        int i = 0;
+        while (i < versions.size()) {
+            final Map.Entry<byte[], byte[]> newest = versions.get(i);
+            final int stripe = stripeOf(InternalKey.sequence(newest.getKey()));
+            int j = i + 1;
+
+            if (!InternalKey.isMerge(newest.getKey())) {
+                // shadowed by newer version in the same stripe
+                while (j < versions.size() && stripeOf(InternalKey.sequence(versions.get(j).getKey())) == stripe) {
+                    j += 1;
+                }
+                kept.add(newest);
+                i = j;
+                continue;
+            }
+
+            final List<byte[]> operands = new ArrayList<>();
+            operands.add(newest.getValue());
+            Map.Entry<byte[], byte[]> base = null;
+            while (j < versions.size() && stripeOf(InternalKey.sequence(versions.get(j).getKey())) == stripe) {
+                Map.Entry<byte[], byte[]> version = versions.get(j);
+                j += 1;
+                if (!InternalKey.isMerge(version.getKey())) {
+                    base = version;
+                    break;
+                }
+                operands.add(version.getValue());
+            }
+            final int end = j;
+            while (j < versions.size() && stripeOf(InternalKey.sequence(versions.get(j).getKey())) == stripe) {
+                j += 1;
+            }
+
+            if (base != null || (bottomLevel && end == versions.size())) {
+                if (mergeOperator == null) {
+                    throw new IllegalStateException("merge operand found but no merge operator is configured");
+                }
+                byte[] existing = base == null || base.getValue().length == 0 ? null
+                        : InternalKey.isBlob(base.getKey()) ? BlobFile.resolve(blobFiles, base.getValue()) : base.getValue();
+                byte[] merged = mergeOperator.fullMerge(existing, operands.reversed());
+                byte[] userKey = InternalKey.userKey(newest.getKey());
+                kept.add(Map.entry(InternalKey.encode(userKey, InternalKey.sequence(newest.getKey()), InternalKey.KIND_PUT), merged));
+            } else {
+                // operands depend on older stripe or lower level
+                kept.addAll(versions.subList(i, end));
+            }
+            i = j;
+        }
+
+        if (compactionFilter != null && !kept.isEmpty()) {
+            filterNewest(kept);
+        }
+
+        if (bottomLevel) {
+            // tombstone shadows nothing when no older version is kept
+            while (!kept.isEmpty() && kept.getLast().getValue().length == 0 && !InternalKey.isMerge(kept.getLast().getKey())) {
+                kept.removeLast();
+            }
+        }
+        output.addAll(kept);
+    }
+
+    // only the newest version can be out of every snapshot, merge operand is filtered after folded
+    private void filterNewest(@NotNull List<Map.Entry<byte[], byte[]>> kept) throws IOException {
+        final Map.Entry<byte[], byte[]> newest = kept.getFirst();
+        final byte[] internalKey = newest.getKey();
+        final long sequence = InternalKey.sequence(internalKey);
+        if (InternalKey.isMerge(internalKey) || newest.getValue().length == 0 || stripeOf(sequence) != snapshots.length) {
+            return;
+        }
+
+        final byte[] userKey = InternalKey.userKey(internalKey);
+        final boolean isBlob = InternalKey.isBlob(internalKey);
+        final byte[] value = isBlob ? BlobFile.resolve(blobFiles, newest.getValue()) : newest.getValue();
+        switch (compactionFilter.filter(userKey, value)) {
+            case CompactionFilter.Keep _ -> {}
+            case CompactionFilter.Remove _ ->
+                    kept.set(0, Map.entry(InternalKey.encode(userKey, sequence, InternalKey.KIND_DELETE), EMPTY_BYTE_ARRAY));
+            // changed value is kept inline, compaction moves it to blob file if it is large
+            case CompactionFilter.ChangeValue(byte[] changed) ->
+                    kept.set(0, Map.entry(isBlob ? InternalKey.encode(userKey, sequence, InternalKey.KIND_PUT) : internalKey, changed));
+        }
+    }
+
+    // no reader can see the version without seeing the range tombstone when both are in the same stripe
+    private boolean coveredByRangeTombstone(byte @NotNull [] userKey, long sequence) {
+        for (RangeTombstone rangeTombstone : rangeTombstones) {
+            if (rangeTombstone.sequence() > sequence && stripeOf(rangeTombstone.sequence()) == stripeOf(sequence) && rangeTombstone.covers(userKey)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // index of the oldest snapshot which can see sequence, number of snapshots if no snapshot can see it
+    private int stripeOf(long sequence) {
+        int index = Arrays.binarySearch(snapshots, sequence);
+        return index >= 0 ? index : -index - 1;
+    }
+}
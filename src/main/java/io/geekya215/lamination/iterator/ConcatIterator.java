@@ -43,14 +43,14 @@ public final class ConcatIterator implements StorageIterator {
             return new ConcatIterator(null, ssts, INVALID_NEXT_SST_ID);
         }
 
+        // find the first sst which may contain key >= target key
         int index = 0;
         for (; index < ssts.size(); index++) {
             SortedStringTable sst = ssts.get(index);
-            if (Arrays.compare(sst.getFirstKey(), key) <= 0) {
+            if (Arrays.compare(sst.getLastKey(), key) >= 0) {
                 break;
             }
         }
-        index = index == 0 ? 0 : index - 1;
         if (index >= ssts.size()) {
             return new ConcatIterator(null, ssts, ssts.size());
         }
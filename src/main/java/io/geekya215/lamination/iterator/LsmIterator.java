@@ -1,40 +1,104 @@
 package io.geekya215.lamination.iterator;
 
+import io.geekya215.lamination.BlobFile;
 import io.geekya215.lamination.Bound;
+import io.geekya215.lamination.CompactionFilter;
+import io.geekya215.lamination.InternalKey;
+import io.geekya215.lamination.MergeOperator;
+import io.geekya215.lamination.RangeTombstone;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
+import java.io.Closeable;
 import java.io.IOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
+import static io.geekya215.lamination.Constants.EMPTY_BYTE_ARRAY;
+
+// iterate internal keys and yield the newest version of each user key visible at read sequence,
+// merge operands are folded onto the first older put or delete, versions covered by a newer visible
+// range tombstone are treated as deleted, blob index is resolved to value in blob file, values are passed to read filter if any,
+// key returned by this iterator is user key
 public final class LsmIterator implements StorageIterator {
+    // safety net for iterator which is never closed, see Release
+    private static final Cleaner CLEANER = Cleaner.create();
     // Todo
     // use TwoMergeIterator<MergeIterator, MergeIterator> is better than this?
     private final @NotNull TwoMergeIterator<StorageIterator, StorageIterator> iter;
+    // bound of internal key
     private final @NotNull Bound<byte[]> end;
+    private final long readSequence;
+    private final @Nullable MergeOperator mergeOperator;
+    // range tombstones overlapping scan range from all memory tables and sst
+    private final @NotNull List<RangeTombstone> rangeTombstones;
+    // blob files of the version being read
+    private final @NotNull Map<Integer, BlobFile> blobFiles;
+    // compaction filter applied on read, null when Options::filterOnRead is not set
+    private final @Nullable CompactionFilter readFilter;
+    private final @Nullable Release release;
+    private final @Nullable Cleaner.Cleanable cleanable;
+    private byte @NotNull [] key;
+    private byte @NotNull [] value;
+    // internal key of the last visible version, older versions of the same user key are skipped
+    private byte @Nullable [] prevKey;
     private boolean valid;
+    private boolean closed;
 
     // NOTICE
     // do not call this directly
-    public LsmIterator(@NotNull TwoMergeIterator<StorageIterator, StorageIterator> iter, @NotNull Bound<byte[]> end) {
+    public LsmIterator(
+            @NotNull TwoMergeIterator<StorageIterator, StorageIterator> iter,
+            @NotNull Bound<byte[]> end,
+            long readSequence,
+            @Nullable MergeOperator mergeOperator,
+            @NotNull List<RangeTombstone> rangeTombstones,
+            @NotNull Map<Integer, BlobFile> blobFiles,
+            @Nullable CompactionFilter readFilter,
+            @Nullable Closeable resource) {
         this.iter = iter;
         this.end = end;
-        this.valid = iter.isValid();
+        this.readSequence = readSequence;
+        this.mergeOperator = mergeOperator;
+        this.rangeTombstones = rangeTombstones;
+        this.blobFiles = blobFiles;
+        this.readFilter = readFilter;
+        this.release = resource == null ? null : new Release(resource);
+        this.cleanable = release == null ? null : CLEANER.register(this, release);
+        this.key = EMPTY_BYTE_ARRAY;
+        this.value = EMPTY_BYTE_ARRAY;
+        this.prevKey = null;
+        this.valid = false;
+        this.closed = false;
     }
 
-    public static LsmIterator create(@NotNull TwoMergeIterator<StorageIterator, StorageIterator> iter, @NotNull Bound<byte[]> end) throws IOException {
-        LsmIterator lsmIterator = new LsmIterator(iter, end);
-        lsmIterator.skipDeletedValue();
+    // resource is released when iterator is closed
+    public static LsmIterator create(
+            @NotNull TwoMergeIterator<StorageIterator, StorageIterator> iter,
+            @NotNull Bound<byte[]> end,
+            long readSequence,
+            @Nullable MergeOperator mergeOperator,
+            @NotNull List<RangeTombstone> rangeTombstones,
+            @NotNull Map<Integer, BlobFile> blobFiles,
+            @Nullable CompactionFilter readFilter,
+            @Nullable Closeable resource) throws IOException {
+        LsmIterator lsmIterator = new LsmIterator(iter, end, readSequence, mergeOperator, rangeTombstones, blobFiles, readFilter, resource);
+        lsmIterator.moveToVisible();
         return lsmIterator;
     }
 
     @Override
     public byte @NotNull [] key() {
-        return iter.key();
+        return key;
     }
 
     @Override
     public byte @NotNull [] value() {
-        return iter.value();
+        return value;
     }
 
     @Override
@@ -44,26 +108,132 @@ public final class LsmIterator implements StorageIterator {
 
     @Override
     public void next() throws IOException {
-        innerNext();
-        skipDeletedValue();
+        // remaining versions of current user key are skipped by prevKey
+        moveToVisible();
     }
 
-    private void innerNext() throws IOException {
-        iter.next();
-        if (!iter.isValid()) {
-            valid = false;
+    @Override
+    public void close() throws IOException {
+        if (closed) {
             return;
         }
-        switch (end) {
-            case Bound.Included<byte[]>(byte[] key) -> valid = Arrays.compare(iter.key(), key) <= 0;
-            case Bound.Excluded<byte[]>(byte[] key) -> valid = Arrays.compare(iter.key(), key) < 0;
-            case Bound.Unbounded<byte[]> _ -> {}
+        closed = true;
+        valid = false;
+        iter.close();
+        if (release != null) {
+            release.close();
+            cleanable.clean();
+        }
+    }
+
+    // release resource once, either by close or by cleaner after an unclosed iterator becomes unreachable,
+    // the latter may come late, so version pinned by iterator should still be released by close in time
+    // NOTICE
+    // must not refer to iterator, otherwise it never becomes unreachable
+    private static final class Release implements Runnable {
+        private final @NotNull Closeable resource;
+        private final @NotNull AtomicBoolean released;
+
+        Release(@NotNull Closeable resource) {
+            this.resource = resource;
+            this.released = new AtomicBoolean(false);
+        }
+
+        void close() throws IOException {
+            if (released.compareAndSet(false, true)) {
+                resource.close();
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                close();
+            } catch (IOException e) {
+                // nobody to report to on cleaner thread
+            }
         }
     }
 
-    private void skipDeletedValue() throws IOException {
-        while (isValid() && iter.value().length == 0) {
-            innerNext();
+    private boolean inRange() {
+        if (!iter.isValid()) {
+            return false;
+        }
+        return switch (end) {
+            case Bound.Included<byte[]>(byte[] endKey) -> Arrays.compare(iter.key(), endKey) <= 0;
+            case Bound.Excluded<byte[]>(byte[] endKey) -> Arrays.compare(iter.key(), endKey) < 0;
+            case Bound.Unbounded<byte[]> _ -> true;
+        };
+    }
+
+    private void moveToVisible() throws IOException {
+        while (inRange()) {
+            final byte[] internalKey = iter.key();
+            if (InternalKey.sequence(internalKey) > readSequence
+                    || (prevKey != null && InternalKey.sameUserKey(prevKey, internalKey))) {
+                iter.next();
+                continue;
+            }
+
+            prevKey = internalKey;
+            final byte[] userKey = InternalKey.userKey(internalKey);
+            final long coveringSequence = rangeTombstones.isEmpty()
+                    ? 0 : RangeTombstone.maxCoveringSequence(rangeTombstones, userKey, readSequence);
+            if (InternalKey.sequence(internalKey) < coveringSequence) {
+                continue;
+            }
+
+            byte[] resolved = InternalKey.isMerge(internalKey) ? foldOperands(coveringSequence)
+                    : InternalKey.isBlob(internalKey) ? BlobFile.resolve(blobFiles, iter.value()) : iter.value();
+            if (readFilter != null && resolved.length != 0) {
+                resolved = filter(readFilter, userKey, resolved);
+            }
+            // skip deleted value
+            if (resolved.length == 0) {
+                continue;
+            }
+
+            key = userKey;
+            value = resolved;
+            valid = true;
+            return;
+        }
+        valid = false;
+    }
+
+    // empty value if removed by filter
+    public static byte @NotNull [] filter(@NotNull CompactionFilter filter, byte @NotNull [] userKey, byte @NotNull [] value) {
+        return switch (filter.filter(userKey, value)) {
+            case CompactionFilter.Keep _ -> value;
+            case CompactionFilter.Remove _ -> EMPTY_BYTE_ARRAY;
+            case CompactionFilter.ChangeValue(byte[] changed) -> changed;
+        };
+    }
+
+    // collect operands from newest to oldest until a put or delete of the same user key or a version
+    // deleted by range tombstone, iterator stops at the base version or the next user key
+    private byte @NotNull [] foldOperands(long coveringSequence) throws IOException {
+        if (mergeOperator == null) {
+            throw new IllegalStateException("merge operand found but no merge operator is configured");
+        }
+
+        final List<byte[]> operands = new ArrayList<>();
+        byte[] existing = null;
+        while (inRange() && InternalKey.sameUserKey(prevKey, iter.key())) {
+            if (InternalKey.sequence(iter.key()) < coveringSequence) {
+                break;
+            }
+            if (InternalKey.isBlob(iter.key())) {
+                existing = BlobFile.resolve(blobFiles, iter.value());
+                break;
+            }
+            if (!InternalKey.isMerge(iter.key())) {
+                existing = iter.value().length == 0 ? null : iter.value();
+                break;
+            }
+            operands.add(iter.value());
+            iter.next();
         }
+        return mergeOperator.fullMerge(existing, operands.reversed());
     }
 }
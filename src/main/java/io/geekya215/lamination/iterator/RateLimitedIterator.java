@@ -0,0 +1,50 @@
+package io.geekya215.lamination.iterator;
+
+import io.geekya215.lamination.RateLimiter;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+import static io.geekya215.lamination.Constants.KB;
+
+// charge bytes read by background job to rate limiter,
+// request in batch for reducing lock contention of rate limiter
+public final class RateLimitedIterator implements StorageIterator {
+    static final int REQUEST_BATCH_SIZE = 16 * KB;
+    private final @NotNull StorageIterator iter;
+    private final @NotNull RateLimiter rateLimiter;
+    private final @NotNull RateLimiter.Priority priority;
+    private int pendingBytes;
+
+    public RateLimitedIterator(@NotNull StorageIterator iter, @NotNull RateLimiter rateLimiter, @NotNull RateLimiter.Priority priority) {
+        this.iter = iter;
+        this.rateLimiter = rateLimiter;
+        this.priority = priority;
+        this.pendingBytes = 0;
+    }
+
+    @Override
+    public byte @NotNull [] key() {
+        return iter.key();
+    }
+
+    @Override
+    public byte @NotNull [] value() {
+        return iter.value();
+    }
+
+    @Override
+    public boolean isValid() {
+        return iter.isValid();
+    }
+
+    @Override
+    public void next() throws IOException {
+        pendingBytes += iter.key().length + iter.value().length;
+        if (pendingBytes >= REQUEST_BATCH_SIZE) {
+            rateLimiter.request(pendingBytes, priority);
+            pendingBytes = 0;
+        }
+        iter.next();
+    }
+}
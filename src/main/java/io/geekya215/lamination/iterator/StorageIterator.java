@@ -2,12 +2,13 @@ package io.geekya215.lamination.iterator;
 
 import org.jetbrains.annotations.NotNull;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.util.Map;
 
 import static io.geekya215.lamination.Constants.EMPTY_BYTE_ARRAY;
 
-public interface StorageIterator {
+public interface StorageIterator extends Closeable {
     Map.Entry<byte[], byte[]> EMPTY_ENTRY = Map.entry(EMPTY_BYTE_ARRAY, EMPTY_BYTE_ARRAY);
 
     byte @NotNull [] key();
@@ -17,4 +18,9 @@ public interface StorageIterator {
     boolean isValid();
 
     void next() throws IOException;
+
+    // release resource held by iterator, e.g. storage version pinned by scan
+    @Override
+    default void close() throws IOException {
+    }
 }
@@ -11,6 +11,12 @@ import java.util.List;
 import java.util.concurrent.locks.ReentrantLock;
 
 public final class Manifest implements Closeable {
+    static final byte FLUSH_TRACK = 0;
+    static final byte CREATE_TRACK = 1;
+    static final byte SIMPLE_COMPACT_TRACK = 2;
+    static final byte FULL_COMPACT_TRACK = 3;
+    static final byte FIFO_COMPACT_TRACK = 4;
+    static final byte BLOB_GARBAGE_TRACK = 5;
     private final @NotNull DataOutputStream dos;
     private final @NotNull ReentrantLock lock;
 
@@ -31,27 +37,34 @@ public final class Manifest implements Closeable {
         ) {
             while (dis.available() > 0) {
                 byte type = dis.readByte();
-                // Todo
-                // use human readable alias instead of integer literal
                 switch (type) {
-                    case 0 -> {
+                    case FLUSH_TRACK -> {
                         int id = dis.readInt();
                         tracks.add(new Track.Flush(id));
                     }
-                    case 1 -> {
+                    case CREATE_TRACK -> {
                         int id = dis.readInt();
                         tracks.add(new Track.Create(id));
                     }
-                    case 2 -> {
+                    case SIMPLE_COMPACT_TRACK, FULL_COMPACT_TRACK, FIFO_COMPACT_TRACK -> {
                         int taskLength = dis.readInt();
                         byte[] taskBuf = dis.readNBytes(taskLength);
-                        CompactionTask.SimpleTask simpleTask = CompactionTask.SimpleTask.decode(taskBuf);
+                        CompactionTask task = switch (type) {
+                            case SIMPLE_COMPACT_TRACK -> CompactionTask.SimpleTask.decode(taskBuf);
+                            case FULL_COMPACT_TRACK -> CompactionTask.FullTask.decode(taskBuf);
+                            default -> CompactionTask.FifoTask.decode(taskBuf);
+                        };
                         int outputsLength = dis.readInt();
                         List<Integer> outputs = new ArrayList<>(outputsLength);
                         for (int i = 0; i < outputsLength; i++) {
                             outputs.add(dis.readInt());
                         }
-                        tracks.add(new Track.Compact(simpleTask, outputs));
+                        tracks.add(new Track.Compact(task, outputs));
+                    }
+                    case BLOB_GARBAGE_TRACK -> {
+                        int id = dis.readInt();
+                        long bytes = dis.readLong();
+                        tracks.add(new Track.BlobGarbage(id, bytes));
                     }
                     default -> throw new IllegalArgumentException("unsupported track type");
                 }
@@ -64,9 +77,12 @@ public final class Manifest implements Closeable {
         lock.lock();
         try {
             switch (track) {
-                case Track.Flush _ -> dos.writeByte(0);
-                case Track.Create _ -> dos.writeByte(1);
-                case Track.Compact _ -> dos.writeByte(2);
+                case Track.Flush _ -> dos.writeByte(FLUSH_TRACK);
+                case Track.Create _ -> dos.writeByte(CREATE_TRACK);
+                case Track.BlobGarbage _ -> dos.writeByte(BLOB_GARBAGE_TRACK);
+                case Track.Compact(CompactionTask.FullTask _, _) -> dos.writeByte(FULL_COMPACT_TRACK);
+                case Track.Compact(CompactionTask.FifoTask _, _) -> dos.writeByte(FIFO_COMPACT_TRACK);
+                case Track.Compact _ -> dos.writeByte(SIMPLE_COMPACT_TRACK);
             }
             byte[] buf = track.encode();
             dos.write(buf);
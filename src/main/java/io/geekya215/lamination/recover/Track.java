@@ -7,8 +7,9 @@ import org.jetbrains.annotations.NotNull;
 import java.util.List;
 
 import static io.geekya215.lamination.Constants.SIZE_OF_U32;
+import static io.geekya215.lamination.Constants.SIZE_OF_U64;
 
-public sealed interface Track extends Encoder permits Track.Compact, Track.Create, Track.Flush {
+public sealed interface Track extends Encoder permits Track.BlobGarbage, Track.Compact, Track.Create, Track.Flush {
     record Flush(int id) implements Track {
         @Override
         public byte @NotNull [] encode() {
@@ -73,4 +74,24 @@ public sealed interface Track extends Encoder permits Track.Compact, Track.Creat
             return buf;
         }
     }
+
+    // bytes of values in blob file which become garbage after a compaction
+    record BlobGarbage(int id, long bytes) implements Track {
+        @Override
+        public byte @NotNull [] encode() {
+            final byte[] buf = new byte[SIZE_OF_U32 + SIZE_OF_U64];
+            int cursor = 0;
+
+            buf[cursor] = (byte) (id >> 24);
+            buf[cursor + 1] = (byte) (id >> 16);
+            buf[cursor + 2] = (byte) (id >> 8);
+            buf[cursor + 3] = (byte) id;
+            cursor += 4;
+
+            for (int i = 0; i < SIZE_OF_U64; i++) {
+                buf[cursor + i] = (byte) (bytes >> (56 - i * 8));
+            }
+            return buf;
+        }
+    }
 }
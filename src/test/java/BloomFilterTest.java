@@ -1,8 +1,22 @@
+import io.geekya215.lamination.RibbonFilter;
+import io.geekya215.lamination.BlockedBloomFilter;
 import io.geekya215.lamination.BloomFilter;
+import io.geekya215.lamination.Bound;
+import io.geekya215.lamination.FilterPolicy;
+import io.geekya215.lamination.KeyFilter;
+import io.geekya215.lamination.RangeFilter;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 public class BloomFilterTest {
@@ -31,4 +45,190 @@ public class BloomFilterTest {
         assertTrue(decode.contain("tom".getBytes()));
         assertFalse(decode.contain("peter".getBytes()));
     }
+
+    @Test
+    void testBlockedBloomFilter() {
+        BlockedBloomFilter blockedBloomFilter = new BlockedBloomFilter(10000, 0.01);
+        for (int i = 0; i < 10000; i++) {
+            blockedBloomFilter.add(("key_" + i).getBytes());
+        }
+
+        KeyFilter decode = KeyFilter.decodeWithType(KeyFilter.encodeWithType(blockedBloomFilter));
+        assertInstanceOf(BlockedBloomFilter.class, decode);
+        assertEquals(KeyFilter.Type.BLOCKED_BLOOM, decode.type());
+
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(decode.contain(("key_" + i).getBytes()));
+            if (decode.contain(("absent_" + i).getBytes())) {
+                falsePositives += 1;
+            }
+        }
+        assertTrue(falsePositives < 300, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void testDecodeBloomFilterWithType() {
+        KeyFilter decode = KeyFilter.decodeWithType(KeyFilter.encodeWithType(bloomFilter));
+        assertInstanceOf(BloomFilter.class, decode);
+        assertTrue(decode.contain("tom".getBytes()));
+        assertFalse(decode.contain("peter".getBytes()));
+    }
+
+    @Test
+    void testProbeWithPrecomputedHash() {
+        long hash = KeyFilter.hash("tom".getBytes());
+        assertTrue(bloomFilter.mayContain(hash));
+        assertFalse(bloomFilter.mayContain(KeyFilter.hash("peter".getBytes())));
+
+        BlockedBloomFilter blockedBloomFilter = new BlockedBloomFilter(1, 0.01);
+        blockedBloomFilter.add("tom".getBytes());
+        assertTrue(blockedBloomFilter.mayContain(hash));
+    }
+
+    @Test
+    void testRibbonFilter() {
+        List<Long> hashes = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            // versions of a key share the same hash
+            hashes.add(KeyFilter.hash(("key_" + i).getBytes()));
+            hashes.add(KeyFilter.hash(("key_" + i).getBytes()));
+        }
+        KeyFilter filter = KeyFilter.Type.RIBBON.build(hashes, KeyFilter.DEFAULT_FALSE_POSITIVE);
+        assertInstanceOf(RibbonFilter.class, filter);
+
+        KeyFilter decode = KeyFilter.decodeWithType(KeyFilter.encodeWithType(filter));
+        int falsePositives = 0;
+        for (int i = 0; i < 10000; i++) {
+            assertTrue(decode.contain(("key_" + i).getBytes()));
+            if (decode.contain(("absent_" + i).getBytes())) {
+                falsePositives += 1;
+            }
+        }
+        assertTrue(falsePositives < 360, "false positives: " + falsePositives);
+
+        // about 25% fewer bits than bloom filter of the same false positive probability
+        int bloomFilterSize = KeyFilter.Type.BLOOM.build(hashes.subList(0, 10000), KeyFilter.DEFAULT_FALSE_POSITIVE).encode().length;
+        assertTrue(filter.encode().length < bloomFilterSize * 0.8);
+
+        // fractional fingerprint bits give exactly the requested false positive probability
+        assertEquals(3.4, RibbonFilter.fingerprintBitsOf(0.1), 1e-9);
+        assertEquals(5.08, RibbonFilter.fingerprintBitsOf(0.03), 1e-9);
+        assertEquals(5.0, RibbonFilter.fingerprintBitsOf(1.0 / 32), 1e-9);
+    }
+
+    @Test
+    void testRibbonFilterOfSmallSet() {
+        for (int n = 0; n < 20; n++) {
+            List<Long> hashes = new ArrayList<>();
+            for (int i = 0; i < n; i++) {
+                hashes.add(KeyFilter.hash(("key_" + i).getBytes()));
+            }
+            KeyFilter filter = KeyFilter.Type.RIBBON.build(hashes, KeyFilter.DEFAULT_FALSE_POSITIVE);
+            for (int i = 0; i < n; i++) {
+                assertTrue(filter.contain(("key_" + i).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    void testFilterPolicyAutoTune() {
+        long[] levelSizes = {1000, 10000, 100000};
+        FilterPolicy uniform = FilterPolicy.of(KeyFilter.Type.BLOOM);
+        FilterPolicy monkey = uniform.withAutoTune(true);
+
+        double uniformBits = 0;
+        double monkeyBits = 0;
+        double uniformCost = 0;
+        double monkeyCost = 0;
+        for (int level = 0; level < levelSizes.length; level++) {
+            assertEquals(KeyFilter.DEFAULT_FALSE_POSITIVE, uniform.falsePositiveOf(level, levelSizes));
+            double p = monkey.falsePositiveOf(level, levelSizes);
+            if (level > 0) {
+                // false positive is proportional to level size
+                assertEquals(10, p / monkey.falsePositiveOf(level - 1, levelSizes), 1e-6);
+            }
+            uniformBits -= levelSizes[level] * Math.log(KeyFilter.DEFAULT_FALSE_POSITIVE);
+            monkeyBits -= levelSizes[level] * Math.log(p);
+            uniformCost += KeyFilter.DEFAULT_FALSE_POSITIVE;
+            monkeyCost += p;
+        }
+        // same memory, fewer expected false positives per lookup
+        assertEquals(uniformBits, monkeyBits, uniformBits * 1e-6);
+        assertTrue(monkeyCost < uniformCost);
+
+        // every sst of level 0 is probed, so its false positive is proportional to size of one sst
+        long[] sizesWithLevel0Runs = {4000, 10000, 100000};
+        int[] levelRuns = {4, 1, 1};
+        double level0 = monkey.falsePositiveOf(0, sizesWithLevel0Runs, levelRuns);
+        assertEquals(0.1, level0 / monkey.falsePositiveOf(1, sizesWithLevel0Runs, levelRuns), 1e-6);
+        assertTrue(level0 < monkey.falsePositiveOf(0, sizesWithLevel0Runs));
+
+        // bottom level of loose false positive gets no filter, its memory goes to upper levels
+        FilterPolicy loose = monkey.withFalsePositives(0.8);
+        assertEquals(1, loose.falsePositiveOf(2, levelSizes));
+        assertEquals(KeyFilter.Type.NONE, loose.typeOf(2, false, levelSizes));
+        assertTrue(loose.falsePositiveOf(1, levelSizes) < 0.8);
+
+        FilterPolicy skip = uniform.withSkipBottomLevel(true).withFalsePositives(0.01, 0.05);
+        assertEquals(0.01, skip.falsePositiveOf(0));
+        assertEquals(0.05, skip.falsePositiveOf(3));
+        assertEquals(KeyFilter.Type.NONE, skip.typeOf(3, true, levelSizes));
+        assertEquals(KeyFilter.Type.BLOOM, skip.typeOf(2, false, levelSizes));
+    }
+
+    @Test
+    void testRangeFilter() {
+        Random random = new Random(42);
+        TreeSet<byte[]> keys = new TreeSet<>(Arrays::compare);
+        while (keys.size() < 2000) {
+            byte[] key = new byte[1 + random.nextInt(6)];
+            random.nextBytes(key);
+            keys.add(key);
+        }
+        // key being a prefix of another one
+        keys.add("ab".getBytes());
+        keys.add("abc".getBytes());
+
+        for (int suffixLength : new int[]{0, 2}) {
+            RangeFilter.RangeFilterBuilder builder = new RangeFilter.RangeFilterBuilder(suffixLength);
+            for (byte[] key : keys) {
+                builder.add(key);
+                builder.add(key);
+            }
+            RangeFilter built = builder.build();
+            RangeFilter decoded = RangeFilter.decode(built.encode());
+            assertEquals(keys.size(), decoded.numOfKeys());
+
+            int falsePositives = 0;
+            for (int i = 0; i < 5000; i++) {
+                byte[] lo = new byte[1 + random.nextInt(6)];
+                random.nextBytes(lo);
+                byte[] hi = Arrays.copyOf(lo, lo.length + 1);
+                hi[lo.length] = (byte) random.nextInt();
+                Bound<byte[]> lower = i % 2 == 0 ? Bound.included(lo) : Bound.excluded(lo);
+                Bound<byte[]> upper = i % 3 == 0 ? Bound.included(hi) : Bound.excluded(hi);
+
+                byte[] ceiling = i % 2 == 0 ? keys.ceiling(lo) : keys.higher(lo);
+                boolean expected = ceiling != null && (i % 3 == 0 ? Arrays.compare(ceiling, hi) <= 0 : Arrays.compare(ceiling, hi) < 0);
+                boolean actual = decoded.mayOverlap(lower, upper);
+                assertEquals(actual, built.mayOverlap(lower, upper));
+                if (expected) {
+                    assertTrue(actual);
+                } else if (actual) {
+                    falsePositives += 1;
+                }
+            }
+            assertTrue(falsePositives < 500, "false positives " + falsePositives);
+        }
+
+        RangeFilter.RangeFilterBuilder builder = new RangeFilter.RangeFilterBuilder(0);
+        builder.add("ab".getBytes());
+        builder.add("abc".getBytes());
+        RangeFilter rangeFilter = builder.build();
+        assertTrue(rangeFilter.mayOverlap(Bound.included("ab".getBytes()), Bound.included("ab".getBytes())));
+        assertFalse(rangeFilter.mayOverlap(Bound.excluded("ab".getBytes()), Bound.excluded("abc".getBytes())));
+        assertFalse(rangeFilter.mayOverlap(Bound.included("b".getBytes()), Bound.unbound()));
+        assertFalse(rangeFilter.mayOverlap(Bound.unbound(), Bound.excluded("ab".getBytes())));
+    }
 }
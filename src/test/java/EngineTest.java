@@ -1,13 +1,25 @@
 import io.geekya215.lamination.*;
 import io.geekya215.lamination.compact.CompactStrategy;
+import io.geekya215.lamination.exception.TransactionConflictException;
 import io.geekya215.lamination.iterator.StorageIterator;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 import static io.geekya215.lamination.Constants.KB;
 import static io.geekya215.lamination.Constants.MB;
@@ -50,15 +62,18 @@ public class EngineTest {
 
         List<MemoryTable> immutableMemoryTables = engine.getStorage().getImmutableMemoryTables();
         assertEquals(1, immutableMemoryTables.size());
-        assertEquals(6, immutableMemoryTables.get(0).getApproximateSize());
+        // each internal key carries a 2 bytes terminator and an 8 bytes trailer
+        assertEquals(36, immutableMemoryTables.get(0).getApproximateSize());
 
         engine.put("1".getBytes(), "11".getBytes());
         engine.put("2".getBytes(), "22".getBytes());
         engine.put("3".getBytes(), "33".getBytes());
         engine.forceFreezeMemoryTable();
 
+        // storage is an immutable version, fetch the latest one after freeze
+        immutableMemoryTables = engine.getStorage().getImmutableMemoryTables();
         assertEquals(2, immutableMemoryTables.size());
-        assertEquals(9, immutableMemoryTables.get(1).getApproximateSize());
+        assertEquals(39, immutableMemoryTables.get(1).getApproximateSize());
 
         engine.close();
     }
@@ -78,7 +93,7 @@ public class EngineTest {
             engine.delete("1".getBytes());
         }
 
-        assertTrue(immutableMemoryTables.size() > numOfImmutableMemoryTable);
+        assertTrue(engine.getStorage().getImmutableMemoryTables().size() > numOfImmutableMemoryTable);
 
         engine.close();
     }
@@ -104,6 +119,74 @@ public class EngineTest {
         engine.close();
     }
 
+    @Test
+    void testEngineGroupCommitConcurrentWrites() throws Exception {
+        try (Engine engine = Engine.open(tmpDir, new Options(4 * KB, 1000, MB, true, new CompactStrategy.NoCompact()));
+             ExecutorService executor = Executors.newFixedThreadPool(8)) {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 8; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 500; i++) {
+                        final byte[] key = "key_%d_%05d".formatted(thread, i).getBytes();
+                        engine.put(key, key);
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+
+            // every write got its own sequence and is visible
+            assertEquals(8 * 500, engine.getLastSequence());
+            for (int t = 0; t < 8; t++) {
+                for (int i = 0; i < 500; i++) {
+                    final byte[] key = "key_%d_%05d".formatted(t, i).getBytes();
+                    assertArrayEquals(key, engine.get(key));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEngineFailedWriteNeverVisible() throws IOException {
+        Options options = new Options(4 * KB, 1000, MB, true, new CompactStrategy.NoCompact());
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.put("k0".getBytes(), "v0".getBytes());
+            long lastSequence = engine.getLastSequence();
+
+            // wal rejects the second key after the first one is already in memory table
+            try (Transaction txn = engine.beginTransaction()) {
+                txn.put("k1".getBytes(), "v1".getBytes());
+                txn.put(("k2" + "x".repeat(70000)).getBytes(), "v2".getBytes());
+                assertThrows(IllegalArgumentException.class, txn::commit);
+            }
+            assertEquals(lastSequence, engine.getLastSequence());
+            assertNull(engine.get("k1".getBytes()));
+
+            // the next write would reuse sequences of the failed one and publish what it left
+            assertThrows(IllegalStateException.class, () -> engine.put("k3".getBytes(), "v3".getBytes()));
+            assertThrows(IllegalStateException.class, engine::forceFreezeMemoryTable);
+            assertEquals(lastSequence, engine.getLastSequence());
+            assertNull(engine.get("k1".getBytes()));
+            assertNull(engine.get("k3".getBytes()));
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                assertArrayEquals("k0".getBytes(), iter.key());
+                iter.next();
+                assertFalse(iter.isValid());
+            }
+        }
+
+        // wal records of the failed write are truncated
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            assertArrayEquals("v0".getBytes(), engine.get("k0".getBytes()));
+            assertNull(engine.get("k1".getBytes()));
+            engine.put("k3".getBytes(), "v3".getBytes());
+            assertArrayEquals("v3".getBytes(), engine.get("k3".getBytes()));
+        }
+    }
+
     @Test
     void testEngineGetFromImmutableMemoryTable() throws IOException {
         Engine engine = Engine.open(tmpDir, new Options(2 * KB, 1000, KB, false, new CompactStrategy.NoCompact()));
@@ -155,12 +238,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.excluded("key_00100".getBytes()));
-
-            for (int i = 10; i < 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.excluded("key_00100".getBytes()))) {
+                for (int i = 10; i < 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -172,12 +255,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.included("key_00100".getBytes()));
-
-            for (int i = 10; i <= 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.included("key_00100".getBytes()))) {
+                for (int i = 10; i <= 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -189,12 +272,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.unbound());
-
-            for (int i = 10; i < 1000; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.included("key_00010".getBytes()), Bound.unbound())) {
+                for (int i = 10; i < 1000; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -206,12 +289,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.excluded("key_00100".getBytes()));
-
-            for (int i = 10 + 1; i < 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.excluded("key_00100".getBytes()))) {
+                for (int i = 10 + 1; i < 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -223,12 +306,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.included("key_00100".getBytes()));
-
-            for (int i = 10 + 1; i <= 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.included("key_00100".getBytes()))) {
+                for (int i = 10 + 1; i <= 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -240,12 +323,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.unbound());
-
-            for (int i = 10 + 1; i < 1000; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.excluded("key_00010".getBytes()), Bound.unbound())) {
+                for (int i = 10 + 1; i < 1000; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -257,12 +340,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound());
-
-            for (int i = 0; i < 1000; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                for (int i = 0; i < 1000; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -274,12 +357,12 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.unbound(), Bound.included("key_00100".getBytes()));
-
-            for (int i = 0; i <= 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
-                iter.next();
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.included("key_00100".getBytes()))) {
+                for (int i = 0; i <= 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
             }
         }
     }
@@ -291,13 +374,1308 @@ public class EngineTest {
                 engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
             }
 
-            StorageIterator iter = engine.scan(Bound.unbound(), Bound.excluded("key_00100".getBytes()));
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.excluded("key_00100".getBytes()))) {
+                for (int i = 0; i < 100; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEngineForceFullCompaction() throws IOException {
+        Options options = new Options(4 * KB, 1000, 16 * KB, false, new CompactStrategy.NoCompact());
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 500; i++) {
+                    engine.put("key_%05d".formatted(i).getBytes(), "value_%05d_%d".formatted(i, round).getBytes());
+                }
+                for (int i = round; i < 500; i += 4) {
+                    engine.delete("key_%05d".formatted(i).getBytes());
+                }
+                engine.forceFreezeMemoryTable();
+                while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                    engine.forceFlushImmutableMemoryTable();
+                }
+            }
+            assertFalse(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+
+            engine.forceFullCompaction();
+
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+            assertFalse(engine.getStorage().getLevels().getLast().t2().isEmpty());
+
+            for (int i = 0; i < 500; i++) {
+                byte[] value = engine.get("key_%05d".formatted(i).getBytes());
+                if (i % 4 == 3) {
+                    assertNull(value);
+                } else {
+                    assertArrayEquals("value_%05d_3".formatted(i).getBytes(), value);
+                }
+            }
+
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                int count = 0;
+                while (iter.isValid()) {
+                    count += 1;
+                    iter.next();
+                }
+                assertEquals(375, count);
+            }
+        }
+
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+            assertArrayEquals("value_00000_3".getBytes(), engine.get("key_00000".getBytes()));
+            assertNull(engine.get("key_00003".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineForceCompactRange() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 100; i++) {
+                engine.put("a_%05d".formatted(i).getBytes(), "1".getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            for (int i = 0; i < 100; i++) {
+                engine.put("b_%05d".formatted(i).getBytes(), "2".getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            List<Integer> level0 = engine.getStorage().getLevel0SortedStringTables();
+            assertEquals(2, level0.size());
+            int sstOfA = level0.getFirst();
+
+            engine.forceCompactRange(Bound.included("b_00010".getBytes()), Bound.included("b_00020".getBytes()));
+
+            assertEquals(List.of(sstOfA), engine.getStorage().getLevel0SortedStringTables());
+            assertEquals(1, engine.getStorage().getLevels().getLast().t2().size());
+            assertArrayEquals("1".getBytes(), engine.get("a_00050".getBytes()));
+            assertArrayEquals("2".getBytes(), engine.get("b_00050".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineFailedFullCompactionLeavesNoFile() throws IOException {
+        AtomicBoolean failing = new AtomicBoolean(true);
+        byte[] largeValue = new byte[200];
+        Arrays.fill(largeValue, (byte) 'x');
+        // rewritten value is large enough to go to a blob file written by compaction
+        CompactionFilter filter = (userKey, _) -> {
+            if (failing.get() && Arrays.equals(userKey, "key_00400".getBytes())) {
+                throw new IllegalStateException("injected compaction failure");
+            }
+            return CompactionFilter.changeValue(largeValue);
+        };
+        Options options = new Options(KB, 1000, 4 * KB, false, new CompactStrategy.NoCompact())
+                .withCompactionFilter(filter, false)
+                .withBlobFiles(100, 0.5);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            List<Integer> level0 = engine.getStorage().getLevel0SortedStringTables();
+            Set<Path> files = listDataFiles();
+
+            RuntimeException e = assertThrows(RuntimeException.class, engine::forceFullCompaction);
+            assertInstanceOf(IllegalStateException.class, e.getCause());
+            // sst and blob file built before the failure are deleted, inputs stay
+            assertEquals(files, listDataFiles());
+            assertEquals(level0, engine.getStorage().getLevel0SortedStringTables());
+            assertArrayEquals("value_00100".getBytes(), engine.get("key_00100".getBytes()));
+
+            failing.set(false);
+            engine.forceFullCompaction();
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+            assertArrayEquals(largeValue, engine.get("key_00400".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineRejectManualCompactionWithoutLevels() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(KB, 1000, 4 * KB, false, new CompactStrategy.Fifo(0, 0)))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            assertThrows(UnsupportedOperationException.class, engine::forceFullCompaction);
+            assertThrows(UnsupportedOperationException.class,
+                    () -> engine.forceCompactRange(Bound.included("k0".getBytes()), Bound.included("k2".getBytes())));
+        }
+    }
+
+    private Set<Path> listDataFiles() throws IOException {
+        try (var files = Files.list(tmpDir)) {
+            return files.filter(file -> file.toString().endsWith(".sst") || file.toString().endsWith(".blob"))
+                    .collect(Collectors.toSet());
+        }
+    }
+
+    @Test
+    void testEngineTombstoneTriggeredCompaction() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Simple(200, 100, 1, 50));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 100; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            Thread.sleep(200);
+            assertEquals(1, engine.getStorage().getLevel0SortedStringTables().size());
+
+            for (int i = 0; i < 80; i++) {
+                engine.delete("key_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            for (int i = 0; i < 50 && !engine.getStorage().getLevel0SortedStringTables().isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+
+            List<Integer> bottomLevel = engine.getStorage().getLevels().getLast().t2();
+            assertEquals(1, bottomLevel.size());
+            SortedStringTable sst = engine.getStorage().getSortedStringTables().get(bottomLevel.getFirst());
+            assertEquals(20, sst.getNumOfKeys());
+            assertEquals(0, sst.getNumOfTombstones());
+            assertNull(engine.get("key_00000".getBytes()));
+            assertArrayEquals("value_00099".getBytes(), engine.get("key_00099".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineCountTombstonesByKind() throws IOException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact())
+                .withMergeOperator((existing, operands) -> existing == null ? new byte[0] : existing);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            // empty merge operand is not a tombstone
+            engine.merge("k2".getBytes(), new byte[0]);
+            engine.delete("k3".getBytes());
+            engine.deleteRange("k4".getBytes(), "k5".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            int sstId = engine.getStorage().getLevel0SortedStringTables().getFirst();
+            assertEquals(2, engine.getStorage().getSortedStringTables().get(sstId).getNumOfTombstones());
+        }
+    }
+
+    @Test
+    void testEngineTombstoneTriggeredCompactionWithSnapshot() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Simple(200, 1, 1, 30));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 100; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            Snapshot snapshot = engine.getSnapshot();
+            for (int i = 0; i < 80; i++) {
+                engine.delete("key_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            for (int i = 0; i < 50 && !engine.getStorage().getLevel0SortedStringTables().isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+
+            // snapshot pins tombstones, bottom sst is not rewritten again and again
+            List<Integer> bottomLevel = engine.getStorage().getLevels().getLast().t2();
+            assertEquals(1, bottomLevel.size());
+            int sstId = bottomLevel.getFirst();
+            SortedStringTable pinned = engine.getStorage().getSortedStringTables().get(sstId);
+            assertEquals(180, pinned.getNumOfKeys());
+            assertEquals(80, pinned.getNumOfTombstones());
+            Thread.sleep(500);
+            assertEquals(List.of(sstId), engine.getStorage().getLevels().getLast().t2());
+
+            // tombstones are dropped once the snapshot is released
+            snapshot.close();
+            for (int i = 0; i < 50 && engine.getStorage().getLevels().getLast().t2().contains(sstId); i++) {
+                Thread.sleep(100);
+            }
+            bottomLevel = engine.getStorage().getLevels().getLast().t2();
+            assertEquals(1, bottomLevel.size());
+            SortedStringTable sst = engine.getStorage().getSortedStringTables().get(bottomLevel.getFirst());
+            assertEquals(0, sst.getNumOfTombstones());
+            assertNull(engine.get("key_00000".getBytes()));
+            assertArrayEquals("value_00099".getBytes(), engine.get("key_00099".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineFifoCompactionDropOldestOnSize() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Fifo(9 * KB, 0));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int round = 0; round < 4; round++) {
+                for (int i = 0; i < 100; i++) {
+                    engine.put("key_%d_%05d".formatted(round, i).getBytes(), "value_%05d".formatted(i).getBytes());
+                }
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            for (int i = 0; i < 50 && engine.getStorage().getLevel0SortedStringTables().size() > 2; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(2, engine.getStorage().getLevel0SortedStringTables().size());
+            assertNull(engine.get("key_0_00000".getBytes()));
+            assertNull(engine.get("key_1_00099".getBytes()));
+            assertArrayEquals("value_00000".getBytes(), engine.get("key_2_00000".getBytes()));
+            assertArrayEquals("value_00099".getBytes(), engine.get("key_3_00099".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineFifoCompactionDropExpired() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Fifo(0, 500));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            assertArrayEquals("v1".getBytes(), engine.get("k1".getBytes()));
+
+            for (int i = 0; i < 50 && !engine.getStorage().getLevel0SortedStringTables().isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+            assertNull(engine.get("k1".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineFifoCompactionMergeSmallFiles() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Fifo(0, 0, MB, 3));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int round = 0; round < 3; round++) {
+                engine.put("k1".getBytes(), "v%d".formatted(round).getBytes());
+                engine.put("k%d".formatted(round + 2).getBytes(), "v".getBytes());
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            for (int i = 0; i < 50 && engine.getStorage().getLevel0SortedStringTables().size() > 1; i++) {
+                Thread.sleep(100);
+            }
+            assertEquals(1, engine.getStorage().getLevel0SortedStringTables().size());
+            assertArrayEquals("v2".getBytes(), engine.get("k1".getBytes()));
+            assertArrayEquals("v".getBytes(), engine.get("k4".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineSimpleCompactionTriggeredByLevelSize() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, 8 * KB, false, new CompactStrategy.Simple(200, 2, 1, 0));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            // tiny sst do not fill up level 0
+            for (int i = 0; i < 2; i++) {
+                engine.put("k%d".formatted(i).getBytes(), "v".getBytes());
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+            }
+            Thread.sleep(200);
+            assertEquals(2, engine.getStorage().getLevel0SortedStringTables().size());
+            assertTrue(engine.getStorage().getLevels().getFirst().t2().isEmpty());
+
+            long level0Size = 0;
+            for (Integer sstId : engine.getStorage().getLevel0SortedStringTables()) {
+                level0Size += engine.getStorage().getSortedStringTables().get(sstId).size();
+            }
+            assertEquals(level0Size, engine.getStorage().getLevelSize(0));
+
+            // two values fill up the first memory table, level 0 only reaches trigger with the last flush,
+            // so that no sst is flushed while compaction of level 0 is in flight
+            byte[] value = new byte[7000];
+            for (int i = 0; i < 3; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), value);
+            }
+            engine.forceFreezeMemoryTable();
+            assertEquals(2, engine.getStorage().getImmutableMemoryTables().size());
+            engine.forceFlushImmutableMemoryTable();
+            Thread.sleep(200);
+            assertEquals(3, engine.getStorage().getLevel0SortedStringTables().size());
+            assertTrue(engine.getStorage().getLevels().getFirst().t2().isEmpty());
+            engine.forceFlushImmutableMemoryTable();
+
+            for (int i = 0; i < 50 && !engine.getStorage().getLevel0SortedStringTables().isEmpty(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+            assertEquals(0, engine.getStorage().getLevelSize(0));
+            assertTrue(engine.getStorage().getLevelSize(1) > 0);
+            assertArrayEquals("v".getBytes(), engine.get("k0".getBytes()));
+            assertArrayEquals(value, engine.get("key_00002".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineStorageVersionIsImmutable() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact()))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            engine.forceFreezeMemoryTable();
+
+            Storage before = engine.getStorage();
+            engine.forceFlushImmutableMemoryTable();
+            Storage after = engine.getStorage();
+
+            assertNotSame(before, after);
+            assertEquals(1, before.getImmutableMemoryTables().size());
+            assertTrue(before.getLevel0SortedStringTables().isEmpty());
+            assertTrue(after.getImmutableMemoryTables().isEmpty());
+            assertEquals(1, after.getLevel0SortedStringTables().size());
+            assertThrows(UnsupportedOperationException.class, () -> after.getLevel0SortedStringTables().add(0));
+        }
+    }
+
+    @Test
+    void testEngineScanSurviveCompaction() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(KB, 1000, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            List<Integer> oldSSTs = engine.getStorage().getLevel0SortedStringTables();
+            assertTrue(oldSSTs.size() > 1);
+
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                assertArrayEquals("key_00000".getBytes(), iter.key());
+
+                engine.forceFullCompaction();
+                assertTrue(engine.getStorage().getLevel0SortedStringTables().isEmpty());
+                for (Integer sstId : oldSSTs) {
+                    assertTrue(Files.exists(Engine.getPathOfSST(tmpDir, sstId)));
+                }
+
+                int cnt = 0;
+                while (iter.isValid()) {
+                    assertArrayEquals("value_%05d".formatted(cnt).getBytes(), iter.value());
+                    cnt += 1;
+                    iter.next();
+                }
+                assertEquals(500, cnt);
+
+                iter.close();
+                for (Integer sstId : oldSSTs) {
+                    assertFalse(Files.exists(Engine.getPathOfSST(tmpDir, sstId)));
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEngineReleaseUnclosedScan() throws IOException, InterruptedException {
+        try (Engine engine = Engine.open(tmpDir, new Options(KB, 1000, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            List<Integer> oldSSTs = engine.getStorage().getLevel0SortedStringTables();
+
+            // iterator is dropped without close
+            assertTrue(engine.scan(Bound.unbound(), Bound.unbound()).isValid());
+            engine.forceFullCompaction();
+
+            // cleaner releases version pinned by unreachable iterator
+            for (int i = 0; i < 100 && Files.exists(Engine.getPathOfSST(tmpDir, oldSSTs.getFirst())); i++) {
+                System.gc();
+                Thread.sleep(50);
+            }
+            for (Integer sstId : oldSSTs) {
+                assertFalse(Files.exists(Engine.getPathOfSST(tmpDir, sstId)));
+            }
+        }
+    }
+
+    @Test
+    void testEngineSnapshotIsolation() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            engine.put("k2".getBytes(), "v2".getBytes());
+
+            try (Snapshot snapshot = engine.getSnapshot()) {
+                engine.put("k1".getBytes(), "v11".getBytes());
+                engine.delete("k2".getBytes());
+                engine.put("k3".getBytes(), "v3".getBytes());
+
+                assertArrayEquals("v1".getBytes(), engine.get("k1".getBytes(), snapshot));
+                assertArrayEquals("v2".getBytes(), engine.get("k2".getBytes(), snapshot));
+                assertNull(engine.get("k3".getBytes(), snapshot));
+                assertArrayEquals("v11".getBytes(), engine.get("k1".getBytes()));
+                assertNull(engine.get("k2".getBytes()));
+
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+
+                try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound(), snapshot)) {
+                    assertArrayEquals("k1".getBytes(), iter.key());
+                    assertArrayEquals("v1".getBytes(), iter.value());
+                    iter.next();
+                    assertArrayEquals("k2".getBytes(), iter.key());
+                    assertArrayEquals("v2".getBytes(), iter.value());
+                    iter.next();
+                    assertFalse(iter.isValid());
+                }
+
+                try (StorageIterator iter = engine.scan(Bound.included("k1".getBytes()), Bound.included("k3".getBytes()))) {
+                    assertArrayEquals("k1".getBytes(), iter.key());
+                    assertArrayEquals("v11".getBytes(), iter.value());
+                    iter.next();
+                    assertArrayEquals("k3".getBytes(), iter.key());
+                    iter.next();
+                    assertFalse(iter.isValid());
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEngineCompactionKeepVersionVisibleToSnapshot() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            engine.put("k2".getBytes(), "v2".getBytes());
+            Snapshot snapshot = engine.getSnapshot();
+            engine.put("k1".getBytes(), "v11".getBytes());
+            engine.delete("k2".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            engine.forceFullCompaction();
+            assertArrayEquals("v1".getBytes(), engine.get("k1".getBytes(), snapshot));
+            assertArrayEquals("v2".getBytes(), engine.get("k2".getBytes(), snapshot));
+            assertArrayEquals("v11".getBytes(), engine.get("k1".getBytes()));
+            assertNull(engine.get("k2".getBytes()));
+
+            // old versions and tombstone are dropped once no snapshot can see them
+            snapshot.close();
+            engine.forceFullCompaction();
+            int numOfKeys = 0;
+            for (SortedStringTable sst : engine.getStorage().getSortedStringTables().values()) {
+                numOfKeys += sst.getNumOfKeys();
+            }
+            assertEquals(1, numOfKeys);
+            assertArrayEquals("v11".getBytes(), engine.get("k1".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineTransactionReadYourWrites() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+
+            try (Transaction txn = engine.beginTransaction()) {
+                assertArrayEquals("v1".getBytes(), txn.get("k1".getBytes()));
+                txn.put("k1".getBytes(), "v11".getBytes());
+                txn.put("k2".getBytes(), "v2".getBytes());
+                assertArrayEquals("v11".getBytes(), txn.get("k1".getBytes()));
+                txn.delete("k2".getBytes());
+                assertNull(txn.get("k2".getBytes()));
+                txn.put("k3".getBytes(), "v3".getBytes());
+
+                // buffered writes are invisible until commit
+                assertArrayEquals("v1".getBytes(), engine.get("k1".getBytes()));
+                assertNull(engine.get("k3".getBytes()));
+                txn.commit();
+            }
+
+            assertArrayEquals("v11".getBytes(), engine.get("k1".getBytes()));
+            assertNull(engine.get("k2".getBytes()));
+            assertArrayEquals("v3".getBytes(), engine.get("k3".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineTransactionConflict() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+
+            Transaction txn1 = engine.beginTransaction();
+            Transaction txn2 = engine.beginTransaction();
+            assertArrayEquals("v1".getBytes(), txn1.get("k1".getBytes()));
+            assertArrayEquals("v1".getBytes(), txn2.get("k1".getBytes()));
+            txn1.put("k1".getBytes(), "v2".getBytes());
+            txn2.put("k1".getBytes(), "v3".getBytes());
+
+            txn1.commit();
+            assertThrows(TransactionConflictException.class, txn2::commit);
+            assertThrows(IllegalStateException.class, () -> txn2.get("k1".getBytes()));
+            assertArrayEquals("v2".getBytes(), engine.get("k1".getBytes()));
+
+            // blind write does not conflict
+            Transaction txn3 = engine.beginTransaction();
+            engine.put("k1".getBytes(), "v4".getBytes());
+            txn3.put("k1".getBytes(), "v5".getBytes());
+            txn3.commit();
+            assertArrayEquals("v5".getBytes(), engine.get("k1".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineTransactionConcurrentIncrement() throws Exception {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            byte[] key = "counter".getBytes();
+            engine.put(key, "0".getBytes());
+
+            int numOfThreads = 8;
+            int numOfIncrements = 100;
+            final List<Future<?>> futures = new ArrayList<>(numOfThreads);
+            try (ExecutorService executor = Executors.newFixedThreadPool(numOfThreads)) {
+                for (int t = 0; t < numOfThreads; t++) {
+                    futures.add(executor.submit(() -> {
+                        for (int i = 0; i < numOfIncrements; i++) {
+                            while (true) {
+                                try (Transaction txn = engine.beginTransaction()) {
+                                    int value = Integer.parseInt(new String(txn.get(key)));
+                                    txn.put(key, String.valueOf(value + 1).getBytes());
+                                    txn.commit();
+                                    break;
+                                } catch (TransactionConflictException e) {
+                                    // retry
+                                }
+                            }
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertArrayEquals(String.valueOf(numOfThreads * numOfIncrements).getBytes(), engine.get(key));
+        }
+    }
+
+    private static final MergeOperator COUNTER = (existing, operands) -> {
+        long sum = existing == null ? 0 : Long.parseLong(new String(existing));
+        for (byte[] operand : operands) {
+            sum += Long.parseLong(new String(operand));
+        }
+        return String.valueOf(sum).getBytes();
+    };
+
+    @Test
+    void testEngineMerge() throws IOException {
+        Options options = new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()).withMergeOperator(COUNTER);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.merge("k1".getBytes(), "1".getBytes());
+            engine.merge("k1".getBytes(), "2".getBytes());
+            assertArrayEquals("3".getBytes(), engine.get("k1".getBytes()));
+
+            engine.put("k2".getBytes(), "10".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            // operands in memory table are folded onto value in sst
+            engine.merge("k1".getBytes(), "3".getBytes());
+            engine.merge("k2".getBytes(), "5".getBytes());
+            assertArrayEquals("6".getBytes(), engine.get("k1".getBytes()));
+            assertArrayEquals("15".getBytes(), engine.get("k2".getBytes()));
+
+            try (Snapshot snapshot = engine.getSnapshot()) {
+                engine.delete("k2".getBytes());
+                engine.merge("k2".getBytes(), "7".getBytes());
+                assertArrayEquals("7".getBytes(), engine.get("k2".getBytes()));
+
+                try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                    assertArrayEquals("k1".getBytes(), iter.key());
+                    assertArrayEquals("6".getBytes(), iter.value());
+                    iter.next();
+                    assertArrayEquals("k2".getBytes(), iter.key());
+                    assertArrayEquals("7".getBytes(), iter.value());
+                    iter.next();
+                    assertFalse(iter.isValid());
+                }
 
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+                engine.forceFullCompaction();
+                assertArrayEquals("15".getBytes(), engine.get("k2".getBytes(), snapshot));
+                assertArrayEquals("7".getBytes(), engine.get("k2".getBytes()));
+            }
+
+            // operands are folded into a single put once no snapshot needs older versions
+            engine.forceFullCompaction();
+            int numOfKeys = 0;
+            for (SortedStringTable sst : engine.getStorage().getSortedStringTables().values()) {
+                numOfKeys += sst.getNumOfKeys();
+            }
+            assertEquals(2, numOfKeys);
+            assertArrayEquals("6".getBytes(), engine.get("k1".getBytes()));
+            assertArrayEquals("7".getBytes(), engine.get("k2".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineMergeWithoutOperator() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            assertThrows(IllegalStateException.class, () -> engine.merge("k1".getBytes(), "1".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineTtlCompactionFilter() throws IOException {
+        AtomicLong now = new AtomicLong(1000);
+        Options options = new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact())
+                .withCompactionFilter(new TtlCompactionFilter(now::get), false);
+        try (Engine engine = Engine.open(tmpDir, options)) {
             for (int i = 0; i < 100; i++) {
-                assertTrue(iter.isValid());
-                assertArrayEquals("value_%05d".formatted(i).getBytes(), iter.value());
+                long expireAt = i % 2 == 0 ? 2000 : 10000;
+                engine.put("key_%03d".formatted(i).getBytes(), TtlCompactionFilter.encode("value_%03d".formatted(i).getBytes(), expireAt));
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            now.set(3000);
+            // expired value is visible until compaction drops it
+            byte[] value = engine.get("key_000".getBytes());
+            assertNotNull(value);
+            assertEquals(2000, TtlCompactionFilter.expireAt(value));
+            assertArrayEquals("value_000".getBytes(), TtlCompactionFilter.value(value));
+
+            try (Snapshot snapshot = engine.getSnapshot()) {
+                // version visible to snapshot is never filtered
+                engine.forceFullCompaction();
+                assertNotNull(engine.get("key_000".getBytes(), snapshot));
+            }
+
+            engine.forceFullCompaction();
+            for (int i = 0; i < 100; i++) {
+                byte[] res = engine.get("key_%03d".formatted(i).getBytes());
+                if (i % 2 == 0) {
+                    assertNull(res);
+                } else {
+                    assertArrayEquals("value_%03d".formatted(i).getBytes(), TtlCompactionFilter.value(res));
+                }
+            }
+
+            int numOfKeys = 0;
+            for (SortedStringTable sst : engine.getStorage().getSortedStringTables().values()) {
+                numOfKeys += sst.getNumOfKeys();
+            }
+            assertEquals(50, numOfKeys);
+        }
+    }
+
+    @Test
+    void testEngineTtlFilterOnRead() throws IOException {
+        AtomicLong now = new AtomicLong(1000);
+        Options options = new Options(2 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact())
+                .withCompactionFilter(new TtlCompactionFilter(now::get), true);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.put("k1".getBytes(), TtlCompactionFilter.encode("v1".getBytes(), 2000));
+            engine.put("k2".getBytes(), TtlCompactionFilter.encode("v2".getBytes(), 10000));
+            assertNotNull(engine.get("k1".getBytes()));
+
+            now.set(3000);
+            assertNull(engine.get("k1".getBytes()));
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                assertArrayEquals("k2".getBytes(), iter.key());
+                assertArrayEquals("v2".getBytes(), TtlCompactionFilter.value(iter.value()));
+                iter.next();
+                assertFalse(iter.isValid());
+            }
+        }
+    }
+
+    @Test
+    void testEngineBlobFiles() throws IOException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact()).withBlobFiles(KB, 0.4);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            // value larger than u16 length of block and wal
+            for (int i = 0; i < 30; i++) {
+                engine.put("key_%02d".formatted(i).getBytes(), largeValue(i, 1));
+            }
+            for (int i = 0; i < 30; i += 2) {
+                engine.put("key_%02d".formatted(i).getBytes(), largeValue(i, 2));
+            }
+            engine.put("small".getBytes(), "value".getBytes());
+            assertArrayEquals(largeValue(1, 1), engine.get("key_01".getBytes()));
+            assertArrayEquals(largeValue(2, 2), engine.get("key_02".getBytes()));
+
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            // overwritten values become garbage, then live values are relocated out of files with too much garbage
+            engine.forceFullCompaction();
+            Set<Integer> oldBlobFiles = new HashSet<>(engine.getStorage().getBlobFiles().keySet());
+            engine.forceFullCompaction();
+            for (Integer blobId : oldBlobFiles) {
+                BlobFile blobFile = engine.getStorage().getBlobFiles().get(blobId);
+                assertTrue(blobFile == null || blobFile.garbageRatio() < 0.4);
+            }
+            long numOfBlobFiles;
+            try (var files = Files.list(tmpDir)) {
+                numOfBlobFiles = files.filter(file -> file.toString().endsWith(".blob")).count();
+            }
+            assertEquals(engine.getStorage().getBlobFiles().size(), numOfBlobFiles);
+
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                for (int i = 0; i < 30; i++) {
+                    assertArrayEquals("key_%02d".formatted(i).getBytes(), iter.key());
+                    assertArrayEquals(largeValue(i, i % 2 == 0 ? 2 : 1), iter.value());
+                    iter.next();
+                }
+                assertArrayEquals("small".getBytes(), iter.key());
                 iter.next();
+                assertFalse(iter.isValid());
             }
         }
+
+        // blob file referenced by neither sst nor wal, e.g. left by a failed compaction, is reclaimed on open
+        Path orphan = Engine.getPathOfBlob(tmpDir, 100_000);
+        BlobFile.create(100_000, orphan).close();
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 30; i++) {
+                assertArrayEquals(largeValue(i, i % 2 == 0 ? 2 : 1), engine.get("key_%02d".formatted(i).getBytes()));
+            }
+            assertFalse(engine.getStorage().getBlobFiles().containsKey(100_000));
+        }
+        assertFalse(Files.exists(orphan));
+    }
+
+    @Test
+    void testEngineBlobGarbageCollectionWithoutWrites() throws IOException, InterruptedException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.Simple(200, 1, 1)).withBlobFiles(KB, 0.4);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int version = 1; version <= 2; version++) {
+                // overwrite even keys, compaction drops their old values and leaves garbage in blob files
+                for (int i = 0; i < 30; i += version) {
+                    engine.put("key_%02d".formatted(i).getBytes(), largeValue(i, version));
+                }
+                engine.forceFreezeMemoryTable();
+                while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                    engine.forceFlushImmutableMemoryTable();
+                }
+                engine.forceFullCompaction();
+            }
+
+            // blob file with too much garbage is reclaimed by compaction of the sst referencing it
+            boolean reclaimed = false;
+            for (int i = 0; i < 100 && !reclaimed; i++) {
+                reclaimed = engine.getStorage().getBlobFiles().values().stream().allMatch(blobFile -> blobFile.garbageRatio() < 0.4);
+                Thread.sleep(50);
+            }
+            assertTrue(reclaimed);
+            assertEquals(engine.getStorage().getBlobFiles().size(), listDataFiles().stream().filter(file -> file.toString().endsWith(".blob")).count());
+            for (int i = 0; i < 30; i++) {
+                assertArrayEquals(largeValue(i, i % 2 == 0 ? 2 : 1), engine.get("key_%02d".formatted(i).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    void testEngineRejectLargeValueWithoutBlobFiles() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(4 * KB, 2, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            assertThrows(IllegalArgumentException.class, () -> engine.put("k".getBytes(), new byte[100 * KB]));
+        }
+    }
+
+    private static byte[] largeValue(int key, int version) {
+        byte[] value = new byte[100 * KB];
+        Arrays.fill(value, (byte) (key * 3 + version));
+        value[0] = (byte) key;
+        value[value.length - 1] = (byte) version;
+        return value;
+    }
+
+    @Test
+    void testEngineDeleteRange() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(2 * KB, 1000, 4 * KB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 100; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            Snapshot snapshot = engine.getSnapshot();
+            engine.deleteRange("key_00010".getBytes(), "key_00020".getBytes());
+            engine.put("key_00015".getBytes(), "new".getBytes());
+
+            assertArrayEquals("value_00009".getBytes(), engine.get("key_00009".getBytes()));
+            assertNull(engine.get("key_00010".getBytes()));
+            assertNull(engine.get("key_00019".getBytes()));
+            assertArrayEquals("new".getBytes(), engine.get("key_00015".getBytes()));
+            assertArrayEquals("value_00020".getBytes(), engine.get("key_00020".getBytes()));
+            assertArrayEquals("value_00012".getBytes(), engine.get("key_00012".getBytes(), snapshot));
+
+            try (StorageIterator iter = engine.scan(Bound.included("key_00005".getBytes()), Bound.excluded("key_00025".getBytes()))) {
+                int cnt = 0;
+                while (iter.isValid()) {
+                    cnt += 1;
+                    iter.next();
+                }
+                // 5 ~ 9, 15, 20 ~ 24
+                assertEquals(11, cnt);
+            }
+
+            // range tombstone is flushed to sst and still hides older data
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            assertNull(engine.get("key_00011".getBytes()));
+            assertArrayEquals("value_00011".getBytes(), engine.get("key_00011".getBytes(), snapshot));
+
+            engine.forceFullCompaction();
+            assertNull(engine.get("key_00011".getBytes()));
+            assertArrayEquals("value_00011".getBytes(), engine.get("key_00011".getBytes(), snapshot));
+
+            // covered data and range tombstone are dropped at bottom level once no snapshot needs them
+            snapshot.close();
+            engine.forceFullCompaction();
+            int numOfKeys = 0;
+            int numOfRangeTombstones = 0;
+            for (SortedStringTable sst : engine.getStorage().getSortedStringTables().values()) {
+                numOfKeys += sst.getNumOfKeys();
+                numOfRangeTombstones += sst.getRangeTombstones().size();
+            }
+            assertEquals(91, numOfKeys);
+            assertEquals(0, numOfRangeTombstones);
+            assertNull(engine.get("key_00011".getBytes()));
+            assertArrayEquals("new".getBytes(), engine.get("key_00015".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineDeleteRangeDropWholeSST() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(KB, 1000, 2 * KB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            engine.forceFullCompaction();
+            assertTrue(engine.getStorage().getLevels().getFirst().t2().size() > 1);
+
+            engine.deleteRange("key".getBytes(), "key_99999".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            engine.forceFullCompaction();
+
+            assertTrue(engine.getStorage().getSortedStringTables().isEmpty());
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                assertFalse(iter.isValid());
+            }
+        }
+    }
+
+    @Test
+    void testEngineDeleteRangeSplitAcrossSSTs() throws IOException {
+        try (Engine engine = Engine.open(tmpDir, new Options(KB, 1000, 2 * KB, false, new CompactStrategy.NoCompact()))) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            try (Snapshot _ = engine.getSnapshot()) {
+                engine.deleteRange("key_00100".getBytes(), "key_00400".getBytes());
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+                engine.forceFullCompaction();
+
+                // range tombstone is cut into fragments along with output sst
+                List<Integer> bottomLevel = engine.getStorage().getLevels().getFirst().t2();
+                int numOfSSTWithRangeTombstone = 0;
+                for (Integer sstId : bottomLevel) {
+                    if (!engine.getStorage().getSortedStringTables().get(sstId).getRangeTombstones().isEmpty()) {
+                        numOfSSTWithRangeTombstone += 1;
+                    }
+                }
+                assertTrue(numOfSSTWithRangeTombstone > 1);
+
+                assertArrayEquals("value_00099".getBytes(), engine.get("key_00099".getBytes()));
+                assertArrayEquals("value_00400".getBytes(), engine.get("key_00400".getBytes()));
+                try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                    int cnt = 0;
+                    while (iter.isValid()) {
+                        assertNull(engine.get("key_00250".getBytes()));
+                        cnt += 1;
+                        iter.next();
+                    }
+                    assertEquals(200, cnt);
+                }
+            }
+        }
+    }
+
+    @Test
+    void testEngineRecoverDeleteRangeFromWAL() throws IOException {
+        Options options = new Options(2 * KB, 1000, 4 * KB, true, new CompactStrategy.NoCompact());
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            engine.put("k1".getBytes(), "v1".getBytes());
+            engine.put("k2".getBytes(), "v2".getBytes());
+            engine.put("k3".getBytes(), "v3".getBytes());
+            engine.deleteRange("k1".getBytes(), "k3".getBytes());
+        }
+
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            assertNull(engine.get("k1".getBytes()));
+            assertNull(engine.get("k2".getBytes()));
+            assertArrayEquals("v3".getBytes(), engine.get("k3".getBytes()));
+            // sequence is recovered from range tombstone too, later write is not hidden
+            engine.put("k2".getBytes(), "v22".getBytes());
+            assertArrayEquals("v22".getBytes(), engine.get("k2".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineFilterTypePerLevel() throws IOException {
+        Options options = new Options(4 * KB, 1000, 16 * KB, false, new CompactStrategy.NoCompact())
+                .withFilterPolicy(FilterPolicy.of(KeyFilter.Type.BLOCKED_BLOOM, KeyFilter.Type.RIBBON));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            for (Integer sstId : engine.getStorage().getLevel0SortedStringTables()) {
+                assertEquals(KeyFilter.Type.BLOCKED_BLOOM, engine.getStorage().getSortedStringTables().get(sstId).getFilter().type());
+            }
+
+            engine.forceFullCompaction();
+            for (Integer sstId : engine.getStorage().getLevels().getLast().t2()) {
+                assertEquals(KeyFilter.Type.RIBBON, engine.getStorage().getSortedStringTables().get(sstId).getFilter().type());
+            }
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals("value_%05d".formatted(i).getBytes(), engine.get("key_%05d".formatted(i).getBytes()));
+            }
+            assertNull(engine.get("key_01000".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineSkipBottomLevelFilter() throws IOException {
+        Options options = new Options(4 * KB, 1000, 16 * KB, false, new CompactStrategy.NoCompact())
+                .withFilterPolicy(FilterPolicy.of(KeyFilter.Type.BLOCKED_BLOOM).withAutoTune(true).withSkipBottomLevel(true));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            for (Integer sstId : engine.getStorage().getLevel0SortedStringTables()) {
+                assertEquals(KeyFilter.Type.BLOCKED_BLOOM, engine.getStorage().getSortedStringTables().get(sstId).getFilter().type());
+            }
+
+            engine.forceFullCompaction();
+            assertFalse(engine.getStorage().getLevels().getLast().t2().isEmpty());
+            for (Integer sstId : engine.getStorage().getLevels().getLast().t2()) {
+                assertEquals(KeyFilter.Type.NONE, engine.getStorage().getSortedStringTables().get(sstId).getFilter().type());
+            }
+        }
+
+        // filter type is kept by sst after reopen
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (Integer sstId : engine.getStorage().getLevels().getLast().t2()) {
+                assertEquals(KeyFilter.Type.NONE, engine.getStorage().getSortedStringTables().get(sstId).getFilter().type());
+            }
+            for (int i = 0; i < 500; i++) {
+                assertArrayEquals("value_%05d".formatted(i).getBytes(), engine.get("key_%05d".formatted(i).getBytes()));
+            }
+            assertNull(engine.get("key_01000".getBytes()));
+        }
+    }
+
+    @Test
+    void testEnginePrefixScan() throws IOException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact())
+                .withPrefixExtractor(PrefixExtractor.fixed(5));
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            // every sst in level 0 holds one user
+            for (int user = 0; user < 8; user++) {
+                for (int i = 0; i < 20; i++) {
+                    engine.put("u%03d:%03d".formatted(user, i).getBytes(), "value_%03d".formatted(i).getBytes());
+                }
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+            }
+            engine.delete("u003:005".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+
+            int numOfCandidates = 0;
+            long prefixHash = KeyFilter.hash("u003:".getBytes());
+            for (Integer sstId : engine.getStorage().getLevel0SortedStringTables()) {
+                if (engine.getStorage().getSortedStringTables().get(sstId).mayContainPrefix("fixed:5", prefixHash)) {
+                    numOfCandidates += 1;
+                }
+            }
+            assertTrue(numOfCandidates < 4);
+        }
+
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            try (StorageIterator iter = engine.scanPrefix("u003:".getBytes())) {
+                for (int i = 0; i < 20; i++) {
+                    if (i == 5) {
+                        continue;
+                    }
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("u003:%03d".formatted(i).getBytes(), iter.key());
+                    assertArrayEquals("value_%03d".formatted(i).getBytes(), iter.value());
+                    iter.next();
+                }
+                assertFalse(iter.isValid());
+            }
+
+            // prefix longer than extracted one
+            try (StorageIterator iter = engine.scanPrefix("u004:01".getBytes())) {
+                for (int i = 10; i < 20; i++) {
+                    assertArrayEquals("u004:%03d".formatted(i).getBytes(), iter.key());
+                    iter.next();
+                }
+                assertFalse(iter.isValid());
+            }
+
+            // prefix out of domain of extractor scans every sst
+            int count = 0;
+            try (StorageIterator iter = engine.scanPrefix("u00".getBytes())) {
+                while (iter.isValid()) {
+                    count += 1;
+                    iter.next();
+                }
+            }
+            assertEquals(8 * 20 - 1, count);
+
+            try (StorageIterator iter = engine.scanPrefix("u009:".getBytes())) {
+                assertFalse(iter.isValid());
+            }
+        }
+    }
+
+    @Test
+    void testEngineRangeFilterSkipSST() throws IOException {
+        Options options = new Options(4 * KB, 1000, MB, false, new CompactStrategy.NoCompact()).withRangeFilter(2);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            // key spans of ssts overlap each other, but keys do not
+            for (int sst = 0; sst < 4; sst++) {
+                for (int i = 0; i < 50; i++) {
+                    engine.put("key_%05d".formatted(i * 100 + sst).getBytes(), "value_%05d".formatted(i).getBytes());
+                }
+                engine.forceFreezeMemoryTable();
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            int numOfCandidates = 0;
+            for (Integer sstId : engine.getStorage().getLevel0SortedStringTables()) {
+                if (engine.getStorage().getSortedStringTables().get(sstId).mayOverlap(
+                        Bound.included("key_01001".getBytes()), Bound.included("key_01001".getBytes()))) {
+                    numOfCandidates += 1;
+                }
+            }
+            assertEquals(1, numOfCandidates);
+        }
+
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            try (StorageIterator iter = engine.scan(Bound.included("key_01001".getBytes()), Bound.excluded("key_01003".getBytes()))) {
+                assertArrayEquals("key_01001".getBytes(), iter.key());
+                iter.next();
+                assertArrayEquals("key_01002".getBytes(), iter.key());
+                iter.next();
+                assertFalse(iter.isValid());
+            }
+            try (StorageIterator iter = engine.scan(Bound.excluded("key_01003".getBytes()), Bound.included("key_01099".getBytes()))) {
+                assertFalse(iter.isValid());
+            }
+            for (int i = 0; i < 50; i++) {
+                assertArrayEquals("value_%05d".formatted(i).getBytes(), engine.get("key_%05d".formatted(i * 100 + 3).getBytes()));
+            }
+        }
+    }
+
+    @Test
+    void testEngineMultiGet() throws IOException {
+        Options options = new Options(KB, 1000, 8 * KB, false, new CompactStrategy.NoCompact());
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 1000; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            engine.forceFullCompaction();
+
+            // newer versions in level 0, immutable memory table and memory table
+            for (int i = 0; i < 1000; i += 3) {
+                engine.put("key_%05d".formatted(i).getBytes(), "new_value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+            engine.delete("key_00010".getBytes());
+            engine.deleteRange("key_00500".getBytes(), "key_00520".getBytes());
+            engine.forceFreezeMemoryTable();
+            engine.put("key_00011".getBytes(), "latest".getBytes());
+
+            try (Snapshot snapshot = engine.getSnapshot()) {
+                engine.put("key_00012".getBytes(), "after_snapshot".getBytes());
+
+                final List<byte[]> keys = new ArrayList<>();
+                Random random = new Random(7);
+                for (int i = 0; i < 300; i++) {
+                    keys.add("key_%05d".formatted(random.nextInt(1100)).getBytes());
+                }
+                keys.add("key_00010".getBytes());
+                keys.add("key_00011".getBytes());
+                keys.add("key_00012".getBytes());
+                keys.add("key_00011".getBytes());
+                keys.add("key_00505".getBytes());
+
+                for (boolean parallel : new boolean[]{false, true}) {
+                    List<byte[]> values = engine.multiGet(keys, null, parallel);
+                    List<byte[]> valuesOfSnapshot = engine.multiGet(keys, snapshot, parallel);
+                    assertEquals(keys.size(), values.size());
+                    for (int i = 0; i < keys.size(); i++) {
+                        assertArrayEquals(engine.get(keys.get(i)), values.get(i));
+                        assertArrayEquals(engine.get(keys.get(i), snapshot), valuesOfSnapshot.get(i));
+                    }
+                    assertNull(values.get(300));
+                    assertArrayEquals("latest".getBytes(), values.get(301));
+                    assertArrayEquals("after_snapshot".getBytes(), values.get(302));
+                    assertArrayEquals("new_value_00012".getBytes(), valuesOfSnapshot.get(302));
+                    assertArrayEquals("latest".getBytes(), values.get(303));
+                    assertNull(values.get(304));
+                }
+            }
+            assertTrue(engine.multiGet(List.of()).isEmpty());
+        }
+    }
+
+    @Test
+    void testEngineRowCache() throws IOException {
+        Options options = new Options(4 * KB, 1000, 16 * KB, false, new CompactStrategy.NoCompact()).withRowCache(MB);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            for (int i = 0; i < 500; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            engine.forceFreezeMemoryTable();
+            while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                engine.forceFlushImmutableMemoryTable();
+            }
+
+            RowCache rowCache = engine.getRowCache();
+            assertNull(rowCache.get("key_00042".getBytes()));
+            assertArrayEquals("value_00042".getBytes(), engine.get("key_00042".getBytes()));
+            assertArrayEquals("value_00042".getBytes(), rowCache.get("key_00042".getBytes()).value());
+            assertArrayEquals("value_00042".getBytes(), engine.get("key_00042".getBytes()));
+            // negative result is cached too
+            assertNull(engine.get("key_01000".getBytes()));
+            assertNull(rowCache.get("key_01000".getBytes()).value());
+
+            // write invalidates key, row is filled again once the write leaves memory tables
+            engine.put("key_00042".getBytes(), "new_value".getBytes());
+            engine.put("key_01000".getBytes(), "value_01000".getBytes());
+            assertNull(rowCache.get("key_00042".getBytes()));
+            assertArrayEquals("new_value".getBytes(), engine.get("key_00042".getBytes()));
+            assertArrayEquals("value_01000".getBytes(), engine.get("key_01000".getBytes()));
+            assertNull(rowCache.get("key_00042".getBytes()));
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            assertArrayEquals("new_value".getBytes(), engine.get("key_00042".getBytes()));
+            assertArrayEquals("new_value".getBytes(), rowCache.get("key_00042".getBytes()).value());
+
+            // get with snapshot does not fill cache
+            try (Snapshot snapshot = engine.getSnapshot()) {
+                engine.delete("key_00042".getBytes());
+                assertArrayEquals("new_value".getBytes(), engine.get("key_00042".getBytes(), snapshot));
+                assertNull(rowCache.get("key_00042".getBytes()));
+            }
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            assertNull(engine.get("key_00042".getBytes()));
+            assertNull(rowCache.get("key_00042".getBytes()).value());
+
+            assertArrayEquals("value_00100".getBytes(), engine.get("key_00100".getBytes()));
+            engine.deleteRange("key_00100".getBytes(), "key_00200".getBytes());
+            assertNull(engine.get("key_00100".getBytes()));
+            // row filled by a lookup racing with deleteRange is hidden by range tombstone in memory table
+            rowCache.put("key_00150".getBytes(), "value_00150".getBytes(), rowCache.stamp("key_00150".getBytes()));
+            assertNull(engine.get("key_00150".getBytes()));
+            assertNull(engine.multiGet(List.of("key_00150".getBytes())).getFirst());
+            engine.forceFreezeMemoryTable();
+            engine.forceFlushImmutableMemoryTable();
+            assertNull(engine.get("key_00100".getBytes()));
+            assertArrayEquals("value_00200".getBytes(), engine.get("key_00200".getBytes()));
+
+            // multiGet fills cache for keys found in sst and reads rows from it
+            assertNull(rowCache.get("key_00300".getBytes()));
+            List<byte[]> values = engine.multiGet(List.of("key_00300".getBytes(), "key_00200".getBytes(), "key_02000".getBytes()));
+            assertArrayEquals("value_00300".getBytes(), values.get(0));
+            assertArrayEquals("value_00200".getBytes(), values.get(1));
+            assertNull(values.get(2));
+            assertArrayEquals("value_00300".getBytes(), rowCache.get("key_00300".getBytes()).value());
+            assertNull(rowCache.get("key_02000".getBytes()).value());
+            engine.put("key_00300".getBytes(), "new_value".getBytes());
+            assertArrayEquals("new_value".getBytes(), engine.multiGet(List.of("key_00300".getBytes())).getFirst());
+            assertNull(rowCache.get("key_00300".getBytes()));
+        }
+    }
+
+    @Test
+    void testEngineOffHeapMemoryTable() throws IOException {
+        Options options = new Options(4 * KB, 1000, 64 * KB, true, new CompactStrategy.NoCompact()).withOffHeapMemoryTable(true);
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            assertTrue(engine.getStorage().getMemoryTable().isOffHeap());
+            for (int i = 0; i < 2000; i++) {
+                engine.put("key_%05d".formatted(i).getBytes(), "value_%05d".formatted(i).getBytes());
+            }
+            // memory table is frozen by size of its arena
+            assertFalse(engine.getStorage().getImmutableMemoryTables().isEmpty());
+            assertTrue(engine.getStorage().getMemoryTable().isOffHeap());
+
+            // iterator pins off heap memory table flushed under it
+            try (StorageIterator iter = engine.scan(Bound.unbound(), Bound.unbound())) {
+                engine.forceFreezeMemoryTable();
+                while (!engine.getStorage().getImmutableMemoryTables().isEmpty()) {
+                    engine.forceFlushImmutableMemoryTable();
+                }
+                for (int i = 0; i < 2000; i++) {
+                    assertTrue(iter.isValid());
+                    assertArrayEquals("key_%05d".formatted(i).getBytes(), iter.key());
+                    iter.next();
+                }
+                assertFalse(iter.isValid());
+            }
+            for (int i = 0; i < 2000; i += 100) {
+                assertArrayEquals("value_%05d".formatted(i).getBytes(), engine.get("key_%05d".formatted(i).getBytes()));
+            }
+
+            engine.put("key_00042".getBytes(), "new_value".getBytes());
+            engine.delete("key_00043".getBytes());
+        }
+
+        // unflushed off heap memory table is recovered from wal
+        try (Engine engine = Engine.open(tmpDir, options)) {
+            assertArrayEquals("new_value".getBytes(), engine.get("key_00042".getBytes()));
+            assertNull(engine.get("key_00043".getBytes()));
+            assertArrayEquals("value_00044".getBytes(), engine.get("key_00044".getBytes()));
+        }
     }
 }
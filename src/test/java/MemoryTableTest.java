@@ -1,9 +1,21 @@
+import io.geekya215.lamination.Bound;
+import io.geekya215.lamination.InternalKey;
 import io.geekya215.lamination.MemoryTable;
+import io.geekya215.lamination.RangeTombstone;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
-import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static io.geekya215.lamination.Bound.*;
+import static org.junit.jupiter.api.Assertions.*;
 
 public class MemoryTableTest {
     @Test
@@ -30,4 +42,195 @@ public class MemoryTableTest {
         assertArrayEquals("value22".getBytes(), memoryTable.get("key2".getBytes()));
         assertArrayEquals("value33".getBytes(), memoryTable.get("key3".getBytes()));
     }
+
+    @Test
+    void testMemoryTableFreeze() throws IOException {
+        MemoryTable memoryTable = MemoryTable.create(0);
+        MemoryTable frozenMemoryTable = MemoryTable.create(1);
+        for (int i = 0; i < 100; i += 2) {
+            byte[] key = "key%03d".formatted(i).getBytes();
+            byte[] value = "value%d".formatted(i).getBytes();
+            memoryTable.put(key, value);
+            frozenMemoryTable.put(key, value);
+        }
+        frozenMemoryTable.freeze();
+        assertTrue(frozenMemoryTable.isFrozen());
+        assertFalse(frozenMemoryTable.isEmpty());
+        assertThrows(IllegalStateException.class, () -> frozenMemoryTable.put("key".getBytes(), "value".getBytes()));
+
+        for (int i = 0; i < 101; i++) {
+            byte[] key = "key%03d".formatted(i).getBytes();
+            assertArrayEquals(memoryTable.get(key), frozenMemoryTable.get(key));
+            Map.Entry<byte[], byte[]> expected = memoryTable.seek(key);
+            Map.Entry<byte[], byte[]> actual = frozenMemoryTable.seek(key);
+            if (expected == null) {
+                assertNull(actual);
+            } else {
+                assertArrayEquals(expected.getKey(), actual.getKey());
+                assertArrayEquals(expected.getValue(), actual.getValue());
+            }
+        }
+
+        List<Bound<byte[]>> bounds = List.of(
+                unbound(),
+                included("key010".getBytes()), excluded("key010".getBytes()),
+                included("key055".getBytes()), excluded("key055".getBytes()),
+                included("key098".getBytes()), excluded("key099".getBytes()));
+        for (Bound<byte[]> lower : bounds) {
+            for (Bound<byte[]> upper : bounds) {
+                MemoryTable.MemoryTableIterator expected;
+                try {
+                    expected = memoryTable.scan(lower, upper);
+                } catch (IllegalArgumentException e) {
+                    assertThrows(IllegalArgumentException.class, () -> frozenMemoryTable.scan(lower, upper));
+                    continue;
+                }
+                MemoryTable.MemoryTableIterator actual = frozenMemoryTable.scan(lower, upper);
+                while (expected.isValid()) {
+                    assertTrue(actual.isValid());
+                    assertArrayEquals(expected.key(), actual.key());
+                    assertArrayEquals(expected.value(), actual.value());
+                    expected.next();
+                    actual.next();
+                }
+                assertFalse(actual.isValid());
+            }
+        }
+
+        MemoryTable emptyMemoryTable = MemoryTable.create(2);
+        emptyMemoryTable.freeze();
+        assertTrue(emptyMemoryTable.isEmpty());
+        assertNull(emptyMemoryTable.get("key".getBytes()));
+        assertFalse(emptyMemoryTable.scan(unbound(), unbound()).isValid());
+    }
+
+    @Test
+    void testOffHeapMemoryTable() throws Exception {
+        MemoryTable memoryTable = MemoryTable.create(0);
+        MemoryTable offHeapMemoryTable = MemoryTable.createOffHeap(1);
+        assertTrue(offHeapMemoryTable.isOffHeap());
+        assertTrue(offHeapMemoryTable.isEmpty());
+        assertNull(offHeapMemoryTable.get("key".getBytes()));
+
+        Random random = new Random(42);
+        long bytes = 0;
+        for (int i = 0; i < 20000; i++) {
+            byte[] key = "key%05d".formatted(random.nextInt(10000)).getBytes();
+            // large value takes a chunk of its own
+            byte[] value = i % 5000 == 0 ? new byte[512 * 1024] : "value%d".formatted(i).getBytes();
+            memoryTable.put(key, value);
+            offHeapMemoryTable.put(key, value);
+            bytes += key.length + value.length;
+        }
+        offHeapMemoryTable.put(new byte[0], "empty".getBytes());
+        memoryTable.put(new byte[0], "empty".getBytes());
+        // arena counts every version and node overhead
+        assertTrue(offHeapMemoryTable.getApproximateSize() > bytes);
+
+        for (int i = 0; i <= 10000; i++) {
+            byte[] key = "key%05d".formatted(i).getBytes();
+            assertArrayEquals(memoryTable.get(key), offHeapMemoryTable.get(key));
+            Map.Entry<byte[], byte[]> expected = memoryTable.seek(key);
+            Map.Entry<byte[], byte[]> actual = offHeapMemoryTable.seek(key);
+            if (expected == null) {
+                assertNull(actual);
+            } else {
+                assertArrayEquals(expected.getKey(), actual.getKey());
+                assertArrayEquals(expected.getValue(), actual.getValue());
+            }
+        }
+        assertArrayEquals("empty".getBytes(), offHeapMemoryTable.get(new byte[0]));
+
+        List<Bound<byte[]>> bounds = List.of(
+                unbound(), included("key00100".getBytes()), excluded("key00100".getBytes()),
+                included("key05000".getBytes()), excluded("key09999".getBytes()));
+        for (Bound<byte[]> lower : bounds) {
+            for (Bound<byte[]> upper : bounds) {
+                MemoryTable.MemoryTableIterator expected;
+                try {
+                    expected = memoryTable.scan(lower, upper);
+                } catch (IllegalArgumentException e) {
+                    assertThrows(IllegalArgumentException.class, () -> offHeapMemoryTable.scan(lower, upper));
+                    continue;
+                }
+                MemoryTable.MemoryTableIterator actual = offHeapMemoryTable.scan(lower, upper);
+                while (expected.isValid()) {
+                    assertTrue(actual.isValid());
+                    assertArrayEquals(expected.key(), actual.key());
+                    assertArrayEquals(expected.value(), actual.value());
+                    expected.next();
+                    actual.next();
+                }
+                assertFalse(actual.isValid());
+            }
+        }
+
+        // off heap memory table is not frozen
+        offHeapMemoryTable.freeze();
+        assertFalse(offHeapMemoryTable.isFrozen());
+
+        // arena is freed once the last holder releases it
+        offHeapMemoryTable.retain();
+        offHeapMemoryTable.release();
+        assertThrows(IllegalStateException.class, () -> offHeapMemoryTable.get("key00001".getBytes()));
+    }
+
+    @Test
+    void testOffHeapMemoryTableConcurrentPut() throws Exception {
+        MemoryTable memoryTable = MemoryTable.createOffHeap(0);
+        int numOfThreads = 8;
+        int numOfKeys = 5000;
+        try (ExecutorService writers = Executors.newFixedThreadPool(numOfThreads)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < numOfThreads; t++) {
+                int thread = t;
+                futures.add(writers.submit(() -> {
+                    for (int i = thread; i < numOfKeys; i += numOfThreads) {
+                        memoryTable.put("key%05d".formatted(i).getBytes(), "value%d".formatted(i).getBytes());
+                        // every thread overwrites the shared keys too
+                        memoryTable.put("shared%02d".formatted(i % 10).getBytes(), "value%d".formatted(thread).getBytes());
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+
+        int count = 0;
+        byte[] prev = null;
+        for (MemoryTable.MemoryTableIterator iter = memoryTable.scan(unbound(), unbound()); iter.isValid(); iter.next()) {
+            if (prev != null) {
+                assertTrue(Arrays.compare(prev, iter.key()) < 0);
+            }
+            prev = iter.key();
+            count += 1;
+        }
+        assertEquals(numOfKeys + 10, count);
+        for (int i = 0; i < numOfKeys; i++) {
+            assertArrayEquals("value%d".formatted(i).getBytes(), memoryTable.get("key%05d".formatted(i).getBytes()));
+        }
+        memoryTable.retain();
+        memoryTable.release();
+    }
+
+    @Test
+    void testMemoryTableRangeTombstonesInRange() throws IOException {
+        MemoryTable memoryTable = MemoryTable.create(0);
+        memoryTable.deleteRange(InternalKey.encode("a".getBytes(), 1, InternalKey.KIND_RANGE_DELETE), "c".getBytes());
+        memoryTable.deleteRange(InternalKey.encode("b".getBytes(), 2, InternalKey.KIND_RANGE_DELETE), "e".getBytes());
+        memoryTable.deleteRange(InternalKey.encode("f".getBytes(), 3, InternalKey.KIND_RANGE_DELETE), "g".getBytes());
+
+        // point lookup of c sees only tombstone covering it, [a, c) ends at c and [f, g) starts after it
+        byte[] key = "c".getBytes();
+        List<RangeTombstone> rangeTombstones = memoryTable.getRangeTombstones(included(InternalKey.first(key)), included(InternalKey.last(key)));
+        assertEquals(1, rangeTombstones.size());
+        assertEquals(2, rangeTombstones.getFirst().sequence());
+
+        // tombstone starting at excluded upper is skipped
+        rangeTombstones = memoryTable.getRangeTombstones(unbound(), excluded(InternalKey.first("f".getBytes())));
+        assertEquals(2, rangeTombstones.size());
+        assertEquals(3, memoryTable.getRangeTombstones(unbound(), unbound()).size());
+    }
 }
@@ -0,0 +1,101 @@
+import io.geekya215.lamination.RateLimiter;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.geekya215.lamination.Constants.KB;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RateLimiterTest {
+    @Test
+    void testUnlimitedRateLimiter() throws IOException {
+        RateLimiter rateLimiter = RateLimiter.unlimited();
+        assertFalse(rateLimiter.isEnabled());
+
+        long start = System.nanoTime();
+        rateLimiter.request(1L << 40, RateLimiter.Priority.LOW);
+        assertTrue(System.nanoTime() - start < 100_000_000L);
+    }
+
+    @Test
+    void testRateLimiterThrottle() throws IOException {
+        RateLimiter rateLimiter = new RateLimiter(100 * KB, false);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < 5; i++) {
+            rateLimiter.request(10 * KB, RateLimiter.Priority.LOW);
+        }
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+
+        // 50KB at 100KB/s need about 500ms
+        assertTrue(elapsedMillis >= 400, "elapsed " + elapsedMillis + "ms");
+    }
+
+    @Test
+    void testRateLimiterAdjustAtRuntime() throws IOException {
+        RateLimiter rateLimiter = new RateLimiter(KB, false);
+        rateLimiter.setBytesPerSecond(0);
+        assertFalse(rateLimiter.isEnabled());
+
+        long start = System.nanoTime();
+        rateLimiter.request(100 * KB, RateLimiter.Priority.LOW);
+        assertTrue(System.nanoTime() - start < 100_000_000L);
+    }
+
+    @Test
+    void testRateLimiterHighPriorityFirst() throws InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(100 * KB, false);
+        AtomicLong highDone = new AtomicLong();
+        AtomicLong lowDone = new AtomicLong();
+        CountDownLatch started = new CountDownLatch(2);
+
+        Thread low = Thread.ofVirtual().start(() -> {
+            started.countDown();
+            try {
+                rateLimiter.request(20 * KB, RateLimiter.Priority.LOW);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            lowDone.set(System.nanoTime());
+        });
+        Thread high = Thread.ofVirtual().start(() -> {
+            started.countDown();
+            try {
+                rateLimiter.request(20 * KB, RateLimiter.Priority.HIGH);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            highDone.set(System.nanoTime());
+        });
+
+        started.await();
+        low.join();
+        high.join();
+
+        assertTrue(highDone.get() <= lowDone.get());
+    }
+
+    @Test
+    void testRateLimiterBackOffOnlyLowPriority() throws IOException, InterruptedException {
+        RateLimiter rateLimiter = new RateLimiter(100 * KB, true);
+        assertTrue(rateLimiter.isAutoTuning());
+        assertFalse(new RateLimiter(100 * KB, false).isAutoTuning());
+
+        for (int i = 0; i < 10; i++) {
+            rateLimiter.recordForegroundLatency(1000);
+        }
+        Thread.sleep(250);
+        // latency spike halves compaction budget
+        rateLimiter.recordForegroundLatency(100_000);
+        assertEquals(50 * KB, rateLimiter.getLowPriorityBytesPerSecond());
+        assertEquals(100 * KB, rateLimiter.getBytesPerSecond());
+
+        // flush still runs at the configured limit, 30KB at 100KB/s need about 300ms
+        long start = System.nanoTime();
+        rateLimiter.request(30 * KB, RateLimiter.Priority.HIGH);
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000L;
+        assertTrue(elapsedMillis < 450, "elapsed " + elapsedMillis + "ms");
+    }
+}
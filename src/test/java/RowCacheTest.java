@@ -0,0 +1,74 @@
+import io.geekya215.lamination.RowCache;
+import org.junit.jupiter.api.Test;
+
+import static io.geekya215.lamination.Constants.KB;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowCacheTest {
+    @Test
+    void testRowCacheStampAndEvict() {
+        RowCache cache = new RowCache(16 * KB);
+        long stamp = cache.stamp("key1".getBytes());
+        assertTrue(cache.put("key1".getBytes(), "value1".getBytes(), stamp));
+        assertArrayEquals("value1".getBytes(), cache.get("key1".getBytes()).value());
+        // negative result
+        assertTrue(cache.put("key2".getBytes(), null, cache.stamp("key2".getBytes())));
+        assertNull(cache.get("key2".getBytes()).value());
+
+        // row read before a write is not cached
+        stamp = cache.stamp("key1".getBytes());
+        cache.invalidate("key1".getBytes());
+        assertNull(cache.get("key1".getBytes()));
+        assertFalse(cache.put("key1".getBytes(), "value1".getBytes(), stamp));
+        assertNull(cache.get("key1".getBytes()));
+
+        for (int i = 0; i < 1000; i++) {
+            byte[] key = "key_%05d".formatted(i).getBytes();
+            cache.put(key, "value".getBytes(), cache.stamp(key));
+        }
+        assertTrue(cache.size() <= 16 * KB);
+        assertNotNull(cache.get("key_00999".getBytes()));
+        assertNull(cache.get("key_00000".getBytes()));
+
+        cache.invalidateAll();
+        assertEquals(0, cache.size());
+        assertNull(cache.get("key_00999".getBytes()));
+    }
+
+    @Test
+    void testRowCacheCopyOnPutAndGet() {
+        RowCache cache = new RowCache(16 * KB);
+        byte[] key = "key1".getBytes();
+        byte[] value = "value1".getBytes();
+        assertTrue(cache.put(key, value, cache.stamp(key)));
+        // caller reuses its arrays
+        key[0] = 'x';
+        value[0] = 'x';
+        assertArrayEquals("value1".getBytes(), cache.get("key1".getBytes()).value());
+        assertNull(cache.get(key));
+        // caller modifies the value it got
+        cache.get("key1".getBytes()).value()[0] = 'x';
+        assertArrayEquals("value1".getBytes(), cache.get("key1".getBytes()).value());
+    }
+
+    @Test
+    void testRowCacheInvalidateRange() {
+        RowCache cache = new RowCache(16 * KB);
+        for (int i = 0; i < 10; i++) {
+            byte[] key = "key_%02d".formatted(i).getBytes();
+            cache.put(key, "value".getBytes(), cache.stamp(key));
+        }
+        long stamp = cache.stamp("key_01".getBytes());
+        cache.invalidateRange("key_03".getBytes(), "key_05".getBytes());
+        for (int i = 0; i < 10; i++) {
+            RowCache.Row row = cache.get("key_%02d".formatted(i).getBytes());
+            if (i >= 3 && i <= 5) {
+                assertNull(row);
+            } else {
+                assertNotNull(row);
+            }
+        }
+        // lookup started before invalidation may have read a value in range, it is not cached
+        assertFalse(cache.put("key_04".getBytes(), "value".getBytes(), stamp));
+    }
+}
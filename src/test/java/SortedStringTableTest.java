@@ -1,12 +1,26 @@
+import io.geekya215.lamination.BlobIndex;
+import io.geekya215.lamination.Block;
+import io.geekya215.lamination.BloomFilter;
 import io.geekya215.lamination.Engine;
+import io.geekya215.lamination.InternalKey;
+import io.geekya215.lamination.KeyFilter;
 import io.geekya215.lamination.LRUCache;
+import io.geekya215.lamination.PrefixExtractor;
 import io.geekya215.lamination.SortedStringTable;
+import io.geekya215.lamination.exception.SortedStringTableFormatException;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
 
+import static io.geekya215.lamination.Constants.GB;
 import static io.geekya215.lamination.Constants.KB;
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -16,22 +30,22 @@ public class SortedStringTableTest {
 
     @Test
     void testBuildSSTWithSingleKey() throws IOException {
-        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(16);
+        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(16, Engine.getPathOfSST(tempDir, 0));
         sstBuilder.put("1".getBytes(), "1.1".getBytes());
-        SortedStringTable sst = sstBuilder.build(0, new LRUCache<>(KB), Engine.getPathOfSST(tempDir, 0));
+        SortedStringTable sst = sstBuilder.build(0, new LRUCache<>(KB));
         sst.getFile().close();
     }
 
     @Test
     void testBuildSSTWithMultiBlock() throws IOException {
-        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(16);
+        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(16, Engine.getPathOfSST(tempDir, 0));
         sstBuilder.put("1".getBytes(), "1.1".getBytes());
         sstBuilder.put("2".getBytes(), "2.1".getBytes());
         sstBuilder.put("3".getBytes(), "3.1".getBytes());
         sstBuilder.put("4".getBytes(), "4.1".getBytes());
         sstBuilder.put("5".getBytes(), "5.1".getBytes());
         sstBuilder.put("6".getBytes(), "6.1".getBytes());
-        SortedStringTable sst = sstBuilder.build(0, new LRUCache<>(KB), Engine.getPathOfSST(tempDir, 0));
+        SortedStringTable sst = sstBuilder.build(0, new LRUCache<>(KB));
 
         assertTrue(sst.numberOfBlock() > 1);
 
@@ -47,11 +61,11 @@ public class SortedStringTableTest {
     }
 
     SortedStringTable generateSortedStringTable() throws IOException {
-        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(128);
+        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(128, Engine.getPathOfSST(tempDir, 0));
         for (int i = 0; i < 100; i++) {
             sstBuilder.put(keyOf(i), valueOf(i));
         }
-        return sstBuilder.build(0, new LRUCache<>(KB), Engine.getPathOfSST(tempDir, 0));
+        return sstBuilder.build(0, new LRUCache<>(KB));
     }
 
     @Test
@@ -65,6 +79,9 @@ public class SortedStringTableTest {
         assertArrayEquals(sst.getFirstKey(), open.getFirstKey());
         assertArrayEquals(sst.getLastKey(), open.getLastKey());
 
+        assertEquals(100, open.getNumOfKeys());
+        assertEquals(0, open.getNumOfTombstones());
+
         open.getFile().close();
         sst.getFile().close();
     }
@@ -100,4 +117,184 @@ public class SortedStringTableTest {
         }
         sst.getFile().close();
     }
+
+    @Test
+    void testEncodeAndDecodeMetaBlockWithLongOffset() {
+        List<SortedStringTable.MetaBlock> metaBlocks = List.of(
+                new SortedStringTable.MetaBlock(0, "a".getBytes(), "b".getBytes()),
+                new SortedStringTable.MetaBlock(5L * GB, "c".repeat(300).getBytes(), "d".getBytes()));
+        assertEquals(metaBlocks, SortedStringTable.MetaBlock.decode(SortedStringTable.MetaBlock.encode(metaBlocks)));
+    }
+
+    @Test
+    void testOpenSortedStringTableWithBadMagic() throws IOException {
+        SortedStringTable sst = generateSortedStringTable();
+        sst.getFile().close();
+
+        try (RandomAccessFile file = new RandomAccessFile(Engine.getPathOfSST(tempDir, 0).toFile(), "rw")) {
+            file.seek(file.length() - 1);
+            file.write(0);
+        }
+
+        SortedStringTable.FileObject file = SortedStringTable.FileObject.open(Engine.getPathOfSST(tempDir, 0));
+        assertThrows(SortedStringTableFormatException.class, () -> SortedStringTable.open(0, new LRUCache<>(KB), file));
+        file.close();
+    }
+
+    @Test
+    void testOpenSortedStringTableOfEveryFormatVersion() throws IOException {
+        for (int version = 1; version <= 6; version++) {
+            SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(128, Engine.getPathOfSST(tempDir, version));
+            sstBuilder.setFormatVersion(version);
+            sstBuilder.setFilterType(KeyFilter.Type.BLOCKED_BLOOM);
+            sstBuilder.setPrefixExtractor(PrefixExtractor.fixed(5));
+            sstBuilder.setRangeFilter(0);
+            sstBuilder.setBlobIndexExtractor((key, value) -> new BlobIndex(7, 0, value.length));
+            for (int i = 0; i < 100; i++) {
+                sstBuilder.put(keyOf(i), valueOf(i));
+            }
+            SortedStringTable sst = sstBuilder.build(version, new LRUCache<>(KB));
+            sst.getFile().close();
+
+            SortedStringTable.FileObject file = SortedStringTable.FileObject.open(Engine.getPathOfSST(tempDir, version));
+            assertEquals(version, SortedStringTable.Footer.read(file).formatVersion());
+
+            SortedStringTable open = SortedStringTable.open(version, new LRUCache<>(KB), file);
+            assertEquals(sst.getMetaBlocks(), open.getMetaBlocks());
+            assertEquals(100, open.getNumOfKeys());
+            // filter type is ignored before version 3
+            assertEquals(version < 3 ? KeyFilter.Type.BLOOM : KeyFilter.Type.BLOCKED_BLOOM, open.getFilter().type());
+            assertTrue(open.getFilter().contain(keyOf(42)));
+            // prefix extractor is ignored before version 4
+            assertEquals(version < 4 ? "" : "fixed:5", open.getPrefixExtractor());
+            // range filter is ignored before version 5
+            assertEquals(version >= 5, open.getRangeFilter() != null);
+            // blob references are ignored before version 6
+            long blobBytes = 0;
+            for (int i = 0; i < 100; i++) {
+                blobBytes += valueOf(i).length;
+            }
+            assertEquals(version < 6 ? Map.of() : Map.of(7, blobBytes), open.getBlobReferences());
+            SortedStringTable.SortedStringTableIterator iter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(open, keyOf(42));
+            assertArrayEquals(valueOf(42), iter.value());
+            open.getFile().close();
+        }
+
+        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(128, Engine.getPathOfSST(tempDir, 0));
+        assertThrows(SortedStringTableFormatException.class, () -> sstBuilder.setFormatVersion(7));
+    }
+
+    @Test
+    void testOpenSortedStringTableOfFormatVersion0() throws IOException {
+        // block section | meta section | meta_block_offset(u32) | bloom_filter | bloom_filter_offset(u32)
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ByteArrayOutputStream meta = new ByteArrayOutputStream();
+        BloomFilter bloomFilter = new BloomFilter(100);
+        int numOfBlocks = 0;
+        for (int i = 0; i < 100; i += 10) {
+            Block.BlockBuilder blockBuilder = new Block.BlockBuilder(4 * KB);
+            for (int j = i; j < i + 10; j++) {
+                // every tenth key is a tombstone
+                blockBuilder.put(keyOf(j), j % 10 == 9 ? new byte[0] : valueOf(j));
+                bloomFilter.add(keyOf(j));
+            }
+            final byte[] block = blockBuilder.build().encode();
+            writeInt(meta, out.size());
+            writeShort(meta, keyOf(i).length);
+            meta.writeBytes(keyOf(i));
+            writeShort(meta, keyOf(i + 9).length);
+            meta.writeBytes(keyOf(i + 9));
+            numOfBlocks += 1;
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(block);
+            out.writeBytes(block);
+            writeInt(out, (int) crc32.getValue());
+        }
+        writeInt(meta, numOfBlocks);
+        CRC32 crc32 = new CRC32();
+        crc32.update(meta.toByteArray());
+        writeInt(meta, (int) crc32.getValue());
+
+        int metaBlockOffset = out.size();
+        out.writeBytes(meta.toByteArray());
+        writeInt(out, metaBlockOffset);
+        int bloomFilterOffset = out.size();
+        out.writeBytes(bloomFilter.encode());
+        writeInt(out, bloomFilterOffset);
+        Files.write(Engine.getPathOfSST(tempDir, 0), out.toByteArray());
+
+        SortedStringTable.FileObject file = SortedStringTable.FileObject.open(Engine.getPathOfSST(tempDir, 0));
+        assertEquals(0, SortedStringTable.Footer.read(file).formatVersion());
+
+        SortedStringTable sst = SortedStringTable.open(0, new LRUCache<>(KB), file);
+        assertEquals(10, sst.numberOfBlock());
+        assertTrue(sst.getFilter().contain(keyOf(42)));
+        assertTrue(sst.getRangeTombstones().isEmpty());
+        // statistics are absent, so tombstone ratio never triggers compaction
+        assertEquals(0, sst.getNumOfKeys());
+        assertEquals(0.0, sst.tombstoneRatio());
+
+        SortedStringTable.SortedStringTableIterator iter =
+                SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, InternalKey.first(keyOf(42)));
+        assertArrayEquals(keyOf(42), InternalKey.userKey(iter.key()));
+        assertEquals(0, InternalKey.sequence(iter.key()));
+        assertEquals(InternalKey.KIND_PUT, InternalKey.kind(iter.key()));
+        assertArrayEquals(valueOf(42), iter.value());
+
+        iter = SortedStringTable.SortedStringTableIterator.createAndSeekToKey(sst, InternalKey.first(keyOf(49)));
+        assertArrayEquals(keyOf(49), InternalKey.userKey(iter.key()));
+        assertEquals(InternalKey.KIND_DELETE, InternalKey.kind(iter.key()));
+
+        int count = 0;
+        for (iter = SortedStringTable.SortedStringTableIterator.createAndSeekToFirst(sst); iter.isValid(); iter.next()) {
+            count += 1;
+        }
+        assertEquals(100, count);
+        file.close();
+    }
+
+    void writeInt(ByteArrayOutputStream out, int value) {
+        out.write(value >> 24);
+        out.write(value >> 16);
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >> 8);
+        out.write(value);
+    }
+
+    @Test
+    void testSortedStringTableMayContainPrefix() throws IOException {
+        PrefixExtractor extractor = PrefixExtractor.fixed(5);
+        SortedStringTable.SortedStringTableBuilder sstBuilder = new SortedStringTable.SortedStringTableBuilder(128, Engine.getPathOfSST(tempDir, 0));
+        sstBuilder.setPrefixExtractor(extractor);
+        for (int user = 0; user < 200; user += 2) {
+            for (int i = 0; i < 10; i++) {
+                sstBuilder.put("u%03d:%03d".formatted(user, i).getBytes(), valueOf(i));
+            }
+        }
+        // out of domain of extractor
+        sstBuilder.put("v".getBytes(), valueOf(0));
+        SortedStringTable sst = sstBuilder.build(0, new LRUCache<>(KB));
+        sst.getFile().close();
+
+        SortedStringTable open = SortedStringTable.open(0, new LRUCache<>(KB), SortedStringTable.FileObject.open(Engine.getPathOfSST(tempDir, 0)));
+        assertEquals(extractor.name(), open.getPrefixExtractor());
+        int falsePositives = 0;
+        for (int user = 0; user < 200; user++) {
+            long prefixHash = KeyFilter.hash(extractor.prefixOf("u%03d:".formatted(user).getBytes()));
+            if (user % 2 == 0) {
+                assertTrue(open.mayContainPrefix(extractor.name(), prefixHash));
+            } else if (open.mayContainPrefix(extractor.name(), prefixHash)) {
+                falsePositives += 1;
+            }
+            // filter built with another extractor says nothing about prefix
+            assertTrue(open.mayContainPrefix(PrefixExtractor.fixed(4).name(), prefixHash));
+        }
+        assertTrue(falsePositives < 10);
+        open.getFile().close();
+    }
 }